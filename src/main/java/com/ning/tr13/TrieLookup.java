@@ -1,5 +1,8 @@
 package com.ning.tr13;
 
+import com.ning.tr13.lookup.PrefixMatch;
+import com.ning.tr13.lookup.TrieCursor;
+
 /**
  * API for accessing entries of a trie.
  *
@@ -7,6 +10,8 @@ package com.ning.tr13;
  */
 public abstract class TrieLookup<V>
 {
+    protected final static byte[] NO_BYTES = new byte[0];
+
     /**
      * Class used for reading persistent trie structure, and accessing values it
      * has. Since there are multiple backend implementations, this is an abstract
@@ -25,12 +30,157 @@ public abstract class TrieLookup<V>
      */
     public abstract V findValue(byte[] key);
 
+    /**
+     * Lookup method for keys contained in a section of a byte array
+     * (such as a network buffer).
+     */
+    public abstract V findValue(byte[] key, int offset, int length);
+
+    /**
+     * Lookup method for String (or other {@link CharSequence}) keys: key
+     * is encoded as UTF-8 during lookup, one byte at a time, without
+     * constructing an intermediate byte array.
+     */
+    public abstract V findValue(CharSequence key);
+
+    /**
+     * Method for checking whether trie has an entry for given key.
+     * Implementations do not decode or copy the value, so this is
+     * faster than checking result of {@link #findValue(byte[])}.
+     */
+    public boolean containsKey(byte[] key) {
+        return findValue(key) != null;
+    }
+
+    /**
+     * Method for finding the entry with the longest key that is a prefix
+     * of (or equal to) given key. Lookup only traverses the trie once,
+     * regardless of how many entries match.
+     *
+     * @return Match with value and length of the matching key, if any
+     *   entry matched; null if none
+     */
+    public abstract PrefixMatch<V> findLongestPrefix(byte[] key);
+
+    /**
+     * Method for constructing a cursor for iterating over all entries
+     * with given key prefix, in ascending key order.
+     */
+    public abstract TrieCursor cursor(byte[] prefix);
+
+    /**
+     * Method for constructing a cursor for iterating over all entries
+     * of the trie, in ascending key order.
+     */
+    public TrieCursor cursor() {
+        return cursor(NO_BYTES);
+    }
+
+    /**
+     * Method for releasing resources (like memory mappings) trie holds,
+     * instead of waiting for garbage collection; only some backends
+     * support explicit release (see {@link com.ning.tr13.lookup.TriePayload#release}),
+     * others ignore the call. Trie (and lookups that share its payload,
+     * like ones constructed using <code>withRootIndex</code>) must not be
+     * accessed after release. Default implementation does nothing.
+     */
+    public void release() { }
+
     /*
     /********************************************************** 
     /* Internal methods
     /********************************************************** 
      */
 
+    /**
+     * Helper method for determining order in which keys of a batch lookup
+     * should be processed: keys are ordered in ascending (unsigned)
+     * lexicographic order, so that consecutive keys share longest possible
+     * common prefixes.
+     * 
+     * @return Indexes of keys in ascending key order
+     */
+    protected static int[] _sortedOrder(byte[][] keys)
+    {
+        final int len = keys.length;
+        int[] order = new int[len];
+        boolean sorted = true;
+        for (int i = 0; i < len; ++i) {
+            order[i] = i;
+            if (sorted && i > 0 && _compareKeys(keys[i-1], keys[i]) > 0) {
+                sorted = false;
+            }
+        }
+        if (!sorted) { // most batches are probably unsorted; but no need to sort if not
+            _sortOrder(keys, order, new int[len], 0, len);
+        }
+        return order;
+    }
+
+    /**
+     * Helper method for comparing keys using unsigned lexicographic ordering.
+     */
+    protected static int _compareKeys(byte[] key1, byte[] key2)
+    {
+        for (int i = 0, end = Math.min(key1.length, key2.length); i < end; ++i) {
+            int diff = (key1[i] & 0xFF) - (key2[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return key1.length - key2.length;
+    }
+
+    /**
+     * @return Length of the common prefix of two given keys
+     */
+    protected static int _commonPrefixLength(byte[] key1, byte[] key2)
+    {
+        int i = 0;
+        for (int end = Math.min(key1.length, key2.length); i < end; ++i) {
+            if (key1[i] != key2[i]) {
+                break;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Simple merge sort for sorting key indexes; needed since JDK only
+     * has comparator-based sorting for object arrays.
+     */
+    private static void _sortOrder(byte[][] keys, int[] order, int[] tmp, int start, int end)
+    {
+        final int len = end - start;
+        if (len < 8) { // insertion sort for short ranges
+            for (int i = start+1; i < end; ++i) {
+                int ix = order[i];
+                int j = i;
+                for (; j > start && _compareKeys(keys[order[j-1]], keys[ix]) > 0; --j) {
+                    order[j] = order[j-1];
+                }
+                order[j] = ix;
+            }
+            return;
+        }
+        final int mid = start + (len >> 1);
+        _sortOrder(keys, order, tmp, start, mid);
+        _sortOrder(keys, order, tmp, mid, end);
+        // already in order?
+        if (_compareKeys(keys[order[mid-1]], keys[order[mid]]) <= 0) {
+            return;
+        }
+        System.arraycopy(order, start, tmp, start, len);
+        int i1 = start, i2 = mid;
+        for (int i = start; i < end; ++i) {
+            if (i2 >= end || (i1 < mid && _compareKeys(keys[tmp[i1]], keys[tmp[i2]]) <= 0)) {
+                order[i] = tmp[i1++];
+            } else {
+                order[i] = tmp[i2++];
+            }
+        }
+    }
+
     protected static String _printKey(byte[] buffer, int offset, int len)
     {
         StringBuilder sb = new StringBuilder(20);
@@ -4,15 +4,30 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 
+import com.ning.tr13.bloom.BloomFilter;
+import com.ning.tr13.bloom.BloomFilteredBytesTrieLookup;
+import com.ning.tr13.bloom.BloomFilteredVIntTrieLookup;
+import com.ning.tr13.cache.CachingBytesTrieLookup;
+import com.ning.tr13.cache.CachingVIntTrieLookup;
 import com.ning.tr13.impl.bytes.ByteArrayBytesTrieLookup;
 import com.ning.tr13.impl.bytes.ByteBufferBytesTrieLookup;
+import com.ning.tr13.impl.bytes.MappedBytesTrieLookup;
+import com.ning.tr13.impl.ordinal.OrdinalTrieLookup;
 import com.ning.tr13.impl.vint.ByteArrayVIntTrieLookup;
 import com.ning.tr13.impl.vint.ByteBufferVIntTrieLookup;
+import com.ning.tr13.impl.vint.LongKeyTrieLookup;
+import com.ning.tr13.impl.vint.MappedVIntTrieLookup;
 import com.ning.tr13.lookup.BytesTrieLookup;
+import com.ning.tr13.lookup.MappedTriePayload;
+import com.ning.tr13.lookup.RootIndex;
 import com.ning.tr13.lookup.TrieHeader;
+import com.ning.tr13.lookup.TriePayload;
 import com.ning.tr13.lookup.VIntTrieLookup;
+import com.ning.tr13.reverse.ReverseIndex;
+import com.ning.tr13.reverse.ReverseIndexedVIntTrieLookup;
 import com.ning.tr13.util.InputUtil;
 
 /**
@@ -134,7 +149,14 @@ public class TrieLookups
         int len = (int) header.getPayloadLength();
         byte[] buffer = new byte[len];
         InputUtil.readFully(in, buffer, 0, len);
-        return new ByteArrayVIntTrieLookup(buffer);
+        VIntTrieLookup trie = new ByteArrayVIntTrieLookup(buffer, null,
+                header.hasFlag(TrieHeader.FLAG_SUBTREE_COUNTS));
+        BloomFilter filter = _readBloomFilter(in, header);
+        byte[] index = _readReverseIndex(in, header);
+        if (index != null) {
+            trie = new ReverseIndexedVIntTrieLookup(trie, ReverseIndex.forPayload(TriePayload.forArray(index)));
+        }
+        return _withBloomFilter(trie, filter);
     }
 
     /**
@@ -172,9 +194,10 @@ public class TrieLookups
         throws IOException
     {
         TrieHeader header = _readHeader(in, true);
-        int len = (int) header.getPayloadLength();
-        ByteBuffer bb = a.allocate(len);
+        final int size = (int) header.getPayloadLength();
+        ByteBuffer bb = a.allocate(size);
         byte[] buffer = new byte[16000];
+        int len = size;
         while (len > 0) {
             int count = in.read(buffer, 0, Math.min(len, buffer.length));
             if (count < 0) {
@@ -183,7 +206,15 @@ public class TrieLookups
             bb.put(buffer, 0, count);
             len -= count;
         }
-        return new ByteBufferVIntTrieLookup(bb, len);
+        VIntTrieLookup trie = new ByteBufferVIntTrieLookup(bb, size, null,
+                header.hasFlag(TrieHeader.FLAG_SUBTREE_COUNTS));
+        BloomFilter filter = _readBloomFilter(in, header);
+        byte[] index = _readReverseIndex(in, header);
+        if (index != null) {
+            trie = new ReverseIndexedVIntTrieLookup(trie, ReverseIndex.forPayload(
+                    TriePayload.forBuffer(_arrayToBuffer(index, a), index.length)));
+        }
+        return _withBloomFilter(trie, filter);
     }
 
     /*
@@ -206,7 +237,8 @@ public class TrieLookups
         int len = (int) header.getPayloadLength();
         byte[] buffer = new byte[len];
         InputUtil.readFully(in, buffer, 0, len);
-        return new ByteArrayBytesTrieLookup(buffer);
+        return _withBloomFilter(new ByteArrayBytesTrieLookup(buffer, null,
+                header.hasFlag(TrieHeader.FLAG_SUBTREE_COUNTS)), _readBloomFilter(in, header));
     }
 
     /**
@@ -244,9 +276,10 @@ public class TrieLookups
         throws IOException
     {
         TrieHeader header = _readHeader(in, true);
-        int len = (int) header.getPayloadLength();
-        ByteBuffer bb = a.allocate(len);
+        final int size = (int) header.getPayloadLength();
+        ByteBuffer bb = a.allocate(size);
         byte[] buffer = new byte[16000];
+        int len = size;
         while (len > 0) {
             int count = in.read(buffer, 0, Math.min(len, buffer.length));
             if (count < 0) {
@@ -255,10 +288,233 @@ public class TrieLookups
             bb.put(buffer, 0, count);
             len -= count;
         }
-        return new ByteBufferBytesTrieLookup(bb, len);
+        return _withBloomFilter(new ByteBufferBytesTrieLookup(bb, size, null,
+                header.hasFlag(TrieHeader.FLAG_SUBTREE_COUNTS)), _readBloomFilter(in, header));
     }
     
     
+    /*
+    /********************************************************** 
+    /* Factory methods, memory-mapped files
+    /********************************************************** 
+     */
+
+    /**
+     * Factory method that will memory-map VInt-valued trie from given file,
+     * and construct a lookup instance that accesses mapped data directly.
+     * Since contents are not read in memory, construction is fast and
+     * OS page cache is shared between processes; and since 64-bit offsets
+     * are used, tries can be bigger than 2 gigabytes.
+     */
+    public static VIntTrieLookup mapVIntTrie(File f) throws IOException
+    {
+        return mapVIntTrie(f, MappedTriePayload.DEFAULT_SEGMENT_BITS);
+    }
+
+    /**
+     * @param segmentBits Size of segments (as power of two) that the file
+     *    is mapped in
+     */
+    public static VIntTrieLookup mapVIntTrie(File f, int segmentBits) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            TrieHeader header = _readHeader(raf);
+            VIntTrieLookup trie = new MappedVIntTrieLookup(_mapPayload(raf, header, segmentBits), null,
+                    header.hasFlag(TrieHeader.FLAG_SUBTREE_COUNTS));
+            TriePayload index = _mapReverseIndex(raf, header, segmentBits);
+            if (index != null) {
+                trie = new ReverseIndexedVIntTrieLookup(trie, ReverseIndex.forPayload(index));
+            }
+            return _withBloomFilter(trie, _readBloomFilter(raf, header));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Factory method that will memory-map byte[]-valued trie from given file,
+     * and construct a lookup instance that accesses mapped data directly.
+     */
+    public static BytesTrieLookup mapBytesTrie(File f) throws IOException
+    {
+        return mapBytesTrie(f, MappedTriePayload.DEFAULT_SEGMENT_BITS);
+    }
+
+    public static BytesTrieLookup mapBytesTrie(File f, int segmentBits) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            TrieHeader header = _readHeader(raf);
+            BytesTrieLookup trie = new MappedBytesTrieLookup(_mapPayload(raf, header, segmentBits), null,
+                    header.hasFlag(TrieHeader.FLAG_SUBTREE_COUNTS));
+            return _withBloomFilter(trie, _readBloomFilter(raf, header));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /*
+    /********************************************************** 
+    /* Factory methods, ordinal (key-only) tries
+    /********************************************************** 
+     */
+
+    public static OrdinalTrieLookup readOrdinalTrie(File f) throws IOException
+    {
+        FileInputStream fis = new FileInputStream(f);
+        OrdinalTrieLookup trie = readOrdinalTrie(fis);
+        fis.close();
+        return trie;
+    }
+
+    /**
+     * Factory method for reading key-only trie (built using
+     * {@link com.ning.tr13.impl.ordinal.SimpleOrdinalTrieBuilder}) in memory,
+     * and constructing lookup that maps keys to their ordinals and back.
+     */
+    public static OrdinalTrieLookup readOrdinalTrie(InputStream in) throws IOException
+    {
+        TrieHeader header = _readHeader(in, true);
+        _verifyOrdinalTrie(header);
+        int len = (int) header.getPayloadLength();
+        byte[] buffer = new byte[len];
+        InputUtil.readFully(in, buffer, 0, len);
+        return new OrdinalTrieLookup(TriePayload.forArray(buffer), _readBloomFilter(in, header));
+    }
+
+    /**
+     * Factory method that will memory-map key-only trie from given file,
+     * and construct lookup that maps keys to their ordinals and back.
+     */
+    public static OrdinalTrieLookup mapOrdinalTrie(File f) throws IOException
+    {
+        return mapOrdinalTrie(f, MappedTriePayload.DEFAULT_SEGMENT_BITS);
+    }
+
+    public static OrdinalTrieLookup mapOrdinalTrie(File f, int segmentBits) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            TrieHeader header = _readHeader(raf);
+            _verifyOrdinalTrie(header);
+            return new OrdinalTrieLookup(_mapPayload(raf, header, segmentBits), _readBloomFilter(raf, header));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /*
+    /********************************************************** 
+    /* Factory methods, long-keyed tries
+    /********************************************************** 
+     */
+
+    public static LongKeyTrieLookup readLongKeyTrie(File f) throws IOException
+    {
+        FileInputStream fis = new FileInputStream(f);
+        LongKeyTrieLookup trie = readLongKeyTrie(fis);
+        fis.close();
+        return trie;
+    }
+
+    /**
+     * Factory method for reading VInt-valued trie with <code>long</code> keys
+     * (built from {@link com.ning.tr13.impl.vint.LongKeyValueSource}) in memory,
+     * and constructing lookup that takes keys as <code>long</code>s.
+     * Bloom filter and reverse index, if trie has them, are not read.
+     */
+    public static LongKeyTrieLookup readLongKeyTrie(InputStream in) throws IOException
+    {
+        TrieHeader header = _readHeader(in, true);
+        int len = (int) header.getPayloadLength();
+        byte[] buffer = new byte[len];
+        InputUtil.readFully(in, buffer, 0, len);
+        return new LongKeyTrieLookup(buffer, header.hasFlag(TrieHeader.FLAG_SUBTREE_COUNTS));
+    }
+
+    /*
+    /********************************************************** 
+    /* Factory methods, root index
+    /********************************************************** 
+     */
+
+    /**
+     * Factory method for constructing a lookup instance that shares
+     * data with given trie, but uses a jump table (see {@link RootIndex})
+     * built at this point, to map the first one or two bytes of keys
+     * directly to trie nodes.
+     *
+     * @param maxIndexBytes Maximum amount of memory to spend on the table:
+     *    {@link RootIndex#ONE_LEVEL_BYTES} (1 kB) is enough to index one byte,
+     *    {@link RootIndex#TWO_LEVEL_BYTES} (256 kB) two bytes
+     */
+    public static VIntTrieLookup withRootIndex(VIntTrieLookup trie, int maxIndexBytes)
+    {
+        return trie.withRootIndex(maxIndexBytes);
+    }
+
+    /**
+     * Factory method for constructing a lookup instance that shares
+     * data with given trie, but uses a jump table (see {@link RootIndex})
+     * built at this point, to map the first one or two bytes of keys
+     * directly to trie nodes.
+     */
+    public static BytesTrieLookup withRootIndex(BytesTrieLookup trie, int maxIndexBytes)
+    {
+        return trie.withRootIndex(maxIndexBytes);
+    }
+
+    /*
+    /********************************************************** 
+    /* Factory methods, caching wrappers
+    /********************************************************** 
+     */
+
+    /**
+     * Factory method for wrapping given trie in a lookup instance that caches
+     * values of recently looked up keys; useful when some keys are accessed
+     * much more frequently than others. Cache is bounded by number of entries;
+     * keys that are not found are not cached.
+     */
+    public static CachingVIntTrieLookup cachingVIntTrie(VIntTrieLookup trie, int maxEntries)
+    {
+        return cachingVIntTrie(trie, maxEntries, Long.MAX_VALUE, false);
+    }
+
+    /**
+     * @param maxEntries Maximum number of entries to cache
+     * @param maxBytes Maximum estimated memory usage of cached entries
+     * @param cacheMisses Whether keys not found in the trie are cached as well
+     */
+    public static CachingVIntTrieLookup cachingVIntTrie(VIntTrieLookup trie, int maxEntries,
+            long maxBytes, boolean cacheMisses)
+    {
+        return new CachingVIntTrieLookup(trie, maxEntries, maxBytes, cacheMisses);
+    }
+
+    /**
+     * Factory method for wrapping given trie in a lookup instance that caches
+     * locations of values of recently looked up keys.
+     * Cache is bounded by number of entries;
+     * keys that are not found are not cached.
+     */
+    public static CachingBytesTrieLookup cachingBytesTrie(BytesTrieLookup trie, int maxEntries)
+    {
+        return cachingBytesTrie(trie, maxEntries, Long.MAX_VALUE, false);
+    }
+
+    /**
+     * @param maxEntries Maximum number of entries to cache
+     * @param maxBytes Maximum estimated memory usage of cached entries
+     * @param cacheMisses Whether keys not found in the trie are cached as well
+     */
+    public static CachingBytesTrieLookup cachingBytesTrie(BytesTrieLookup trie, int maxEntries,
+            long maxBytes, boolean cacheMisses)
+    {
+        return new CachingBytesTrieLookup(trie, maxEntries, maxBytes, cacheMisses);
+    }
+
     /*
     /********************************************************** 
     /* Internal methods
@@ -272,12 +528,133 @@ public class TrieLookups
         TrieHeader h = TrieHeader.read(buffer, 0);
         if (twoGigMax) {
             if (h.getPayloadLength() > Integer.MAX_VALUE) {
-                throw new IllegalArgumentException("Trie over 2 gigs in size: max size 2 gigs");
+                throw new IllegalArgumentException("Trie over 2 gigs in size: max size 2 gigs (memory-mapped lookups can be used for bigger tries)");
             }
         }
         return h;
     }  
 
+    protected static TrieHeader _readHeader(RandomAccessFile raf) throws IOException
+    {
+        byte[] buffer = new byte[TrieHeader.HEADER_LENGTH];
+        raf.readFully(buffer);
+        return TrieHeader.read(buffer, 0);
+    }
+
+    protected static void _verifyOrdinalTrie(TrieHeader h) throws IOException
+    {
+        if (h.getValueType() != TrieHeader.ValueType.KEYS_ONLY
+                || !h.hasFlag(TrieHeader.FLAG_SUBTREE_COUNTS)) {
+            throw new IOException("Not an ordinal trie: value type "+h.getValueType()
+                    +", flags 0x"+Integer.toHexString(h.getFlags()));
+        }
+    }
+
+    protected static TriePayload _mapPayload(RandomAccessFile raf, TrieHeader h, int segmentBits)
+        throws IOException
+    {
+        // mappings remain valid after file is closed
+        return MappedTriePayload.map(raf.getChannel(), TrieHeader.HEADER_LENGTH,
+                h.getPayloadLength(), segmentBits);
+    }
+
+    /**
+     * Method for reading Bloom filter section that follows trie payload,
+     * if header indicates there is one.
+     * Stream is expected to point to the end of payload.
+     */
+    protected static BloomFilter _readBloomFilter(InputStream in, TrieHeader h) throws IOException
+    {
+        if (!h.hasFlag(TrieHeader.FLAG_BLOOM_FILTER)) {
+            return null;
+        }
+        byte[] buffer = new byte[8];
+        InputUtil.readFully(in, buffer, 0, 8);
+        byte[] data = new byte[_sectionLength(buffer, "Bloom filter")];
+        InputUtil.readFully(in, data, 0, data.length);
+        return BloomFilter.fromBytes(data);
+    }
+
+    protected static BloomFilter _readBloomFilter(RandomAccessFile raf, TrieHeader h) throws IOException
+    {
+        if (!h.hasFlag(TrieHeader.FLAG_BLOOM_FILTER)) {
+            return null;
+        }
+        raf.seek(TrieHeader.HEADER_LENGTH + h.getPayloadLength());
+        byte[] buffer = new byte[8];
+        raf.readFully(buffer);
+        byte[] data = new byte[_sectionLength(buffer, "Bloom filter")];
+        raf.readFully(data);
+        return BloomFilter.fromBytes(data);
+    }
+
+    /**
+     * Method for reading reverse index section that follows trie payload
+     * and Bloom filter section (if any), if header indicates there is one.
+     * Stream is expected to point to the end of Bloom filter section
+     * (or payload, if there is no filter).
+     */
+    protected static byte[] _readReverseIndex(InputStream in, TrieHeader h) throws IOException
+    {
+        if (!h.hasFlag(TrieHeader.FLAG_REVERSE_INDEX)) {
+            return null;
+        }
+        byte[] buffer = new byte[8];
+        InputUtil.readFully(in, buffer, 0, 8);
+        byte[] data = new byte[_sectionLength(buffer, "reverse index")];
+        InputUtil.readFully(in, data, 0, data.length);
+        return data;
+    }
+
+    /**
+     * Method for memory-mapping reverse index section, if header indicates
+     * there is one.
+     */
+    protected static TriePayload _mapReverseIndex(RandomAccessFile raf, TrieHeader h, int segmentBits)
+        throws IOException
+    {
+        if (!h.hasFlag(TrieHeader.FLAG_REVERSE_INDEX)) {
+            return null;
+        }
+        long offset = TrieHeader.HEADER_LENGTH + h.getPayloadLength();
+        byte[] buffer = new byte[8];
+        if (h.hasFlag(TrieHeader.FLAG_BLOOM_FILTER)) { // need to skip filter section first
+            raf.seek(offset);
+            raf.readFully(buffer);
+            offset += 8 + _sectionLength(buffer, "Bloom filter");
+        }
+        raf.seek(offset);
+        raf.readFully(buffer);
+        long len = 0L;
+        for (int i = 0; i < 8; ++i) {
+            len = (len << 8) | (buffer[i] & 0xFF);
+        }
+        if (len < 0L || offset + 8 + len > raf.length()) {
+            throw new IOException("Invalid reverse index section length: "+len);
+        }
+        return MappedTriePayload.map(raf.getChannel(), offset + 8, len, segmentBits);
+    }
+
+    private static int _sectionLength(byte[] buffer, String section) throws IOException
+    {
+        long len = 0L;
+        for (int i = 0; i < 8; ++i) {
+            len = (len << 8) | (buffer[i] & 0xFF);
+        }
+        if (len < 0L || len > Integer.MAX_VALUE) {
+            throw new IOException("Invalid "+section+" section length: "+len);
+        }
+        return (int) len;
+    }
+
+    protected static VIntTrieLookup _withBloomFilter(VIntTrieLookup trie, BloomFilter filter) {
+        return (filter == null) ? trie : new BloomFilteredVIntTrieLookup(trie, filter);
+    }
+
+    protected static BytesTrieLookup _withBloomFilter(BytesTrieLookup trie, BloomFilter filter) {
+        return (filter == null) ? trie : new BloomFilteredBytesTrieLookup(trie, filter);
+    }
+
     protected static ByteBuffer _arrayToBuffer(byte[] data, ByteBufferAllocator allocator)
     {
     	ByteBuffer bb = allocator.allocate(data.length);
@@ -0,0 +1,209 @@
+package com.ning.tr13.bloom;
+
+import java.io.IOException;
+
+/**
+ * Blocked Bloom filter over trie keys: each key maps to a single 512-bit
+ * (64-byte, cache-line sized) block, and all bits for the key are set
+ * within that block. This means that checking for a key needs just one
+ * (or, if block is not aligned, two) cache line reads, regardless
+ * of number of hash functions used.
+ *<p>
+ * Filter is built by trie builder, and stored after the trie payload
+ * (see {@link com.ning.tr13.lookup.TrieHeader#FLAG_BLOOM_FILTER}),
+ * so it need not be rebuilt when trie is loaded.
+ *
+ * @author tatu
+ */
+public final class BloomFilter
+{
+    private final static int WORDS_PER_BLOCK = 8;
+
+    private final static int BLOCK_BITS = WORDS_PER_BLOCK * 64;
+
+    /**
+     * Length of the fixed part of serialized filter: hash count,
+     * 3 reserved bytes, block count
+     */
+    private final static int SERIALIZED_HEADER_LENGTH = 8;
+
+    private final static int MAX_HASHES = 16;
+
+    private final long[] _words;
+
+    private final int _blockCount;
+
+    private final int _hashCount;
+
+    private BloomFilter(long[] words, int hashCount)
+    {
+        _words = words;
+        _blockCount = words.length / WORDS_PER_BLOCK;
+        _hashCount = hashCount;
+    }
+
+    /**
+     * Factory method for constructing an empty filter sized for given number
+     * of keys.
+     *
+     * @param bitsPerKey Number of bits to use per key: more bits means lower
+     *   rate of false positives (about 1% for 10 bits)
+     */
+    public static BloomFilter forKeyCount(long keyCount, int bitsPerKey)
+    {
+        if (bitsPerKey < 1) {
+            throw new IllegalArgumentException("Invalid bitsPerKey ("+bitsPerKey+"): must be positive");
+        }
+        long blocks = Math.max(1L, (keyCount * bitsPerKey + BLOCK_BITS - 1) / BLOCK_BITS);
+        if (blocks > (Integer.MAX_VALUE / WORDS_PER_BLOCK)) {
+            throw new IllegalArgumentException("Bloom filter too big: "+keyCount+" keys, "+bitsPerKey+" bits per key");
+        }
+        // optimal number of hashes is bits-per-key * ln(2)
+        int hashes = Math.max(1, Math.min(MAX_HASHES, (int) Math.round(bitsPerKey * 0.69)));
+        return new BloomFilter(new long[(int) blocks * WORDS_PER_BLOCK], hashes);
+    }
+
+    /*
+    /**********************************************************
+    /* Public API
+    /**********************************************************
+     */
+
+    public void add(byte[] key) {
+        add(hash(key, 0, key.length));
+    }
+
+    /**
+     * Method for adding a key, given its hash code (as calculated by
+     * {@link #hash}).
+     */
+    public void add(long hash)
+    {
+        final int base = _blockBase(hash);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < _hashCount; ++i) {
+            int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+            _words[base + (bit >>> 6)] |= (1L << bit);
+        }
+    }
+
+    /**
+     * @return False if key is definitely not included; true if it
+     *   may be included
+     */
+    public boolean mightContain(byte[] key, int offset, int length) {
+        return mightContain(hash(key, offset, length));
+    }
+
+    public boolean mightContain(long hash)
+    {
+        final int base = _blockBase(hash);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < _hashCount; ++i) {
+            int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+            if ((_words[base + (bit >>> 6)] & (1L << bit)) == 0L) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getHashCount() { return _hashCount; }
+
+    /**
+     * @return Size of the bit set, in bytes
+     */
+    public long getByteSize() { return (long) _words.length << 3; }
+
+    /**
+     * Hash function used for keys: 64-bit FNV-1a, with final mixing step
+     * (from MurmurHash3) to spread bits.
+     */
+    public static long hash(byte[] key, int offset, int length)
+    {
+        long h = 0xcbf29ce484222325L;
+        for (int i = offset, end = offset+length; i < end; ++i) {
+            h = (h ^ (key[i] & 0xFF)) * 0x100000001b3L;
+        }
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+    /*
+    /**********************************************************
+    /* Serialization
+    /**********************************************************
+     */
+
+    public int serializedLength() {
+        return SERIALIZED_HEADER_LENGTH + (_words.length << 3);
+    }
+
+    public byte[] toBytes()
+    {
+        byte[] result = new byte[serializedLength()];
+        result[0] = (byte) _hashCount;
+        _putInt(result, 4, _blockCount);
+        int ptr = SERIALIZED_HEADER_LENGTH;
+        for (long w : _words) {
+            _putInt(result, ptr, (int) (w >>> 32));
+            _putInt(result, ptr+4, (int) w);
+            ptr += 8;
+        }
+        return result;
+    }
+
+    public static BloomFilter fromBytes(byte[] data) throws IOException
+    {
+        if (data.length < SERIALIZED_HEADER_LENGTH) {
+            throw new IOException("Malformed Bloom filter: only "+data.length+" bytes");
+        }
+        int hashCount = data[0];
+        int blocks = _getInt(data, 4);
+        if (hashCount < 1 || hashCount > MAX_HASHES || blocks < 1
+                || (data.length - SERIALIZED_HEADER_LENGTH) != (long) blocks * BLOCK_BITS / 8) {
+            throw new IOException("Malformed Bloom filter: "+hashCount+" hashes, "+blocks+" blocks, "+data.length+" bytes");
+        }
+        long[] words = new long[blocks * WORDS_PER_BLOCK];
+        int ptr = SERIALIZED_HEADER_LENGTH;
+        for (int i = 0; i < words.length; ++i) {
+            words[i] = ((long) _getInt(data, ptr) << 32) | (_getInt(data, ptr+4) & 0xFFFFFFFFL);
+            ptr += 8;
+        }
+        return new BloomFilter(words, hashCount);
+    }
+
+    /*
+    /**********************************************************
+    /* Internal methods
+    /**********************************************************
+     */
+
+    private int _blockBase(long hash)
+    {
+        // block chosen using bits not used for bit positions (multiply-shift
+        // instead of modulo)
+        long mixed = (hash ^ (hash >>> 29)) * 0x9E3779B97F4A7C15L;
+        return (int) (((mixed >>> 32) * _blockCount) >>> 32) * WORDS_PER_BLOCK;
+    }
+
+    private static void _putInt(byte[] buffer, int ptr, int value)
+    {
+        buffer[ptr] = (byte) (value >> 24);
+        buffer[ptr+1] = (byte) (value >> 16);
+        buffer[ptr+2] = (byte) (value >> 8);
+        buffer[ptr+3] = (byte) value;
+    }
+
+    private static int _getInt(byte[] buffer, int ptr)
+    {
+        return (buffer[ptr] << 24) | ((buffer[ptr+1] & 0xFF) << 16)
+            | ((buffer[ptr+2] & 0xFF) << 8) | (buffer[ptr+3] & 0xFF);
+    }
+}
@@ -0,0 +1,215 @@
+package com.ning.tr13.bloom;
+
+import java.nio.ByteBuffer;
+
+import com.ning.tr13.lookup.BytesLookupCursor;
+import com.ning.tr13.lookup.BytesTrieLookup;
+import com.ning.tr13.lookup.PrefixMatch;
+import com.ning.tr13.lookup.TrieCursor;
+import com.ning.tr13.lookup.TriePayload;
+
+/**
+ * {@link BytesTrieLookup} that wraps another lookup instance, and checks
+ * a {@link BloomFilter} before traversing the trie, so that most lookups
+ * for keys not in the trie fail without trie access.
+ *<p>
+ * Only byte[] keys are checked: lookups with String keys, as well as
+ * prefix lookups and iteration, are delegated as is.
+ *
+ * @author tatu
+ */
+public class BloomFilteredBytesTrieLookup
+    extends BytesTrieLookup
+{
+    protected final BytesTrieLookup _trie;
+
+    protected final BloomFilter _filter;
+
+    public BloomFilteredBytesTrieLookup(BytesTrieLookup trie, BloomFilter filter)
+    {
+        _trie = trie;
+        _filter = filter;
+    }
+
+    public BytesTrieLookup getUnderlyingTrie() { return _trie; }
+
+    public BloomFilter getFilter() { return _filter; }
+
+    /*
+    /**********************************************************
+    /* BytesTrieLookup impl
+    /**********************************************************
+     */
+
+    @Override
+    public byte[] findValue(byte[] key) {
+        return _filter.mightContain(key, 0, key.length) ? _trie.findValue(key) : null;
+    }
+
+    @Override
+    public byte[] findValue(byte[] key, int offset, int length) {
+        return _filter.mightContain(key, offset, length) ? _trie.findValue(key, offset, length) : null;
+    }
+
+    @Override
+    public byte[] findValue(CharSequence key) {
+        return _trie.findValue(key);
+    }
+
+    @Override
+    public ByteBuffer findValueAsBuffer(byte[] key) {
+        return _filter.mightContain(key, 0, key.length) ? _trie.findValueAsBuffer(key) : null;
+    }
+
+    @Override
+    public int findValueInto(byte[] key, byte[] buffer, int offset) {
+        return _filter.mightContain(key, 0, key.length) ? _trie.findValueInto(key, buffer, offset) : -1;
+    }
+
+    @Override
+    public TriePayload getPayload() {
+        return _trie.getPayload();
+    }
+
+    /**
+     * Batch lookup that only passes keys that pass the filter to the
+     * underlying trie (which may then optimize lookup of remaining keys)
+     */
+    @Override
+    public void findValues(byte[][] keys, byte[][] results)
+    {
+        final int len = keys.length;
+        int[] candidates = new int[len];
+        int count = 0;
+        for (int i = 0; i < len; ++i) {
+            byte[] key = keys[i];
+            if (_filter.mightContain(key, 0, key.length)) {
+                candidates[count++] = i;
+            } else {
+                results[i] = null;
+            }
+        }
+        if (count == len) {
+            _trie.findValues(keys, results);
+            return;
+        }
+        byte[][] candidateKeys = new byte[count][];
+        for (int i = 0; i < count; ++i) {
+            candidateKeys[i] = keys[candidates[i]];
+        }
+        byte[][] found = new byte[count][];
+        _trie.findValues(candidateKeys, found);
+        for (int i = 0; i < count; ++i) {
+            results[candidates[i]] = found[i];
+        }
+    }
+
+    @Override
+    public PrefixMatch<byte[]> findLongestPrefix(byte[] key) {
+        return _trie.findLongestPrefix(key);
+    }
+
+    @Override
+    public boolean containsKey(byte[] key) {
+        return _filter.mightContain(key, 0, key.length) && _trie.containsKey(key);
+    }
+
+    @Override
+    public TrieCursor cursor(byte[] prefix) {
+        return _trie.cursor(prefix);
+    }
+
+    @Override
+    public BloomFilteredBytesTrieLookup withRootIndex(int maxIndexBytes) {
+        return new BloomFilteredBytesTrieLookup(_trie.withRootIndex(maxIndexBytes), _filter);
+    }
+
+    @Override
+    public void release() {
+        _trie.release();
+    }
+
+    @Override
+    public BytesLookupCursor newCursor() {
+        return new Cursor(_trie.newCursor());
+    }
+
+    /*
+    /**********************************************************
+    /* Helper classes
+    /**********************************************************
+     */
+
+    /**
+     * Cursor that delegates to cursor of the underlying trie, for keys
+     * that pass the filter
+     */
+    private final class Cursor extends BytesLookupCursor
+    {
+        private final BytesLookupCursor _cursor;
+
+        /**
+         * Whether last lookup was rejected by the filter (in which case
+         * state of the underlying cursor is not valid)
+         */
+        private boolean _rejected = true;
+
+        public Cursor(BytesLookupCursor cursor) {
+            _cursor = cursor;
+        }
+
+        @Override
+        public int lookup(byte[] key) {
+            return lookup(key, 0, key.length);
+        }
+
+        @Override
+        public int lookup(byte[] key, int offset, int length)
+        {
+            _rejected = !_filter.mightContain(key, offset, length);
+            if (_rejected) {
+                return -1;
+            }
+            return _cursor.lookup(key, offset, length);
+        }
+
+        @Override
+        public int lookup(CharSequence key) {
+            _rejected = false;
+            return _cursor.lookup(key);
+        }
+
+        @Override
+        public int valueLength() {
+            return _rejected ? -1 : _cursor.valueLength();
+        }
+
+        @Override
+        public int copyValue(byte[] buffer, int offset)
+        {
+            _verifyValue();
+            return _cursor.copyValue(buffer, offset);
+        }
+
+        @Override
+        public ByteBuffer valueAsBuffer()
+        {
+            _verifyValue();
+            return _cursor.valueAsBuffer();
+        }
+
+        @Override
+        public long valueOffset()
+        {
+            _verifyValue();
+            return _cursor.valueOffset();
+        }
+
+        private void _verifyValue()
+        {
+            if (_rejected) {
+                throw new IllegalStateException("No value available: last lookup failed");
+            }
+        }
+    }
+}
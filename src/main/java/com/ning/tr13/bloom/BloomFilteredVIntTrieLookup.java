@@ -0,0 +1,188 @@
+package com.ning.tr13.bloom;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.ning.tr13.lookup.PrefixMatch;
+import com.ning.tr13.lookup.TrieCursor;
+import com.ning.tr13.lookup.VIntLookupCursor;
+import com.ning.tr13.lookup.VIntTrieLookup;
+
+/**
+ * {@link VIntTrieLookup} that wraps another lookup instance, and checks
+ * a {@link BloomFilter} before traversing the trie, so that most lookups
+ * for keys not in the trie fail without trie access.
+ *<p>
+ * Only byte[] keys are checked: lookups with String keys, as well as
+ * prefix lookups and cursors, are delegated as is.
+ *
+ * @author tatu
+ */
+public class BloomFilteredVIntTrieLookup
+    extends VIntTrieLookup
+{
+    protected final VIntTrieLookup _trie;
+
+    protected final BloomFilter _filter;
+
+    public BloomFilteredVIntTrieLookup(VIntTrieLookup trie, BloomFilter filter)
+    {
+        _trie = trie;
+        _filter = filter;
+    }
+
+    public VIntTrieLookup getUnderlyingTrie() { return _trie; }
+
+    public BloomFilter getFilter() { return _filter; }
+
+    /*
+    /**********************************************************
+    /* VIntTrieLookup impl
+    /**********************************************************
+     */
+
+    @Override
+    public Long findValue(byte[] key) {
+        return _filter.mightContain(key, 0, key.length) ? _trie.findValue(key) : null;
+    }
+
+    @Override
+    public Long findValue(byte[] key, int offset, int length) {
+        return _filter.mightContain(key, offset, length) ? _trie.findValue(key, offset, length) : null;
+    }
+
+    @Override
+    public Long findValue(CharSequence key) {
+        return _trie.findValue(key);
+    }
+
+    @Override
+    public long getValue(byte[] key) throws NoSuchElementException
+    {
+        if (!_filter.mightContain(key, 0, key.length)) {
+            throw new NoSuchElementException("No value for key "+_printKey(key, 0, key.length));
+        }
+        return _trie.getValue(key);
+    }
+
+    @Override
+    public long getValue(byte[] key, long defaultValue) {
+        return _filter.mightContain(key, 0, key.length) ? _trie.getValue(key, defaultValue) : defaultValue;
+    }
+
+    @Override
+    public long getValue(byte[] key, int offset, int length, long defaultValue)
+    {
+        if (!_filter.mightContain(key, offset, length)) {
+            return defaultValue;
+        }
+        return _trie.getValue(key, offset, length, defaultValue);
+    }
+
+    @Override
+    public long getValue(CharSequence key, long defaultValue) {
+        return _trie.getValue(key, defaultValue);
+    }
+
+    /**
+     * Batch lookup that only passes keys that pass the filter to the
+     * underlying trie (which may then optimize lookup of remaining keys)
+     */
+    @Override
+    public void findValues(byte[][] keys, long[] results, long missing)
+    {
+        final int len = keys.length;
+        int[] candidates = new int[len];
+        int count = 0;
+        for (int i = 0; i < len; ++i) {
+            byte[] key = keys[i];
+            if (_filter.mightContain(key, 0, key.length)) {
+                candidates[count++] = i;
+            } else {
+                results[i] = missing;
+            }
+        }
+        if (count == len) {
+            _trie.findValues(keys, results, missing);
+            return;
+        }
+        byte[][] candidateKeys = new byte[count][];
+        for (int i = 0; i < count; ++i) {
+            candidateKeys[i] = keys[candidates[i]];
+        }
+        long[] found = new long[count];
+        _trie.findValues(candidateKeys, found, missing);
+        for (int i = 0; i < count; ++i) {
+            results[candidates[i]] = found[i];
+        }
+    }
+
+    @Override
+    public PrefixMatch<Long> findLongestPrefix(byte[] key) {
+        return _trie.findLongestPrefix(key);
+    }
+
+    @Override
+    public boolean containsKey(byte[] key) {
+        return _filter.mightContain(key, 0, key.length) && _trie.containsKey(key);
+    }
+
+    @Override
+    public List<byte[]> findKeys(long value) {
+        return _trie.findKeys(value);
+    }
+
+    @Override
+    public TrieCursor cursor(byte[] prefix) {
+        return _trie.cursor(prefix);
+    }
+
+    @Override
+    public BloomFilteredVIntTrieLookup withRootIndex(int maxIndexBytes) {
+        return new BloomFilteredVIntTrieLookup(_trie.withRootIndex(maxIndexBytes), _filter);
+    }
+
+    @Override
+    public void release() {
+        _trie.release();
+    }
+
+    @Override
+    public VIntLookupCursor newCursor() {
+        return new Cursor(_trie.newCursor());
+    }
+
+    /*
+    /**********************************************************
+    /* Helper classes
+    /**********************************************************
+     */
+
+    private final class Cursor extends VIntLookupCursor
+    {
+        private final VIntLookupCursor _cursor;
+
+        public Cursor(VIntLookupCursor cursor) {
+            _cursor = cursor;
+        }
+
+        @Override
+        public long lookup(byte[] key, long missing) {
+            return _filter.mightContain(key, 0, key.length) ? _cursor.lookup(key, missing) : missing;
+        }
+
+        @Override
+        public long lookup(byte[] key, int offset, int length, long missing)
+        {
+            if (!_filter.mightContain(key, offset, length)) {
+                return missing;
+            }
+            return _cursor.lookup(key, offset, length, missing);
+        }
+
+        @Override
+        public long lookup(CharSequence key, long missing) {
+            return _cursor.lookup(key, missing);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.ning.tr13.build;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Comparator;
 
 import com.ning.tr13.TrieConstants;
 
@@ -22,10 +23,61 @@ public abstract class ClosedTrieNode<T>
      */
     public final static int MINIMUM_TEMP_BUFFER_LENGTH = 64;    
 
+    /**
+     * Ordering that sorts shorter nodes before longer ones; used for
+     * placing small subtrees close to the parent branch (opposite of
+     * the natural ordering of nodes)
+     */
+    public final static Comparator<ClosedTrieNode<?>> SMALLEST_FIRST = new Comparator<ClosedTrieNode<?>>() {
+        @Override
+        public int compare(ClosedTrieNode<?> n1, ClosedTrieNode<?> n2) {
+            long diff = n1.length() - n2.length();
+            return (diff < 0L) ? -1 : ((diff > 0L) ? 1 : 0);
+        }
+    };
+
+    /**
+     * Ordering that sorts longer nodes before shorter ones (same as natural
+     * ordering of nodes); used when builder is allowed to reorder entries,
+     * since it should reduce lookups for most likely target nodes
+     * (assuming uniform access pattern)
+     */
+    public final static Comparator<ClosedTrieNode<?>> BIGGEST_FIRST = new Comparator<ClosedTrieNode<?>>() {
+        @Override
+        public int compare(ClosedTrieNode<?> n1, ClosedTrieNode<?> n2) {
+            return SMALLEST_FIRST.compare(n2, n1);
+        }
+    };
+
+    /**
+     * Ordering that sorts nodes with higher access weight (see
+     * {@link #accessWeight}) before ones with lower weight, and nodes
+     * with same weight biggest first; used when builder has access
+     * frequencies of keys, so that lookups for frequently accessed keys
+     * skip fewer siblings.
+     */
+    public final static Comparator<ClosedTrieNode<?>> HEAVIEST_FIRST = new Comparator<ClosedTrieNode<?>>() {
+        @Override
+        public int compare(ClosedTrieNode<?> n1, ClosedTrieNode<?> n2) {
+            long w1 = n1.accessWeight();
+            long w2 = n2.accessWeight();
+            if (w1 != w2) {
+                return (w1 > w2) ? -1 : 1;
+            }
+            return BIGGEST_FIRST.compare(n1, n2);
+        }
+    };
+
     /**
      * Byte that parent node (branch) will use to branch into this node.
      */
     protected final byte _nextByte;
+
+    /**
+     * Total access weight of keys in the subtree rooted at this node,
+     * if builder was given key weights; 0 if not.
+     */
+    protected long _accessWeight;
     
     protected ClosedTrieNode(byte nb)
     {
@@ -63,8 +115,18 @@ public abstract class ClosedTrieNode<T>
     public abstract int typeBits();
     public abstract boolean isLeaf();
 
+    /**
+     * @return Number of entries (keys with values) in the subtree
+     *   rooted at this node
+     */
+    public abstract long entryCount();
+
     public abstract int serialize(byte[] result, int offset);
 
+    public final long accessWeight() { return _accessWeight; }
+
+    public final void setAccessWeight(long w) { _accessWeight = w; }
+
     /*
     /**********************************************************
     /* Other methods
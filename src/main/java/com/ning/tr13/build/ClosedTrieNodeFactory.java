@@ -2,6 +2,8 @@ package com.ning.tr13.build;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
 
 import com.ning.tr13.util.VInt;
 
@@ -12,12 +14,73 @@ import com.ning.tr13.util.VInt;
  */
 public abstract class ClosedTrieNodeFactory<T>
 {
+    /**
+     * Minimum number of children a branch must have to be written using
+     * "indexed" branch encoding; 0 if indexed encoding is not to be used
+     * at all.
+     */
+    protected final int _indexedBranchMinChildren;
+
+    /**
+     * Whether branches are to include number of entries in their subtree
+     */
+    protected final boolean _subtreeCounts;
+
+    protected ClosedTrieNodeFactory() {
+        this(0);
+    }
+
+    /**
+     * @param indexedBranchMinChildren Minimum number of children a branch
+     *   must have to be written using indexed encoding (see
+     *   {@link SimpleBranch} for details); 0 to never use it
+     */
+    protected ClosedTrieNodeFactory(int indexedBranchMinChildren) {
+        this(indexedBranchMinChildren, false);
+    }
+
+    /**
+     * @param subtreeCounts Whether branches are to include number of entries
+     *   in their subtree (see {@link SimpleBranch} for details)
+     */
+    protected ClosedTrieNodeFactory(int indexedBranchMinChildren, boolean subtreeCounts) {
+        _indexedBranchMinChildren = indexedBranchMinChildren;
+        _subtreeCounts = subtreeCounts;
+    }
+
     public abstract ClosedTrieNode<T> simpleLeaf(byte b, T value);
     public abstract ClosedTrieNode<T> simpleBranch(byte b, ClosedTrieNode<T>[] kids);
     public abstract ClosedTrieNode<T> valueBranch(byte b, ClosedTrieNode<T>[] kids, T value);
     public abstract ClosedTrieNode<T> serialized(ClosedTrieNode<T> node);
     public abstract ClosedTrieNode<T> suffixLeaf(byte b, ClosedTrieNode<T> node);
 
+    /**
+     * Method called for closed branches that are too big to be pre-serialized
+     * in memory (see {@link #serialized}). Default implementation returns
+     * branch as is; factories used for building tries bigger than memory
+     * can instead write them out (see {@link SpillFile}).
+     *
+     * @param kids Children of the branch
+     */
+    public ClosedTrieNode<T> bigBranch(ClosedTrieNode<T> branch, ClosedTrieNode<T>[] kids) {
+        return branch;
+    }
+
+    /**
+     * Method called to determine whether branch with given children should
+     * be written using indexed encoding.
+     */
+    public boolean useIndexedBranch(ClosedTrieNode<T>[] kids) {
+        return (_indexedBranchMinChildren > 0) && (kids.length >= _indexedBranchMinChildren);
+    }
+
+    /**
+     * @return Whether branches are to include number of entries in their subtree
+     */
+    public boolean useSubtreeCounts() {
+        return _subtreeCounts;
+    }
+
     /*
     /**********************************************************
     /* Shared concrete implementations
@@ -33,10 +96,13 @@ public abstract class ClosedTrieNodeFactory<T>
         extends ClosedTrieNode<T>
     {
         protected final byte[] _data;
+
+        protected final long _entryCount;
         
-        public SerializedNode(byte nb, byte[] data) {
+        public SerializedNode(byte nb, byte[] data, long entryCount) {
             super(nb);
             _data = data;
+            _entryCount = entryCount;
         }
         
         // doesn't matter but...
@@ -48,6 +114,9 @@ public abstract class ClosedTrieNodeFactory<T>
 
         @Override
         public int typeBits() { return 0; }
+
+        @Override
+        public long entryCount() { return _entryCount; }
     
         @Override
         public byte[] serialize() { return _data; }
@@ -73,21 +142,75 @@ public abstract class ClosedTrieNodeFactory<T>
         }
     
         public boolean isLeaf() { return true; }
+
+        public long entryCount() { return 1L; }
     }
     
     /**
      * Simple branch just means that branch node does not have associated
      * value. Serialization contains leading VInt for total length of
      * all contained nodes, and sequence of serialization for nodes.
+     *<p>
+     * Wide branches may alternatively use "indexed" encoding, in which
+     * case content length indicator is written as 0 (which can not occur
+     * otherwise, since branches always have at least one child), and is
+     * followed by:
+     *<ol>
+     * <li>VInt for length of the rest of indexed content</li>
+     * <li>Single byte for number of children, minus one</li>
+     * <li>Single byte for width of child offsets (1 - 4 bytes)</li>
+     * <li>Bytes that lead to children, in ascending (unsigned) order</li>
+     * <li>Offsets of children (in same order as bytes), as fixed-width
+     *   big-endian values, relative to the start of child contents</li>
+     * <li>Child contents (without leading byte)</li>
+     *</ol>
+     * which lets readers search the (contiguous) bytes to find the child to follow
+     * instead of skipping over non-matching siblings.
+     *<p>
+     * If subtree counts are enabled, content (for indexed branches, content
+     * after the length indicator of indexed content) starts with a VInt
+     * for number of entries in the subtree rooted at the branch; this
+     * allows counting entries by key prefix, and finding entries by
+     * position, without iterating over entries.
      */
     public static class SimpleBranch<T>
         extends ClosedTrieNode<T>
     {
         protected final ClosedTrieNode<T>[] _children;
+
+        /**
+         * Whether this branch is to be written using indexed encoding
+         */
+        protected final boolean _indexed;
+
+        /**
+         * Whether number of entries in subtree is to be written
+         */
+        protected final boolean _counted;
+
+        /**
+         * Number of entries that children of this branch have
+         */
+        protected final long _childEntryCount;
         
         public SimpleBranch(byte b, ClosedTrieNode<T>[] kids) {
+            this(b, kids, false, false);
+        }
+
+        public SimpleBranch(byte b, ClosedTrieNode<T>[] kids, boolean indexed) {
+            this(b, kids, indexed, false);
+        }
+
+        public SimpleBranch(byte b, ClosedTrieNode<T>[] kids, boolean indexed, boolean counted) {
             super(b);
             _children = kids;
+            _indexed = indexed;
+            _counted = counted;
+            long count = 0L;
+            for (ClosedTrieNode<T> n : kids) {
+                count += n.entryCount();
+            }
+            _childEntryCount = count;
         }
     
         public long length()
@@ -95,18 +218,21 @@ public abstract class ClosedTrieNodeFactory<T>
             // first one is VInt for total length; but that itself needs to be calculated
             long len = lengthOfContent();
             // and otherwise it really is just that length and child contents
-            return VInt.lengthForUnsigned(len, FIRST_BYTE_BITS_FOR_BRANCHES) + len; 
+            return VInt.lengthForUnsigned(contentLengthIndicator(len), FIRST_BYTE_BITS_FOR_BRANCHES) + len; 
         }
 
         public int typeBits() { return TYPE_BRANCH_SIMPLE; }
         public final boolean isLeaf() { return false; }
 
+        public long entryCount() { return _childEntryCount; }
+
         public byte[] serialize()
         {
             long contentLen = lengthOfContent();
-            byte[] result = new byte[(int) (contentLen + VInt.lengthForUnsigned(contentLen, FIRST_BYTE_BITS_FOR_BRANCHES))];
+            long indicator = contentLengthIndicator(contentLen);
+            byte[] result = new byte[(int) (contentLen + VInt.lengthForUnsigned(indicator, FIRST_BYTE_BITS_FOR_BRANCHES))];
             // First: serialize length indicator
-            int offset = VInt.unsignedToBytes(contentLen, FIRST_BYTE_BITS_FOR_BRANCHES, result, 0);
+            int offset = VInt.unsignedToBytes(indicator, FIRST_BYTE_BITS_FOR_BRANCHES, result, 0);
             _addTypeBits(result, 0);
             offset = serializeChildren(result, offset);
             return result;
@@ -117,7 +243,7 @@ public abstract class ClosedTrieNodeFactory<T>
             long contentLen = lengthOfContent();
             // First: serialize length indicator
             int origOffset = offset;
-            offset = VInt.unsignedToBytes(contentLen, FIRST_BYTE_BITS_FOR_BRANCHES, result, offset);
+            offset = VInt.unsignedToBytes(contentLengthIndicator(contentLen), FIRST_BYTE_BITS_FOR_BRANCHES, result, offset);
             _addTypeBits(result, origOffset);
             offset = serializeChildren(result, offset);
             return offset;
@@ -127,24 +253,26 @@ public abstract class ClosedTrieNodeFactory<T>
         {
             long contentLen = lengthOfContent();
             // first simple length indicator
-            int ptr = VInt.unsignedToBytes(contentLen, FIRST_BYTE_BITS_FOR_BRANCHES, tmpBuf, 0);
+            int ptr = VInt.unsignedToBytes(contentLengthIndicator(contentLen), FIRST_BYTE_BITS_FOR_BRANCHES, tmpBuf, 0);
             _addTypeBits(tmpBuf, 0);
             out.write(tmpBuf, 0, ptr);
             // then children
-            for (ClosedTrieNode<T> n : _children) {
-                out.write(n.nextByte());
-                n.serializeTo(out, tmpBuf);
-            }
+            serializeChildrenTo(out, tmpBuf);
         }
         
         /**
          * Helper method that calculates length of all contained data (children,
-         * branching bytes).
+         * branching bytes); for indexed branches this also includes index
+         * tables and their length indicator.
          */
         protected long lengthOfContent()
         {
-            // one byte per child for branching:
-            long len = (long) _children.length;
+            if (_indexed) {
+                long len = lengthOfIndexedContent();
+                return VInt.lengthForUnsigned(len, 8) + len;
+            }
+            // one byte per child for branching (plus entry count, if any):
+            long len = (long) _children.length + lengthOfEntryCount();
             // and then child serializations:
             for (ClosedTrieNode<T> n : _children) {
                 len += n.length();
@@ -152,13 +280,149 @@ public abstract class ClosedTrieNodeFactory<T>
             return len;
         }
 
+        /**
+         * Helper method for determining value to write as the content length
+         * indicator: actual length for regular branches, 0 for indexed
+         * ones.
+         */
+        protected long contentLengthIndicator(long contentLength) {
+            return _indexed ? 0L : contentLength;
+        }
+
+        /**
+         * @return Length of the entry count written at the start of content;
+         *   0 if counts are not written
+         */
+        protected int lengthOfEntryCount() {
+            return _counted ? VInt.lengthForUnsigned(entryCount(), 8) : 0;
+        }
+
         protected int serializeChildren(byte[] result, int offset)
         {
+            if (_indexed) {
+                byte[] index = _buildIndex();
+                System.arraycopy(index, 0, result, offset, index.length);
+                offset += index.length;
+                for (ClosedTrieNode<T> n : _children) {
+                    offset = n.serialize(result, offset);                
+                }
+                return offset;
+            }
+            if (_counted) {
+                offset = VInt.unsignedToBytes(entryCount(), 8, result, offset);
+            }
             for (ClosedTrieNode<T> n : _children) {
                 result[offset++] = n.nextByte();
                 offset = n.serialize(result, offset);                
             }
             return offset;
         }
+
+        protected void serializeChildrenTo(OutputStream out, byte[] tmpBuf) throws IOException
+        {
+            if (_indexed) {
+                out.write(_buildIndex());
+                for (ClosedTrieNode<T> n : _children) {
+                    n.serializeTo(out, tmpBuf);
+                }
+                return;
+            }
+            if (_counted) {
+                out.write(tmpBuf, 0, VInt.unsignedToBytes(entryCount(), 8, tmpBuf, 0));
+            }
+            for (ClosedTrieNode<T> n : _children) {
+                out.write(n.nextByte());
+                n.serializeTo(out, tmpBuf);
+            }
+        }
+
+        /*
+        /**********************************************************
+        /* Helper methods for indexed encoding
+        /**********************************************************
+         */
+
+        /**
+         * @return Length of indexed content, not including leading length
+         *   indicator
+         */
+        protected long lengthOfIndexedContent()
+        {
+            long childLen = 0L;
+            for (ClosedTrieNode<T> n : _children) {
+                childLen += n.length();
+            }
+            final int count = _children.length;
+            return lengthOfEntryCount() + 2 + count + (count * _offsetWidth(childLen)) + childLen;
+        }
+
+        /**
+         * Helper method that constructs leading part of indexed content; everything
+         * except for actual child contents.
+         */
+        protected byte[] _buildIndex()
+        {
+            final int count = _children.length;
+            long[] offsets = new long[count];
+            long childLen = 0L;
+            for (int i = 0; i < count; ++i) {
+                offsets[i] = childLen;
+                childLen += _children[i].length();
+            }
+            final int width = _offsetWidth(childLen);
+            final int countLen = lengthOfEntryCount();
+            final long indexedLen = countLen + 2 + count + (count * width) + childLen;
+            int headerLen = countLen + 2 + count + (count * width);
+            byte[] result = new byte[VInt.lengthForUnsigned(indexedLen, 8) + headerLen];
+            int ptr = VInt.unsignedToBytes(indexedLen, 8, result, 0);
+            if (_counted) {
+                ptr = VInt.unsignedToBytes(entryCount(), 8, result, ptr);
+            }
+            result[ptr++] = (byte) (count - 1);
+            result[ptr++] = (byte) width;
+            // children need to be listed in ascending order by the leading byte
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; ++i) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i1, Integer i2) {
+                    return (_children[i1].nextByte() & 0xFF) - (_children[i2].nextByte() & 0xFF);
+                }
+            });
+            for (int i = 0; i < count; ++i) {
+                result[ptr++] = _children[order[i]].nextByte();
+            }
+            for (int i = 0; i < count; ++i) {
+                long offset = offsets[order[i]];
+                for (int shift = (width - 1) * 8; shift >= 0; shift -= 8) {
+                    result[ptr++] = (byte) (offset >> shift);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Helper method for figuring out number of bytes needed for child
+         * offsets, given total length of child contents.
+         */
+        protected static int _offsetWidth(long childContentLength)
+        {
+            // offsets are always less than total length, so:
+            if (childContentLength <= 0x100L) {
+                return 1;
+            }
+            if (childContentLength <= 0x10000L) {
+                return 2;
+            }
+            if (childContentLength <= 0x1000000L) {
+                return 3;
+            }
+            if (childContentLength > 0x100000000L) {
+                throw new IllegalStateException("Indexed branch content too big ("+childContentLength+" bytes)");
+            }
+            return 4;
+        }
     }
 }
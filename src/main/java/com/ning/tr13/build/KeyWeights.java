@@ -0,0 +1,137 @@
+package com.ning.tr13.build;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import com.ning.tr13.KeyValueSource;
+import com.ning.tr13.util.UTF8Codec;
+
+/**
+ * Container for access weights (like lookup frequencies) of keys, used by
+ * {@link SimpleTrieBuilder} for ordering children of branches so that
+ * subtrees that are accessed most often come first
+ * (see {@link SimpleTrieBuilder#setKeyWeights}). Weights can be given
+ * explicitly, or counted from a sample of lookups (query log).
+ * Keys that have no weight have weight of 0.
+ *
+ * @author tatu
+ */
+public class KeyWeights
+{
+    protected final HashMap<Key,long[]> _weights = new HashMap<Key,long[]>();
+
+    public KeyWeights() { }
+
+    /**
+     * Factory method for constructing weights from a source that has
+     * weight as value for each key (keys need not be ordered)
+     */
+    public static KeyWeights fromSource(KeyValueSource<Long> src) throws IOException
+    {
+        final KeyWeights weights = new KeyWeights();
+        src.readAll(new KeyValueSource.ValueCallback<Long>() {
+            @Override
+            public void handleEntry(byte[] key, Long value) {
+                weights.add(key, value.longValue());
+            }
+        });
+        return weights;
+    }
+
+    /**
+     * Factory method for constructing weights from a query log file:
+     * file that has one key per line (encoded in UTF-8), so that weight of
+     * a key is the number of times it occurs in the log. Same as with
+     * input files, empty lines and lines that start with '#' are skipped.
+     */
+    public static KeyWeights fromQueryLog(File f) throws IOException
+    {
+        InputStream in = new FileInputStream(f);
+        try {
+            return fromQueryLog(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    public static KeyWeights fromQueryLog(InputStream in) throws IOException
+    {
+        KeyWeights weights = new KeyWeights();
+        BufferedReader r = new BufferedReader(new InputStreamReader(in, UTF8Codec.UTF8));
+        UTF8Codec codec = new UTF8Codec();
+        String line;
+        while ((line = r.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) continue;
+            weights.add(codec.encodeNonReentrant(line), 1L);
+        }
+        return weights;
+    }
+
+    /*
+    /**********************************************************
+    /* Public API
+    /**********************************************************
+     */
+
+    /**
+     * Method for adding given weight to the weight of given key
+     */
+    public void add(byte[] key, long weight)
+    {
+        if (weight < 0L) {
+            throw new IllegalArgumentException("Invalid weight for key '"+UTF8Codec.decodeFromUTF8(key)+"': "+weight);
+        }
+        Key k = new Key(key);
+        long[] w = _weights.get(k);
+        if (w == null) {
+            // key may be a reused buffer, so need a copy
+            _weights.put(new Key(Arrays.copyOf(key, key.length)), new long[] { weight });
+        } else {
+            w[0] += weight;
+        }
+    }
+
+    /**
+     * @return Weight of given key; 0 if key has no weight
+     */
+    public long weightOf(byte[] key)
+    {
+        long[] w = _weights.get(new Key(key));
+        return (w == null) ? 0L : w[0];
+    }
+
+    /**
+     * @return Number of keys that have weight
+     */
+    public int size() { return _weights.size(); }
+
+    /*
+    /**********************************************************
+    /* Helper classes
+    /**********************************************************
+     */
+
+    private final static class Key
+    {
+        private final byte[] _bytes;
+
+        private final int _hash;
+
+        public Key(byte[] bytes) {
+            _bytes = bytes;
+            _hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() { return _hash; }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) return true;
+            if (!(o instanceof Key)) return false;
+            return Arrays.equals(_bytes, ((Key) o)._bytes);
+        }
+    }
+}
@@ -36,6 +36,12 @@ public class OpenTrieNode<T>
      * Currently open child node, if any.
      */
     protected OpenTrieNode<T> _currentChild;
+
+    /**
+     * Access weight of the key this node represents, if any (only
+     * used if builder has key weights)
+     */
+    protected long _weight;
     
     public OpenTrieNode(byte b, T value)
     {
@@ -45,18 +51,38 @@ public class OpenTrieNode<T>
 
     public byte getNodeByte() { return _nodeByte; }
     public OpenTrieNode<T> getCurrentChild() { return _currentChild; }
+
+    /**
+     * Method for setting access weight of the key this node represents;
+     * weights of subtrees are calculated from these when nodes are closed.
+     */
+    public void setWeight(long w) { _weight = w; }
     
     /**
      * Main mutation method used to close currently open child node
      * (if any), and optional start a new open child node.
      */
     public void addNode(ClosedTrieNodeFactory<T> nodeFactory, OpenTrieNode<T> n, boolean canReorder)
+    {
+        addNode(nodeFactory, n, canReorder ? ClosedTrieNode.BIGGEST_FIRST : null);
+    }
+
+    /**
+     * Alternative to {@link #addNode(ClosedTrieNodeFactory, OpenTrieNode, boolean)}
+     * that allows specifying order in which children of closed branches are
+     * to be written.
+     *
+     * @param childOrder Order for children of branches; null to keep them
+     *   in the order they were added in
+     */
+    public void addNode(ClosedTrieNodeFactory<T> nodeFactory, OpenTrieNode<T> n,
+            Comparator<? super ClosedTrieNode<T>> childOrder)
     {
         if (_currentChild != null) {
             if (_closedChildren == null) {
                 _closedChildren = new ArrayList<ClosedTrieNode<T>>(2);
             }
-            _closedChildren.add(_currentChild.close(nodeFactory, canReorder));
+            _closedChildren.add(_currentChild.close(nodeFactory, childOrder));
         }
         _currentChild = n;
     }
@@ -68,28 +94,45 @@ public class OpenTrieNode<T>
      * @return Closed node that represents this node once it is not open
      *   to changes
      */
-    @SuppressWarnings("unchecked")
     public ClosedTrieNode<T> close(ClosedTrieNodeFactory<T> nodeFactory, boolean canReorder)
+    {
+        return close(nodeFactory, canReorder ? ClosedTrieNode.BIGGEST_FIRST : null);
+    }
+
+    /**
+     * Alternative to {@link #close(ClosedTrieNodeFactory, boolean)} that
+     * allows specifying order in which children of branches are to be written.
+     *
+     * @param childOrder Order for children of branches; null to keep them
+     *   in the order they were added in
+     */
+    @SuppressWarnings("unchecked")
+    public ClosedTrieNode<T> close(ClosedTrieNodeFactory<T> nodeFactory,
+            Comparator<? super ClosedTrieNode<T>> childOrder)
     {
         // first: is this a leaf?
         if (_currentChild == null) { // yes
-            return nodeFactory.simpleLeaf(_nodeByte, _nodeValue);
+            return _weighted(nodeFactory.simpleLeaf(_nodeByte, _nodeValue), _weight);
         }
         // or only has a leaf as child?
-        ClosedTrieNode<T> lastKid = _currentChild.close(nodeFactory, canReorder);
+        ClosedTrieNode<T> lastKid = _currentChild.close(nodeFactory, childOrder);
         ClosedTrieNode<T>[] closedKids;
+        long weight = _weight + lastKid.accessWeight();
         if (_closedChildren == null) {
             if (lastKid.isLeaf() && (_nodeValue == null)) {
                 // single child which is leaf -> suffix leaf
-                return nodeFactory.suffixLeaf(_nodeByte, lastKid);
+                return _weighted(nodeFactory.suffixLeaf(_nodeByte, lastKid), weight);
             }
             closedKids = new ClosedTrieNode[] { lastKid };
         } else {
             closedKids = new ClosedTrieNode[_closedChildren.size()+1];
             _closedChildren.toArray(closedKids);
             closedKids[_closedChildren.size()] = lastKid;
-            if (canReorder) {
-                optimizeChildOrder(closedKids);
+            for (ClosedTrieNode<T> kid : _closedChildren) {
+                weight += kid.accessWeight();
+            }
+            if (childOrder != null) {
+                Arrays.sort(closedKids, childOrder);
             }
         }
         // ok, branch. Value?
@@ -103,19 +146,17 @@ public class OpenTrieNode<T>
         // one more thing: big enough to need serialization? (leaves we need not bother with)
         if (branch.length() < MAX_SERIALIZED) {
             branch = nodeFactory.serialized(branch);
+        } else {
+            branch = nodeFactory.bigBranch(branch, closedKids);
         }
-        return branch;
+        return _weighted(branch, weight);
     }
 
-    /**
-     * Helper method that will try to reorder kids so that the biggest child
-     * entries are ordered before smaller ones: the idea is that this should
-     * reduce lookups for most likely target nodes (assuming uniform access
-     * pattern)
-     */
-    private void optimizeChildOrder(ClosedTrieNode<T>[] kids)
+    private static <T> ClosedTrieNode<T> _weighted(ClosedTrieNode<T> node, long weight)
     {
-        // natural ordering works for ClosedTrieNode
-        Arrays.sort(kids);
+        if (weight != 0L) {
+            node.setAccessWeight(weight);
+        }
+        return node;
     }
 }
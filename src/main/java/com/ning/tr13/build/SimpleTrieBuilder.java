@@ -1,11 +1,13 @@
 package com.ning.tr13.build;
 
 import java.io.*;
+import java.util.Comparator;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.ning.tr13.KeyValueReader;
 import com.ning.tr13.KeyValueSource;
 import com.ning.tr13.TrieBuilder;
+import com.ning.tr13.bloom.BloomFilter;
 import com.ning.tr13.lookup.TrieHeader;
 import com.ning.tr13.util.UTF8Codec;
 
@@ -17,6 +19,13 @@ import com.ning.tr13.util.UTF8Codec;
 public abstract class SimpleTrieBuilder<T>
     extends TrieBuilder<T>
 {
+    /**
+     * Minimum number of children for branches to use indexed encoding when
+     * cache-line layout is enabled, but indexed encoding has not been
+     * explicitly enabled
+     */
+    public final static int CACHE_LINE_LAYOUT_MIN_CHILDREN = 4;
+
     protected final KeyValueSource<T> _source;
 
     /**
@@ -34,6 +43,55 @@ public abstract class SimpleTrieBuilder<T>
      * they have been added in.
      */
     protected boolean _reorderEntries;
+
+    /**
+     * Minimum number of children a branch needs to have to be written
+     * using indexed encoding (which allows faster lookups for wide
+     * branches); 0 if indexed encoding is not to be used (default).
+     * Note that tries that use indexed encoding can not be read by
+     * versions prior to 0.3.1.
+     */
+    protected int _indexedBranchMinChildren;
+
+    /**
+     * Number of bits per key to use for Bloom filter written after
+     * trie payload; 0 if no filter is to be written (default).
+     */
+    protected int _bloomFilterBitsPerKey;
+
+    /**
+     * Whether branches are to include number of entries in their subtree
+     * (which allows counting and positional access); false by default.
+     */
+    protected boolean _subtreeCounts;
+
+    /**
+     * Whether nodes are to be laid out so that lookups touch fewer
+     * cache lines (see {@link #setCacheLineLayout}); false by default.
+     */
+    protected boolean _cacheLineLayout;
+
+    /**
+     * Access weights of keys, used for ordering children of branches
+     * (see {@link #setKeyWeights}), if any
+     */
+    protected KeyWeights _keyWeights;
+
+    /**
+     * Directory for the temporary file to spill big branches in during
+     * build (see {@link #setSpillDirectory}), if any
+     */
+    protected File _spillDirectory;
+
+    /**
+     * Spill file used during last call to {@link #build}, if any
+     */
+    protected SpillFile _spillFile;
+
+    /**
+     * Bloom filter built during last call to {@link #build}, if any
+     */
+    protected BloomFilter _bloomFilter;
     
     public SimpleTrieBuilder(KeyValueSource<T> r) {
         this(r, false);
@@ -49,8 +107,202 @@ public abstract class SimpleTrieBuilder<T>
         return this;
     }
 
+    /**
+     * Method for enabling use of indexed encoding for branches that have at
+     * least specified number of children: this allows lookups to find
+     * the child to follow without scanning through all preceding siblings,
+     * at cost of slightly bigger trie size.
+     * 
+     * @param minChildren Minimum number of children for branch to use indexed
+     *   encoding; 0 to disable use of indexed encoding
+     */
+    public SimpleTrieBuilder<T> setIndexedBranchMinChildren(int minChildren) {
+        if (minChildren < 0) {
+            throw new IllegalArgumentException("Invalid minimum child count: "+minChildren);
+        }
+        _indexedBranchMinChildren = minChildren;
+        return this;
+    }
+
+    /**
+     * Method for enabling writing of a Bloom filter over all keys of the
+     * trie, after trie payload (only done if header is written as well).
+     * Readers use the filter to reject most lookups for missing keys
+     * without traversing the trie.
+     *
+     * @param bitsPerKey Number of bits per key to use for the filter; 10 bits
+     *   gives false positive rate of about 1%. 0 to disable writing of filter
+     */
+    public SimpleTrieBuilder<T> setBloomFilterBitsPerKey(int bitsPerKey) {
+        if (bitsPerKey < 0) {
+            throw new IllegalArgumentException("Invalid Bloom filter bits per key: "+bitsPerKey);
+        }
+        _bloomFilterBitsPerKey = bitsPerKey;
+        return this;
+    }
+
+    /**
+     * Method for enabling writing of number of entries in subtree for
+     * all branches: this allows readers to count entries with given prefix,
+     * find rank of a key and find entry by its position, without iterating
+     * over entries, at cost of slightly bigger trie size.
+     */
+    public SimpleTrieBuilder<T> setSubtreeCounts(boolean b) {
+        _subtreeCounts = b;
+        return this;
+    }
+
+    /**
+     * Method for enabling layout of nodes that reduces number of
+     * cache lines (and for big tries, pages) lookups touch, which matters
+     * for random access to tries much bigger than CPU caches. Layout
+     * differs from the default in two ways:
+     *<ul>
+     * <li>Branches with at least {@link #CACHE_LINE_LAYOUT_MIN_CHILDREN}
+     *   children use indexed encoding (unless minimum is explicitly set
+     *   with {@link #setIndexedBranchMinChildren}), so that labels of and
+     *   offsets to children are contiguous, instead of being interleaved
+     *   with contents of children
+     *  </li>
+     * <li>Children of branches are written smallest first, so that small
+     *   subtrees (like leaves) are placed right after the branch header,
+     *   and big subtrees after them. For branches that are not indexed,
+     *   this also keeps headers of most siblings close to each other.
+     *   This overrides ordering of {@link #setReorderEntries}.
+     *  </li>
+     *</ul>
+     * Since subtrees are always contiguous, each subtree is laid out
+     * the same way recursively.
+     */
+    public SimpleTrieBuilder<T> setCacheLineLayout(boolean b) {
+        _cacheLineLayout = b;
+        return this;
+    }
+
+    /**
+     * Method for specifying access weights of keys (like lookup counts from
+     * a query log), to be used for ordering children of branches: children
+     * are written in descending order of total weight of keys in their
+     * subtree, so that lookups for frequently accessed keys skip fewer
+     * siblings when scanning branches. Children with same weight are
+     * written biggest first. This overrides ordering of both
+     * {@link #setReorderEntries} and {@link #setCacheLineLayout}
+     * (although latter still enables indexed encoding).
+     *
+     * @param weights Weights of keys; null to not use weights (default)
+     */
+    public SimpleTrieBuilder<T> setKeyWeights(KeyWeights weights) {
+        _keyWeights = weights;
+        return this;
+    }
+
+    /**
+     * Method for enabling building of tries bigger than available memory:
+     * if enabled, closed branches that are too big to be pre-serialized
+     * in memory are instead written into a temporary file in given
+     * directory (see {@link SpillFile}), so that memory needed is
+     * proportional to key length, not size of the trie. Disk space
+     * needed is at most about twice the size of the trie. Note that
+     * Bloom filter, reverse index and key weights, if enabled, still
+     * need memory proportional to number of keys.
+     *<p>
+     * Root node returned by {@link #build} refers to the temporary file,
+     * which is deleted when {@link #deleteSpillFile} is called (or
+     * on next build); {@link #buildAndWrite} deletes it once trie has
+     * been written.
+     *
+     * @param dir Directory to create temporary file in; null to keep
+     *   all of the trie in memory (default)
+     */
+    public SimpleTrieBuilder<T> setSpillDirectory(File dir) {
+        _spillDirectory = dir;
+        return this;
+    }
+
+    /**
+     * Method for deleting the temporary file used for spilling branches
+     * during last build, if any.
+     */
+    public void deleteSpillFile() throws IOException
+    {
+        if (_spillFile != null) {
+            SpillFile f = _spillFile;
+            _spillFile = null;
+            f.close();
+        }
+    }
+
+    /**
+     * @return Bloom filter built for the keys during last build, if filter
+     *   was enabled; null otherwise
+     */
+    public BloomFilter getBloomFilter() {
+        return _bloomFilter;
+    }
+
     protected abstract ClosedTrieNodeFactory<T> closedTrieNodeFactory();
+
+    /**
+     * Method for determining minimum number of children branches need to use
+     * indexed encoding, taking into account layout settings; factories
+     * should be constructed using this value.
+     *
+     * @return Minimum number of children; 0 if indexed encoding is not used
+     */
+    protected int indexedBranchMinChildren()
+    {
+        if (_indexedBranchMinChildren == 0 && _cacheLineLayout) {
+            return CACHE_LINE_LAYOUT_MIN_CHILDREN;
+        }
+        return _indexedBranchMinChildren;
+    }
+
+    /**
+     * Method for determining order in which children of branches are
+     * written, based on settings of this builder.
+     *
+     * @return Ordering to use; null if children are to be written in
+     *   order they were added (ascending key order)
+     */
+    protected Comparator<ClosedTrieNode<?>> childOrder()
+    {
+        if (_keyWeights != null) {
+            return ClosedTrieNode.HEAVIEST_FIRST;
+        }
+        if (_cacheLineLayout) {
+            return ClosedTrieNode.SMALLEST_FIRST;
+        }
+        return _reorderEntries ? ClosedTrieNode.BIGGEST_FIRST : null;
+    }
     protected abstract OpenTrieNode<T> constructOpenNode(byte b, T value);
+
+    /**
+     * Method for indicating value type of tries this builder builds,
+     * to be written in trie header.
+     */
+    protected TrieHeader.ValueType valueType() {
+        return TrieHeader.ValueType.VINT;
+    }
+
+    /**
+     * Method for determining feature flags to write in trie header
+     * (see <code>TrieHeader.FLAG_xxx</code>), based on settings of
+     * this builder.
+     */
+    protected int formatFlags()
+    {
+        int flags = 0;
+        if (indexedBranchMinChildren() > 0) {
+            flags |= TrieHeader.FLAG_INDEXED_BRANCHES;
+        }
+        if (_bloomFilterBitsPerKey > 0) {
+            flags |= TrieHeader.FLAG_BLOOM_FILTER;
+        }
+        if (_subtreeCounts) {
+            flags |= TrieHeader.FLAG_SUBTREE_COUNTS;
+        }
+        return flags;
+    }
     
     /**
      * Method for building trie in-memory structure, and writing it out
@@ -67,16 +319,62 @@ public abstract class SimpleTrieBuilder<T>
         byte[] tmpBuffer = new byte[ClosedTrieNode.MINIMUM_TEMP_BUFFER_LENGTH];
         // then write header, if requested
         if (writeHeader) {
-            // currently it is constant; in future will need to add bitflags etc:
             System.out.println("Payload length: "+root.length());
             // first things first: tr13 header:
-            int headerLen = TrieHeader.fillHeaderInfo(tmpBuffer, TrieHeader.ValueType.VINT, root.length());
+            int headerLen = TrieHeader.fillHeaderInfo(tmpBuffer, valueType(), formatFlags(), root.length());
             out.write(tmpBuffer, 0, headerLen);
         }
         // and then serialize the trie payload
-        root.serializeTo(out, tmpBuffer);
+        try {
+            root.serializeTo(out, tmpBuffer);
+        } finally {
+            deleteSpillFile();
+        }
+        // and finally Bloom filter section, if enabled (needs header to be found)
+        if (writeHeader) {
+            if (_bloomFilter != null) {
+                writeSection(out, tmpBuffer, _bloomFilter.toBytes());
+            }
+            writeExtraSections(out, tmpBuffer);
+        }
         out.flush();
     }
+
+    /**
+     * Method called after payload and Bloom filter section have been
+     * written (only if header is written), to let sub-classes write
+     * additional sections indicated by header flags they set.
+     * Default implementation does nothing.
+     */
+    protected void writeExtraSections(OutputStream out, byte[] tmpBuffer)
+        throws IOException
+    {
+    }
+
+    /**
+     * Helper method for writing a section that follows trie payload: 8-byte
+     * length of the section, followed by section contents.
+     */
+    protected void writeSection(OutputStream out, byte[] tmpBuffer, byte[] data)
+        throws IOException
+    {
+        long len = data.length;
+        for (int i = 0; i < 8; ++i) {
+            tmpBuffer[i] = (byte) (len >> (56 - (i << 3)));
+        }
+        out.write(tmpBuffer, 0, 8);
+        out.write(data);
+    }
+
+    /**
+     * Method called for each entry added during {@link #build}, after
+     * it has been attached to the trie; since entries come in key order,
+     * ordinal is also the position of the entry in key order.
+     * Default implementation does nothing.
+     */
+    protected void entryAdded(byte[] key, T value, int ordinal)
+    {
+    }
     
     @Override
     public TrieNode<T> build() throws IOException
@@ -84,7 +382,17 @@ public abstract class SimpleTrieBuilder<T>
         final OpenTrieNode<T> root = constructOpenNode((byte) 0, null);
         final boolean diag = _diagnostics;
         final AtomicInteger count = new AtomicInteger(0);
-        final ClosedTrieNodeFactory<T> nodeFactory = closedTrieNodeFactory();
+        deleteSpillFile();
+        ClosedTrieNodeFactory<T> factory = closedTrieNodeFactory();
+        if (_spillDirectory != null) {
+            _spillFile = new SpillFile(_spillDirectory);
+            factory = _spillFile.nodeFactory(factory);
+        }
+        final ClosedTrieNodeFactory<T> nodeFactory = factory;
+        final Comparator<ClosedTrieNode<?>> childOrder = childOrder();
+        final KeyWeights weights = _keyWeights;
+        // key hashes for Bloom filter need to be collected, since key count not known yet
+        final long[][] keyHashes = (_bloomFilterBitsPerKey > 0) ? new long[][] { new long[1024] } : null;
 
         _source.readAll(new KeyValueReader.ValueCallback<T>() {
             @Override
@@ -104,9 +412,22 @@ public abstract class SimpleTrieBuilder<T>
                 // then attach to where we diverge
                 for (int last = id.length-1; i <= last; ++i) {
                     OpenTrieNode<T> next = constructOpenNode(id[i], (i == last) ? value : null);
-                    curr.addNode(nodeFactory, next, _reorderEntries);
+                    curr.addNode(nodeFactory, next, childOrder);
                     curr = next;
                 }
+                if (weights != null) {
+                    curr.setWeight(weights.weightOf(id));
+                }
+                if (keyHashes != null) {
+                    int ix = count.get();
+                    if (ix == keyHashes[0].length) {
+                        long[] old = keyHashes[0];
+                        keyHashes[0] = new long[ix + (ix >> 1)];
+                        System.arraycopy(old, 0, keyHashes[0], 0, ix);
+                    }
+                    keyHashes[0][ix] = BloomFilter.hash(id, 0, id.length);
+                }
+                entryAdded(id, value, count.get());
                 int c = count.addAndGet(1);
                 if (diag && (c & 0xFFFFF) == 0) {
                     System.out.println("Building: "+(count.get()>>10)+"k lines processed");
@@ -114,7 +435,21 @@ public abstract class SimpleTrieBuilder<T>
             }
         });
         _linesRead = count.get();    
-        return root.close(nodeFactory, _reorderEntries);
+        _bloomFilter = null;
+        if (keyHashes != null) {
+            BloomFilter filter = BloomFilter.forKeyCount(_linesRead, _bloomFilterBitsPerKey);
+            long[] hashes = keyHashes[0];
+            for (int i = 0; i < _linesRead; ++i) {
+                filter.add(hashes[i]);
+            }
+            _bloomFilter = filter;
+        }
+        TrieNode<T> result = root.close(nodeFactory, childOrder);
+        if (diag && _spillFile != null) {
+            System.out.println("Spilled "+_spillFile.spillCount()+" branches, spill file size at most "
+                    +sizeDesc(_spillFile.maxLength()));
+        }
+        return result;
     }
 
     protected static String sizeDesc(long count) {
@@ -0,0 +1,299 @@
+package com.ning.tr13.build;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * Temporary file that builders use for holding serializations of big
+ * branches, instead of keeping them in memory (see
+ * {@link SimpleTrieBuilder#setSpillDirectory}).
+ *<p>
+ * Since nodes are closed in post-order, spilled nodes that are still
+ * needed (closed children of currently open nodes) form a stack, in
+ * order they were spilled: so when a branch with spilled children is
+ * closed, its children are the last sections of the file. Branch is
+ * serialized at the end of the file (copying contents of spilled
+ * children), after which the serialization is moved over the children
+ * it replaces, and the file truncated. This means that every spilled
+ * byte is copied twice per spilled ancestor, but the file never gets
+ * bigger than about twice the size of the resulting trie; and in-memory
+ * state is limited to closed children of open nodes, which is
+ * proportional to key length.
+ *
+ * @author tatu
+ */
+public class SpillFile
+{
+    private final static int COPY_BUFFER_LENGTH = 64000;
+
+    protected final File _file;
+
+    protected final RandomAccessFile _raf;
+
+    protected final FileChannel _channel;
+
+    protected final byte[] _copyBuffer = new byte[COPY_BUFFER_LENGTH];
+
+    protected final byte[] _tmpBuffer = new byte[ClosedTrieNode.MINIMUM_TEMP_BUFFER_LENGTH];
+
+    /**
+     * Current length of the spill file: everything before it is
+     * serialization of spilled nodes that are still needed
+     */
+    protected long _length;
+
+    /**
+     * Number of branches spilled so far
+     */
+    protected int _spillCount;
+
+    /**
+     * Maximum length spill file has had, including temporary copies
+     */
+    protected long _maxLength;
+
+    /**
+     * @param dir Directory in which to create the file; null to use
+     *   default temporary directory
+     */
+    public SpillFile(File dir) throws IOException
+    {
+        _file = File.createTempFile("tr13-", ".spill", dir);
+        _file.deleteOnExit();
+        _raf = new RandomAccessFile(_file, "rw");
+        _channel = _raf.getChannel();
+    }
+
+    public File getFile() { return _file; }
+
+    public long length() { return _length; }
+
+    public long maxLength() { return _maxLength; }
+
+    public int spillCount() { return _spillCount; }
+
+    /**
+     * Method for constructing node factory that delegates to given factory,
+     * except for spilling branches that are too big to be pre-serialized
+     * in memory into this file.
+     */
+    public <T> ClosedTrieNodeFactory<T> nodeFactory(ClosedTrieNodeFactory<T> factory) {
+        return new SpillingNodeFactory<T>(factory, this);
+    }
+
+    /**
+     * Method for closing and deleting the file; nodes spilled in it
+     * can not be serialized after this.
+     */
+    public void close() throws IOException
+    {
+        _raf.close();
+        _file.delete();
+    }
+
+    /**
+     * Method for serializing given branch in this file.
+     *
+     * @param kids Children of the branch; ones that have been spilled
+     *   must be the last nodes spilled
+     *
+     * @return Node that refers to serialization of the branch
+     */
+    public <T> SpilledNode<T> spill(ClosedTrieNode<T> branch, ClosedTrieNode<T>[] kids)
+        throws IOException
+    {
+        long start = _length;
+        for (ClosedTrieNode<T> kid : kids) {
+            if (kid instanceof SpilledNode<?>) {
+                start = Math.min(start, ((SpilledNode<T>) kid)._offset);
+            }
+        }
+        // first, serialize at the end of file
+        final long end = _length;
+        final long length = branch.length();
+        _channel.position(end);
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(_channel), COPY_BUFFER_LENGTH);
+        branch.serializeTo(out, _tmpBuffer);
+        out.flush();
+        _maxLength = Math.max(_maxLength, end + length);
+        // then move it over children that are no longer needed
+        if (start < end) {
+            for (long offset = 0L; offset < length; ) {
+                int count = (int) Math.min(COPY_BUFFER_LENGTH, length - offset);
+                _read(end + offset, count);
+                _write(start + offset, count);
+                offset += count;
+            }
+            _channel.truncate(start + length);
+        }
+        _length = start + length;
+        ++_spillCount;
+        return new SpilledNode<T>(branch.nextByte(), this, start, length, branch.entryCount());
+    }
+
+    /**
+     * Method for copying given section of the file to given stream
+     */
+    protected void copyTo(long offset, long length, OutputStream out) throws IOException
+    {
+        while (length > 0L) {
+            int count = (int) Math.min(COPY_BUFFER_LENGTH, length);
+            _read(offset, count);
+            out.write(_copyBuffer, 0, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Method for copying given section of the file into given array
+     */
+    protected void copyTo(long offset, int length, byte[] result, int resultOffset) throws IOException
+    {
+        ByteBuffer bb = ByteBuffer.wrap(result, resultOffset, length);
+        while (bb.hasRemaining()) {
+            if (_channel.read(bb, offset + (bb.position() - resultOffset)) < 0) {
+                throw new EOFException("Unexpected end of spill file '"+_file+"'");
+            }
+        }
+    }
+
+    private void _read(long offset, int count) throws IOException
+    {
+        copyTo(offset, count, _copyBuffer, 0);
+    }
+
+    private void _write(long offset, int count) throws IOException
+    {
+        ByteBuffer bb = ByteBuffer.wrap(_copyBuffer, 0, count);
+        while (bb.hasRemaining()) {
+            _channel.write(bb, offset + bb.position());
+        }
+    }
+
+    /*
+    /**********************************************************
+    /* Helper classes
+    /**********************************************************
+     */
+
+    /**
+     * Node that represents a branch serialized in a spill file.
+     */
+    public final static class SpilledNode<T>
+        extends ClosedTrieNode<T>
+    {
+        protected final SpillFile _spillFile;
+
+        protected final long _offset;
+
+        protected final long _length;
+
+        protected final long _entryCount;
+
+        public SpilledNode(byte nb, SpillFile spillFile, long offset, long length, long entryCount)
+        {
+            super(nb);
+            _spillFile = spillFile;
+            _offset = offset;
+            _length = length;
+            _entryCount = entryCount;
+        }
+
+        @Override
+        public boolean isLeaf() { return false; }
+
+        @Override
+        public long length() { return _length; }
+
+        @Override
+        public int typeBits() { return 0; }
+
+        @Override
+        public long entryCount() { return _entryCount; }
+
+        @Override
+        public int serialize(byte[] result, int offset)
+        {
+            try {
+                _spillFile.copyTo(_offset, (int) _length, result, offset);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to read spill file '"+_spillFile._file+"': "
+                        +e.getMessage(), e);
+            }
+            return offset + (int) _length;
+        }
+
+        @Override
+        public void serializeTo(OutputStream out, byte[] tmpBuf) throws IOException {
+            _spillFile.copyTo(_offset, _length, out);
+        }
+    }
+
+    /**
+     * Node factory that delegates construction of nodes to another factory,
+     * but spills big branches.
+     */
+    protected final static class SpillingNodeFactory<T>
+        extends ClosedTrieNodeFactory<T>
+    {
+        protected final ClosedTrieNodeFactory<T> _delegate;
+
+        protected final SpillFile _spillFile;
+
+        public SpillingNodeFactory(ClosedTrieNodeFactory<T> delegate, SpillFile spillFile)
+        {
+            super(delegate._indexedBranchMinChildren, delegate._subtreeCounts);
+            _delegate = delegate;
+            _spillFile = spillFile;
+        }
+
+        @Override
+        public ClosedTrieNode<T> simpleLeaf(byte b, T value) {
+            return _delegate.simpleLeaf(b, value);
+        }
+
+        @Override
+        public ClosedTrieNode<T> simpleBranch(byte b, ClosedTrieNode<T>[] kids) {
+            return _delegate.simpleBranch(b, kids);
+        }
+
+        @Override
+        public ClosedTrieNode<T> valueBranch(byte b, ClosedTrieNode<T>[] kids, T value) {
+            return _delegate.valueBranch(b, kids, value);
+        }
+
+        @Override
+        public ClosedTrieNode<T> serialized(ClosedTrieNode<T> node) {
+            return _delegate.serialized(node);
+        }
+
+        @Override
+        public ClosedTrieNode<T> suffixLeaf(byte b, ClosedTrieNode<T> node) {
+            return _delegate.suffixLeaf(b, node);
+        }
+
+        @Override
+        public ClosedTrieNode<T> bigBranch(ClosedTrieNode<T> branch, ClosedTrieNode<T>[] kids)
+        {
+            try {
+                return _spillFile.spill(branch, kids);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to spill branch to '"+_spillFile._file+"': "
+                        +e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public boolean useIndexedBranch(ClosedTrieNode<T>[] kids) {
+            return _delegate.useIndexedBranch(kids);
+        }
+
+        @Override
+        public boolean useSubtreeCounts() {
+            return _delegate.useSubtreeCounts();
+        }
+    }
+}
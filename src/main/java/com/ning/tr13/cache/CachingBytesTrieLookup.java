@@ -0,0 +1,266 @@
+package com.ning.tr13.cache;
+
+import java.nio.ByteBuffer;
+
+import com.ning.tr13.lookup.BytesLookupCursor;
+import com.ning.tr13.lookup.BytesTrieLookup;
+import com.ning.tr13.lookup.PrefixMatch;
+import com.ning.tr13.lookup.TrieCursor;
+import com.ning.tr13.lookup.TriePayload;
+import com.ning.tr13.util.UTF8Codec;
+
+/**
+ * {@link BytesTrieLookup} that wraps another lookup instance, and caches
+ * results of recent lookups, to avoid trie traversal for frequently
+ * accessed ("hot") keys. Values themselves are not copied into the cache:
+ * cache only stores offset and length of the value within trie data,
+ * so memory usage does not depend on value sizes.
+ * Optionally keys that are not found can be cached as well.
+ *<p>
+ * Instances are thread-safe. Only single-key lookups are cached: prefix
+ * lookups and iteration are delegated as is.
+ *
+ * @author tatu
+ */
+public class CachingBytesTrieLookup
+    extends BytesTrieLookup
+{
+    protected final BytesTrieLookup _trie;
+
+    protected final TriePayload _payload;
+
+    protected final ClockCache _cache;
+
+    /**
+     * @param trie Trie to wrap
+     * @param maxEntries Maximum number of entries to cache
+     * @param maxBytes Maximum estimated memory usage of cached entries
+     *    (keys and per-entry overhead)
+     * @param cacheMisses Whether keys not found in the trie are cached too
+     */
+    public CachingBytesTrieLookup(BytesTrieLookup trie, int maxEntries, long maxBytes,
+            boolean cacheMisses)
+    {
+        _trie = trie;
+        _payload = trie.getPayload();
+        _cache = new ClockCache(maxEntries, maxBytes, cacheMisses);
+    }
+
+    private CachingBytesTrieLookup(BytesTrieLookup trie, ClockCache cache)
+    {
+        _trie = trie;
+        _payload = trie.getPayload();
+        _cache = cache;
+    }
+
+    /*
+    /**********************************************************
+    /* Cache access
+    /**********************************************************
+     */
+
+    public BytesTrieLookup getUnderlyingTrie() { return _trie; }
+
+    /**
+     * @return Number of lookups that were resolved using the cache
+     */
+    public long getHitCount() { return _cache.hitCount(); }
+
+    /**
+     * @return Number of lookups that had to traverse the trie
+     */
+    public long getMissCount() { return _cache.missCount(); }
+
+    public int getCachedEntryCount() { return _cache.size(); }
+
+    public long getCachedByteCount() { return _cache.byteSize(); }
+
+    public void clearCache() { _cache.clear(); }
+
+    /*
+    /**********************************************************
+    /* BytesTrieLookup impl
+    /**********************************************************
+     */
+
+    @Override
+    public byte[] findValue(byte[] key) {
+        return findValue(key, 0, key.length);
+    }
+
+    @Override
+    public byte[] findValue(byte[] key, int offset, int length)
+    {
+        Cursor cursor = new Cursor();
+        if (cursor.lookup(key, offset, length) < 0) {
+            return null;
+        }
+        byte[] result = new byte[cursor.valueLength()];
+        cursor.copyValue(result, 0);
+        return result;
+    }
+
+    @Override
+    public byte[] findValue(CharSequence key) {
+        byte[] bytes = UTF8Codec.encodeAsUTF8(key.toString());
+        return findValue(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public ByteBuffer findValueAsBuffer(byte[] key)
+    {
+        Cursor cursor = new Cursor();
+        if (cursor.lookup(key) < 0) {
+            return null;
+        }
+        return cursor.valueAsBuffer();
+    }
+
+    @Override
+    public int findValueInto(byte[] key, byte[] buffer, int offset)
+    {
+        Cursor cursor = new Cursor();
+        int len = cursor.lookup(key);
+        if (len >= 0) {
+            cursor.copyValue(buffer, offset);
+        }
+        return len;
+    }
+
+    @Override
+    public TriePayload getPayload() {
+        return _payload;
+    }
+
+    @Override
+    public PrefixMatch<byte[]> findLongestPrefix(byte[] key) {
+        return _trie.findLongestPrefix(key);
+    }
+
+    @Override
+    public boolean containsKey(byte[] key) {
+        return new Cursor().lookup(key, 0, key.length) >= 0;
+    }
+
+    @Override
+    public TrieCursor cursor(byte[] prefix) {
+        return _trie.cursor(prefix);
+    }
+
+    /**
+     * Root index is used by the underlying trie; resulting instance has
+     * a new, empty cache.
+     */
+    @Override
+    public CachingBytesTrieLookup withRootIndex(int maxIndexBytes) {
+        return new CachingBytesTrieLookup(_trie.withRootIndex(maxIndexBytes), _cache.emptyCopy());
+    }
+
+    @Override
+    public void release() {
+        _trie.release();
+    }
+
+    @Override
+    public BytesLookupCursor newCursor() {
+        return new Cursor();
+    }
+
+    /*
+    /**********************************************************
+    /* Helper classes
+    /**********************************************************
+     */
+
+    /**
+     * Cursor that first checks the cache; and if entry is not found,
+     * uses a cursor of the underlying trie (constructed lazily, and
+     * retained for later lookups).
+     */
+    private final class Cursor extends BytesLookupCursor
+    {
+        private BytesLookupCursor _trieCursor;
+
+        private long _valueOffset;
+
+        private int _valueLength = -1;
+
+        @Override
+        public int lookup(byte[] key) {
+            return lookup(key, 0, key.length);
+        }
+
+        @Override
+        public int lookup(byte[] key, int offset, int length)
+        {
+            final int hash = ClockCache.hash(key, offset, length);
+            final ClockCacheSegment segment = _cache.segmentFor(hash);
+            synchronized (segment) {
+                int slot = segment.find(key, offset, length, hash);
+                if (slot >= 0) {
+                    ++segment._hits;
+                    _valueOffset = segment.value(slot);
+                    _valueLength = segment.valueLength(slot);
+                    return _valueLength;
+                }
+                ++segment._misses;
+            }
+            if (_trieCursor == null) {
+                _trieCursor = _trie.newCursor();
+            }
+            _valueLength = _trieCursor.lookup(key, offset, length);
+            if (_valueLength >= 0) {
+                _valueOffset = _trieCursor.valueOffset();
+            } else if (!_cache._cacheMisses) {
+                return _valueLength;
+            }
+            synchronized (segment) {
+                // another thread may have added it while we were traversing the trie
+                if (segment.find(key, offset, length, hash) < 0) {
+                    segment.add(key, offset, length, hash, _valueOffset, _valueLength);
+                }
+            }
+            return _valueLength;
+        }
+
+        @Override
+        public int lookup(CharSequence key) {
+            byte[] bytes = UTF8Codec.encodeAsUTF8(key.toString());
+            return lookup(bytes, 0, bytes.length);
+        }
+
+        @Override
+        public int valueLength() {
+            return _valueLength;
+        }
+
+        @Override
+        public int copyValue(byte[] buffer, int offset)
+        {
+            _verifyValue();
+            _payload.getBytes(_valueOffset, buffer, offset, _valueLength);
+            return offset + _valueLength;
+        }
+
+        @Override
+        public ByteBuffer valueAsBuffer()
+        {
+            _verifyValue();
+            return _payload.slice(_valueOffset, _valueLength);
+        }
+
+        @Override
+        public long valueOffset()
+        {
+            _verifyValue();
+            return _valueOffset;
+        }
+
+        private void _verifyValue()
+        {
+            if (_valueLength < 0) {
+                throw new IllegalStateException("No value available: last lookup failed");
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.ning.tr13.cache;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.ning.tr13.lookup.PrefixMatch;
+import com.ning.tr13.lookup.TrieCursor;
+import com.ning.tr13.lookup.VIntLookupCursor;
+import com.ning.tr13.lookup.VIntTrieLookup;
+import com.ning.tr13.util.UTF8Codec;
+
+/**
+ * {@link VIntTrieLookup} that wraps another lookup instance, and caches
+ * results of recent lookups, to avoid trie traversal for frequently
+ * accessed ("hot") keys. Values are stored as primitive longs; optionally
+ * keys that are not found can be cached as well.
+ *<p>
+ * Instances are thread-safe. Cache hits are allocation-free for
+ * byte[] keys (String keys need to be encoded first); misses need to
+ * copy the key.
+ * Only single-key lookups are cached: prefix lookups and cursors
+ * are delegated as is.
+ *
+ * @author tatu
+ */
+public class CachingVIntTrieLookup
+    extends VIntTrieLookup
+{
+    protected final VIntTrieLookup _trie;
+
+    protected final ClockCache _cache;
+
+    /**
+     * @param trie Trie to wrap
+     * @param maxEntries Maximum number of entries to cache
+     * @param maxBytes Maximum estimated memory usage of cached entries
+     *    (keys and per-entry overhead)
+     * @param cacheMisses Whether keys not found in the trie are cached too
+     */
+    public CachingVIntTrieLookup(VIntTrieLookup trie, int maxEntries, long maxBytes,
+            boolean cacheMisses)
+    {
+        _trie = trie;
+        _cache = new ClockCache(maxEntries, maxBytes, cacheMisses);
+    }
+
+    private CachingVIntTrieLookup(VIntTrieLookup trie, ClockCache cache)
+    {
+        _trie = trie;
+        _cache = cache;
+    }
+
+    /*
+    /**********************************************************
+    /* Cache access
+    /**********************************************************
+     */
+
+    public VIntTrieLookup getUnderlyingTrie() { return _trie; }
+
+    /**
+     * @return Number of lookups that were resolved using the cache
+     */
+    public long getHitCount() { return _cache.hitCount(); }
+
+    /**
+     * @return Number of lookups that had to traverse the trie
+     */
+    public long getMissCount() { return _cache.missCount(); }
+
+    public int getCachedEntryCount() { return _cache.size(); }
+
+    public long getCachedByteCount() { return _cache.byteSize(); }
+
+    public void clearCache() { _cache.clear(); }
+
+    /*
+    /**********************************************************
+    /* VIntTrieLookup impl
+    /**********************************************************
+     */
+
+    @Override
+    public Long findValue(byte[] key) {
+        return findValue(key, 0, key.length);
+    }
+
+    @Override
+    public Long findValue(byte[] key, int offset, int length)
+    {
+        final int hash = ClockCache.hash(key, offset, length);
+        final ClockCacheSegment segment = _cache.segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.find(key, offset, length, hash);
+            if (slot >= 0) {
+                ++segment._hits;
+                if (segment.valueLength(slot) == ClockCacheSegment.MISSING) {
+                    return null;
+                }
+                return Long.valueOf(segment.value(slot));
+            }
+            ++segment._misses;
+        }
+        Long value = _trie.findValue(key, offset, length);
+        _add(segment, key, offset, length, hash, value);
+        return value;
+    }
+
+    @Override
+    public Long findValue(CharSequence key) {
+        byte[] bytes = UTF8Codec.encodeAsUTF8(key.toString());
+        return findValue(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public long getValue(byte[] key) throws NoSuchElementException
+    {
+        Long value = findValue(key, 0, key.length);
+        if (value == null) {
+            throw new NoSuchElementException("No value for key "+_printKey(key, 0, key.length));
+        }
+        return value.longValue();
+    }
+
+    @Override
+    public long getValue(byte[] key, long defaultValue) {
+        return getValue(key, 0, key.length, defaultValue);
+    }
+
+    @Override
+    public long getValue(byte[] key, int offset, int length, long defaultValue)
+    {
+        final int hash = ClockCache.hash(key, offset, length);
+        final ClockCacheSegment segment = _cache.segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.find(key, offset, length, hash);
+            if (slot >= 0) {
+                ++segment._hits;
+                if (segment.valueLength(slot) == ClockCacheSegment.MISSING) {
+                    return defaultValue;
+                }
+                return segment.value(slot);
+            }
+            ++segment._misses;
+        }
+        Long value = _trie.findValue(key, offset, length);
+        _add(segment, key, offset, length, hash, value);
+        return (value == null) ? defaultValue : value.longValue();
+    }
+
+    @Override
+    public long getValue(CharSequence key, long defaultValue) {
+        byte[] bytes = UTF8Codec.encodeAsUTF8(key.toString());
+        return getValue(bytes, 0, bytes.length, defaultValue);
+    }
+
+    @Override
+    public PrefixMatch<Long> findLongestPrefix(byte[] key) {
+        return _trie.findLongestPrefix(key);
+    }
+
+    @Override
+    public List<byte[]> findKeys(long value) {
+        return _trie.findKeys(value);
+    }
+
+    @Override
+    public TrieCursor cursor(byte[] prefix) {
+        return _trie.cursor(prefix);
+    }
+
+    /**
+     * Root index is used by the underlying trie; resulting instance has
+     * a new, empty cache.
+     */
+    @Override
+    public CachingVIntTrieLookup withRootIndex(int maxIndexBytes) {
+        return new CachingVIntTrieLookup(_trie.withRootIndex(maxIndexBytes), _cache.emptyCopy());
+    }
+
+    @Override
+    public void release() {
+        _trie.release();
+    }
+
+    @Override
+    public VIntLookupCursor newCursor() {
+        return new Cursor();
+    }
+
+    /*
+    /**********************************************************
+    /* Internal methods
+    /**********************************************************
+     */
+
+    private void _add(ClockCacheSegment segment, byte[] key, int offset, int length, int hash,
+            Long value)
+    {
+        if (value == null && !_cache._cacheMisses) {
+            return;
+        }
+        synchronized (segment) {
+            // another thread may have added it while we were traversing the trie
+            if (segment.find(key, offset, length, hash) < 0) {
+                if (value == null) {
+                    segment.add(key, offset, length, hash, 0L, ClockCacheSegment.MISSING);
+                } else {
+                    segment.add(key, offset, length, hash, value.longValue(), 0);
+                }
+            }
+        }
+    }
+
+    /*
+    /**********************************************************
+    /* Helper classes
+    /**********************************************************
+     */
+
+    private final class Cursor extends VIntLookupCursor
+    {
+        @Override
+        public long lookup(byte[] key, long missing) {
+            return getValue(key, 0, key.length, missing);
+        }
+
+        @Override
+        public long lookup(byte[] key, int offset, int length, long missing) {
+            return getValue(key, offset, length, missing);
+        }
+
+        @Override
+        public long lookup(CharSequence key, long missing) {
+            return getValue(key, missing);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.ning.tr13.cache;
+
+/**
+ * Concurrent lookup cache used by caching trie lookups: consists of
+ * a number of independently locked {@link ClockCacheSegment}s, to reduce
+ * lock contention; segment is chosen based on hash code of the key.
+ *
+ * @author tatu
+ */
+final class ClockCache
+{
+    private final static int MAX_SEGMENTS = 16;
+
+    /**
+     * Minimum number of entries per segment; smaller caches use
+     * fewer segments.
+     */
+    private final static int MIN_SEGMENT_ENTRIES = 64;
+
+    private final ClockCacheSegment[] _segments;
+
+    private final int _segmentShift;
+
+    final boolean _cacheMisses;
+
+    private final int _maxEntries;
+
+    private final long _maxBytes;
+
+    ClockCache(int maxEntries, long maxBytes, boolean cacheMisses)
+    {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Invalid maxEntries ("+maxEntries+"): must be positive");
+        }
+        if (maxBytes < 1L) {
+            throw new IllegalArgumentException("Invalid maxBytes ("+maxBytes+"): must be positive");
+        }
+        int count = 1;
+        while (count < MAX_SEGMENTS && (maxEntries / (count+count)) >= MIN_SEGMENT_ENTRIES) {
+            count += count;
+        }
+        _segments = new ClockCacheSegment[count];
+        for (int i = 0; i < count; ++i) {
+            _segments[i] = new ClockCacheSegment(maxEntries / count, maxBytes / count);
+        }
+        // segment is selected using highest bits, slot using lowest ones
+        _segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+        _cacheMisses = cacheMisses;
+        _maxEntries = maxEntries;
+        _maxBytes = maxBytes;
+    }
+
+    /**
+     * @return New empty cache with same configuration as this one
+     */
+    ClockCache emptyCopy() {
+        return new ClockCache(_maxEntries, _maxBytes, _cacheMisses);
+    }
+
+    ClockCacheSegment segmentFor(int hash) {
+        return (_segmentShift == 32) ? _segments[0] : _segments[hash >>> _segmentShift];
+    }
+
+    static int hash(byte[] key, int offset, int length)
+    {
+        int hash = length;
+        for (int i = offset, end = offset+length; i < end; ++i) {
+            hash = (hash * 31) + key[i];
+        }
+        // need to spread bits, since both lowest and highest bits are used
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /*
+    /**********************************************************
+    /* Statistics, management
+    /**********************************************************
+     */
+
+    long hitCount()
+    {
+        long count = 0L;
+        for (ClockCacheSegment segment : _segments) {
+            synchronized (segment) {
+                count += segment._hits;
+            }
+        }
+        return count;
+    }
+
+    long missCount()
+    {
+        long count = 0L;
+        for (ClockCacheSegment segment : _segments) {
+            synchronized (segment) {
+                count += segment._misses;
+            }
+        }
+        return count;
+    }
+
+    int size()
+    {
+        int count = 0;
+        for (ClockCacheSegment segment : _segments) {
+            synchronized (segment) {
+                count += segment.size();
+            }
+        }
+        return count;
+    }
+
+    long byteSize()
+    {
+        long count = 0L;
+        for (ClockCacheSegment segment : _segments) {
+            synchronized (segment) {
+                count += segment.byteSize();
+            }
+        }
+        return count;
+    }
+
+    void clear()
+    {
+        for (ClockCacheSegment segment : _segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.ning.tr13.cache;
+
+import java.util.Arrays;
+
+/**
+ * One segment of a lookup cache: a fixed-size hash table of entries with
+ * byte[] keys and primitive values, from which entries are evicted using
+ * the CLOCK ("second chance") algorithm. All storage is preallocated
+ * arrays, except for copies of keys.
+ *<p>
+ * Instances are NOT thread-safe: callers must synchronize on the segment
+ * for all access.
+ *
+ * @author tatu
+ */
+final class ClockCacheSegment
+{
+    /**
+     * Estimate of per-entry memory usage in addition to key itself;
+     * used when cache size is bounded by bytes.
+     */
+    final static int ENTRY_OVERHEAD = 48;
+
+    /**
+     * Marker used as the value length of negatively cached entries
+     * (keys not found in the trie)
+     */
+    final static int MISSING = -1;
+
+    private final static int EMPTY = -1;
+
+    private final long _maxBytes;
+
+    /*
+    /**********************************************************
+    /* Entry data, indexed by slot
+    /**********************************************************
+     */
+
+    private final byte[][] _keys;
+
+    private final int[] _hashes;
+
+    private final long[] _values;
+
+    private final int[] _valueLengths;
+
+    private final boolean[] _referenced;
+
+    /**
+     * Next slot in the same hash chain, or {@link #EMPTY}
+     */
+    private final int[] _next;
+
+    /*
+    /**********************************************************
+    /* Hash table, free slots
+    /**********************************************************
+     */
+
+    /**
+     * First slot of hash chains, or {@link #EMPTY}
+     */
+    private final int[] _table;
+
+    private final int _tableMask;
+
+    private final int[] _free;
+
+    private int _freeCount;
+
+    private int _clockHand;
+
+    private long _bytes;
+
+    /*
+    /**********************************************************
+    /* Statistics
+    /**********************************************************
+     */
+
+    long _hits;
+
+    long _misses;
+
+    ClockCacheSegment(int maxEntries, long maxBytes)
+    {
+        _maxBytes = maxBytes;
+        _keys = new byte[maxEntries][];
+        _hashes = new int[maxEntries];
+        _values = new long[maxEntries];
+        _valueLengths = new int[maxEntries];
+        _referenced = new boolean[maxEntries];
+        _next = new int[maxEntries];
+        int tableSize = 4;
+        while (tableSize < maxEntries) {
+            tableSize += tableSize;
+        }
+        _table = new int[tableSize];
+        _tableMask = tableSize - 1;
+        _free = new int[maxEntries];
+        clear();
+    }
+
+    void clear()
+    {
+        Arrays.fill(_table, EMPTY);
+        Arrays.fill(_keys, null);
+        final int count = _free.length;
+        for (int i = 0; i < count; ++i) {
+            _free[i] = count - 1 - i;
+        }
+        _freeCount = count;
+        _clockHand = 0;
+        _bytes = 0L;
+    }
+
+    /*
+    /**********************************************************
+    /* Access
+    /**********************************************************
+     */
+
+    int size() {
+        return _free.length - _freeCount;
+    }
+
+    long byteSize() {
+        return _bytes;
+    }
+
+    /**
+     * Method for finding the slot of entry with given key, if one exists;
+     * if so, entry is also marked as recently used.
+     *
+     * @return Slot of the entry, if found; -1 if not
+     */
+    int find(byte[] key, int offset, int length, int hash)
+    {
+        for (int slot = _table[hash & _tableMask]; slot != EMPTY; slot = _next[slot]) {
+            if (_hashes[slot] == hash && _keyEquals(_keys[slot], key, offset, length)) {
+                _referenced[slot] = true;
+                return slot;
+            }
+        }
+        return EMPTY;
+    }
+
+    long value(int slot) {
+        return _values[slot];
+    }
+
+    /**
+     * @return Length of the value (for byte[] values), or {@link #MISSING}
+     *    for negatively cached entries
+     */
+    int valueLength(int slot) {
+        return _valueLengths[slot];
+    }
+
+    /**
+     * Method for adding an entry, evicting existing entries as necessary.
+     * Caller must have verified that there is no entry with given key
+     * (while holding the lock).
+     */
+    void add(byte[] key, int offset, int length, int hash, long value, int valueLength)
+    {
+        final long weight = length + ENTRY_OVERHEAD;
+        if (weight > _maxBytes) { // would never fit
+            return;
+        }
+        while (_freeCount == 0 || (_bytes + weight) > _maxBytes) {
+            _evictOne();
+        }
+        int slot = _free[--_freeCount];
+        byte[] copy = new byte[length];
+        System.arraycopy(key, offset, copy, 0, length);
+        _keys[slot] = copy;
+        _hashes[slot] = hash;
+        _values[slot] = value;
+        _valueLengths[slot] = valueLength;
+        // new entries get no second chance until they are accessed again
+        _referenced[slot] = false;
+        int ix = hash & _tableMask;
+        _next[slot] = _table[ix];
+        _table[ix] = slot;
+        _bytes += weight;
+    }
+
+    /*
+    /**********************************************************
+    /* Internal methods
+    /**********************************************************
+     */
+
+    private void _evictOne()
+    {
+        final int count = _keys.length;
+        while (true) {
+            int slot = _clockHand;
+            if (++_clockHand == count) {
+                _clockHand = 0;
+            }
+            if (_keys[slot] == null) {
+                continue;
+            }
+            if (_referenced[slot]) {
+                _referenced[slot] = false;
+                continue;
+            }
+            _remove(slot);
+            return;
+        }
+    }
+
+    private void _remove(int slot)
+    {
+        int ix = _hashes[slot] & _tableMask;
+        int curr = _table[ix];
+        if (curr == slot) {
+            _table[ix] = _next[slot];
+        } else {
+            while (_next[curr] != slot) {
+                curr = _next[curr];
+            }
+            _next[curr] = _next[slot];
+        }
+        _bytes -= _keys[slot].length + ENTRY_OVERHEAD;
+        _keys[slot] = null;
+        _free[_freeCount++] = slot;
+    }
+
+    private static boolean _keyEquals(byte[] cached, byte[] key, int offset, int length)
+    {
+        if (cached.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; ++i) {
+            if (cached[i] != key[offset+i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
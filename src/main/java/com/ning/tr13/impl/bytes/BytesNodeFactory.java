@@ -10,14 +10,34 @@ import com.ning.tr13.util.VInt;
 public class BytesNodeFactory
     extends ClosedTrieNodeFactory<byte[]>
 {
+    public BytesNodeFactory() {
+        super();
+    }
+
+    /**
+     * @param indexedBranchMinChildren Minimum number of children a branch
+     *   must have to be written using indexed encoding; 0 to never use it
+     */
+    public BytesNodeFactory(int indexedBranchMinChildren) {
+        super(indexedBranchMinChildren);
+    }
+
+    /**
+     * @param subtreeCounts Whether branches are to include number of entries
+     *   in their subtree
+     */
+    public BytesNodeFactory(int indexedBranchMinChildren, boolean subtreeCounts) {
+        super(indexedBranchMinChildren, subtreeCounts);
+    }
+
     @Override
     public ClosedTrieNode<byte[]> serialized(ClosedTrieNode<byte[]> node) {
-        return new SerializedNode<byte[]>(node.nextByte(), node.serialize());
+        return new SerializedNode<byte[]>(node.nextByte(), node.serialize(), node.entryCount());
     }
 
     @Override
     public ClosedTrieNode<byte[]> simpleBranch(byte b, ClosedTrieNode<byte[]>[] kids) {
-        return new SimpleBranch<byte[]>(b, kids);
+        return new SimpleBranch<byte[]>(b, kids, useIndexedBranch(kids), useSubtreeCounts());
     }
 
     @Override
@@ -43,7 +63,8 @@ public class BytesNodeFactory
 
     @Override
     public ClosedTrieNode<byte[]> valueBranch(byte b, ClosedTrieNode<byte[]>[] kids, byte[] value) {
-        return new BranchWithValue(b, kids, value);
+        return new BranchWithValue(b, kids, value, useIndexedBranch(kids),
+                useSubtreeCounts());
     }
 
     protected static int copyBytes(byte[] src, byte[] dst, int dstOffset)
@@ -160,9 +181,10 @@ public class BytesNodeFactory
     {
         protected final byte[] _value;
         
-        protected BranchWithValue(byte b, ClosedTrieNode<byte[]>[] kids, byte[] value)
+        protected BranchWithValue(byte b, ClosedTrieNode<byte[]>[] kids, byte[] value, boolean indexed,
+                boolean counted)
         {
-            super(b, kids);
+            super(b, kids, indexed, counted);
             _value = value;
         }
     
@@ -173,12 +195,15 @@ public class BytesNodeFactory
             long contentLen = lengthOfContent();
             int valueLen = _value.length;
             return VInt.lengthForUnsigned(valueLen, FIRST_BYTE_BITS_FOR_BRANCHES) + valueLen
-                + VInt.lengthForUnsigned(contentLen, 8) + contentLen;
+                + VInt.lengthForUnsigned(contentLengthIndicator(contentLen), 8) + contentLen;
         }
         
         @Override
         public int typeBits() { return TYPE_BRANCH_WITH_VALUE; }
 
+        @Override
+        public long entryCount() { return _childEntryCount + 1L; }
+
         // note: must override from super class, since it does not call the other serialize method(s)
         @Override
         public byte[] serialize()
@@ -186,14 +211,14 @@ public class BytesNodeFactory
             long contentLen = lengthOfContent();
             final int valueLen = _value.length;
             long totalLen = VInt.lengthForUnsigned(valueLen, FIRST_BYTE_BITS_FOR_BRANCHES) + valueLen
-            	+ VInt.lengthForUnsigned(contentLen, 8) + contentLen;
+            	+ VInt.lengthForUnsigned(contentLengthIndicator(contentLen), 8) + contentLen;
             byte[] result = new byte[(int) totalLen];
             // First: serialize value for this node:
             int offset = VInt.unsignedToBytes(valueLen, FIRST_BYTE_BITS_FOR_BRANCHES, result, 0);
             _addTypeBits(result, 0);
             offset = copyBytes(_value, result, offset);
             // then length of content (children)
-            offset = VInt.unsignedToBytes(contentLen, 8, result, offset);
+            offset = VInt.unsignedToBytes(contentLengthIndicator(contentLen), 8, result, offset);
             // and then contents
             offset = serializeChildren(result, offset);
             return result;
@@ -210,7 +235,7 @@ public class BytesNodeFactory
             offset = copyBytes(_value, result, offset);
             // Then content length indicator
             long contentLen = lengthOfContent();
-            offset = VInt.unsignedToBytes(contentLen, 8, result, offset);
+            offset = VInt.unsignedToBytes(contentLengthIndicator(contentLen), 8, result, offset);
             // and contents
             offset = serializeChildren(result, offset);
             return offset;
@@ -227,12 +252,9 @@ public class BytesNodeFactory
             out.write(_value);
             // then length indicator for contents
             long contentLen = lengthOfContent();
-            out.write(tmpBuf, 0, VInt.unsignedToBytes(contentLen, 8, tmpBuf, 0));
+            out.write(tmpBuf, 0, VInt.unsignedToBytes(contentLengthIndicator(contentLen), 8, tmpBuf, 0));
             // then children
-            for (ClosedTrieNode<byte[]> n : _children) {
-                out.write(n.nextByte());
-                n.serializeTo(out, tmpBuf);
-            }
+            serializeChildrenTo(out, tmpBuf);
         }
     }
 
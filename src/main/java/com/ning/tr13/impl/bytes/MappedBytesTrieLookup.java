@@ -0,0 +1,629 @@
+package com.ning.tr13.impl.bytes;
+
+import java.nio.ByteBuffer;
+
+import com.ning.tr13.TrieConstants;
+import com.ning.tr13.lookup.BytesLookupCursor;
+import com.ning.tr13.lookup.BytesTrieLookup;
+import com.ning.tr13.lookup.MappedTriePayload;
+import com.ning.tr13.lookup.PrefixMatch;
+import com.ning.tr13.lookup.RootIndex;
+import com.ning.tr13.lookup.TrieCursor;
+import com.ning.tr13.lookup.TriePayload;
+import com.ning.tr13.util.UTF8KeyReader;
+
+/**
+ * {@link BytesTrieLookup} implementation that accesses raw trie data through
+ * {@link TriePayload}, using 64-bit offsets. Used with memory-mapped
+ * files (see {@link MappedTriePayload}), which allows tries bigger
+ * than 2 gigabytes.
+ */
+public class MappedBytesTrieLookup
+    extends BytesTrieLookup
+{
+    /**
+     * Raw trie data
+     */
+    protected final TriePayload _payload;
+
+    /**
+     * Optional index used for skipping the top levels of the trie
+     */
+    protected final RootIndex _rootIndex;
+
+    /**
+     * Whether branches start with number of entries in their subtree
+     */
+    protected final boolean _subtreeCounts;
+
+    public MappedBytesTrieLookup(TriePayload payload) {
+        this(payload, null);
+    }
+
+    /**
+     * @param rootIndex Optional index for skipping the top levels of the
+     *    trie during lookups; null if none
+     */
+    public MappedBytesTrieLookup(TriePayload payload, RootIndex rootIndex) {
+        this(payload, rootIndex, false);
+    }
+
+    /**
+     * @param subtreeCounts Whether branches of the trie include number of
+     *    entries in their subtree (needed for counting, and access by position)
+     */
+    public MappedBytesTrieLookup(TriePayload payload, RootIndex rootIndex, boolean subtreeCounts) {
+        _payload = payload;
+        _rootIndex = rootIndex;
+        _subtreeCounts = subtreeCounts;
+    }
+
+    /*
+    /**********************************************************
+    /* TrieLookup impl
+    /**********************************************************
+     */
+
+    @Override
+    public byte[] findValue(byte[] key)
+    {
+        Path result = _findValue(new Path().reset(key));
+        if (result != null) {
+            return result.value();
+        }
+        return null;
+    }
+
+    @Override
+    public byte[] findValue(byte[] key, int offset, int length)
+    {
+        Path result = _findValue(new Path().reset(key, offset, length));
+        if (result != null) {
+            return result.value();
+        }
+        return null;
+    }
+
+    @Override
+    public byte[] findValue(CharSequence key)
+    {
+        Path result = _findValue(new Path().reset(key));
+        if (result != null) {
+            return result.value();
+        }
+        return null;
+    }
+
+    /**
+     * Existence check: value location is found, but value is not copied
+     */
+    @Override
+    public boolean containsKey(byte[] key) {
+        return _findValue(new Path().reset(key)) != null;
+    }
+
+    /*
+    /**********************************************************
+    /* BytesTrieLookup impl
+    /**********************************************************
+     */
+
+    @Override
+    public MappedBytesTrieLookup withRootIndex(int maxIndexBytes) {
+        return new MappedBytesTrieLookup(_payload, RootIndex.build(_payload, true, _subtreeCounts, maxIndexBytes),
+                _subtreeCounts);
+    }
+
+    @Override
+    public BytesLookupCursor newCursor() {
+        return new Cursor();
+    }
+
+    @Override
+    public ByteBuffer findValueAsBuffer(byte[] key)
+    {
+        Path result = _findValue(new Path().reset(key));
+        if (result != null) {
+            return result.valueAsBuffer();
+        }
+        return null;
+    }
+
+    @Override
+    public TriePayload getPayload() {
+        return _payload;
+    }
+
+    @Override
+    public void release() {
+        _payload.release();
+    }
+
+    @Override
+    public TrieCursor cursor(byte[] prefix) {
+        return new TrieCursor(_payload, true, _subtreeCounts).reset(prefix);
+    }
+
+    @Override
+    public PrefixMatch<byte[]> findLongestPrefix(byte[] key)
+    {
+        Path result = _findLongestPrefix(new Path().reset(key));
+        if (result != null) {
+            return new PrefixMatch<byte[]>(result.value(), result.matchLength());
+        }
+        return null;
+    }
+
+    /*
+    /**********************************************************
+    /* Internal methods
+    /**********************************************************
+     */
+
+    /**
+     * Method for single-key lookups: uses root index, if one is configured,
+     * to skip the top levels of the trie.
+     */
+    private Path _findValue(Path path)
+    {
+        int ptr = path.startNode(_rootIndex);
+        if (ptr < 0) {
+            return null;
+        }
+        return _findValue(path, ptr);
+    }
+
+    private Path _findValue(Path path, long ptr)
+    {
+        final TriePayload payload = _payload;
+        final long[] longHolder = path.longHolder;
+
+        main_loop:
+        while (true) {
+            int type = (payload.byteAt(ptr) >> 6) & 0x03;
+            if (type == TrieConstants.TYPE_LEAF_SIMPLE) {
+                // Only matches if we are at the end
+                if (path.endOfKey()) {
+                    ptr = payload.readUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, ptr, longHolder);
+                    path.setValue(ptr, (int) longHolder[0]);
+                    return path;
+                }
+                return null;
+            }
+            if (type == TrieConstants.TYPE_LEAF_WITH_SUFFIX) {
+                ptr = payload.readUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, ptr, longHolder);
+                final int valueLength = (int) longHolder[0];
+                path.setValue(ptr, valueLength);
+                ptr = payload.readUnsigned(8, ptr + valueLength, longHolder);
+                if (path.matchKeySuffix(payload, ptr, (int) longHolder[0])) {
+                    return path;
+                }
+                return null;
+            }
+            // nope: a branch
+            if (type == TrieConstants.TYPE_BRANCH_SIMPLE) {
+                if (path.endOfKey()) {
+                    return null;
+                }
+                ptr = payload.readUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr, longHolder);
+            } else { // branch with value
+                ptr = payload.readUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr, longHolder);
+                final int valueLength = (int) longHolder[0];
+                if (path.endOfKey()) {
+                    path.setValue(ptr, valueLength);
+                    return path;
+                }
+                ptr = payload.readUnsigned(8, ptr + valueLength, longHolder);
+            }
+            long contentLen = longHolder[0];
+            if (contentLen == 0L) { // indexed branch: can find matching child directly
+                ptr = _findIndexedChild(path, ptr);
+                if (ptr < 0L) {
+                    return null;
+                }
+                continue main_loop;
+            }
+            long end = ptr + contentLen;
+            if (_subtreeCounts) { // entry count not needed for lookups
+                ptr = payload.skipUnsigned(8, ptr);
+            }
+            do {
+                if (path.matchNextKeyByte(payload.byteAt(ptr++))) {
+                    continue main_loop;
+                }
+                ptr = _skipEntry(path, ptr);
+            } while (ptr < end);
+            return null;
+        }
+    }
+
+    private Path _findLongestPrefix(Path path)
+    {
+        final TriePayload payload = _payload;
+        final long[] longHolder = path.longHolder;
+        Path result = null;
+        long ptr = 0L;
+
+        main_loop:
+        while (true) {
+            int type = (payload.byteAt(ptr) >> 6) & 0x03;
+            if (type == TrieConstants.TYPE_LEAF_SIMPLE) {
+                // all of the key of a leaf was matched, so it is a prefix
+                ptr = payload.readUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, ptr, longHolder);
+                path.setMatch(ptr, (int) longHolder[0]);
+                return path;
+            }
+            if (type == TrieConstants.TYPE_LEAF_WITH_SUFFIX) {
+                ptr = payload.readUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, ptr, longHolder);
+                final long valuePtr = ptr;
+                final int valueLength = (int) longHolder[0];
+                ptr = payload.readUnsigned(8, ptr + valueLength, longHolder);
+                // matches if suffix is a prefix of the rest of the key
+                if (path.matchKeyPrefix(payload, ptr, (int) longHolder[0])) {
+                    path.setMatch(valuePtr, valueLength);
+                    return path;
+                }
+                return result;
+            }
+            if (type == TrieConstants.TYPE_BRANCH_SIMPLE) {
+                if (path.endOfKey()) {
+                    return result;
+                }
+                ptr = payload.readUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr, longHolder);
+            } else { // branch with value; longest match so far
+                ptr = payload.readUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr, longHolder);
+                final int valueLength = (int) longHolder[0];
+                path.setMatch(ptr, valueLength);
+                result = path;
+                if (path.endOfKey()) {
+                    return result;
+                }
+                ptr = payload.readUnsigned(8, ptr + valueLength, longHolder);
+            }
+            long contentLen = longHolder[0];
+            if (contentLen == 0L) {
+                ptr = _findIndexedChild(path, ptr);
+                if (ptr < 0L) {
+                    return result;
+                }
+                continue main_loop;
+            }
+            long end = ptr + contentLen;
+            if (_subtreeCounts) { // entry count not needed for lookups
+                ptr = payload.skipUnsigned(8, ptr);
+            }
+            do {
+                if (path.matchNextKeyByte(payload.byteAt(ptr++))) {
+                    continue main_loop;
+                }
+                ptr = _skipEntry(path, ptr);
+            } while (ptr < end);
+            return result;
+        }
+    }
+
+    /**
+     * Helper method called to find child of an indexed branch that matches
+     * the next key byte, by searching the (sorted) child byte table (see
+     * {@link TriePayload#indexOfLabel}).
+     *
+     * @param ptr Offset of the length indicator of indexed content
+     *
+     * @return Offset of the matching child, if any; -1 if none
+     */
+    private long _findIndexedChild(Path path, long ptr)
+    {
+        final TriePayload payload = _payload;
+        ptr = payload.skipUnsigned(8, ptr);
+        if (_subtreeCounts) {
+            ptr = payload.skipUnsigned(8, ptr);
+        }
+        final int count = (payload.byteAt(ptr) & 0xFF) + 1;
+        final int width = payload.byteAt(ptr+1);
+        final long labels = ptr+2;
+        final int ix = payload.indexOfLabel(labels, count, path.nextKeyByte());
+        if (ix < 0) {
+            return -1L;
+        }
+        path.skipKeyByte();
+        long offsetPtr = labels + count + (ix * width);
+        long offset = 0L;
+        for (int i = 0; i < width; ++i) {
+            offset = (offset << 8) | (payload.byteAt(offsetPtr++) & 0xFF);
+        }
+        return labels + count + (count * width) + offset;
+    }
+
+    private long _skipEntry(Path path, long ptr)
+    {
+        final TriePayload payload = _payload;
+        final long[] longHolder = path.longHolder;
+        int type = (payload.byteAt(ptr) >> 6) & 0x03;
+        if (type == TrieConstants.TYPE_LEAF_SIMPLE) {
+            ptr = payload.readUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, ptr, longHolder);
+            return ptr + longHolder[0];
+        }
+        if (type == TrieConstants.TYPE_LEAF_WITH_SUFFIX) {
+            ptr = payload.readUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, ptr, longHolder);
+            ptr = payload.readUnsigned(8, ptr + longHolder[0], longHolder);
+            return ptr + longHolder[0];
+        }
+        if (type == TrieConstants.TYPE_BRANCH_SIMPLE) {
+            ptr = payload.readUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr, longHolder);
+        } else { // branch with value
+            ptr = payload.readUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr, longHolder);
+            ptr = payload.readUnsigned(8, ptr + longHolder[0], longHolder);
+        }
+        if (longHolder[0] == 0L) { // indexed branch: actual length follows
+            ptr = payload.readUnsigned(8, ptr, longHolder);
+        }
+        return ptr + longHolder[0];
+    }
+
+    /*
+    /**********************************************************
+    /* Helper classes
+    /**********************************************************
+     */
+
+    /**
+     * Cursor implementation that simply reuses single {@link Path} instance
+     * for all lookups
+     */
+    private final class Cursor extends BytesLookupCursor
+    {
+        private final Path _path = new Path();
+
+        private Path _result;
+
+        @Override
+        public int lookup(byte[] key)
+        {
+            _result = _findValue(_path.reset(key));
+            return valueLength();
+        }
+
+        @Override
+        public int lookup(byte[] key, int offset, int length)
+        {
+            _result = _findValue(_path.reset(key, offset, length));
+            return valueLength();
+        }
+
+        @Override
+        public int lookup(CharSequence key)
+        {
+            _result = _findValue(_path.reset(key));
+            return valueLength();
+        }
+
+        @Override
+        public int valueLength() {
+            return (_result == null) ? -1 : _result.valueLength();
+        }
+
+        @Override
+        public int copyValue(byte[] buffer, int offset)
+        {
+            if (_result == null) {
+                throw new IllegalStateException("No value available: last lookup failed");
+            }
+            return _result.copyValue(buffer, offset);
+        }
+
+        @Override
+        public ByteBuffer valueAsBuffer()
+        {
+            if (_result == null) {
+                throw new IllegalStateException("No value available: last lookup failed");
+            }
+            return _result.valueAsBuffer();
+        }
+
+        @Override
+        public long valueOffset()
+        {
+            if (_result == null) {
+                throw new IllegalStateException("No value available: last lookup failed");
+            }
+            return _result.valueOffset();
+        }
+    }
+
+    /**
+     * Helper class that encapsulates traversal state
+     */
+    private final class Path
+    {
+        public final long[] longHolder = new long[1];
+
+        private byte[] key;
+        private int keyOffset;
+        private int keyEnd;
+
+        /**
+         * For String keys, reader for UTF-8 encoded key bytes; only used
+         * if {@link #charKey} is true
+         */
+        private UTF8KeyReader chars;
+        private boolean charKey;
+
+        private long valueOffset;
+        private int valueLength;
+
+        /**
+         * For longest-prefix lookups, length of the key of the best match
+         */
+        private int matchLength;
+
+        public Path() { }
+
+        /**
+         * Method called to reuse this instance for another lookup
+         */
+        public Path reset(byte[] key)
+        {
+            return reset(key, 0, key.length);
+        }
+
+        public Path reset(byte[] key, int offset, int length)
+        {
+            this.key = key;
+            keyOffset = offset;
+            keyEnd = offset + length;
+            charKey = false;
+            return this;
+        }
+
+        /**
+         * Method called to reuse this instance for a lookup with a String key,
+         * which will be encoded as UTF-8 during lookup
+         */
+        public Path reset(CharSequence key)
+        {
+            if (chars == null) {
+                chars = new UTF8KeyReader();
+            }
+            chars.reset(key);
+            charKey = true;
+            return this;
+        }
+
+        public void setValue(long offset, int length)
+        {
+            valueOffset = offset;
+            valueLength = length;
+        }
+
+        public byte[] value() {
+            byte[] result = new byte[valueLength];
+            _payload.getBytes(valueOffset, result, 0, valueLength);
+            return result;
+        }
+
+        public int valueLength() {
+            return valueLength;
+        }
+
+        public long valueOffset() {
+            return valueOffset;
+        }
+
+        public ByteBuffer valueAsBuffer() {
+            return _payload.slice(valueOffset, valueLength);
+        }
+
+        public int copyValue(byte[] buffer, int offset) {
+            _payload.getBytes(valueOffset, buffer, offset, valueLength);
+            return offset + valueLength;
+        }
+
+        /**
+         * Method for finding node to start lookup from, using given root
+         * index (if any); if index resolves the first key bytes, they are
+         * also skipped.
+         *
+         * @return Offset of the node to start from; or -1 if key can not match
+         */
+        public int startNode(RootIndex index)
+        {
+            if (index == null || charKey) {
+                return 0;
+            }
+            int ptr = index.find(key, keyOffset, keyEnd - keyOffset);
+            if (ptr > 0) {
+                keyOffset += index.levels();
+            }
+            return ptr;
+        }
+
+        public boolean endOfKey() {
+            if (charKey) {
+                return chars.atEnd();
+            }
+            return (keyOffset == keyEnd);
+        }
+
+        public int remainingKeyLength() {
+            if (charKey) {
+                return chars.remaining();
+            }
+            return (keyEnd - keyOffset);
+        }
+
+        public boolean matchKeySuffix(TriePayload payload, long offset, int len)
+        {
+            if (len != remainingKeyLength()) return false;
+            if (charKey) {
+                for (int i = 0; i < len; ++i) {
+                    if (!chars.matchNext(payload.byteAt(offset++))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            for (int i = 0; i < len; ++i) {
+                if (payload.byteAt(offset++) != key[keyOffset++]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Method for checking whether given byte sequence is a prefix of
+         * the remaining key; and if so, skipping it.
+         */
+        public boolean matchKeyPrefix(TriePayload payload, long offset, int len)
+        {
+            if (len > remainingKeyLength()) return false;
+            for (int i = 0; i < len; ++i) {
+                if (payload.byteAt(offset+i) != key[keyOffset+i]) {
+                    return false;
+                }
+            }
+            keyOffset += len;
+            return true;
+        }
+
+        public int matchLength() {
+            return matchLength;
+        }
+
+        /**
+         * Method called by longest-prefix lookups when a value-bearing node
+         * matched: all key bytes consumed so far form the matching key.
+         */
+        public void setMatch(long offset, int length) {
+            setValue(offset, length);
+            matchLength = keyOffset;
+        }
+
+        public byte nextKeyByte() {
+            if (charKey) {
+                return chars.peek();
+            }
+            return key[keyOffset];
+        }
+
+        public void skipKeyByte() {
+            if (charKey) {
+                chars.skip();
+            } else {
+                ++keyOffset;
+            }
+        }
+
+        public boolean matchNextKeyByte(byte b)
+        {
+            if (charKey) {
+                return chars.matchNext(b);
+            }
+            if (key[keyOffset] == b) {
+                ++keyOffset;
+                return true;
+            }
+            return false;
+        }
+    }
+}
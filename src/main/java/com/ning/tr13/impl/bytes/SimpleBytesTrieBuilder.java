@@ -6,6 +6,7 @@ import com.ning.tr13.KeyValueSource;
 import com.ning.tr13.build.ClosedTrieNodeFactory;
 import com.ning.tr13.build.OpenTrieNode;
 import com.ning.tr13.build.SimpleTrieBuilder;
+import com.ning.tr13.lookup.TrieHeader;
 
 public class SimpleBytesTrieBuilder
     extends SimpleTrieBuilder<byte[]>
@@ -22,9 +23,17 @@ public class SimpleBytesTrieBuilder
 
     @Override
     public ClosedTrieNodeFactory<byte[]> closedTrieNodeFactory() {
+        if (indexedBranchMinChildren() > 0 || _subtreeCounts) {
+            return new BytesNodeFactory(indexedBranchMinChildren(), _subtreeCounts);
+        }
         return nodeFactory;
     }
 
+    @Override
+    protected TrieHeader.ValueType valueType() {
+        return TrieHeader.ValueType.BYTE_ARRAY;
+    }
+
     @Override
     protected OpenTrieNode<byte[]> constructOpenNode(byte b, byte[] value) {
         return new OpenTrieNode<byte[]>(b, value);
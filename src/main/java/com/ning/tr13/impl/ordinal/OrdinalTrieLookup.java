@@ -0,0 +1,125 @@
+package com.ning.tr13.impl.ordinal;
+
+import com.ning.tr13.bloom.BloomFilter;
+import com.ning.tr13.lookup.TrieCursor;
+import com.ning.tr13.lookup.TriePayload;
+import com.ning.tr13.util.UTF8Codec;
+
+/**
+ * Lookup for key-only tries (built using {@link SimpleOrdinalTrieBuilder}),
+ * that maps keys to their ordinals (that is, position in key order; a dense
+ * index in range of <code>[0, size())</code>), and ordinals back to keys.
+ * Ordinals are calculated from subtree counts of branches on the path of
+ * the key, so no per-key values need to be stored.
+ *<p>
+ * Instances are thread-safe; each call uses a new {@link TrieCursor}.
+ *
+ * @author tatu
+ */
+public class OrdinalTrieLookup
+{
+    private final static byte[] NO_BYTES = new byte[0];
+
+    protected final TriePayload _payload;
+
+    /**
+     * Optional Bloom filter used for rejecting missing keys
+     */
+    protected final BloomFilter _filter;
+
+    protected final long _size;
+
+    public OrdinalTrieLookup(TriePayload payload) {
+        this(payload, null);
+    }
+
+    /**
+     * @param filter Optional Bloom filter for rejecting most lookups of
+     *    missing keys without trie traversal; null if none
+     */
+    public OrdinalTrieLookup(TriePayload payload, BloomFilter filter)
+    {
+        _payload = payload;
+        _filter = filter;
+        _size = cursor().countPrefix(NO_BYTES);
+    }
+
+    /*
+    /**********************************************************
+    /* Public API
+    /**********************************************************
+     */
+
+    public TriePayload getPayload() { return _payload; }
+
+    /**
+     * Method for releasing resources payload holds, if backend supports
+     * explicit release (see {@link TriePayload#release}).
+     */
+    public void release() {
+        _payload.release();
+    }
+
+    /**
+     * @return Number of keys in the trie
+     */
+    public long size() { return _size; }
+
+    /**
+     * @return Ordinal of given key, if trie contains it; -1 if not
+     */
+    public long ordinal(byte[] key)
+    {
+        if (_filter != null && !_filter.mightContain(key, 0, key.length)) {
+            return -1L;
+        }
+        return cursor().ordinal(key);
+    }
+
+    public long ordinal(CharSequence key) {
+        return ordinal(UTF8Codec.encodeAsUTF8(key.toString()));
+    }
+
+    public boolean containsKey(byte[] key) {
+        return ordinal(key) >= 0L;
+    }
+
+    /**
+     * Method for finding key with given ordinal.
+     *
+     * @return Key with given ordinal; null if ordinal is negative, or not
+     *   less than {@link #size}
+     */
+    public byte[] keyAt(long ordinal)
+    {
+        TrieCursor c = cursor();
+        if (!c.seekIndex(ordinal)) {
+            return null;
+        }
+        return c.getKey();
+    }
+
+    /**
+     * Method for finding key with given ordinal, decoded from UTF-8.
+     *
+     * @return Key with given ordinal; null if ordinal is negative, or not
+     *   less than {@link #size}
+     */
+    public String keyAsStringAt(long ordinal)
+    {
+        TrieCursor c = cursor();
+        if (!c.seekIndex(ordinal)) {
+            return null;
+        }
+        return UTF8Codec.decodeFromUTF8(c.getKeyBuffer(), 0, c.getKeyLength());
+    }
+
+    /**
+     * Method for constructing cursor for iterating over keys in key
+     * (and thereby ordinal) order; note that values of entries are
+     * always 0.
+     */
+    public TrieCursor cursor() {
+        return new TrieCursor(_payload, false, true).reset(NO_BYTES);
+    }
+}
@@ -0,0 +1,118 @@
+package com.ning.tr13.impl.ordinal;
+
+import java.io.*;
+
+import com.ning.tr13.KeyValueSource;
+import com.ning.tr13.build.ClosedTrieNodeFactory;
+import com.ning.tr13.build.KeyStringValueReader;
+import com.ning.tr13.build.OpenTrieNode;
+import com.ning.tr13.build.SimpleTrieBuilder;
+import com.ning.tr13.impl.vint.VIntNodeFactory;
+import com.ning.tr13.lookup.TrieHeader;
+
+/**
+ * Builder for key-only tries, used with {@link OrdinalTrieLookup} for
+ * mapping keys to their ordinals (position in key order) and back.
+ * Values of the source are ignored: nodes are written with value 0
+ * (which only takes bits of the type byte), and all branches have
+ * subtree counts, which are used for calculating ordinals.
+ */
+public class SimpleOrdinalTrieBuilder
+    extends SimpleTrieBuilder<Long>
+{
+    private final static Long NO_VALUE = Long.valueOf(0L);
+
+    public SimpleOrdinalTrieBuilder(KeyValueSource<?> r) {
+        this(r, false);
+    }
+
+    public SimpleOrdinalTrieBuilder(KeyValueSource<?> r, boolean diagnostics) {
+        super(new KeySource(r), diagnostics);
+        _subtreeCounts = true;
+    }
+
+    /**
+     * Subtree counts are always needed for ordinal tries, so they can
+     * not be disabled.
+     */
+    @Override
+    public SimpleOrdinalTrieBuilder setSubtreeCounts(boolean b) {
+        if (!b) {
+            throw new IllegalArgumentException("Ordinal tries always have subtree counts");
+        }
+        return this;
+    }
+
+    @Override
+    public ClosedTrieNodeFactory<Long> closedTrieNodeFactory() {
+        return new VIntNodeFactory(indexedBranchMinChildren(), true);
+    }
+
+    @Override
+    protected TrieHeader.ValueType valueType() {
+        return TrieHeader.ValueType.KEYS_ONLY;
+    }
+
+    @Override
+    protected OpenTrieNode<Long> constructOpenNode(byte b, Long value) {
+        return new OpenTrieNode<Long>(b, value);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length != 2) {
+            System.err.println("USAGE: java ... [input-file] [output-file]");
+            System.exit(2);
+        }
+        KeyStringValueReader r = new KeyStringValueReader(new FileInputStream(args[0]));
+        SimpleOrdinalTrieBuilder b = new SimpleOrdinalTrieBuilder(r, true);
+        File outputFile = new File(args[1]);
+        OutputStream out = new FileOutputStream(outputFile);
+        b.buildAndWrite(out, true);
+        r.close();
+        out.close();
+        System.out.printf("Build complete: %d lines read, result file length is %s",
+                b._linesRead, sizeDesc(outputFile.length()));
+    }
+
+    /*
+    /**********************************************************
+    /* Helper classes
+    /**********************************************************
+     */
+
+    /**
+     * Adapter that passes keys of the underlying source, with placeholder
+     * value (since nodes without values are not taken to be entries)
+     */
+    private final static class KeySource
+        extends KeyValueSource<Long>
+    {
+        private final KeyValueSource<?> _source;
+
+        public KeySource(KeyValueSource<?> source) {
+            _source = source;
+        }
+
+        @Override
+        public void readAll(final ValueCallback<Long> handler) throws IOException {
+            _readAll(_source, handler);
+        }
+
+        private <V> void _readAll(KeyValueSource<V> source, final ValueCallback<Long> handler)
+            throws IOException
+        {
+            source.readAll(new ValueCallback<V>() {
+                @Override
+                public void handleEntry(byte[] key, V value) {
+                    handler.handleEntry(key, NO_VALUE);
+                }
+            });
+        }
+
+        @Override
+        public int getLineNumber() {
+            return _source.getLineNumber();
+        }
+    }
+}
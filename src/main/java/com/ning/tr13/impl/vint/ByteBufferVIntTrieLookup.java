@@ -1,10 +1,18 @@
 package com.ning.tr13.impl.vint;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 
 import com.ning.tr13.TrieConstants;
+import com.ning.tr13.lookup.PrefixMatch;
+import com.ning.tr13.lookup.RootIndex;
+import com.ning.tr13.lookup.TrieCursor;
+import com.ning.tr13.lookup.TriePayload;
+import com.ning.tr13.lookup.VIntLookupCursor;
 import com.ning.tr13.lookup.VIntTrieLookup;
+import com.ning.tr13.util.ByteMatcher;
+import com.ning.tr13.util.UTF8KeyReader;
 import com.ning.tr13.util.VInt;
 
 public class ByteBufferVIntTrieLookup
@@ -20,9 +28,37 @@ public class ByteBufferVIntTrieLookup
      */
     protected final int _size;
     
+    /**
+     * Optional index used for skipping the top levels of the trie
+     */
+    protected final RootIndex _rootIndex;
+
+    /**
+     * Whether branches start with number of entries in their subtree
+     */
+    protected final boolean _subtreeCounts;
+
     public ByteBufferVIntTrieLookup(ByteBuffer bb, int size) {
+        this(bb, size, null);
+    }
+
+    /**
+     * @param rootIndex Optional index for skipping the top levels of the
+     *    trie during lookups; null if none
+     */
+    public ByteBufferVIntTrieLookup(ByteBuffer bb, int size, RootIndex rootIndex) {
+        this(bb, size, rootIndex, false);
+    }
+
+    /**
+     * @param subtreeCounts Whether branches of the trie include number of
+     *    entries in their subtree (needed for counting, and access by position)
+     */
+    public ByteBufferVIntTrieLookup(ByteBuffer bb, int size, RootIndex rootIndex, boolean subtreeCounts) {
         _byteBuffer = bb;
         _size = size;
+        _rootIndex = rootIndex;
+        _subtreeCounts = subtreeCounts;
     }
 
     /*
@@ -31,8 +67,13 @@ public class ByteBufferVIntTrieLookup
     /**********************************************************
      */
 
+    @Override
+    public boolean containsKey(byte[] key) {
+        return _findValue(new Path().reset(key).withoutValue()) != null;
+    }
+
     public long getValue(byte[] key) throws NoSuchElementException {
-        Path result = _findValue(new Path(key), 0);
+        Path result = _findValue(new Path(key));
         if (result != null) {
             return result.value();
         }
@@ -40,15 +81,95 @@ public class ByteBufferVIntTrieLookup
     }
 
     public long getValue(byte[] key, long defaultValue) {
-        Path result = _findValue(new Path(key), 0);
+        Path result = _findValue(new Path(key));
         if (result != null) {
             return result.value();
         }
         return defaultValue;
     }
 
+    @Override
+    public long getValue(byte[] key, int offset, int length, long defaultValue)
+    {
+        Path result = _findValue(new Path().reset(key, offset, length));
+        if (result != null) {
+            return result.value();
+        }
+        return defaultValue;
+    }
+
+    @Override
+    public long getValue(CharSequence key, long defaultValue)
+    {
+        Path result = _findValue(new Path().reset(key));
+        if (result != null) {
+            return result.value();
+        }
+        return defaultValue;
+    }
+
+    @Override
+    public ByteBufferVIntTrieLookup withRootIndex(int maxIndexBytes) {
+        return new ByteBufferVIntTrieLookup(_byteBuffer, _size, RootIndex.build(TriePayload.forBuffer(_byteBuffer, _size), false, _subtreeCounts, maxIndexBytes),
+                _subtreeCounts);
+    }
+
+    public VIntLookupCursor newCursor() {
+        return new Cursor();
+    }
+
+    @Override
+    public TrieCursor cursor(byte[] prefix) {
+        return new TrieCursor(TriePayload.forBuffer(_byteBuffer, _size), false, _subtreeCounts).reset(prefix);
+    }
+
+    @Override
+    public PrefixMatch<Long> findLongestPrefix(byte[] key)
+    {
+        Path result = _findLongestPrefix(new Path(key));
+        if (result != null) {
+            return new PrefixMatch<Long>(Long.valueOf(result.value()), result.matchLength());
+        }
+        return null;
+    }
+
+    @Override
+    public void findValues(byte[][] keys, long[] results, long missing)
+    {
+        // sort keys, so that we can reuse traversal state for common prefixes
+        final int[] order = _sortedOrder(keys);
+        final Path path = new Path().withTrail();
+        byte[] prevKey = null;
+        for (int i = 0, len = order.length; i < len; ++i) {
+            final int ix = order[i];
+            final byte[] key = keys[ix];
+            int ptr = path.resume(key, (prevKey == null) ? 0 : _commonPrefixLength(prevKey, key));
+            Path result = _findValue(path, ptr);
+            results[ix] = (result == null) ? missing : result.value();
+            prevKey = key;
+        }
+    }
+
     public Long findValue(byte[] key) {
-        Path result = _findValue(new Path(key), 0);
+        Path result = _findValue(new Path(key));
+        if (result != null) {
+            return Long.valueOf(result.value());
+        }
+        return null;
+    }
+
+    @Override
+    public Long findValue(byte[] key, int offset, int length) {
+        Path result = _findValue(new Path().reset(key, offset, length));
+        if (result != null) {
+            return Long.valueOf(result.value());
+        }
+        return null;
+    }
+
+    @Override
+    public Long findValue(CharSequence key) {
+        Path result = _findValue(new Path().reset(key));
         if (result != null) {
             return Long.valueOf(result.value());
         }
@@ -61,6 +182,19 @@ public class ByteBufferVIntTrieLookup
     /**********************************************************
      */
 
+    /**
+     * Method for single-key lookups: uses root index, if one is configured,
+     * to skip the top levels of the trie.
+     */
+    private Path _findValue(Path path)
+    {
+        int ptr = path.startNode(_rootIndex);
+        if (ptr < 0) {
+            return null;
+        }
+        return _findValue(path, ptr);
+    }
+
     private Path _findValue(Path path, int ptr)
     {
         final ByteBuffer bb = _byteBuffer;
@@ -68,22 +202,31 @@ public class ByteBufferVIntTrieLookup
         main_loop:
 
         while (true) {
+            if (path.trail != null) { // batch lookup, need to keep track of nodes
+                path.markNode(ptr);
+            }
             int type = (bb.get(ptr) >> 6) & 0x03;
             if (type == TrieConstants.TYPE_LEAF_SIMPLE) {
                 // Only matches if we are at the end
                 if (path.endOfKey()) {
-                    VInt.bytesToUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES,
-                            bb, ptr, path.longHolder);
-                    path.setValue(path.longHolder[0]);
+                    if (!path.skipValue) {
+                        VInt.bytesToUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES,
+                                bb, ptr, path.longHolder);
+                        path.setValue(path.longHolder[0]);
+                    }
                     return path;
                 }
                 return null;
             }
             if (type == TrieConstants.TYPE_LEAF_WITH_SUFFIX) {
                 // First we get value, as with regular leaves
-                ptr = VInt.bytesToUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES,
-                        bb, ptr, path.longHolder);
-                path.setValue(path.longHolder[0]);
+                if (path.skipValue) {
+                    ptr = VInt.skipUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, bb, ptr);
+                } else {
+                    ptr = VInt.bytesToUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES,
+                            bb, ptr, path.longHolder);
+                    path.setValue(path.longHolder[0]);
+                }
                 // Then length of suffix
                 ptr = VInt.bytesToUnsigned(8, bb, ptr, path.longHolder);
                 int suffixLen = (int) path.longHolder[0];
@@ -103,16 +246,31 @@ public class ByteBufferVIntTrieLookup
                         bb, ptr, path.longHolder);
             } else { // branch with value
                 // ok: first thing; does this branch itself match?
-                ptr = VInt.bytesToUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES,
-                        bb, ptr, path.longHolder);
                 if (path.endOfKey()) {
-                    path.setValue(path.longHolder[0]);
-                    return path;                
+                    if (!path.skipValue) {
+                        VInt.bytesToUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES,
+                                bb, ptr, path.longHolder);
+                        path.setValue(path.longHolder[0]);
+                    }
+                    return path;
                 }
+                // if not, value not needed
+                ptr = VInt.skipUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, bb, ptr);
                 ptr = VInt.bytesToUnsigned(8, bb, ptr, path.longHolder);
             }
+            int contentLen = (int) path.longHolder[0];
+            if (contentLen == 0) { // indexed branch: can find matching child directly
+                ptr = _findIndexedChild(path, ptr);
+                if (ptr < 0) {
+                    return null;
+                }
+                continue main_loop;
+            }
             // either way, now know content length; and can loop
-            int end = ptr + (int) path.longHolder[0];
+            int end = ptr + contentLen;
+            if (_subtreeCounts) { // entry count not needed for lookups
+                ptr = VInt.skipUnsigned(8, _byteBuffer, ptr);
+            }
             child_loop:
             do {
                 byte b = bb.get(ptr++);
@@ -128,6 +286,104 @@ public class ByteBufferVIntTrieLookup
         }
     }
 
+    private Path _findLongestPrefix(Path path)
+    {
+        final ByteBuffer bb = _byteBuffer;
+        Path result = null;
+        int ptr = 0;
+
+        main_loop:
+        while (true) {
+            int type = (bb.get(ptr) >> 6) & 0x03;
+            if (type == TrieConstants.TYPE_LEAF_SIMPLE) {
+                // all of the key of a leaf was matched, so it is a prefix
+                VInt.bytesToUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES,
+                        bb, ptr, path.longHolder);
+                path.setMatch(path.longHolder[0]);
+                return path;
+            }
+            if (type == TrieConstants.TYPE_LEAF_WITH_SUFFIX) {
+                ptr = VInt.bytesToUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES,
+                        bb, ptr, path.longHolder);
+                long value = path.longHolder[0];
+                ptr = VInt.bytesToUnsigned(8, bb, ptr, path.longHolder);
+                // matches if suffix is a prefix of the rest of the key
+                if (path.matchKeyPrefix(bb, ptr, (int) path.longHolder[0])) {
+                    path.setMatch(value);
+                    return path;
+                }
+                return result;
+            }
+            if (type == TrieConstants.TYPE_BRANCH_SIMPLE) {
+                if (path.endOfKey()) {
+                    return result;
+                }
+                ptr = VInt.bytesToUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES,
+                        bb, ptr, path.longHolder);
+            } else { // branch with value; longest match so far
+                ptr = VInt.bytesToUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES,
+                        bb, ptr, path.longHolder);
+                path.setMatch(path.longHolder[0]);
+                result = path;
+                if (path.endOfKey()) {
+                    return result;
+                }
+                ptr = VInt.bytesToUnsigned(8, bb, ptr, path.longHolder);
+            }
+            int contentLen = (int) path.longHolder[0];
+            if (contentLen == 0) {
+                ptr = _findIndexedChild(path, ptr);
+                if (ptr < 0) {
+                    return result;
+                }
+                continue main_loop;
+            }
+            int end = ptr + contentLen;
+            if (_subtreeCounts) { // entry count not needed for lookups
+                ptr = VInt.skipUnsigned(8, _byteBuffer, ptr);
+            }
+            do {
+                if (path.matchNextKeyByte(bb.get(ptr++))) {
+                    continue main_loop;
+                }
+                ptr = _skipEntry(path, ptr);
+            } while (ptr < end);
+            return result;
+        }
+    }
+
+    /**
+     * Helper method called to find child of an indexed branch that matches
+     * the next key byte, by searching the (sorted) child byte table
+     * 8 bytes at a time (see {@link ByteMatcher}).
+     * 
+     * @param ptr Offset of the length indicator of indexed content
+     * 
+     * @return Offset of the matching child, if any; -1 if none
+     */
+    private int _findIndexedChild(Path path, int ptr)
+    {
+        // we don't need total length, just skip it:
+        ptr = VInt.skipUnsigned(8, _byteBuffer, ptr);
+        if (_subtreeCounts) {
+            ptr = VInt.skipUnsigned(8, _byteBuffer, ptr);
+        }
+        final int count = (_byteBuffer.get(ptr) & 0xFF) + 1;
+        final int width = _byteBuffer.get(ptr+1);
+        final int labels = ptr+2;
+        final int ix = ByteMatcher.indexOf(_byteBuffer, labels, count, path.nextKeyByte());
+        if (ix < 0) {
+            return -1;
+        }
+        path.skipKeyByte();
+        int offsetPtr = labels + count + (ix * width);
+        int offset = 0;
+        for (int i = 0; i < width; ++i) {
+            offset = (offset << 8) | (_byteBuffer.get(offsetPtr++) & 0xFF);
+        }
+        return labels + count + (count * width) + offset;
+    }
+
     private int _skipEntry(Path path, int ptr)
     {
         final ByteBuffer bb = _byteBuffer;
@@ -146,16 +402,28 @@ public class ByteBufferVIntTrieLookup
             // simple branches: first get total length of children; then children
             ptr = VInt.bytesToUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES,
                     bb, ptr, path.longHolder);
-            ptr += (int) path.longHolder[0];
+            ptr = _skipContent(path, ptr);
         } else { // branch with value
             // first value, then length of contents (children) to skip
             ptr = VInt.skipUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES,
                     bb, ptr);
             ptr = VInt.bytesToUnsigned(8, bb, ptr, path.longHolder);
-            ptr += (int) path.longHolder[0];
+            ptr = _skipContent(path, ptr);
         }
         return ptr;
     }
+
+    /**
+     * Helper method for skipping content of a branch, given content
+     * length indicator (which is 0 for indexed branches).
+     */
+    private int _skipContent(Path path, int ptr)
+    {
+        if (path.longHolder[0] == 0L) { // indexed branch: actual length follows
+            ptr = VInt.bytesToUnsigned(8, _byteBuffer, ptr, path.longHolder);
+        }
+        return ptr + (int) path.longHolder[0];
+    }
     
     /*
     /**********************************************************
@@ -163,6 +431,45 @@ public class ByteBufferVIntTrieLookup
     /**********************************************************
      */
 
+    /**
+     * Cursor implementation that simply reuses single {@link Path} instance
+     * for all lookups
+     */
+    private final class Cursor extends VIntLookupCursor
+    {
+        private final Path _path = new Path();
+
+        @Override
+        public long lookup(byte[] key, long missing)
+        {
+            Path result = _findValue(_path.reset(key));
+            if (result != null) {
+                return result.value();
+            }
+            return missing;
+        }
+
+        @Override
+        public long lookup(byte[] key, int offset, int length, long missing)
+        {
+            Path result = _findValue(_path.reset(key, offset, length));
+            if (result != null) {
+                return result.value();
+            }
+            return missing;
+        }
+
+        @Override
+        public long lookup(CharSequence key, long missing)
+        {
+            Path result = _findValue(_path.reset(key));
+            if (result != null) {
+                return result.value();
+            }
+            return missing;
+        }
+    }
+
     /**
      * Helper class that encapsulates traversal state
      */
@@ -170,15 +477,91 @@ public class ByteBufferVIntTrieLookup
     {
         public final long[] longHolder = new long[1];
 
-        private final byte[] key;
+        private byte[] key;
         private int keyOffset;
+        private int keyEnd;
+
+        /**
+         * For String keys, reader for UTF-8 encoded key bytes; only used
+         * if {@link #charKey} is true
+         */
+        private UTF8KeyReader chars;
+        private boolean charKey;
+
+        /**
+         * For batch lookups, offsets of nodes traversed, indexed by the
+         * number of key bytes matched when node was reached; null for
+         * single-key lookups.
+         */
+        public int[] trail;
+
+        /**
+         * For batch lookups, index of the deepest valid entry in {@link #trail}
+         */
+        private int trailDepth;
         
+        /**
+         * Whether lookup only needs to check existence of the key, in which
+         * case values need not be decoded (just skipped)
+         */
+        public boolean skipValue;
+
         private long value;
+
+        /**
+         * For longest-prefix lookups, length of the key of the best match
+         */
+        private int matchLength;
+
+        public Path() { }
         
         public Path(byte[] key)
         {
             this.key = key;
             keyOffset = 0;
+            keyEnd = key.length;
+        }
+
+        /**
+         * Method called to reuse this instance for another lookup
+         */
+        public Path reset(byte[] key)
+        {
+            return reset(key, 0, key.length);
+        }
+
+        public Path reset(byte[] key, int offset, int length)
+        {
+            this.key = key;
+            keyOffset = offset;
+            keyEnd = offset + length;
+            charKey = false;
+            skipValue = false;
+            return this;
+        }
+
+        /**
+         * Method called to reuse this instance for a lookup with a String key,
+         * which will be encoded as UTF-8 during lookup
+         */
+        public Path reset(CharSequence key)
+        {
+            if (chars == null) {
+                chars = new UTF8KeyReader();
+            }
+            chars.reset(key);
+            charKey = true;
+            skipValue = false;
+            return this;
+        }
+
+        /**
+         * Method called to indicate that lookup only checks existence of
+         * the key, and value is not needed
+         */
+        public Path withoutValue() {
+            skipValue = true;
+            return this;
         }
 
         public void setValue(long value) {
@@ -189,17 +572,50 @@ public class ByteBufferVIntTrieLookup
             return value;
         }
         
+        /**
+         * Method for finding node to start lookup from, using given root
+         * index (if any); if index resolves the first key bytes, they are
+         * also skipped.
+         *
+         * @return Offset of the node to start from; or -1 if key can not match
+         */
+        public int startNode(RootIndex index)
+        {
+            if (index == null || charKey) {
+                return 0;
+            }
+            int ptr = index.find(key, keyOffset, keyEnd - keyOffset);
+            if (ptr > 0) {
+                keyOffset += index.levels();
+            }
+            return ptr;
+        }
+
         public boolean endOfKey() {
-            return (keyOffset == key.length);
+            if (charKey) {
+                return chars.atEnd();
+            }
+            return (keyOffset == keyEnd);
         }
         
         public int remainingKeyLength() {
-            return (key.length - keyOffset);
+            if (charKey) {
+                return chars.remaining();
+            }
+            return (keyEnd - keyOffset);
         }
 
         public boolean matchKeySuffix(ByteBuffer bb, int offset, int len)
         {
             if (len != remainingKeyLength()) return false;
+            if (charKey) {
+                for (int i = 0; i < len; ++i) {
+                    if (!chars.matchNext(bb.get(offset++))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
             for (int i = 0; i < len; ++i) {
                 if (bb.get(offset++) != key[keyOffset++]) {
                     return false;
@@ -208,8 +624,91 @@ public class ByteBufferVIntTrieLookup
             return true;
         }
 
+        /**
+         * Method for checking whether given byte sequence is a prefix of
+         * the remaining key; and if so, skipping it.
+         */
+        public boolean matchKeyPrefix(ByteBuffer buffer, int offset, int len)
+        {
+            if (len > remainingKeyLength()) return false;
+            for (int i = 0; i < len; ++i) {
+                if (buffer.get(offset+i) != key[keyOffset+i]) {
+                    return false;
+                }
+            }
+            keyOffset += len;
+            return true;
+        }
+
+        public int matchLength() {
+            return matchLength;
+        }
+
+        /**
+         * Method called by longest-prefix lookups when a value-bearing node
+         * matched: all key bytes consumed so far form the matching key.
+         */
+        public void setMatch(long value) {
+            this.value = value;
+            matchLength = keyOffset;
+        }
+
+        /**
+         * Method called to enable tracking of nodes traversed, for batch lookups
+         */
+        public Path withTrail()
+        {
+            trail = new int[16];
+            trailDepth = 0;
+            return this;
+        }
+
+        public void markNode(int ptr)
+        {
+            if (keyOffset >= trail.length) {
+                trail = Arrays.copyOf(trail, Math.max(keyOffset+1, trail.length * 2));
+            }
+            trail[keyOffset] = ptr;
+            trailDepth = keyOffset;
+        }
+
+        /**
+         * Method called to start lookup for the next key of a batch
+         * 
+         * @param commonPrefix Length of the common prefix given key has
+         *   with the previous key looked up
+         * 
+         * @return Offset of the node to continue lookup from
+         */
+        public int resume(byte[] key, int commonPrefix)
+        {
+            int depth = Math.min(commonPrefix, trailDepth);
+            this.key = key;
+            keyOffset = depth;
+            keyEnd = key.length;
+            return trail[depth];
+        }
+
+        public byte nextKeyByte() {
+            if (charKey) {
+                return chars.peek();
+            }
+            return key[keyOffset];
+        }
+
+        public void skipKeyByte() {
+            if (charKey) {
+                chars.skip();
+            } else {
+                ++keyOffset;
+            }
+        }
+
         public boolean matchNextKeyByte(byte b)
         {
+            if (charKey) {
+                return chars.matchNext(b);
+            }
             if (key[keyOffset] == b) {
                 ++keyOffset;
                 return true;
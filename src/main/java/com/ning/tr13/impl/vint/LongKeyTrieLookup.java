@@ -0,0 +1,281 @@
+package com.ning.tr13.impl.vint;
+
+import java.util.NoSuchElementException;
+
+import com.ning.tr13.TrieConstants;
+import com.ning.tr13.lookup.RootIndex;
+import com.ning.tr13.util.ByteMatcher;
+import com.ning.tr13.util.VInt;
+
+/**
+ * Specialized VInt-valued lookup for tries whose keys are <code>long</code>s
+ * encoded as fixed-length (8 byte) big-endian byte sequences (see
+ * {@link LongKeyValueSource}). Keys are passed directly as
+ * <code>long</code>s, so there is no need to encode them into byte arrays
+ * for lookups; and since all keys have the same length, traversal can
+ * rely on it: key byte for each level is taken from the long by shifting,
+ * end of key is known from depth alone, and suffixes of leaves are
+ * compared as a single masked long instead of byte by byte (length of
+ * suffix is implied by depth, so its length indicator need not be decoded).
+ *<p>
+ * Trie itself uses the standard format, so generic (byte[]-keyed) lookup
+ * methods also work, using keys encoded with
+ * {@link LongKeyValueSource#keyBytes}. Levels of fixed-length keys tend
+ * to be dense, so building with indexed branches (see
+ * {@link com.ning.tr13.build.SimpleTrieBuilder#setIndexedBranchMinChildren})
+ * is usually worth it.
+ */
+public class LongKeyTrieLookup
+    extends ByteArrayVIntTrieLookup
+{
+    /**
+     * Length of keys, in bytes.
+     */
+    public final static int KEY_LENGTH = 8;
+
+    public LongKeyTrieLookup(byte[] raw) {
+        this(raw, false);
+    }
+
+    /**
+     * @param subtreeCounts Whether branches of the trie include number of
+     *    entries in their subtree
+     */
+    public LongKeyTrieLookup(byte[] raw, boolean subtreeCounts) {
+        super(raw, (RootIndex) null, subtreeCounts);
+    }
+
+    /*
+    /**********************************************************
+    /* Public API, long keys
+    /**********************************************************
+     */
+
+    public boolean containsKey(long key) {
+        return _find(key) >= 0;
+    }
+
+    public Long findValue(long key)
+    {
+        int ptr = _find(key);
+        if (ptr < 0) {
+            return null;
+        }
+        return Long.valueOf(_valueAt(ptr));
+    }
+
+    public long getValue(long key) throws NoSuchElementException
+    {
+        int ptr = _find(key);
+        if (ptr < 0) {
+            throw new NoSuchElementException("No value for key "+key);
+        }
+        return _valueAt(ptr);
+    }
+
+    public long getValue(long key, long defaultValue)
+    {
+        int ptr = _find(key);
+        if (ptr < 0) {
+            return defaultValue;
+        }
+        return _valueAt(ptr);
+    }
+
+    /**
+     * Method for looking up values of multiple keys with a single call.
+     *
+     * @param results Array to store values in; value for keys[i] is stored
+     *   in results[i]
+     * @param missing Value to store for keys that are not found
+     */
+    public void findValues(long[] keys, long[] results, long missing)
+    {
+        for (int i = 0, len = keys.length; i < len; ++i) {
+            int ptr = _find(keys[i]);
+            results[i] = (ptr < 0) ? missing : _valueAt(ptr);
+        }
+    }
+
+    /*
+    /**********************************************************
+    /* Internal methods
+    /**********************************************************
+     */
+
+    /**
+     * Method for finding node that contains value for given key.
+     *
+     * @return Offset of the node (leaf or branch with value) for key,
+     *   if found; -1 if not
+     */
+    private int _find(final long key)
+    {
+        final byte[] buffer = _byteArray;
+        int ptr = 0;
+        int depth = 0;
+
+        while (true) {
+            int type = (buffer[ptr] >> 6) & 0x03;
+            if (type == TrieConstants.TYPE_LEAF_SIMPLE) {
+                return (depth == KEY_LENGTH) ? ptr : -1;
+            }
+            if (type == TrieConstants.TYPE_LEAF_WITH_SUFFIX) {
+                int remaining = KEY_LENGTH - depth;
+                int p = VInt.skipUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, buffer, ptr);
+                // suffix length must be that of the rest of key; fits in a single VInt byte
+                if (buffer[p++] != (byte) (0x80 | remaining)) {
+                    return -1;
+                }
+                long suffix = 0L;
+                for (int end = p + remaining; p < end; ++p) {
+                    suffix = (suffix << 8) | (buffer[p] & 0xFF);
+                }
+                long mask = (remaining == KEY_LENGTH) ? -1L : ((1L << (remaining << 3)) - 1L);
+                return (suffix == (key & mask)) ? ptr : -1;
+            }
+            if (depth == KEY_LENGTH) { // key consumed; only branch's own value can match
+                return (type == TrieConstants.TYPE_BRANCH_WITH_VALUE) ? ptr : -1;
+            }
+            long lengthAndPtr;
+            if (type == TrieConstants.TYPE_BRANCH_WITH_VALUE) {
+                ptr = VInt.skipUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, buffer, ptr);
+                lengthAndPtr = _readLength(8, ptr);
+            } else {
+                lengthAndPtr = _readLength(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr);
+            }
+            ptr = (int) lengthAndPtr;
+            final int contentLen = (int) (lengthAndPtr >>> 32);
+            final byte b = (byte) (key >>> (56 - (depth << 3)));
+            ++depth;
+            if (contentLen == 0) { // indexed branch
+                ptr = _findIndexedChild(ptr, b);
+                if (ptr < 0) {
+                    return -1;
+                }
+                continue;
+            }
+            final int end = ptr + contentLen;
+            if (_subtreeCounts) {
+                ptr = VInt.skipUnsigned(8, buffer, ptr);
+            }
+            while (true) {
+                if (ptr >= end) {
+                    return -1;
+                }
+                if (buffer[ptr++] == b) {
+                    break;
+                }
+                ptr = _skipEntry(ptr);
+            }
+        }
+    }
+
+    /**
+     * @param ptr Offset of the length indicator of indexed content
+     *
+     * @return Offset of the child for given key byte, if any; -1 if none
+     */
+    private int _findIndexedChild(int ptr, byte b)
+    {
+        final byte[] buffer = _byteArray;
+        ptr = VInt.skipUnsigned(8, buffer, ptr);
+        if (_subtreeCounts) {
+            ptr = VInt.skipUnsigned(8, buffer, ptr);
+        }
+        final int count = (buffer[ptr] & 0xFF) + 1;
+        final int width = buffer[ptr+1];
+        final int labels = ptr+2;
+        final int ix = ByteMatcher.indexOf(buffer, labels, count, b);
+        if (ix < 0) {
+            return -1;
+        }
+        int offsetPtr = labels + count + (ix * width);
+        int offset = 0;
+        for (int i = 0; i < width; ++i) {
+            offset = (offset << 8) | (buffer[offsetPtr++] & 0xFF);
+        }
+        return labels + count + (count * width) + offset;
+    }
+
+    private int _skipEntry(int ptr)
+    {
+        final byte[] buffer = _byteArray;
+        int type = (buffer[ptr] >> 6) & 0x03;
+        if (type == TrieConstants.TYPE_LEAF_SIMPLE) {
+            return VInt.skipUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, buffer, ptr);
+        }
+        if (type == TrieConstants.TYPE_LEAF_WITH_SUFFIX) {
+            ptr = VInt.skipUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, buffer, ptr);
+            long lengthAndPtr = _readLength(8, ptr);
+            return (int) lengthAndPtr + (int) (lengthAndPtr >>> 32);
+        }
+        if (type == TrieConstants.TYPE_BRANCH_SIMPLE) {
+            return _skipContent(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr);
+        }
+        ptr = VInt.skipUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, buffer, ptr);
+        return _skipContent(8, ptr);
+    }
+
+    /**
+     * Helper method for skipping a length indicator and the content it
+     * covers (including actual length indicator of indexed content).
+     */
+    private int _skipContent(int bitsForFirstByte, int ptr)
+    {
+        long lengthAndPtr = _readLength(bitsForFirstByte, ptr);
+        int length = (int) (lengthAndPtr >>> 32);
+        if (length == 0) { // indexed branch: actual length follows
+            lengthAndPtr = _readLength(8, (int) lengthAndPtr);
+            length = (int) (lengthAndPtr >>> 32);
+        }
+        return (int) lengthAndPtr + length;
+    }
+
+    /**
+     * Helper method for decoding a (content or suffix) length indicator,
+     * without having to use a holder for the result.
+     *
+     * @return Decoded length in upper 32 bits, and offset of the first
+     *   byte following the length indicator in lower 32 bits
+     */
+    private long _readLength(int bitsForFirstByte, int ptr)
+    {
+        final byte[] buffer = _byteArray;
+        int marker = 1 << (bitsForFirstByte - 1);
+        int value = buffer[ptr++] & ((marker << 1) - 1);
+        if ((value & marker) != 0) {
+            return ((long) (value ^ marker) << 32) | ptr;
+        }
+        while (true) {
+            int b = buffer[ptr++];
+            value = (value << 7) | (b & 0x7F);
+            if (b < 0) {
+                return ((long) value << 32) | ptr;
+            }
+        }
+    }
+
+    /**
+     * Helper method for decoding value of a node found by {@link #_find}.
+     */
+    private long _valueAt(int ptr)
+    {
+        final byte[] buffer = _byteArray;
+        int type = (buffer[ptr] >> 6) & 0x03;
+        int bits = (type >= TrieConstants.TYPE_BRANCH_SIMPLE) ? TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES
+                : TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES;
+        int marker = 1 << (bits - 1);
+        long value = buffer[ptr] & ((marker << 1) - 1);
+        if ((value & marker) != 0) {
+            return value ^ marker;
+        }
+        while (true) {
+            int b = buffer[++ptr];
+            value = (value << 7) | (b & 0x7F);
+            if (b < 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.ning.tr13.impl.vint;
+
+import com.ning.tr13.KeyValueSource;
+
+/**
+ * {@link KeyValueSource} for building tries with <code>long</code> keys
+ * (to be used with {@link LongKeyTrieLookup}) from arrays of keys and
+ * values. Keys are encoded as 8-byte big-endian sequences (see
+ * {@link #keyBytes}); since builders require keys in ascending byte order,
+ * keys must be sorted as unsigned values, that is, negative keys (if any)
+ * after all non-negative ones; and must not have duplicates.
+ */
+public class LongKeyValueSource
+    extends KeyValueSource<Long>
+{
+    protected final long[] _keys;
+
+    protected final long[] _values;
+
+    protected int _index;
+
+    public LongKeyValueSource(long[] keys, long[] values)
+    {
+        if (keys.length != values.length) {
+            throw new IllegalArgumentException("Different number of keys ("+keys.length
+                    +") and values ("+values.length+")");
+        }
+        _keys = keys;
+        _values = values;
+    }
+
+    /**
+     * Helper method for encoding given key the way it is stored in tries.
+     */
+    public static byte[] keyBytes(long key)
+    {
+        byte[] result = new byte[LongKeyTrieLookup.KEY_LENGTH];
+        for (int i = result.length; --i >= 0; ) {
+            result[i] = (byte) key;
+            key >>>= 8;
+        }
+        return result;
+    }
+
+    @Override
+    public void readAll(ValueCallback<Long> handler)
+    {
+        for (_index = 0; _index < _keys.length; ++_index) {
+            long key = _keys[_index];
+            // builders do not verify ordering, so need to do it here (as unsigned)
+            if (_index > 0 && (key ^ Long.MIN_VALUE) <= (_keys[_index-1] ^ Long.MIN_VALUE)) {
+                throw new IllegalArgumentException("Malformed input, entry #"+getLineNumber()
+                        +": key "+key+" not properly ordered");
+            }
+            handler.handleEntry(keyBytes(key), _values[_index]);
+        }
+    }
+
+    /**
+     * Since entries do not come from a file, "line number" is the index
+     * of the current entry (1-based).
+     */
+    @Override
+    public int getLineNumber() {
+        return _index+1;
+    }
+}
@@ -6,11 +6,26 @@ import com.ning.tr13.KeyValueSource;
 import com.ning.tr13.build.ClosedTrieNodeFactory;
 import com.ning.tr13.build.OpenTrieNode;
 import com.ning.tr13.build.SimpleTrieBuilder;
+import com.ning.tr13.build.TrieNode;
+import com.ning.tr13.lookup.TrieHeader;
+import com.ning.tr13.reverse.ReverseIndex;
 
 public class SimpleVIntTrieBuilder
     extends SimpleTrieBuilder<Long>
 {
     private final static VIntNodeFactory nodeFactory = new VIntNodeFactory();
+
+    /**
+     * Whether a reverse index (from values to keys) is to be written
+     * after trie payload; false by default.
+     */
+    protected boolean _reverseIndex;
+
+    /**
+     * Values of entries added during build, indexed by entry ordinal;
+     * only collected if reverse index is enabled
+     */
+    protected long[] _values;
     
     public SimpleVIntTrieBuilder(KeyValueSource<Long> r) {
         this(r, false);
@@ -20,10 +35,65 @@ public class SimpleVIntTrieBuilder
         super(r, diagnostics);
     }
 
+    /**
+     * Method for enabling writing of a reverse index, that maps values to
+     * keys of entries that have them (see {@link ReverseIndex}), after trie
+     * payload (only done if header is written as well). Since keys are
+     * reconstructed using subtree counts, enabling reverse index also
+     * forces subtree counts to be written.
+     */
+    public SimpleVIntTrieBuilder setReverseIndex(boolean b) {
+        _reverseIndex = b;
+        return this;
+    }
+
     @Override
     public ClosedTrieNodeFactory<Long> closedTrieNodeFactory() {
+        final boolean counts = _subtreeCounts || _reverseIndex;
+        if (indexedBranchMinChildren() > 0 || counts) {
+            return new VIntNodeFactory(indexedBranchMinChildren(), counts);
+        }
         return nodeFactory;
     }
+
+    @Override
+    protected int formatFlags()
+    {
+        int flags = super.formatFlags();
+        if (_reverseIndex) {
+            flags |= TrieHeader.FLAG_SUBTREE_COUNTS | TrieHeader.FLAG_REVERSE_INDEX;
+        }
+        return flags;
+    }
+
+    @Override
+    public TrieNode<Long> build() throws IOException
+    {
+        _values = _reverseIndex ? new long[1024] : null;
+        return super.build();
+    }
+
+    @Override
+    protected void entryAdded(byte[] key, Long value, int ordinal)
+    {
+        if (_values != null) {
+            if (ordinal == _values.length) {
+                long[] old = _values;
+                _values = new long[ordinal + (ordinal >> 1)];
+                System.arraycopy(old, 0, _values, 0, ordinal);
+            }
+            _values[ordinal] = value.longValue();
+        }
+    }
+
+    @Override
+    protected void writeExtraSections(OutputStream out, byte[] tmpBuffer)
+        throws IOException
+    {
+        if (_values != null) {
+            writeSection(out, tmpBuffer, ReverseIndex.build(_values, _linesRead));
+        }
+    }
     
     @Override
     protected OpenTrieNode<Long> constructOpenNode(byte b, Long value) {
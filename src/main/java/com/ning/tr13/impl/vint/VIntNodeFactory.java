@@ -10,14 +10,34 @@ import com.ning.tr13.util.VInt;
 public class VIntNodeFactory
     extends ClosedTrieNodeFactory<Long>
 {
+    public VIntNodeFactory() {
+        super();
+    }
+
+    /**
+     * @param indexedBranchMinChildren Minimum number of children a branch
+     *   must have to be written using indexed encoding; 0 to never use it
+     */
+    public VIntNodeFactory(int indexedBranchMinChildren) {
+        super(indexedBranchMinChildren);
+    }
+
+    /**
+     * @param subtreeCounts Whether branches are to include number of entries
+     *   in their subtree
+     */
+    public VIntNodeFactory(int indexedBranchMinChildren, boolean subtreeCounts) {
+        super(indexedBranchMinChildren, subtreeCounts);
+    }
+
     @Override
     public ClosedTrieNode<Long> serialized(ClosedTrieNode<Long> node) {
-        return new SerializedNode<Long>(node.nextByte(), node.serialize());
+        return new SerializedNode<Long>(node.nextByte(), node.serialize(), node.entryCount());
     }
 
     @Override
     public ClosedTrieNode<Long> simpleBranch(byte b, ClosedTrieNode<Long>[] kids) {
-        return new SimpleBranch<Long>(b, kids);
+        return new SimpleBranch<Long>(b, kids, useIndexedBranch(kids), useSubtreeCounts());
     }
 
     @Override
@@ -43,7 +63,8 @@ public class VIntNodeFactory
 
     @Override
     public ClosedTrieNode<Long> valueBranch(byte b, ClosedTrieNode<Long>[] kids, Long value) {
-        return new BranchWithValue(b, kids, value.longValue());
+        return new BranchWithValue(b, kids, value.longValue(), useIndexedBranch(kids),
+                useSubtreeCounts());
     }
 
     /*
@@ -144,9 +165,10 @@ public class VIntNodeFactory
     {
         protected final long _value;
         
-        protected BranchWithValue(byte b, ClosedTrieNode<Long>[] kids, long value)
+        protected BranchWithValue(byte b, ClosedTrieNode<Long>[] kids, long value, boolean indexed,
+                boolean counted)
         {
-            super(b, kids);
+            super(b, kids, indexed, counted);
             _value = value;
         }
     
@@ -156,11 +178,14 @@ public class VIntNodeFactory
             // note: slightly different from super, since we start with value!
             long len = lengthOfContent();
             return len + VInt.lengthForUnsigned(_value, FIRST_BYTE_BITS_FOR_BRANCHES)
-                + VInt.lengthForUnsigned(len, 8);
+                + VInt.lengthForUnsigned(contentLengthIndicator(len), 8);
         }
         
         @Override
         public int typeBits() { return TYPE_BRANCH_WITH_VALUE; }
+
+        @Override
+        public long entryCount() { return _childEntryCount + 1L; }
     
         @Override
         public byte[] serialize()
@@ -168,13 +193,13 @@ public class VIntNodeFactory
             long contentLen = lengthOfContent();
             long totalLen = contentLen
                     + VInt.lengthForUnsigned(_value, FIRST_BYTE_BITS_FOR_BRANCHES)
-                    + VInt.lengthForUnsigned(contentLen, 8);
+                    + VInt.lengthForUnsigned(contentLengthIndicator(contentLen), 8);
             byte[] result = new byte[(int) totalLen];
             // First: serialize value for this node:
             int offset = VInt.unsignedToBytes(_value, FIRST_BYTE_BITS_FOR_BRANCHES, result, 0);
             _addTypeBits(result, 0);
             // then length of content (children)
-            offset = VInt.unsignedToBytes(contentLen, 8, result, offset);
+            offset = VInt.unsignedToBytes(contentLengthIndicator(contentLen), 8, result, offset);
             // and then contents
             offset = serializeChildren(result, offset);
             return result;
@@ -189,7 +214,7 @@ public class VIntNodeFactory
             _addTypeBits(result, origOffset);
             // Then length indicator
             long contentLen = lengthOfContent();
-            offset = VInt.unsignedToBytes(contentLen, 8, result, offset);
+            offset = VInt.unsignedToBytes(contentLengthIndicator(contentLen), 8, result, offset);
             // and then contents
             offset = serializeChildren(result, offset);
             if ((origOffset + length()) != offset) throw new IllegalStateException("Internal error: ValueBranch expected length wrong");
@@ -205,13 +230,10 @@ public class VIntNodeFactory
             out.write(tmpBuf, 0, len);
             // then length indicator for contents
             long contentLen = lengthOfContent();
-            int ptr = VInt.unsignedToBytes(contentLen, 8, tmpBuf, 0);
+            int ptr = VInt.unsignedToBytes(contentLengthIndicator(contentLen), 8, tmpBuf, 0);
             out.write(tmpBuf, 0, ptr);
             // then children
-            for (ClosedTrieNode<Long> n : _children) {
-                out.write(n.nextByte());
-                n.serializeTo(out, tmpBuf);
-            }
+            serializeChildrenTo(out, tmpBuf);
         }
     }
 
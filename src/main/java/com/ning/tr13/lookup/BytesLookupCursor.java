@@ -0,0 +1,67 @@
+package com.ning.tr13.lookup;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable lookup object for byte[]-valued tries: contains all traversal
+ * state needed for lookups, so that lookups done through it need not
+ * allocate anything; value of the last successful lookup can be
+ * copied into a caller-provided buffer.
+ * Instances are NOT thread-safe; the intent is that
+ * each thread constructs (and retains) its own cursor by calling
+ * {@link BytesTrieLookup#newCursor}.
+ * 
+ * @author tatu
+ */
+public abstract class BytesLookupCursor
+{
+    protected BytesLookupCursor() { }
+
+    /**
+     * Method for finding entry with given key, if one exists.
+     * 
+     * @return Length of the value of the entry found, if any; -1 if no
+     *   entry with given key exists
+     */
+    public abstract int lookup(byte[] key);
+
+    /**
+     * Method similar to {@link #lookup(byte[])}, but for keys
+     * contained in a section of given byte array.
+     */
+    public abstract int lookup(byte[] key, int offset, int length);
+
+    /**
+     * Method similar to {@link #lookup(byte[])}, but for String keys;
+     * keys are encoded as UTF-8 during lookup, without allocating anything.
+     */
+    public abstract int lookup(CharSequence key);
+
+    /**
+     * Length of the value of entry found by the last successful call to
+     * {@link #lookup}; -1 if last lookup failed (or none made yet)
+     */
+    public abstract int valueLength();
+
+    /**
+     * Method for copying value of entry found by the last successful call to
+     * {@link #lookup} into given buffer, at given offset. Caller has to ensure
+     * buffer has enough room (as indicated by {@link #valueLength}).
+     * 
+     * @return Offset in buffer after the copied value
+     */
+    public abstract int copyValue(byte[] buffer, int offset);
+
+    /**
+     * Method for accessing value of entry found by the last successful call to
+     * {@link #lookup} as a read-only view over trie data, without copying it.
+     */
+    public abstract ByteBuffer valueAsBuffer();
+
+    /**
+     * Offset of the value of entry found by the last successful call to
+     * {@link #lookup}, within trie data (as accessible using
+     * {@link BytesTrieLookup#getPayload}).
+     */
+    public abstract long valueOffset();
+}
@@ -1,5 +1,7 @@
 package com.ning.tr13.lookup;
 
+import java.nio.ByteBuffer;
+
 import com.ning.tr13.*;
 
 /**
@@ -15,4 +17,192 @@ public abstract class BytesTrieLookup
 
     @Override
     public abstract byte[] findValue(byte[] key);
+
+    @Override
+    public abstract byte[] findValue(byte[] key, int offset, int length);
+
+    @Override
+    public abstract byte[] findValue(CharSequence key);
+
+    /*
+    /********************************************************** 
+    /* Type-specific extension for more optimal access
+    /********************************************************** 
+     */
+
+    /**
+     * Factory method for constructing a reusable lookup cursor, which
+     * allows doing lookups (and copying of values into caller-provided
+     * buffers) without allocating any temporary objects.
+     * Cursors are not thread-safe, so each thread needs to use its own
+     * instance.
+     */
+    public abstract BytesLookupCursor newCursor();
+
+    /**
+     * Method for finding value for given key, and returning it as a
+     * read-only view over trie data: value is not copied, which makes
+     * this method more efficient than {@link #findValue} for big values.
+     *
+     * @return Read-only buffer that contains the value, if key was found;
+     *   null if not
+     */
+    public abstract ByteBuffer findValueAsBuffer(byte[] key);
+
+    /**
+     * Method for finding value for given key, and copying it into
+     * given buffer. Caller has to ensure buffer has enough room.
+     *
+     * @return Length of the value copied, if key was found; -1 if not
+     */
+    public int findValueInto(byte[] key, byte[] buffer, int offset)
+    {
+        BytesLookupCursor cursor = newCursor();
+        int len = cursor.lookup(key);
+        if (len >= 0) {
+            cursor.copyValue(buffer, offset);
+        }
+        return len;
+    }
+
+    /**
+     * Accessor for raw trie data; can be used to access values by
+     * offset (see {@link BytesLookupCursor#valueOffset} and
+     * {@link TrieCursor#getValueOffset}).
+     */
+    public abstract TriePayload getPayload();
+
+    /**
+     * Method for constructing a lookup instance that shares trie data with
+     * this instance, but uses a {@link RootIndex} for skipping the top
+     * levels of the trie during lookups.
+     *
+     * @param maxIndexBytes Maximum amount of memory to use for the index:
+     *   at least {@link RootIndex#ONE_LEVEL_BYTES} is needed to index the
+     *   first key byte, and {@link RootIndex#TWO_LEVEL_BYTES} for the first
+     *   two; with less, no index is used
+     */
+    public abstract BytesTrieLookup withRootIndex(int maxIndexBytes);
+
+    /**
+     * Method for finding values for a batch of keys. Implementations
+     * may process keys in different order than given (for example, sort
+     * them to reuse traversal state for common key prefixes), but results
+     * are stored in the same order as keys.
+     *<p>
+     * Default implementation simply looks up keys one at a time.
+     * 
+     * @param keys Keys to look up
+     * @param results Array into which values are stored; value at index i
+     *    is the value for key at index i, or null if no such key was found
+     */
+    public void findValues(byte[][] keys, byte[][] results)
+    {
+        for (int i = 0, len = keys.length; i < len; ++i) {
+            results[i] = findValue(keys[i]);
+        }
+    }
+
+    /*
+    /**********************************************************
+    /* Ordered lookups
+    /**********************************************************
+     */
+
+    /**
+     * Method for finding the entry with the biggest key that is less than
+     * or equal to given key (using unsigned lexicographic ordering).
+     *
+     * @return Matching entry, if any; null if none
+     */
+    public TrieEntry<byte[]> floorEntry(byte[] key) {
+        return _entry(key, false, true);
+    }
+
+    /**
+     * Method for finding the entry with the smallest key that is greater
+     * than or equal to given key.
+     *
+     * @return Matching entry, if any; null if none
+     */
+    public TrieEntry<byte[]> ceilingEntry(byte[] key) {
+        return _entry(key, true, true);
+    }
+
+    /**
+     * Method for finding the entry with the smallest key that is greater
+     * than given key.
+     *
+     * @return Matching entry, if any; null if none
+     */
+    public TrieEntry<byte[]> higherEntry(byte[] key) {
+        return _entry(key, true, false);
+    }
+
+    /**
+     * Method for finding the entry with the biggest key that is less than
+     * given key.
+     *
+     * @return Matching entry, if any; null if none
+     */
+    public TrieEntry<byte[]> lowerEntry(byte[] key) {
+        return _entry(key, false, false);
+    }
+
+    protected TrieEntry<byte[]> _entry(byte[] key, boolean ceiling, boolean inclusive)
+    {
+        TrieCursor c = cursor();
+        boolean found = ceiling ? c.seekCeiling(key, inclusive) : c.seekFloor(key, inclusive);
+        if (!found) {
+            return null;
+        }
+        return new TrieEntry<byte[]>(c.getKey(), c.getBytesValue());
+    }
+
+    /*
+    /**********************************************************
+    /* Counting, positional access
+    /**********************************************************
+     */
+
+    /**
+     * Method for counting entries that have given key prefix (including
+     * entry with key equal to prefix, if any). Requires trie to have been
+     * built with subtree counts (see
+     * {@link com.ning.tr13.build.SimpleTrieBuilder#setSubtreeCounts}).
+     *
+     * @throws IllegalStateException If trie does not have subtree counts
+     */
+    public long countPrefix(byte[] prefix) {
+        return cursor().countPrefix(prefix);
+    }
+
+    /**
+     * Method for finding number of entries with keys less than given key
+     * (whether trie contains the key or not). Requires trie to have been
+     * built with subtree counts.
+     *
+     * @throws IllegalStateException If trie does not have subtree counts
+     */
+    public long rank(byte[] key) {
+        return cursor().rank(key);
+    }
+
+    /**
+     * Method for finding entry at given position in key order (first entry
+     * having index 0). Requires trie to have been built with subtree counts.
+     *
+     * @return Entry at given position; null if index is negative, or not
+     *   less than number of entries
+     *
+     * @throws IllegalStateException If trie does not have subtree counts
+     */
+    public TrieEntry<byte[]> select(long index)
+    {
+        TrieCursor c = cursor();
+        if (!c.seekIndex(index)) {
+            return null;
+        }
+        return new TrieEntry<byte[]>(c.getKey(), c.getBytesValue());
+    }
 }
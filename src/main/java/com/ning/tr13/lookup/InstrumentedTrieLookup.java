@@ -0,0 +1,451 @@
+package com.ning.tr13.lookup;
+
+import com.ning.tr13.TrieConstants;
+import com.ning.tr13.TrieLookup;
+import com.ning.tr13.util.UTF8Codec;
+
+/**
+ * {@link TrieLookup} wrapper that records, for each single-key lookup,
+ * how much work traversal needs: number of nodes visited, number of
+ * sibling entries skipped over (in branches that are not indexed),
+ * number of VInt bytes decoded and number of payload bytes (and
+ * cache lines) touched. Each traced lookup is reported as a {@link Trace}
+ * to a {@link Listener}; {@link TraversalHistograms} is a listener that
+ * aggregates traces into histograms, but listeners can also be used
+ * for reporting traces to other metrics systems, or for grouping
+ * them by key families.
+ *<p>
+ * Instrumentation is opt-in: lookup implementations themselves have no
+ * counters, so there is no overhead unless this wrapper is used (or if
+ * its listener is set to null). Counts come from a separate traversal
+ * over the payload, which follows the same steps as lookups do
+ * (linear scan for basic branches, binary search for indexed ones);
+ * results themselves come from the wrapped trie, so traced lookups
+ * cost about twice as much as regular ones. Root index
+ * (see {@link VIntTrieLookup#withRootIndex}) is not taken into account.
+ *<p>
+ * Payload is accessed using cursor of the wrapped trie, at construction;
+ * so for a {@link SwappableTrieLookup} each version needs to be
+ * wrapped separately.
+ *
+ * @author tatu
+ */
+public class InstrumentedTrieLookup<V>
+    extends TrieLookup<V>
+{
+    /**
+     * Interface for objects that get notified of traced lookups
+     */
+    public interface Listener
+    {
+        /**
+         * Method called after each traced lookup, from the thread that
+         * did the lookup; so implementations need to be thread-safe.
+         * Trace instance is not reused by caller.
+         */
+        public void traced(byte[] key, int offset, int length, Trace trace);
+    }
+
+    protected final TrieLookup<V> _trie;
+
+    protected final TriePayload _payload;
+
+    protected final boolean _bytesValued;
+
+    protected final boolean _subtreeCounts;
+
+    protected volatile Listener _listener;
+
+    public InstrumentedTrieLookup(TrieLookup<V> trie, Listener listener)
+    {
+        _trie = trie;
+        TrieCursor cursor = trie.cursor();
+        _payload = cursor.getPayload();
+        _bytesValued = cursor.isBytesValued();
+        _subtreeCounts = cursor.hasSubtreeCounts();
+        _listener = listener;
+    }
+
+    public TrieLookup<V> getTrie() { return _trie; }
+
+    public Listener getListener() { return _listener; }
+
+    /**
+     * Method for changing listener to report traces to; if null,
+     * tracing is disabled, and lookups simply delegate to the wrapped trie.
+     */
+    public void setListener(Listener listener) {
+        _listener = listener;
+    }
+
+    /*
+    /**********************************************************
+    /* TrieLookup impl
+    /**********************************************************
+     */
+
+    @Override
+    public V findValue(byte[] key)
+    {
+        _trace(key, 0, key.length);
+        return _trie.findValue(key);
+    }
+
+    @Override
+    public V findValue(byte[] key, int offset, int length)
+    {
+        _trace(key, offset, length);
+        return _trie.findValue(key, offset, length);
+    }
+
+    @Override
+    public V findValue(CharSequence key)
+    {
+        if (_listener != null) {
+            byte[] raw = UTF8Codec.encodeAsUTF8(key.toString());
+            _trace(raw, 0, raw.length);
+        }
+        return _trie.findValue(key);
+    }
+
+    @Override
+    public boolean containsKey(byte[] key)
+    {
+        _trace(key, 0, key.length);
+        return _trie.containsKey(key);
+    }
+
+    /**
+     * Prefix matches are not traced, just delegated
+     */
+    @Override
+    public PrefixMatch<V> findLongestPrefix(byte[] key) {
+        return _trie.findLongestPrefix(key);
+    }
+
+    @Override
+    public TrieCursor cursor(byte[] prefix) {
+        return _trie.cursor(prefix);
+    }
+
+    @Override
+    public void release() {
+        _trie.release();
+    }
+
+    /**
+     * Method for tracing lookup of given key without reporting it
+     * to listener (or doing the actual lookup)
+     */
+    public Trace trace(byte[] key, int offset, int length)
+    {
+        Trace trace = new Trace(length);
+        trace._found = _traverse(key, offset, offset+length, trace);
+        return trace;
+    }
+
+    /*
+    /**********************************************************
+    /* Internal methods
+    /**********************************************************
+     */
+
+    protected void _trace(byte[] key, int offset, int length)
+    {
+        Listener listener = _listener;
+        if (listener != null) {
+            listener.traced(key, offset, length, trace(key, offset, length));
+        }
+    }
+
+    /**
+     * Method that traverses the trie the same way lookups do, counting
+     * work as it goes.
+     *
+     * @return True if key was found; false if not
+     */
+    protected boolean _traverse(byte[] key, int i, final int end, Trace t)
+    {
+        long ptr = 0L;
+
+        main_loop:
+        while (true) {
+            ++t._nodesVisited;
+            int type = (_byteAt(ptr, t) >> 6) & 0x03;
+            if (type == TrieConstants.TYPE_LEAF_SIMPLE) {
+                if (i == end) {
+                    _readValue(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, ptr, t);
+                    return true;
+                }
+                return false;
+            }
+            if (type == TrieConstants.TYPE_LEAF_WITH_SUFFIX) {
+                long valueEnd = _skipValue(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, ptr, t);
+                long suffixLen = _readVInt(8, valueEnd, t);
+                long p = t._holder[1];
+                if (suffixLen != (end - i)) {
+                    return false;
+                }
+                for (; i < end; ++i) {
+                    if (_byteAt(p++, t) != key[i]) {
+                        return false;
+                    }
+                }
+                _touchValue(ptr, valueEnd, t);
+                return true;
+            }
+            long contentLen;
+            if (type == TrieConstants.TYPE_BRANCH_SIMPLE) {
+                if (i == end) {
+                    return false;
+                }
+                contentLen = _readVInt(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr, t);
+                ptr = t._holder[1];
+            } else { // branch with value
+                if (i == end) {
+                    _readValue(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr, t);
+                    return true;
+                }
+                ptr = _skipValue(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr, t);
+                contentLen = _readVInt(8, ptr, t);
+                ptr = t._holder[1];
+            }
+            final byte b = key[i++];
+            if (contentLen == 0L) { // indexed
+                ptr = _findIndexedChild(ptr, b, t);
+                if (ptr < 0L) {
+                    return false;
+                }
+                continue main_loop;
+            }
+            final long branchEnd = ptr + contentLen;
+            if (_subtreeCounts) {
+                _readVInt(8, ptr, t);
+                ptr = t._holder[1];
+            }
+            do {
+                if (_byteAt(ptr++, t) == b) {
+                    continue main_loop;
+                }
+                ptr = _skipEntry(ptr, t);
+            } while (ptr < branchEnd);
+            return false;
+        }
+    }
+
+    protected long _findIndexedChild(long ptr, byte b, Trace t)
+    {
+        _readVInt(8, ptr, t);
+        ptr = t._holder[1];
+        if (_subtreeCounts) {
+            _readVInt(8, ptr, t);
+            ptr = t._holder[1];
+        }
+        final int count = (_byteAt(ptr, t) & 0xFF) + 1;
+        final int width = _byteAt(ptr+1, t);
+        final long labels = ptr+2;
+        final int label = b & 0xFF;
+        int low = 0;
+        int high = count-1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int curr = _byteAt(labels+mid, t) & 0xFF;
+            if (curr < label) {
+                low = mid+1;
+            } else if (curr > label) {
+                high = mid-1;
+            } else {
+                long offsetPtr = labels + count + (mid * width);
+                long offset = 0L;
+                for (int i = 0; i < width; ++i) {
+                    offset = (offset << 8) | (_byteAt(offsetPtr++, t) & 0xFF);
+                }
+                return labels + count + (count * width) + offset;
+            }
+        }
+        return -1L;
+    }
+
+    protected long _skipEntry(long ptr, Trace t)
+    {
+        ++t._siblingsSkipped;
+        int type = (_byteAt(ptr, t) >> 6) & 0x03;
+        if (type == TrieConstants.TYPE_LEAF_SIMPLE) {
+            return _skipValue(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, ptr, t);
+        }
+        long len;
+        if (type == TrieConstants.TYPE_LEAF_WITH_SUFFIX) {
+            ptr = _skipValue(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, ptr, t);
+            len = _readVInt(8, ptr, t);
+            return t._holder[1] + len;
+        }
+        if (type == TrieConstants.TYPE_BRANCH_SIMPLE) {
+            len = _readVInt(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr, t);
+        } else {
+            ptr = _skipValue(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr, t);
+            len = _readVInt(8, ptr, t);
+        }
+        if (len == 0L) { // indexed branch: actual length follows
+            len = _readVInt(8, t._holder[1], t);
+        }
+        return t._holder[1] + len;
+    }
+
+    /**
+     * Method for decoding value of an entry that matched
+     */
+    protected void _readValue(int bitsForFirstByte, long ptr, Trace t)
+    {
+        long len = _readVInt(bitsForFirstByte, ptr, t);
+        if (_bytesValued) {
+            _touch(t._holder[1], (int) len, t);
+        }
+    }
+
+    /**
+     * Method for skipping value of a leaf, before its suffix has been
+     * matched; value bytes themselves are not touched.
+     */
+    protected long _skipValue(int bitsForFirstByte, long ptr, Trace t)
+    {
+        long len = _readVInt(bitsForFirstByte, ptr, t);
+        if (_bytesValued) {
+            return t._holder[1] + len;
+        }
+        return t._holder[1];
+    }
+
+    /**
+     * Method called for a matching leaf, after suffix has been matched,
+     * to account for accessing the value that was skipped earlier.
+     */
+    protected void _touchValue(long ptr, long valueEnd, Trace t)
+    {
+        if (_bytesValued) {
+            long[] holder = t._holder;
+            long start = _payload.readUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, ptr, holder);
+            _touch(start, (int) (valueEnd - start), t);
+        }
+    }
+
+    /**
+     * Method for decoding a VInt: value is returned, and offset after
+     * the VInt stored as the second entry of holder of the trace.
+     */
+    protected long _readVInt(int bitsForFirstByte, long ptr, Trace t)
+    {
+        long[] holder = t._holder;
+        long next = _payload.readUnsigned(bitsForFirstByte, ptr, holder);
+        holder[1] = next;
+        int len = (int) (next - ptr);
+        t._vintBytes += len;
+        _touch(ptr, len, t);
+        return holder[0];
+    }
+
+    protected byte _byteAt(long ptr, Trace t)
+    {
+        _touch(ptr, 1, t);
+        return _payload.byteAt(ptr);
+    }
+
+    protected void _touch(long ptr, int length, Trace t)
+    {
+        if (length <= 0) {
+            return;
+        }
+        t._bytesTouched += length;
+        // traversal mostly moves forward, so it is enough to compare
+        // against the furthest line touched so far
+        long first = ptr >> Trace.CACHE_LINE_BITS;
+        long last = (ptr + length - 1) >> Trace.CACHE_LINE_BITS;
+        if (last > t._lastLine) {
+            t._cacheLines += (int) (last - Math.max(first - 1, t._lastLine));
+            t._lastLine = last;
+        }
+    }
+
+    /*
+    /**********************************************************
+    /* Helper classes
+    /**********************************************************
+     */
+
+    /**
+     * Counts collected for a single lookup
+     */
+    public final static class Trace
+    {
+        /**
+         * Cache lines are assumed to be 64 bytes long
+         */
+        public final static int CACHE_LINE_BITS = 6;
+
+        protected final int _keyLength;
+
+        protected boolean _found;
+
+        protected int _nodesVisited;
+
+        protected int _siblingsSkipped;
+
+        protected int _vintBytes;
+
+        protected int _bytesTouched;
+
+        protected int _cacheLines;
+
+        protected long _lastLine = -1L;
+
+        /**
+         * Decoded VInt value, and offset following it
+         */
+        protected final long[] _holder = new long[2];
+
+        protected Trace(int keyLength) {
+            _keyLength = keyLength;
+        }
+
+        public int getKeyLength() { return _keyLength; }
+
+        /**
+         * @return True if trie had an entry for the key
+         */
+        public boolean isFound() { return _found; }
+
+        /**
+         * @return Number of nodes traversal entered (including leaf, and
+         *   the root)
+         */
+        public int getNodesVisited() { return _nodesVisited; }
+
+        /**
+         * @return Number of entries of basic (non-indexed) branches that
+         *   had to be skipped over to find the child to follow
+         */
+        public int getSiblingsSkipped() { return _siblingsSkipped; }
+
+        /**
+         * @return Number of bytes of VInts (node headers, lengths, values)
+         *   decoded
+         */
+        public int getVIntBytes() { return _vintBytes; }
+
+        /**
+         * @return Number of bytes of payload read (including VInt bytes)
+         */
+        public int getBytesTouched() { return _bytesTouched; }
+
+        /**
+         * @return Number of distinct (64-byte) cache lines of payload read
+         */
+        public int getCacheLines() { return _cacheLines; }
+
+        @Override
+        public String toString() {
+            return "[key length "+_keyLength+(_found ? ", found" : ", not found")
+                +"; nodes "+_nodesVisited+", skipped "+_siblingsSkipped
+                +", vint bytes "+_vintBytes+", bytes "+_bytesTouched+", cache lines "+_cacheLines+"]";
+        }
+    }
+}
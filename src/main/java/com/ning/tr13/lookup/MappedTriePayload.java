@@ -0,0 +1,157 @@
+package com.ning.tr13.lookup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.ning.tr13.util.ByteMatcher;
+
+/**
+ * {@link TriePayload} implementation that accesses trie data from a
+ * memory-mapped file. Since a single {@link MappedByteBuffer} can only
+ * cover up to 2 gigabytes, file is mapped as multiple fixed-size segments,
+ * which allows payloads of any size.
+ *<p>
+ * Note that JDK offers no way to explicitly unmap buffers: mappings are
+ * released when instances are garbage collected.
+ *
+ * @author tatu
+ */
+public class MappedTriePayload extends TriePayload
+{
+    /**
+     * By default segments are 1 gigabyte in size
+     */
+    public final static int DEFAULT_SEGMENT_BITS = 30;
+
+    protected final ByteBuffer[] _segments;
+
+    protected final int _segmentBits;
+
+    protected final int _segmentMask;
+
+    protected final long _length;
+
+    protected MappedTriePayload(ByteBuffer[] segments, int segmentBits, long length)
+    {
+        _segments = segments;
+        _segmentBits = segmentBits;
+        _segmentMask = (1 << segmentBits) - 1;
+        _length = length;
+    }
+
+    /**
+     * Factory method for mapping given section of a file, using default
+     * segment size.
+     */
+    public static MappedTriePayload map(FileChannel channel, long offset, long length)
+        throws IOException
+    {
+        return map(channel, offset, length, DEFAULT_SEGMENT_BITS);
+    }
+
+    /**
+     * Factory method for mapping given section of a file, using segments
+     * of size <code>2^segmentBits</code> bytes.
+     */
+    public static MappedTriePayload map(FileChannel channel, long offset, long length,
+            int segmentBits)
+        throws IOException
+    {
+        if (segmentBits < 1 || segmentBits > 30) {
+            throw new IllegalArgumentException("Invalid segmentBits ("+segmentBits+"): must be [1, 30]");
+        }
+        if (offset + length > channel.size()) {
+            throw new IOException("File too short: need "+(offset+length)+" bytes, has "+channel.size());
+        }
+        final long segmentSize = 1L << segmentBits;
+        int count = (int) ((length + segmentSize - 1) >> segmentBits);
+        ByteBuffer[] segments = new ByteBuffer[count];
+        for (int i = 0; i < count; ++i) {
+            long start = i * segmentSize;
+            long len = Math.min(segmentSize, length - start);
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start, len);
+        }
+        return new MappedTriePayload(segments, segmentBits, length);
+    }
+
+    /**
+     * Method that can be called to ask OS to load mapped contents in
+     * physical memory, to avoid page faults during lookups.
+     */
+    public void load()
+    {
+        for (ByteBuffer bb : _segments) {
+            ((MappedByteBuffer) bb).load();
+        }
+    }
+
+    public int getSegmentCount() { return _segments.length; }
+
+    /*
+    /**********************************************************
+    /* TriePayload impl
+    /**********************************************************
+     */
+
+    @Override
+    public long length() { return _length; }
+
+    @Override
+    public byte byteAt(long offset) {
+        return _segments[(int) (offset >>> _segmentBits)].get((int) offset & _segmentMask);
+    }
+
+    @Override
+    public ByteBuffer slice(long offset, int length)
+    {
+        if (length == 0) { // may be at the very end; no need to access segments
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        }
+        int index = (int) (offset >>> _segmentBits);
+        int ptr = (int) offset & _segmentMask;
+        ByteBuffer segment = _segments[index];
+        if (ptr + length <= segment.limit()) {
+            return slice(segment, ptr, length);
+        }
+        // crosses segment boundary: need to copy
+        byte[] result = new byte[length];
+        getBytes(offset, result, 0, length);
+        return ByteBuffer.wrap(result).asReadOnlyBuffer();
+    }
+
+    @Override
+    public int indexOfLabel(long offset, int length, byte b)
+    {
+        ByteBuffer segment = _segments[(int) (offset >>> _segmentBits)];
+        int ptr = (int) offset & _segmentMask;
+        if (ptr + length <= segment.limit()) {
+            return ByteMatcher.indexOf(segment, ptr, length, b);
+        }
+        // crosses segment boundary (rare): fall back to byte-by-byte search
+        return super.indexOfLabel(offset, length, b);
+    }
+
+    @Override
+    public void getBytes(long offset, byte[] buffer, int bufferOffset, int length)
+    {
+        while (length > 0) {
+            ByteBuffer segment = _segments[(int) (offset >>> _segmentBits)];
+            int ptr = (int) offset & _segmentMask;
+            int count = Math.min(length, segment.limit() - ptr);
+            if (count < BULK_COPY_THRESHOLD) {
+                for (int end = ptr + count; ptr < end; ) {
+                    buffer[bufferOffset++] = segment.get(ptr++);
+                }
+            } else {
+                ByteBuffer bb = segment.duplicate();
+                bb.position(ptr);
+                bb.get(buffer, bufferOffset, count);
+                bufferOffset += count;
+            }
+            offset += count;
+            length -= count;
+        }
+    }
+}
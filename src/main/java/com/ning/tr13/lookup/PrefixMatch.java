@@ -0,0 +1,36 @@
+package com.ning.tr13.lookup;
+
+/**
+ * Result of a longest-prefix-match lookup: value of the entry with the
+ * longest key that is a prefix of the key looked up, and length of
+ * that matching key.
+ *
+ * @param <V> Value type of the trie
+ *
+ * @author tatu
+ */
+public class PrefixMatch<V>
+{
+    protected final V _value;
+
+    protected final int _matchLength;
+
+    public PrefixMatch(V value, int matchLength)
+    {
+        _value = value;
+        _matchLength = matchLength;
+    }
+
+    public V getValue() { return _value; }
+
+    /**
+     * @return Length of the key of the matching entry; that is, number of
+     *   leading bytes of key looked up that matched
+     */
+    public int getMatchLength() { return _matchLength; }
+
+    @Override
+    public String toString() {
+        return "[PrefixMatch: length="+_matchLength+", value="+_value+"]";
+    }
+}
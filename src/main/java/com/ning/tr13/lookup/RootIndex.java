@@ -0,0 +1,189 @@
+package com.ning.tr13.lookup;
+
+import java.util.Arrays;
+
+import com.ning.tr13.TrieConstants;
+
+/**
+ * Lookup acceleration table built when a trie is loaded: maps the first
+ * one or two bytes of a key directly to the offset of the node that
+ * lookup would reach after matching those bytes, so that lookups can
+ * skip linear scanning of the topmost (and widest) branches.
+ *<p>
+ * Table has 256 entries (for one level) or 65536 entries (for two levels),
+ * 4 bytes each; the number of levels indexed is determined by the amount
+ * of memory caller is willing to spend.
+ *
+ * @author tatu
+ */
+public final class RootIndex
+{
+    /**
+     * Return value of {@link #find} for keys that can not be found in
+     * the trie.
+     */
+    public final static int NO_MATCH = -1;
+
+    /**
+     * Amount of memory needed to index the first level
+     */
+    public final static int ONE_LEVEL_BYTES = 256 * 4;
+
+    /**
+     * Amount of memory needed to index the first two levels
+     */
+    public final static int TWO_LEVEL_BYTES = 65536 * 4;
+
+    /**
+     * Entry for prefixes that the table can not resolve (like ones that
+     * lead to a leaf with suffix): lookup has to start from the root.
+     */
+    private final static int FROM_ROOT = 0;
+
+    private final int[] _table;
+
+    private final int _levels;
+
+    private RootIndex(int[] table, int levels)
+    {
+        _table = table;
+        _levels = levels;
+    }
+
+    /**
+     * Factory method for building index for given trie, indexing as many
+     * levels as given memory budget allows.
+     *
+     * @param bytesValued Whether trie has byte[] values (as opposed to VInts)
+     * @param maxBytes Maximum amount of memory to use for the index
+     *
+     * @return Index constructed, if budget allowed indexing at least one level,
+     *    and root of the trie is a branch; null otherwise
+     */
+    public static RootIndex build(TriePayload payload, boolean bytesValued, int maxBytes)
+    {
+        return build(payload, bytesValued, false, maxBytes);
+    }
+
+    /**
+     * @param subtreeCounts Whether branches of the trie include number of
+     *   entries in their subtree
+     */
+    public static RootIndex build(TriePayload payload, boolean bytesValued, boolean subtreeCounts,
+            int maxBytes)
+    {
+        final int levels;
+        if (maxBytes >= TWO_LEVEL_BYTES) {
+            levels = 2;
+        } else if (maxBytes >= ONE_LEVEL_BYTES) {
+            levels = 1;
+        } else {
+            return null;
+        }
+        if (payload.length() == 0L) {
+            return null;
+        }
+        // cursor has all the helper methods we need for traversal
+        TrieCursor walker = new TrieCursor(payload, bytesValued, subtreeCounts);
+        TrieCursor.Frame root = _children(walker, 0L, 0);
+        if (root == null) { // single leaf, nothing to index
+            return null;
+        }
+        int[] table = new int[1 << (levels << 3)];
+        Arrays.fill(table, NO_MATCH);
+        for (int i = 0; i < root.count; ++i) {
+            final int label = root.labels[i];
+            final long child = root.offsets[i];
+            if (levels == 1) {
+                table[label] = _entry(child);
+                continue;
+            }
+            final int base = label << 8;
+            int type = (payload.byteAt(child) >> 6) & 0x03;
+            if (type == TrieConstants.TYPE_LEAF_SIMPLE) {
+                continue; // longer keys can not match
+            }
+            if (type == TrieConstants.TYPE_LEAF_WITH_SUFFIX) {
+                Arrays.fill(table, base, base + 256, FROM_ROOT);
+                continue;
+            }
+            TrieCursor.Frame children = _children(walker, child, 1);
+            for (int j = 0; j < children.count; ++j) {
+                table[base + children.labels[j]] = _entry(children.offsets[j]);
+            }
+        }
+        return new RootIndex(table, levels);
+    }
+
+    /*
+    /**********************************************************
+    /* Public API
+    /**********************************************************
+     */
+
+    /**
+     * @return Number of key bytes indexed: 1 or 2
+     */
+    public int levels() { return _levels; }
+
+    /**
+     * @return Amount of memory used by the index table, in bytes
+     */
+    public int memoryUsage() { return _table.length << 2; }
+
+    /**
+     * Method for finding the node to start lookup for given key from.
+     *
+     * @return Offset of the node reached after matching the first
+     *   {@link #levels} bytes of the key, if positive; 0 if lookup needs to
+     *   start from the root (without skipping any key bytes); or
+     *   {@link #NO_MATCH} if no key with given prefix exists.
+     */
+    public int find(byte[] key, int offset, int length)
+    {
+        if (length < _levels) { // may end at a branch with value
+            return FROM_ROOT;
+        }
+        int ix = key[offset] & 0xFF;
+        if (_levels == 2) {
+            ix = (ix << 8) | (key[offset+1] & 0xFF);
+        }
+        return _table[ix];
+    }
+
+    /*
+    /**********************************************************
+    /* Internal methods
+    /**********************************************************
+     */
+
+    /**
+     * Helper method for enumerating children of given branch node
+     *
+     * @return Frame with labels and offsets of children; or null if
+     *   node is not a branch
+     */
+    private static TrieCursor.Frame _children(TrieCursor walker, long ptr, int depth)
+    {
+        final TriePayload payload = walker._payload;
+        int type = (payload.byteAt(ptr) >> 6) & 0x03;
+        if (type == TrieConstants.TYPE_LEAF_SIMPLE || type == TrieConstants.TYPE_LEAF_WITH_SUFFIX) {
+            return null;
+        }
+        if (type == TrieConstants.TYPE_BRANCH_SIMPLE) {
+            ptr = payload.readUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr, walker._longHolder);
+        } else {
+            ptr = walker._skipValue(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr);
+            ptr = payload.readUnsigned(8, ptr, walker._longHolder);
+        }
+        walker._frameCount = depth;
+        walker._pushBranch(ptr, walker._longHolder[0], depth);
+        return walker._frames[depth];
+    }
+
+    private static int _entry(long offset)
+    {
+        // table uses ints: nodes beyond 2 gigs are found from the root
+        return (offset > Integer.MAX_VALUE) ? FROM_ROOT : (int) offset;
+    }
+}
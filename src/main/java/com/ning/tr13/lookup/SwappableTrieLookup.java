@@ -0,0 +1,345 @@
+package com.ning.tr13.lookup;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.ning.tr13.TrieLookup;
+
+/**
+ * {@link TrieLookup} that delegates to a replaceable underlying trie,
+ * used for swapping in new versions of a trie without pausing lookups.
+ * Replaced tries are released (see {@link TrieLookup#release}) once
+ * all lookups that were using them have completed; and the current one
+ * once holder itself is released.
+ *<p>
+ * Each version of the trie has a reference count: holder itself has one
+ * reference to the current version, and each lookup (or explicit
+ * {@link #acquire}) another. Acquiring a version is a single unconditional
+ * atomic increment, and releasing it a decrement, so lookups never block
+ * or retry because of other lookups: acquisition is only retried (after
+ * undoing the increment) if the version was replaced and drained between
+ * reading it and incrementing its count, which can only happen once
+ * per concurrent swap.
+ *<p>
+ * Single-key lookup methods acquire and release the current version
+ * automatically. Cursors (and prefix matches) can be used after the call
+ * has returned, so they should be used while holding a {@link Lease},
+ * to keep the trie from being released while they are used:
+ *<pre>
+ *   SwappableTrieLookup.Lease&lt;Long&gt; lease = trie.acquire();
+ *   try {
+ *      TrieCursor c = lease.getLookup().cursor(prefix);
+ *      ...
+ *   } finally {
+ *      lease.release();
+ *   }
+ *</pre>
+ * Leases should also be used for accessing type-specific methods of
+ * the underlying trie (such as
+ * {@link VIntTrieLookup#findValues(byte[][], long[], long)}).
+ *
+ * @author tatu
+ */
+public class SwappableTrieLookup<V>
+    extends TrieLookup<V>
+{
+    /**
+     * Listener notified when a replaced trie is no longer used
+     * by any lookups, after it has been released; can be used for
+     * additional clean up (like deleting files trie was loaded from).
+     */
+    public interface ReleaseListener<V>
+    {
+        public void released(TrieLookup<V> trie);
+    }
+
+    protected final AtomicReference<Lease<V>> _current;
+
+    protected final ReleaseListener<V> _listener;
+
+    /**
+     * Number of tries swapped in so far (including initial one)
+     */
+    protected final AtomicLong _version = new AtomicLong(0L);
+
+    /**
+     * Number of tries dropped by holder (replaced ones, and current one
+     * once holder is released) not yet released
+     */
+    protected final AtomicInteger _pendingReleases = new AtomicInteger(0);
+
+    /**
+     * Flag set when holder itself has been released
+     */
+    protected final AtomicBoolean _shutDown = new AtomicBoolean(false);
+
+    public SwappableTrieLookup(TrieLookup<V> trie) {
+        this(trie, null);
+    }
+
+    /**
+     * @param listener Optional listener to notify when replaced tries
+     *   have been released; null if none
+     */
+    public SwappableTrieLookup(TrieLookup<V> trie, ReleaseListener<V> listener)
+    {
+        _listener = listener;
+        _current = new AtomicReference<Lease<V>>(new Lease<V>(this, trie, _version.incrementAndGet()));
+    }
+
+    /*
+    /**********************************************************
+    /* Public API, swapping
+    /**********************************************************
+     */
+
+    /**
+     * Method for replacing current trie with given one: lookups that
+     * start after this call use the new trie, and the old trie is
+     * released once lookups that use it have completed.
+     *
+     * @return Version number of the new trie
+     */
+    public long swap(TrieLookup<V> trie)
+    {
+        if (trie == null) {
+            throw new IllegalArgumentException("Can not swap in null trie");
+        }
+        if (_shutDown.get()) {
+            throw new IllegalStateException("Can not swap trie: holder has been released");
+        }
+        long version = _version.incrementAndGet();
+        Lease<V> old = _current.getAndSet(new Lease<V>(this, trie, version));
+        _pendingReleases.incrementAndGet();
+        // holder's own reference to the old version is dropped
+        old.release();
+        return version;
+    }
+
+    /**
+     * Method for acquiring the current trie, for doing multiple operations
+     * on it, or using cursors. Trie will not be released until
+     * {@link Lease#release} has been called.
+     */
+    public Lease<V> acquire()
+    {
+        while (true) {
+            Lease<V> lease = _current.get();
+            if (lease.tryAcquire()) {
+                return lease;
+            }
+            // fails if version was just replaced and drained (and new one is in place),
+            // or if holder was released
+            if (_current.get() == lease) {
+                throw new IllegalStateException("Can not acquire trie: holder has been released");
+            }
+        }
+    }
+
+    /**
+     * @return Current trie; note that it may get replaced and released
+     *   at any point, unless a {@link Lease} is held
+     */
+    public TrieLookup<V> getCurrent() {
+        return _current.get().getLookup();
+    }
+
+    /**
+     * @return Version number of the current trie; first trie has
+     *   version 1, and each swap increments it by one
+     */
+    public long getVersion() {
+        return _current.get().getVersion();
+    }
+
+    /**
+     * @return Number of replaced tries that are still in use by some
+     *   lookups, and have not yet been released
+     */
+    public int getPendingReleaseCount() {
+        return _pendingReleases.get();
+    }
+
+    /*
+    /**********************************************************
+    /* TrieLookup impl
+    /**********************************************************
+     */
+
+    @Override
+    public V findValue(byte[] key)
+    {
+        Lease<V> lease = acquire();
+        try {
+            return lease.getLookup().findValue(key);
+        } finally {
+            lease.release();
+        }
+    }
+
+    @Override
+    public V findValue(byte[] key, int offset, int length)
+    {
+        Lease<V> lease = acquire();
+        try {
+            return lease.getLookup().findValue(key, offset, length);
+        } finally {
+            lease.release();
+        }
+    }
+
+    @Override
+    public V findValue(CharSequence key)
+    {
+        Lease<V> lease = acquire();
+        try {
+            return lease.getLookup().findValue(key);
+        } finally {
+            lease.release();
+        }
+    }
+
+    @Override
+    public boolean containsKey(byte[] key)
+    {
+        Lease<V> lease = acquire();
+        try {
+            return lease.getLookup().containsKey(key);
+        } finally {
+            lease.release();
+        }
+    }
+
+    @Override
+    public PrefixMatch<V> findLongestPrefix(byte[] key)
+    {
+        Lease<V> lease = acquire();
+        try {
+            return lease.getLookup().findLongestPrefix(key);
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * Note: cursor is constructed for the current trie, but the trie is
+     * not kept from being released while cursor is used; use
+     * {@link #acquire} if trie may be swapped while cursor is used.
+     */
+    @Override
+    public TrieCursor cursor(byte[] prefix)
+    {
+        Lease<V> lease = acquire();
+        try {
+            return lease.getLookup().cursor(prefix);
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * Method for releasing the current trie, once holder is no longer
+     * needed: holder's reference to it is dropped, and trie is released
+     * once lookups that use it have completed. Holder can not be used
+     * after this call, and it must not be called concurrently with
+     * {@link #swap}; calls after the first one are ignored.
+     */
+    @Override
+    public void release()
+    {
+        if (!_shutDown.getAndSet(true)) {
+            _pendingReleases.incrementAndGet();
+            _current.get().release();
+        }
+    }
+
+    /*
+    /**********************************************************
+    /* Internal methods
+    /**********************************************************
+     */
+
+    protected void _released(Lease<V> lease)
+    {
+        // holder's reference is only dropped on swap or release, so pending release was counted
+        TrieLookup<V> trie = lease.getLookup();
+        trie.release();
+        if (_listener != null) {
+            _listener.released(trie);
+        }
+        _pendingReleases.decrementAndGet();
+    }
+
+    /*
+    /**********************************************************
+    /* Helper classes
+    /**********************************************************
+     */
+
+    /**
+     * Reference-counted handle to a version of the trie.
+     */
+    public final static class Lease<V>
+    {
+        private final SwappableTrieLookup<V> _owner;
+
+        private final TrieLookup<V> _lookup;
+
+        private final long _version;
+
+        /**
+         * Value of reference count once trie has been released: far enough
+         * below zero that increments of failing acquires (which are undone
+         * right away) can not bring it back to zero.
+         */
+        private final static int RETIRED = Integer.MIN_VALUE / 2;
+
+        /**
+         * Number of references: starts at 1 (reference from the owner),
+         * and once it drops to 0, is set to {@link #RETIRED}, after which
+         * lease can no longer be acquired
+         */
+        private final AtomicInteger _refs = new AtomicInteger(1);
+
+        Lease(SwappableTrieLookup<V> owner, TrieLookup<V> lookup, long version)
+        {
+            _owner = owner;
+            _lookup = lookup;
+            _version = version;
+        }
+
+        public TrieLookup<V> getLookup() { return _lookup; }
+
+        public long getVersion() { return _version; }
+
+        /**
+         * Method to call once trie is no longer used; must be called
+         * exactly once for each lease acquired.
+         */
+        public void release()
+        {
+            int refs = _refs.decrementAndGet();
+            if (refs == 0) {
+                // if this fails, lease was acquired concurrently, and will be released later
+                if (_refs.compareAndSet(0, RETIRED)) {
+                    _owner._released(this);
+                }
+            } else if (refs < 0) {
+                throw new IllegalStateException("Lease for trie version "+_version+" released too many times");
+            }
+        }
+
+        boolean tryAcquire()
+        {
+            // note: acquiring a drained but not yet retired lease (count 0) is fine,
+            // since it keeps the releasing thread from retiring it
+            if (_refs.getAndIncrement() >= 0) {
+                return true;
+            }
+            _refs.decrementAndGet();
+            return false;
+        }
+    }
+}
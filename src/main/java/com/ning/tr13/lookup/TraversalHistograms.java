@@ -0,0 +1,156 @@
+package com.ning.tr13.lookup;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link InstrumentedTrieLookup.Listener} that aggregates traces of
+ * lookups into histograms, one per count. Histograms use power-of-two
+ * buckets, and atomic counters, so that they can be updated concurrently
+ * without locking.
+ *
+ * @author tatu
+ */
+public class TraversalHistograms
+    implements InstrumentedTrieLookup.Listener
+{
+    protected final AtomicLong _found = new AtomicLong();
+
+    protected final Histogram _nodesVisited = new Histogram();
+
+    protected final Histogram _siblingsSkipped = new Histogram();
+
+    protected final Histogram _vintBytes = new Histogram();
+
+    protected final Histogram _bytesTouched = new Histogram();
+
+    protected final Histogram _cacheLines = new Histogram();
+
+    public TraversalHistograms() { }
+
+    @Override
+    public void traced(byte[] key, int offset, int length, InstrumentedTrieLookup.Trace trace)
+    {
+        if (trace.isFound()) {
+            _found.incrementAndGet();
+        }
+        _nodesVisited.add(trace.getNodesVisited());
+        _siblingsSkipped.add(trace.getSiblingsSkipped());
+        _vintBytes.add(trace.getVIntBytes());
+        _bytesTouched.add(trace.getBytesTouched());
+        _cacheLines.add(trace.getCacheLines());
+    }
+
+    /*
+    /**********************************************************
+    /* Accessors
+    /**********************************************************
+     */
+
+    public long getLookupCount() { return _nodesVisited.getCount(); }
+
+    public long getFoundCount() { return _found.get(); }
+
+    public Histogram getNodesVisited() { return _nodesVisited; }
+
+    public Histogram getSiblingsSkipped() { return _siblingsSkipped; }
+
+    public Histogram getVIntBytes() { return _vintBytes; }
+
+    public Histogram getBytesTouched() { return _bytesTouched; }
+
+    public Histogram getCacheLines() { return _cacheLines; }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("lookups: ").append(getLookupCount()).append(" (found ").append(getFoundCount()).append(")\n");
+        sb.append("nodes visited: ").append(_nodesVisited).append('\n');
+        sb.append("siblings skipped: ").append(_siblingsSkipped).append('\n');
+        sb.append("vint bytes: ").append(_vintBytes).append('\n');
+        sb.append("bytes touched: ").append(_bytesTouched).append('\n');
+        sb.append("cache lines: ").append(_cacheLines).append('\n');
+        return sb.toString();
+    }
+
+    /*
+    /**********************************************************
+    /* Helper classes
+    /**********************************************************
+     */
+
+    /**
+     * Histogram of non-negative values: bucket 0 counts zeroes,
+     * and bucket N (N &gt; 0) values from 2^(N-1) to 2^N - 1.
+     */
+    public final static class Histogram
+    {
+        public final static int BUCKET_COUNT = 64;
+
+        protected final AtomicLongArray _buckets = new AtomicLongArray(BUCKET_COUNT);
+
+        protected final AtomicLong _count = new AtomicLong();
+
+        protected final AtomicLong _total = new AtomicLong();
+
+        protected final AtomicLong _max = new AtomicLong();
+
+        public void add(long value)
+        {
+            _buckets.incrementAndGet(bucketFor(value));
+            _count.incrementAndGet();
+            _total.addAndGet(value);
+            long max;
+            while (value > (max = _max.get())) {
+                if (_max.compareAndSet(max, value)) {
+                    break;
+                }
+            }
+        }
+
+        public static int bucketFor(long value) {
+            return Math.min(BUCKET_COUNT-1, 64 - Long.numberOfLeadingZeros(value));
+        }
+
+        public long getCount() { return _count.get(); }
+
+        public long getTotal() { return _total.get(); }
+
+        public long getMax() { return _max.get(); }
+
+        public double getMean() {
+            long count = _count.get();
+            return (count == 0L) ? 0.0 : (double) _total.get() / count;
+        }
+
+        public long getBucketCount(int bucket) {
+            return _buckets.get(bucket);
+        }
+
+        /**
+         * Method for finding approximate percentile of values: returns
+         * upper bound of the bucket that contains given percentile.
+         *
+         * @param percentile Percentile to find, between 0.0 and 100.0
+         */
+        public long getPercentile(double percentile)
+        {
+            long limit = (long) Math.ceil(_count.get() * percentile / 100.0);
+            long seen = 0L;
+            for (int i = 0; i < BUCKET_COUNT; ++i) {
+                seen += _buckets.get(i);
+                if (seen >= limit && seen > 0L) {
+                    return Math.min(_max.get(), (1L << i) - 1);
+                }
+            }
+            return _max.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("mean %.2f, median %d, 99%% %d, max %d",
+                    getMean(), getPercentile(50.0), getPercentile(99.0), getMax());
+        }
+    }
+}
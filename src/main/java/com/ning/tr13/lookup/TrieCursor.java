@@ -0,0 +1,1100 @@
+package com.ning.tr13.lookup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.ning.tr13.TrieConstants;
+
+/**
+ * Cursor for iterating over entries of a trie in ascending (unsigned
+ * lexicographic) key order, optionally limited to entries that have
+ * specified key prefix. Iteration is streaming: entries are read from
+ * the raw trie data as needed; and a single key buffer is reused for
+ * all entries, so iteration itself does not allocate anything except
+ * when key buffer or traversal stack need to grow.
+ *<p>
+ * Typical usage is:
+ *<pre>
+ *   TrieCursor c = trie.cursor(prefix);
+ *   while (c.next()) {
+ *     byte[] keyBuffer = c.getKeyBuffer();
+ *     int keyLength = c.getKeyLength();
+ *     long value = c.getLongValue();
+ *     // ...
+ *   }
+ *</pre>
+ * Instances are not thread-safe, but can be reused for multiple
+ * iterations over same trie by calling {@link #reset}.
+ *
+ * @author tatu
+ */
+public class TrieCursor
+{
+    protected final TriePayload _payload;
+
+    /**
+     * Whether values are byte sequences (true) or VInts (false)
+     */
+    protected final boolean _bytesValued;
+
+    /**
+     * Whether branches start with number of entries in their subtree
+     * (see {@link TrieHeader#FLAG_SUBTREE_COUNTS})
+     */
+    protected final boolean _subtreeCounts;
+
+    protected final long[] _longHolder = new long[1];
+
+    /*
+    /**********************************************************
+    /* Current entry
+    /**********************************************************
+     */
+
+    protected byte[] _keyBuffer = new byte[32];
+
+    protected int _keyLength;
+
+    /**
+     * For VInt-valued tries, value of current entry; for byte[]-valued
+     * ones, offset of value in payload
+     */
+    protected long _value;
+
+    /**
+     * For byte[]-valued tries, length of value of current entry
+     */
+    protected int _valueLength;
+
+    /*
+    /**********************************************************
+    /* Traversal state
+    /**********************************************************
+     */
+
+    /**
+     * Stack of branches being traversed
+     */
+    protected Frame[] _frames = new Frame[8];
+
+    protected int _frameCount;
+
+    /**
+     * Offset of the node to traverse next, if any; -1 if none
+     */
+    protected long _nextNode = -1L;
+
+    /**
+     * Length of key of {@link #_nextNode} (not including suffix
+     * of a suffix leaf)
+     */
+    protected int _nextNodeKeyLength;
+
+    public TrieCursor(TriePayload payload, boolean bytesValued)
+    {
+        this(payload, bytesValued, false);
+    }
+
+    /**
+     * @param subtreeCounts Whether branches of the trie include number of
+     *   entries in their subtree (needed for {@link #countPrefix},
+     *   {@link #rank} and {@link #seekIndex})
+     */
+    public TrieCursor(TriePayload payload, boolean bytesValued, boolean subtreeCounts)
+    {
+        _payload = payload;
+        _bytesValued = bytesValued;
+        _subtreeCounts = subtreeCounts;
+    }
+
+    /*
+    /**********************************************************
+    /* Public API, iteration
+    /**********************************************************
+     */
+
+    /**
+     * Method for (re)starting iteration from the first entry that has
+     * given key prefix (if any). Note that {@link #next} needs to be
+     * called to actually move to the first entry.
+     *
+     * @return This cursor, to allow call chaining
+     */
+    public TrieCursor reset(byte[] prefix)
+    {
+        _frameCount = 0;
+        _nextNode = -1L;
+        _keyLength = 0;
+        final int len = prefix.length;
+        _ensureKeyRoom(len);
+        long ptr = 0L;
+        int matched = 0;
+
+        while (matched < len) {
+            int type = (_payload.byteAt(ptr) >> 6) & 0x03;
+            if (type == TrieConstants.TYPE_LEAF_SIMPLE) { // key ends, prefix does not: no match
+                return this;
+            }
+            if (type == TrieConstants.TYPE_LEAF_WITH_SUFFIX) {
+                // matches if rest of prefix is prefix of suffix
+                long p = _skipValue(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, ptr);
+                p = _payload.readUnsigned(8, p, _longHolder);
+                int remaining = len - matched;
+                if (remaining > _longHolder[0]) {
+                    return this;
+                }
+                for (int i = 0; i < remaining; ++i) {
+                    if (_payload.byteAt(p+i) != prefix[matched+i]) {
+                        return this;
+                    }
+                }
+                break;
+            }
+            long p;
+            if (type == TrieConstants.TYPE_BRANCH_SIMPLE) {
+                p = _payload.readUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr, _longHolder);
+            } else {
+                p = _skipValue(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr);
+                p = _payload.readUnsigned(8, p, _longHolder);
+            }
+            byte b = prefix[matched];
+            ptr = _findChild(p, _longHolder[0], b);
+            if (ptr < 0L) {
+                return this;
+            }
+            _keyBuffer[matched++] = b;
+        }
+        _nextNode = ptr;
+        _nextNodeKeyLength = matched;
+        return this;
+    }
+
+    /**
+     * Method for advancing to the next entry, if any.
+     *
+     * @return True if cursor was advanced to an entry; false if there are
+     *   no more entries
+     */
+    public boolean next()
+    {
+        while (true) {
+            if (_nextNode >= 0L) {
+                long ptr = _nextNode;
+                _nextNode = -1L;
+                if (_enterNode(ptr, _nextNodeKeyLength)) {
+                    return true;
+                }
+                continue;
+            }
+            if (_frameCount == 0) {
+                _keyLength = 0;
+                return false;
+            }
+            Frame f = _frames[_frameCount-1];
+            if (f.index < f.count) {
+                int i = f.index++;
+                _ensureKeyRoom(f.keyLength+1);
+                _keyBuffer[f.keyLength] = (byte) f.labels[i];
+                _nextNode = f.offsets[i];
+                _nextNodeKeyLength = f.keyLength+1;
+                continue;
+            }
+            --_frameCount;
+        }
+    }
+
+    /**
+     * Method for moving cursor to the entry with the smallest key that
+     * is greater than (or, if <code>inclusive</code> is true, equal to)
+     * given key, if any. After this, {@link #next} can be used to
+     * continue iteration in ascending key order.
+     *
+     * @return True if cursor was moved to an entry; false if there is no
+     *   such entry
+     */
+    public boolean seekCeiling(byte[] key, boolean inclusive)
+    {
+        _frameCount = 0;
+        _nextNode = -1L;
+        _keyLength = 0;
+        _ensureKeyRoom(key.length);
+        return _seekCeiling(key, inclusive, 0L, 0);
+    }
+
+    /**
+     * Method for moving cursor forward to the entry with the smallest key
+     * that is greater than or equal to given key, similar to
+     * {@link #seekCeiling}; but instead of starting from the root, only
+     * the part of traversal state that differs between the current entry
+     * and given key is redone. This makes it efficient to look up
+     * an ascending sequence of keys, as nodes are only visited once.
+     *<p>
+     * If cursor is already at an entry with key greater than or equal
+     * to given key, it is not moved. If cursor has not yet been positioned
+     * (no call to {@link #next} has been made since {@link #reset}), this
+     * is same as calling {@link #seekCeiling}.
+     *
+     * @return True if cursor is at an entry; false if there are no
+     *   more entries
+     */
+    public boolean seekForward(byte[] key)
+    {
+        if (_nextNode >= 0L) { // not yet positioned
+            return seekCeiling(key, true);
+        }
+        if (_frameCount == 0 && _keyLength == 0) { // iteration already completed
+            return false;
+        }
+        final byte[] current = _keyBuffer;
+        final int currLen = _keyLength;
+        final int len = key.length;
+        int common = 0;
+        for (int end = Math.min(currLen, len); common < end && current[common] == key[common]; ++common) { }
+        // already at or past the key?
+        if (common == len || (common < currLen && (current[common] & 0xFF) > (key[common] & 0xFF))) {
+            return true;
+        }
+        // remaining entries of branches deeper than the common prefix are all smaller
+        while (_frameCount > 0 && _frames[_frameCount-1].keyLength > common) {
+            --_frameCount;
+        }
+        _ensureKeyRoom(len);
+        if (_frameCount > 0) {
+            Frame f = _frames[_frameCount-1];
+            // branch at end of common prefix may have child for the next key byte
+            if (f.keyLength == common) {
+                final int b = key[common] & 0xFF;
+                int i = f.index;
+                while (i < f.count && f.labels[i] < b) {
+                    ++i;
+                }
+                if (i < f.count && f.labels[i] == b) {
+                    f.index = i+1;
+                    _keyBuffer[common] = (byte) b;
+                    return _seekCeiling(key, true, f.offsets[i], common+1);
+                }
+                f.index = i;
+            }
+        }
+        // if not, the next remaining entry is the one
+        return next();
+    }
+
+    /**
+     * Helper method for finding ceiling entry for given key within
+     * subtree of node at given offset, pushing branches on the path
+     * on traversal stack.
+     */
+    protected boolean _seekCeiling(byte[] key, boolean inclusive, long ptr, int matched)
+    {
+        final TriePayload payload = _payload;
+        final int len = key.length;
+
+        while (true) {
+            int type = (payload.byteAt(ptr) >> 6) & 0x03;
+            if (type == TrieConstants.TYPE_LEAF_SIMPLE) {
+                // leaf key is the part of key matched so far: either equal, or smaller
+                if (matched == len && inclusive) {
+                    _nextNode = ptr;
+                }
+                break;
+            }
+            if (type == TrieConstants.TYPE_LEAF_WITH_SUFFIX) {
+                long p = _skipValue(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, ptr);
+                p = payload.readUnsigned(8, p, _longHolder);
+                int cmp = _compareSuffix(p, (int) _longHolder[0], key, matched);
+                if (cmp > 0 || (cmp == 0 && inclusive)) {
+                    _nextNode = ptr;
+                }
+                break;
+            }
+            if (matched == len) {
+                // key ends at this branch: all of its children have bigger keys
+                if (inclusive || type == TrieConstants.TYPE_BRANCH_SIMPLE) {
+                    _nextNode = ptr;
+                } else {
+                    long p = _skipValue(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr);
+                    p = payload.readUnsigned(8, p, _longHolder);
+                    _pushBranch(p, _longHolder[0], matched);
+                }
+                break;
+            }
+            // value of branch itself (if any) is smaller, but some children may not be
+            long p = _branchContent(type, ptr);
+            _pushBranch(p, _longHolder[0], matched);
+            Frame f = _frames[_frameCount-1];
+            final int b = key[matched] & 0xFF;
+            int i = 0;
+            while (i < f.count && f.labels[i] < b) {
+                ++i;
+            }
+            if (i == f.count || f.labels[i] != b) {
+                f.index = i;
+                break;
+            }
+            // children with bigger bytes are left on stack, to follow
+            f.index = i+1;
+            ptr = f.offsets[i];
+            _keyBuffer[matched++] = (byte) b;
+        }
+        _nextNodeKeyLength = matched;
+        return next();
+    }
+
+    /**
+     * Method for moving cursor to the entry with the biggest key that
+     * is less than (or, if <code>inclusive</code> is true, equal to)
+     * given key, if any. After this, {@link #next} can be used to
+     * continue iteration in ascending key order.
+     *
+     * @return True if cursor was moved to an entry; false if there is no
+     *   such entry
+     */
+    public boolean seekFloor(byte[] key, boolean inclusive)
+    {
+        _frameCount = 0;
+        _nextNode = -1L;
+        _keyLength = 0;
+        final TriePayload payload = _payload;
+        final int len = key.length;
+        _ensureKeyRoom(len);
+        long ptr = 0L;
+        int matched = 0;
+        // closest smaller entry seen so far: either value of a branch on the path,
+        // or the last entry of a sibling subtree with smaller byte
+        long candidate = -1L;
+        int candidateKeyLength = 0;
+        int candidateLabel = -1;
+        // or, entry that is on the path of the key
+        long match = -1L;
+
+        while (true) {
+            int type = (payload.byteAt(ptr) >> 6) & 0x03;
+            if (type == TrieConstants.TYPE_LEAF_SIMPLE) {
+                if (matched < len || inclusive) {
+                    match = ptr;
+                }
+                break;
+            }
+            if (type == TrieConstants.TYPE_LEAF_WITH_SUFFIX) {
+                long p = _skipValue(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, ptr);
+                p = payload.readUnsigned(8, p, _longHolder);
+                int cmp = _compareSuffix(p, (int) _longHolder[0], key, matched);
+                if (cmp < 0 || (cmp == 0 && inclusive)) {
+                    match = ptr;
+                }
+                break;
+            }
+            if (matched == len) {
+                // only value of the branch itself can match; children are bigger
+                if (inclusive && type == TrieConstants.TYPE_BRANCH_WITH_VALUE) {
+                    candidate = ptr;
+                    candidateKeyLength = matched;
+                    candidateLabel = -1;
+                }
+                break;
+            }
+            long p = _branchContent(type, ptr);
+            _pushBranch(p, _longHolder[0], matched);
+            Frame f = _frames[--_frameCount];
+            final int b = key[matched] & 0xFF;
+            int i = 0;
+            while (i < f.count && f.labels[i] < b) {
+                ++i;
+            }
+            if (i > 0) {
+                candidate = f.offsets[i-1];
+                candidateKeyLength = matched+1;
+                candidateLabel = f.labels[i-1];
+            } else if (type == TrieConstants.TYPE_BRANCH_WITH_VALUE) {
+                candidate = ptr;
+                candidateKeyLength = matched;
+                candidateLabel = -1;
+            }
+            if (i == f.count || f.labels[i] != b) {
+                break;
+            }
+            ptr = f.offsets[i];
+            _keyBuffer[matched++] = (byte) b;
+        }
+        byte[] floorKey;
+        if (match >= 0L) {
+            floorKey = _lastKey(match, matched);
+        } else if (candidate >= 0L) {
+            if (candidateLabel < 0) { // value of a branch
+                floorKey = Arrays.copyOf(key, candidateKeyLength);
+            } else {
+                // key buffer has the key up to the branch; just need the child byte
+                _keyBuffer[candidateKeyLength-1] = (byte) candidateLabel;
+                floorKey = _lastKey(candidate, candidateKeyLength);
+            }
+        } else {
+            _keyLength = 0;
+            return false;
+        }
+        // and then position cursor so that iteration can continue from the entry
+        return seekCeiling(floorKey, true);
+    }
+
+    /**
+     * Method for moving cursor to the entry at given position (in ascending
+     * key order; first entry having index 0), if any. After this,
+     * {@link #next} can be used to continue iteration in ascending key order.
+     * Requires trie to have subtree counts.
+     *
+     * @return True if cursor was moved to an entry; false if index is
+     *   negative, or not less than number of entries
+     */
+    public boolean seekIndex(long index)
+    {
+        _frameCount = 0;
+        _nextNode = -1L;
+        _keyLength = 0;
+        if (index < 0L || index >= _entryCount(0L)) {
+            return false;
+        }
+        final TriePayload payload = _payload;
+        long ptr = 0L;
+        int keyLength = 0;
+
+        while (true) {
+            int type = (payload.byteAt(ptr) >> 6) & 0x03;
+            if (type == TrieConstants.TYPE_LEAF_SIMPLE || type == TrieConstants.TYPE_LEAF_WITH_SUFFIX) {
+                break;
+            }
+            if (type == TrieConstants.TYPE_BRANCH_WITH_VALUE) {
+                if (index == 0L) { // value of the branch itself
+                    break;
+                }
+                --index;
+            }
+            long p = _branchContent(type, ptr);
+            _pushBranch(p, _longHolder[0], keyLength);
+            Frame f = _frames[_frameCount-1];
+            int i = 0;
+            for (; i < f.count; ++i) {
+                long count = _entryCount(f.offsets[i]);
+                if (index < count) {
+                    break;
+                }
+                index -= count;
+            }
+            if (i == f.count) { // should never occur, unless counts are corrupt
+                throw new IllegalStateException("Invalid subtree counts in trie (branch at "+ptr+")");
+            }
+            // children with bigger bytes are left on stack, to follow
+            f.index = i+1;
+            ptr = f.offsets[i];
+            _ensureKeyRoom(keyLength+1);
+            _keyBuffer[keyLength++] = (byte) f.labels[i];
+        }
+        _nextNode = ptr;
+        _nextNodeKeyLength = keyLength;
+        return next();
+    }
+
+    /*
+    /**********************************************************
+    /* Public API, counting
+    /**********************************************************
+     */
+
+    /**
+     * Method for counting entries that have given key prefix (including
+     * entry with key equal to prefix, if any). Requires trie to have
+     * subtree counts. Note: cursor is left in the same state as
+     * after calling {@link #reset} with the prefix.
+     */
+    public long countPrefix(byte[] prefix)
+    {
+        reset(prefix);
+        return (_nextNode < 0L) ? 0L : _entryCount(_nextNode);
+    }
+
+    /**
+     * Method for calculating rank of given key; that is, number of entries
+     * that have keys less than given key (whether key itself is included
+     * or not). Requires trie to have subtree counts. Note: cursor is
+     * left without current entry.
+     */
+    public long rank(byte[] key) {
+        return _rank(key, false);
+    }
+
+    /**
+     * Method for finding ordinal of given key; that is, its position in
+     * key order, if trie contains the key. Requires trie to have subtree
+     * counts. Note: cursor is left without current entry.
+     *
+     * @return Ordinal of the key (first key having ordinal 0), if trie
+     *   contains the key; -1 if not
+     */
+    public long ordinal(byte[] key) {
+        return _rank(key, true);
+    }
+
+    /*
+    /**********************************************************
+    /* Public API, accessing current entry
+    /**********************************************************
+     */
+
+    /**
+     * Accessor for buffer that contains key of the current entry: only first
+     * {@link #getKeyLength} bytes are valid. Note that buffer is reused, and
+     * its contents change when cursor is advanced.
+     */
+    public byte[] getKeyBuffer() { return _keyBuffer; }
+
+    public int getKeyLength() { return _keyLength; }
+
+    /**
+     * @return Copy of the key of the current entry
+     */
+    public byte[] getKey() {
+        return Arrays.copyOf(_keyBuffer, _keyLength);
+    }
+
+    /**
+     * Accessor for value of the current entry, for VInt-valued tries.
+     */
+    public long getLongValue()
+    {
+        if (_bytesValued) {
+            throw new IllegalStateException("Can not access byte[] value as long");
+        }
+        return _value;
+    }
+
+    /**
+     * Accessor for payload that contains byte[] values; to be used with
+     * {@link #getValueOffset} and {@link #getValueLength}
+     */
+    public TriePayload getPayload() { return _payload; }
+
+    /**
+     * @return True if trie has byte[] values; false if VInt values
+     */
+    public boolean isBytesValued() { return _bytesValued; }
+
+    /**
+     * @return True if branches of the trie include number of
+     *   entries in their subtree
+     */
+    public boolean hasSubtreeCounts() { return _subtreeCounts; }
+
+    /**
+     * Accessor for offset of the value of the current entry within
+     * payload (see {@link #getPayload}), for byte[]-valued tries.
+     */
+    public long getValueOffset()
+    {
+        _verifyBytesValued();
+        return _value;
+    }
+
+    /**
+     * Accessor for length of the value of the current entry,
+     * for byte[]-valued tries.
+     */
+    public int getValueLength()
+    {
+        _verifyBytesValued();
+        return _valueLength;
+    }
+
+    /**
+     * Method for copying value of the current entry into given buffer,
+     * for byte[]-valued tries.
+     *
+     * @return Offset in buffer after copied value
+     */
+    public int copyValue(byte[] buffer, int offset)
+    {
+        _verifyBytesValued();
+        _payload.getBytes(_value, buffer, offset, _valueLength);
+        return offset + _valueLength;
+    }
+
+    /**
+     * Accessor for a read-only view (without copying) of the value of
+     * the current entry, for byte[]-valued tries.
+     */
+    public ByteBuffer getValueAsBuffer()
+    {
+        _verifyBytesValued();
+        return _payload.slice(_value, _valueLength);
+    }
+
+    /**
+     * @return Copy of the value of the current entry, for byte[]-valued tries.
+     */
+    public byte[] getBytesValue()
+    {
+        byte[] result = new byte[getValueLength()];
+        copyValue(result, 0);
+        return result;
+    }
+
+    /*
+    /**********************************************************
+    /* Internal methods, traversal
+    /**********************************************************
+     */
+
+    /**
+     * Method called to process node at given offset: if node has a value,
+     * it becomes the current entry; and if it is a branch, its children
+     * are pushed on traversal stack.
+     *
+     * @return True if node had a value (and thereby became the current entry)
+     */
+    protected boolean _enterNode(long ptr, int keyLength)
+    {
+        final TriePayload payload = _payload;
+        int type = (payload.byteAt(ptr) >> 6) & 0x03;
+        _keyLength = keyLength;
+        if (type == TrieConstants.TYPE_LEAF_SIMPLE) {
+            _readValue(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, ptr);
+            return true;
+        }
+        if (type == TrieConstants.TYPE_LEAF_WITH_SUFFIX) {
+            ptr = _readValue(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, ptr);
+            ptr = payload.readUnsigned(8, ptr, _longHolder);
+            int suffixLen = (int) _longHolder[0];
+            _ensureKeyRoom(keyLength + suffixLen);
+            payload.getBytes(ptr, _keyBuffer, keyLength, suffixLen);
+            _keyLength = keyLength + suffixLen;
+            return true;
+        }
+        boolean hasValue = (type == TrieConstants.TYPE_BRANCH_WITH_VALUE);
+        if (hasValue) {
+            ptr = _readValue(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr);
+            ptr = payload.readUnsigned(8, ptr, _longHolder);
+        } else {
+            ptr = payload.readUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr, _longHolder);
+        }
+        _pushBranch(ptr, _longHolder[0], keyLength);
+        return hasValue;
+    }
+
+    /**
+     * Method for pushing children of a branch on traversal stack, in
+     * ascending order by the byte that leads to child.
+     */
+    protected void _pushBranch(long ptr, long contentLength, int keyLength)
+    {
+        final TriePayload payload = _payload;
+        Frame f = _pushFrame(keyLength);
+        if (contentLength == 0L) { // indexed; child byte table already sorted
+            ptr = payload.skipUnsigned(8, ptr);
+            if (_subtreeCounts) {
+                ptr = payload.skipUnsigned(8, ptr);
+            }
+            final int count = (payload.byteAt(ptr) & 0xFF) + 1;
+            final int width = payload.byteAt(ptr+1);
+            final long labels = ptr+2;
+            final long children = labels + count + (count * width);
+            for (int i = 0; i < count; ++i) {
+                f.add(payload.byteAt(labels+i) & 0xFF, children + _readOffset(labels + count + (i * width), width));
+            }
+            return;
+        }
+        final long end = ptr + contentLength;
+        if (_subtreeCounts) {
+            ptr = payload.skipUnsigned(8, ptr);
+        }
+        while (ptr < end) {
+            int label = payload.byteAt(ptr++) & 0xFF;
+            f.add(label, ptr);
+            ptr = _skipNode(ptr);
+        }
+        // may need to sort, if builder reordered children
+        f.sort();
+    }
+
+    /**
+     * Helper method for skipping the header (and possible value) of a branch
+     * node; length of the content is left in {@link #_longHolder}.
+     *
+     * @return Offset of the content of the branch
+     */
+    protected long _branchContent(int type, long ptr)
+    {
+        if (type == TrieConstants.TYPE_BRANCH_SIMPLE) {
+            return _payload.readUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr, _longHolder);
+        }
+        ptr = _skipValue(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr);
+        return _payload.readUnsigned(8, ptr, _longHolder);
+    }
+
+    /**
+     * Helper method for finding number of entries with keys less than
+     * given key, by summing up counts of preceding siblings along the path
+     * of the key.
+     *
+     * @param exact Whether key must be contained in trie: if true, and it is
+     *   not, -1 is returned
+     */
+    protected long _rank(byte[] key, boolean exact)
+    {
+        _frameCount = 0;
+        _nextNode = -1L;
+        _keyLength = 0;
+        final TriePayload payload = _payload;
+        final int len = key.length;
+        long rank = 0L;
+        long ptr = 0L;
+        int matched = 0;
+
+        while (true) {
+            int type = (payload.byteAt(ptr) >> 6) & 0x03;
+            if (type == TrieConstants.TYPE_LEAF_SIMPLE) {
+                // leaf key is the part of key matched so far
+                if (matched < len) {
+                    return exact ? -1L : (rank + 1L);
+                }
+                return rank;
+            }
+            if (type == TrieConstants.TYPE_LEAF_WITH_SUFFIX) {
+                long p = _skipValue(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, ptr);
+                p = payload.readUnsigned(8, p, _longHolder);
+                int cmp = _compareSuffix(p, (int) _longHolder[0], key, matched);
+                if (exact) {
+                    return (cmp == 0) ? rank : -1L;
+                }
+                return (cmp < 0) ? (rank + 1L) : rank;
+            }
+            if (matched == len) { // branch, and all children, have bigger (or equal) keys
+                if (exact && type != TrieConstants.TYPE_BRANCH_WITH_VALUE) {
+                    return -1L;
+                }
+                return rank;
+            }
+            if (type == TrieConstants.TYPE_BRANCH_WITH_VALUE) {
+                ++rank;
+            }
+            long p = _branchContent(type, ptr);
+            _pushBranch(p, _longHolder[0], matched);
+            Frame f = _frames[--_frameCount];
+            final int b = key[matched] & 0xFF;
+            int i = 0;
+            for (; i < f.count && f.labels[i] < b; ++i) {
+                rank += _entryCount(f.offsets[i]);
+            }
+            if (i == f.count || f.labels[i] != b) {
+                return exact ? -1L : rank;
+            }
+            ptr = f.offsets[i];
+            ++matched;
+        }
+    }
+
+    /**
+     * Helper method for finding number of entries in the subtree rooted
+     * at given node.
+     */
+    protected long _entryCount(long ptr)
+    {
+        int type = (_payload.byteAt(ptr) >> 6) & 0x03;
+        if (type == TrieConstants.TYPE_LEAF_SIMPLE || type == TrieConstants.TYPE_LEAF_WITH_SUFFIX) {
+            return 1L;
+        }
+        if (!_subtreeCounts) {
+            throw new IllegalStateException("Trie does not have subtree counts");
+        }
+        ptr = _branchContent(type, ptr);
+        if (_longHolder[0] == 0L) { // indexed branch: count follows actual length
+            ptr = _payload.skipUnsigned(8, ptr);
+        }
+        _payload.readUnsigned(8, ptr, _longHolder);
+        return _longHolder[0];
+    }
+
+    /**
+     * Helper method for finding key of the last entry (in key order) of the
+     * subtree rooted at given node. Key buffer is expected to contain
+     * the key that leads to the node.
+     */
+    protected byte[] _lastKey(long ptr, int keyLength)
+    {
+        final TriePayload payload = _payload;
+        while (true) {
+            int type = (payload.byteAt(ptr) >> 6) & 0x03;
+            if (type == TrieConstants.TYPE_LEAF_SIMPLE) {
+                return Arrays.copyOf(_keyBuffer, keyLength);
+            }
+            if (type == TrieConstants.TYPE_LEAF_WITH_SUFFIX) {
+                ptr = _skipValue(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, ptr);
+                ptr = payload.readUnsigned(8, ptr, _longHolder);
+                int suffixLen = (int) _longHolder[0];
+                _ensureKeyRoom(keyLength + suffixLen);
+                payload.getBytes(ptr, _keyBuffer, keyLength, suffixLen);
+                return Arrays.copyOf(_keyBuffer, keyLength + suffixLen);
+            }
+            // for branches, last entry is within the child with the biggest byte
+            long p = _branchContent(type, ptr);
+            _pushBranch(p, _longHolder[0], keyLength);
+            Frame f = _frames[--_frameCount];
+            _ensureKeyRoom(keyLength+1);
+            _keyBuffer[keyLength++] = (byte) f.labels[f.count-1];
+            ptr = f.offsets[f.count-1];
+        }
+    }
+
+    /**
+     * Helper method for comparing suffix of a leaf with the rest of given key,
+     * using unsigned byte comparison.
+     */
+    protected int _compareSuffix(long ptr, int suffixLength, byte[] key, int keyOffset)
+    {
+        final int keyLength = key.length - keyOffset;
+        for (int i = 0, end = Math.min(suffixLength, keyLength); i < end; ++i) {
+            int diff = (_payload.byteAt(ptr+i) & 0xFF) - (key[keyOffset+i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return suffixLength - keyLength;
+    }
+
+    /**
+     * Helper method for finding child of branch that given byte leads to.
+     *
+     * @return Offset of the child node, if one found; -1 if not
+     */
+    protected long _findChild(long ptr, long contentLength, byte b)
+    {
+        final TriePayload payload = _payload;
+        if (contentLength == 0L) { // indexed
+            ptr = payload.skipUnsigned(8, ptr);
+            if (_subtreeCounts) {
+                ptr = payload.skipUnsigned(8, ptr);
+            }
+            final int count = (payload.byteAt(ptr) & 0xFF) + 1;
+            final int width = payload.byteAt(ptr+1);
+            final long labels = ptr+2;
+            for (int i = 0; i < count; ++i) {
+                if (payload.byteAt(labels+i) == b) {
+                    return labels + count + (count * width)
+                        + _readOffset(labels + count + (i * width), width);
+                }
+            }
+            return -1L;
+        }
+        final long end = ptr + contentLength;
+        if (_subtreeCounts) {
+            ptr = payload.skipUnsigned(8, ptr);
+        }
+        while (ptr < end) {
+            if (payload.byteAt(ptr++) == b) {
+                return ptr;
+            }
+            ptr = _skipNode(ptr);
+        }
+        return -1L;
+    }
+
+    /**
+     * Helper method for skipping the whole node (including its children,
+     * for branches) that starts at given offset.
+     *
+     * @return Offset right after the node
+     */
+    protected long _skipNode(long ptr)
+    {
+        final TriePayload payload = _payload;
+        int type = (payload.byteAt(ptr) >> 6) & 0x03;
+        if (type == TrieConstants.TYPE_LEAF_SIMPLE) {
+            return _skipValue(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, ptr);
+        }
+        if (type == TrieConstants.TYPE_LEAF_WITH_SUFFIX) {
+            ptr = _skipValue(TrieConstants.FIRST_BYTE_BITS_FOR_LEAVES, ptr);
+            ptr = payload.readUnsigned(8, ptr, _longHolder);
+            return ptr + _longHolder[0];
+        }
+        if (type == TrieConstants.TYPE_BRANCH_SIMPLE) {
+            ptr = payload.readUnsigned(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr, _longHolder);
+        } else {
+            ptr = _skipValue(TrieConstants.FIRST_BYTE_BITS_FOR_BRANCHES, ptr);
+            ptr = payload.readUnsigned(8, ptr, _longHolder);
+        }
+        if (_longHolder[0] == 0L) { // indexed branch: actual length follows
+            ptr = payload.readUnsigned(8, ptr, _longHolder);
+        }
+        return ptr + _longHolder[0];
+    }
+
+    /**
+     * Helper method for reading value (VInt, or length-prefixed byte sequence)
+     * that starts at given offset, and making it the current value.
+     *
+     * @return Offset after the value
+     */
+    protected long _readValue(int bitsForFirstByte, long ptr)
+    {
+        ptr = _payload.readUnsigned(bitsForFirstByte, ptr, _longHolder);
+        if (_bytesValued) {
+            _value = ptr;
+            _valueLength = (int) _longHolder[0];
+            return ptr + _valueLength;
+        }
+        _value = _longHolder[0];
+        return ptr;
+    }
+
+    protected long _skipValue(int bitsForFirstByte, long ptr)
+    {
+        if (_bytesValued) {
+            ptr = _payload.readUnsigned(bitsForFirstByte, ptr, _longHolder);
+            return ptr + _longHolder[0];
+        }
+        return _payload.skipUnsigned(bitsForFirstByte, ptr);
+    }
+
+    protected long _readOffset(long ptr, int width)
+    {
+        long offset = 0L;
+        for (int i = 0; i < width; ++i) {
+            offset = (offset << 8) | (_payload.byteAt(ptr++) & 0xFF);
+        }
+        return offset;
+    }
+
+    /*
+    /**********************************************************
+    /* Internal methods, other
+    /**********************************************************
+     */
+
+    protected Frame _pushFrame(int keyLength)
+    {
+        if (_frameCount == _frames.length) {
+            _frames = Arrays.copyOf(_frames, _frameCount * 2);
+        }
+        Frame f = _frames[_frameCount];
+        if (f == null) {
+            f = new Frame();
+            _frames[_frameCount] = f;
+        }
+        ++_frameCount;
+        f.reset(keyLength);
+        return f;
+    }
+
+    protected void _ensureKeyRoom(int length)
+    {
+        if (length > _keyBuffer.length) {
+            _keyBuffer = Arrays.copyOf(_keyBuffer, Math.max(length, _keyBuffer.length * 2));
+        }
+    }
+
+    protected void _verifyBytesValued()
+    {
+        if (!_bytesValued) {
+            throw new IllegalStateException("Can not access VInt value as byte[]");
+        }
+    }
+
+    /*
+    /**********************************************************
+    /* Helper classes
+    /**********************************************************
+     */
+
+    /**
+     * Traversal state for a single branch: children of branch, in ascending
+     * order by byte that leads to them.
+     */
+    protected final static class Frame
+    {
+        public int[] labels = new int[8];
+        public long[] offsets = new long[8];
+        public int count;
+        public int index;
+
+        /**
+         * Length of key leading to branch this frame is for
+         */
+        public int keyLength;
+
+        /**
+         * Lazily allocated table used for sorting children of wide branches
+         */
+        private long[] byLabel;
+
+        public void reset(int keyLength)
+        {
+            count = 0;
+            index = 0;
+            this.keyLength = keyLength;
+        }
+
+        public void add(int label, long offset)
+        {
+            if (count == labels.length) {
+                labels = Arrays.copyOf(labels, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            labels[count] = label;
+            offsets[count] = offset;
+            ++count;
+        }
+
+        /**
+         * Method for sorting children by label, unless they already
+         * are sorted (which is the case unless builder reordered them)
+         */
+        public void sort()
+        {
+            if (count > 16) { // for wide branches, insertion sort would be too slow
+                _sortWide();
+                return;
+            }
+            for (int i = 1; i < count; ++i) {
+                int label = labels[i];
+                if (label >= labels[i-1]) {
+                    continue;
+                }
+                long offset = offsets[i];
+                int j = i;
+                for (; j > 0 && labels[j-1] > label; --j) {
+                    labels[j] = labels[j-1];
+                    offsets[j] = offsets[j-1];
+                }
+                labels[j] = label;
+                offsets[j] = offset;
+            }
+        }
+
+        /**
+         * Since labels of children are unique bytes, they can be sorted
+         * by just placing offsets in a label-indexed table
+         */
+        private void _sortWide()
+        {
+            int i = 1;
+            while (i < count && labels[i] > labels[i-1]) {
+                ++i;
+            }
+            if (i == count) { // already sorted
+                return;
+            }
+            if (byLabel == null) {
+                byLabel = new long[256];
+            }
+            Arrays.fill(byLabel, -1L);
+            for (i = 0; i < count; ++i) {
+                byLabel[labels[i]] = offsets[i];
+            }
+            int ix = 0;
+            for (int label = 0; label < 256; ++label) {
+                if (byLabel[label] >= 0L) {
+                    labels[ix] = label;
+                    offsets[ix] = byLabel[label];
+                    ++ix;
+                }
+            }
+        }
+    }
+}
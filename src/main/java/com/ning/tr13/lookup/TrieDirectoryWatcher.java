@@ -0,0 +1,236 @@
+package com.ning.tr13.lookup;
+
+import java.io.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.ning.tr13.TrieLookup;
+
+/**
+ * Helper class that polls a directory for new trie files, and loads
+ * and swaps them into a {@link SwappableTrieLookup} in the background.
+ * Newest matching file (by modification time) that has a valid trie header
+ * and is not truncated is used; to avoid loading partially written
+ * files, new tries should preferably be written using a temporary name
+ * (that the filter does not match), and then renamed.
+ *<p>
+ * Polling is used since JDK versions this library supports have no
+ * file system notification API.
+ *
+ * @author tatu
+ */
+public class TrieDirectoryWatcher<V>
+{
+    /**
+     * Interface for objects that construct lookups for trie files; usually
+     * just calls one of the factory methods of
+     * {@link com.ning.tr13.TrieLookups}.
+     */
+    public interface Loader<V>
+    {
+        public TrieLookup<V> load(File f) throws IOException;
+    }
+
+    protected final File _directory;
+
+    protected final FileFilter _filter;
+
+    protected final Loader<V> _loader;
+
+    protected final SwappableTrieLookup<V> _target;
+
+    /**
+     * File last tried (whether loading succeeded or not), and its
+     * modification time at that point, to avoid reloading it
+     */
+    protected File _lastFile;
+
+    protected long _lastModified;
+
+    /**
+     * File the current trie was loaded from, if any
+     */
+    protected volatile File _loadedFile;
+
+    /**
+     * Latest problem encountered when loading a file, if any
+     */
+    protected volatile Exception _lastError;
+
+    protected ScheduledExecutorService _executor;
+
+    /**
+     * @param directory Directory to poll for files
+     * @param filter Filter for trie files to consider; if null, all files
+     *   are considered
+     * @param loader Object used to construct lookups for files
+     * @param target Lookup to swap loaded tries into
+     */
+    public TrieDirectoryWatcher(File directory, FileFilter filter, Loader<V> loader,
+            SwappableTrieLookup<V> target)
+    {
+        _directory = directory;
+        _filter = filter;
+        _loader = loader;
+        _target = target;
+    }
+
+    /**
+     * Convenience factory method for constructing a watcher that considers
+     * files with given name suffix (like ".tr13").
+     */
+    public static <V> TrieDirectoryWatcher<V> forSuffix(File directory, final String suffix,
+            Loader<V> loader, SwappableTrieLookup<V> target)
+    {
+        return new TrieDirectoryWatcher<V>(directory, new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.getName().endsWith(suffix);
+            }
+        }, loader, target);
+    }
+
+    /*
+    /**********************************************************
+    /* Public API
+    /**********************************************************
+     */
+
+    /**
+     * Method for starting background polling, using a daemon thread.
+     */
+    public synchronized void start(long pollInterval, TimeUnit unit)
+    {
+        if (_executor != null) {
+            throw new IllegalStateException("Watcher for '"+_directory+"' already started");
+        }
+        _executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "tr13-watcher-"+_directory.getName());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        _executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                // must not throw anything, or polling would stop
+                try {
+                    checkNow();
+                } catch (RuntimeException e) {
+                    _lastError = e;
+                }
+            }
+        }, 0L, pollInterval, unit);
+    }
+
+    /**
+     * Method for stopping background polling; does not wait for a load
+     * in progress to complete.
+     */
+    public synchronized void stop()
+    {
+        if (_executor != null) {
+            _executor.shutdown();
+            _executor = null;
+        }
+    }
+
+    /**
+     * Method for checking the directory right away (from the calling
+     * thread), and loading the newest file, if it has not yet been loaded.
+     *
+     * @return True if a new trie was swapped in; false if not
+     */
+    public synchronized boolean checkNow()
+    {
+        File f = _findNewest();
+        if (f == null) {
+            return false;
+        }
+        long modified = f.lastModified();
+        if (f.equals(_lastFile) && modified == _lastModified) {
+            return false;
+        }
+        // no point in retrying same file over and over; if still being
+        // written, modification time will change
+        _lastFile = f;
+        _lastModified = modified;
+        try {
+            if (!_isComplete(f)) {
+                return false;
+            }
+            _target.swap(_loader.load(f));
+            _loadedFile = f;
+            _lastError = null;
+            return true;
+        } catch (IOException e) {
+            _lastError = e;
+            return false;
+        }
+    }
+
+    /**
+     * @return File the current trie was loaded from; null if none loaded yet
+     */
+    public File getLoadedFile() {
+        return _loadedFile;
+    }
+
+    /**
+     * @return Problem encountered during the latest load attempt, if
+     *   it failed; null if it succeeded
+     */
+    public Exception getLastError() {
+        return _lastError;
+    }
+
+    /*
+    /**********************************************************
+    /* Internal methods
+    /**********************************************************
+     */
+
+    protected File _findNewest()
+    {
+        File[] files = _directory.listFiles(_filter);
+        if (files == null) {
+            return null;
+        }
+        File newest = null;
+        for (File f : files) {
+            if (!f.isFile()) {
+                continue;
+            }
+            // ties (same modification time) are resolved by name
+            if (newest == null || f.lastModified() > newest.lastModified()
+                    || (f.lastModified() == newest.lastModified() && f.getName().compareTo(newest.getName()) > 0)) {
+                newest = f;
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Method for checking that given file starts with a valid trie
+     * header, and is long enough to contain the whole payload.
+     */
+    protected boolean _isComplete(File f) throws IOException
+    {
+        if (f.length() < TrieHeader.HEADER_LENGTH) {
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            byte[] buffer = new byte[TrieHeader.HEADER_LENGTH];
+            raf.readFully(buffer);
+            TrieHeader header = TrieHeader.read(buffer, 0);
+            return raf.length() >= TrieHeader.HEADER_LENGTH + header.getPayloadLength();
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.ning.tr13.lookup;
+
+/**
+ * Entry (key and value) of a trie, as returned by ordered lookups
+ * (like {@link VIntTrieLookup#floorEntry}).
+ *
+ * @param <V> Value type of the trie
+ *
+ * @author tatu
+ */
+public class TrieEntry<V>
+{
+    protected final byte[] _key;
+
+    protected final V _value;
+
+    public TrieEntry(byte[] key, V value)
+    {
+        _key = key;
+        _value = value;
+    }
+
+    public byte[] getKey() { return _key; }
+
+    public V getValue() { return _value; }
+
+    @Override
+    public String toString() {
+        return "[TrieEntry: key length="+_key.length+", value="+_value+"]";
+    }
+}
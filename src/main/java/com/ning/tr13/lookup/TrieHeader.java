@@ -9,7 +9,56 @@ public class TrieHeader
 {
     public final static int HEADER_LENGTH = 16;
 
+    public final static int VERSION_OFFSET = 5;
+
     public final static int TYPE_OFFSET = 6;
+
+    public final static int FLAGS_OFFSET = 7;
+
+    /**
+     * Format version 1.0: the original format, with no extensions
+     */
+    public final static int VERSION_1_0 = 0x10;
+
+    /**
+     * Format version 1.1: format that may use extensions indicated
+     * by feature flags (see <code>FLAG_xxx</code> constants)
+     */
+    public final static int VERSION_1_1 = 0x11;
+
+    /**
+     * Feature flag that indicates that payload may contain branches
+     * that use indexed encoding (see
+     * {@link com.ning.tr13.build.ClosedTrieNodeFactory.SimpleBranch}).
+     */
+    public final static int FLAG_INDEXED_BRANCHES = 0x01;
+
+    /**
+     * Feature flag that indicates that payload is followed by a Bloom filter
+     * section (see {@link com.ning.tr13.bloom.BloomFilter}): 8-byte length
+     * of the section, followed by serialized filter.
+     */
+    public final static int FLAG_BLOOM_FILTER = 0x02;
+
+    /**
+     * Feature flag that indicates that branch nodes start their content
+     * with number of entries in their subtree.
+     */
+    public final static int FLAG_SUBTREE_COUNTS = 0x04;
+
+    /**
+     * Feature flag that indicates that payload (and Bloom filter section,
+     * if any) is followed by a reverse index section (see
+     * {@link com.ning.tr13.reverse.ReverseIndex}): 8-byte length
+     * of the section, followed by serialized index.
+     */
+    public final static int FLAG_REVERSE_INDEX = 0x08;
+
+    /**
+     * Bit mask of all feature flags this version knows how to handle.
+     */
+    protected final static int KNOWN_FLAGS = FLAG_INDEXED_BRANCHES | FLAG_BLOOM_FILTER
+        | FLAG_SUBTREE_COUNTS | FLAG_REVERSE_INDEX;
     
     public enum ValueType {
         /**
@@ -20,7 +69,13 @@ public class TrieHeader
         /**
          * Values are simple byte arrays
          */
-        BYTE_ARRAY(2)
+        BYTE_ARRAY(2),
+
+        /**
+         * No values: trie only contains keys, and is used for mapping
+         * keys to their ordinals (which requires subtree counts)
+         */
+        KEYS_ONLY(3)
         ;
 
         private int _type;
@@ -47,54 +102,95 @@ public class TrieHeader
      * follows.
      *<p>
      * First 5 bytes are fixed (so first 4 bytes can be
-     * used as 'magic cookie' for file type detection; 6th byte contains version number (in
-     * lower nibble; upper nibble reserved for now)
-     * and last remaining bytes is reserved for use as bitfield for variations in file
-     * format.
+     * used as 'magic cookie' for file type detection; 6th byte contains version number
+     * (major version in upper, minor in lower nibble, with 0x80 bit always set),
+     * 7th byte value type,
+     * and last remaining byte is used as bitfield for variations in file
+     * format (only used with version 1.1 and above).
      */
     private final static byte[] HEADER_TEMPLATE = new byte[] {
         // 5 bytes chosen to be human readable for easy eyeballing
         'T', 'R', '1', '3', '\n',
         // then version number "1.0" in hex; plus 0x80 bit set to force file type as 'binary' (in unix)
         (byte) (0x80 + 0x10),
-        // Then content type; 0x01 for VInts, 0x02 for byte[]
+        // Then content type; 0x01 for VInts, 0x02 for byte[], 0x03 for keys only
         (byte) 0,
         // then one spare byte for future expansion
         0x0
     };  
 
     protected final ValueType _type;
+
+    protected final int _version;
+
+    protected final int _flags;
     
     protected final long _payloadLength;
     
     protected TrieHeader(ValueType type, long len)
+    {
+        this(type, VERSION_1_0, 0, len);
+    }
+
+    protected TrieHeader(ValueType type, int version, int flags, long len)
     {
         _type = type;
+        _version = version;
+        _flags = flags;
         _payloadLength = len;
     }
     
     public static TrieHeader read(byte[] buffer, int offset) throws IOException
     {
-        for (int i = 0 ; i < TYPE_OFFSET; ++i) {
+        for (int i = 0 ; i < VERSION_OFFSET; ++i) {
             if (buffer[offset+i] != HEADER_TEMPLATE[i]) {
-                throw new IOException("Malformed input: no valid trie header found (first 6 bytes wrong)");
+                throw new IOException("Malformed input: no valid trie header found (first 5 bytes wrong)");
             }
         }
+        int version = buffer[offset+VERSION_OFFSET] & 0xFF;
+        if ((version & 0x80) == 0) {
+            throw new IOException("Malformed input: no valid trie header found (version byte 0x"
+                    +Integer.toHexString(version)+" invalid)");
+        }
+        version &= 0x7F;
+        if (version != VERSION_1_0 && version != VERSION_1_1) {
+            throw new IOException("Unsupported trie format version "+(version >> 4)+"."+(version & 0xF));
+        }
         int rawType = buffer[offset+TYPE_OFFSET] & 0x0F;
         ValueType type = ValueType.valueOf(rawType);
         if (type == null) {
             throw new IOException("Malformed input: unrecognized type: "+rawType);
         }
-        long len = buffer[8];
+        // flags only used with 1.1 and above
+        int flags = (version == VERSION_1_0) ? 0 : (buffer[offset+FLAGS_OFFSET] & 0xFF);
+        if ((flags & ~KNOWN_FLAGS) != 0) {
+            throw new IOException("Unsupported trie format features (flags 0x"+Integer.toHexString(flags)+")");
+        }
+        long len = buffer[offset+8];
         for (int i = 9; i < 16; ++i) {
-            len = (len << 8) | (buffer[i] & 0xFF);
+            len = (len << 8) | (buffer[offset+i] & 0xFF);
         }
-        return new TrieHeader(type, len);
+        return new TrieHeader(type, version, flags, len);
     }
     
     public static int fillHeaderInfo(byte[] buffer, ValueType type, long len)
+    {
+        return fillHeaderInfo(buffer, type, 0, len);
+    }
+
+    /**
+     * Method for constructing header with given value type and feature
+     * flags: if any flags are set, header will indicate version 1.1;
+     * otherwise version 1.0.
+     */
+    public static int fillHeaderInfo(byte[] buffer, ValueType type, int flags, long len)
     {
         System.arraycopy(TrieHeader.HEADER_TEMPLATE, 0, buffer, 0, 8);
+        if (flags != 0) {
+            buffer[VERSION_OFFSET] = (byte) (0x80 + VERSION_1_1);
+            buffer[FLAGS_OFFSET] = (byte) flags;
+        }
+        buffer[TYPE_OFFSET] = (byte) type.rawType();
         for (int i = 15; i >= 8; --i) {
             buffer[i] = (byte) len;
             len >>= 8;
@@ -104,4 +200,19 @@ public class TrieHeader
 
     public ValueType getValueType() { return _type; }
     public long getPayloadLength() { return _payloadLength; }
+
+    /**
+     * @return Format version, with major version in upper nibble,
+     *    minor version in lower nibble (like {@link #VERSION_1_0})
+     */
+    public int getVersion() { return _version; }
+
+    /**
+     * @return Feature flags (see <code>FLAG_xxx</code> constants)
+     */
+    public int getFlags() { return _flags; }
+
+    public boolean hasFlag(int flag) {
+        return (_flags & flag) != 0;
+    }
 }
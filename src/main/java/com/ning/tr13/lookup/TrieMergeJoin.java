@@ -0,0 +1,166 @@
+package com.ning.tr13.lookup;
+
+import java.io.IOException;
+
+import com.ning.tr13.KeyValueSource;
+import com.ning.tr13.TrieLookup;
+import com.ning.tr13.util.UTF8Codec;
+
+/**
+ * Operator for joining a stream of entries, sorted by key (in same
+ * unsigned lexicographic order as trie keys), against a trie. Instead of
+ * looking up each key separately, a single {@link TrieCursor} is advanced
+ * forward (see {@link TrieCursor#seekForward}), so that common key prefixes
+ * are only traversed once and the whole join is one ordered pass
+ * over the trie.
+ *<p>
+ * Input keys need not all exist in the trie; and same key may occur
+ * multiple times in a row. Keys out of order are reported as
+ * errors (with {@link IllegalArgumentException}), same as by builders.
+ *<p>
+ * Instances are not thread-safe, and can only be used for one join.
+ *
+ * @param <T> Type of values of the stream
+ *
+ * @author tatu
+ */
+public class TrieMergeJoin<T>
+{
+    /**
+     * Callback interface used for reporting results of the join, in
+     * order of the input stream.
+     */
+    public interface JoinCallback<T>
+    {
+        /**
+         * Method called for input entries for which trie has an entry
+         * with the same key. Cursor is positioned at the trie entry, and
+         * can be used for accessing its value (but not moved).
+         */
+        public void matched(byte[] key, T value, TrieCursor trieEntry);
+
+        /**
+         * Method called for input entries for which trie has no entry
+         */
+        public void missed(byte[] key, T value);
+    }
+
+    protected final KeyValueSource<T> _source;
+
+    protected final TrieCursor _cursor;
+
+    protected long _matchCount;
+
+    protected long _missCount;
+
+    public TrieMergeJoin(KeyValueSource<T> source, TrieLookup<?> trie) {
+        this(source, trie.cursor());
+    }
+
+    /**
+     * @param cursor Cursor to use for the trie; should not have been
+     *   moved after it was constructed (or reset)
+     */
+    public TrieMergeJoin(KeyValueSource<T> source, TrieCursor cursor)
+    {
+        _source = source;
+        _cursor = cursor;
+    }
+
+    /**
+     * Convenience method for constructing and running a join.
+     */
+    public static <T> TrieMergeJoin<T> join(KeyValueSource<T> source, TrieLookup<?> trie,
+            JoinCallback<T> callback)
+        throws IOException
+    {
+        TrieMergeJoin<T> join = new TrieMergeJoin<T>(source, trie);
+        join.run(callback);
+        return join;
+    }
+
+    /*
+    /**********************************************************
+    /* Public API
+    /**********************************************************
+     */
+
+    /**
+     * Method for reading all entries of the source, and reporting them to
+     * given callback as matches or misses.
+     */
+    public void run(final JoinCallback<T> callback) throws IOException
+    {
+        _source.readAll(new KeyValueSource.ValueCallback<T>() {
+            private byte[] _prevKey;
+
+            /**
+             * Set once trie has no more entries, after which all keys miss
+             */
+            private boolean _trieDone;
+
+            @Override
+            public void handleEntry(byte[] key, T value)
+            {
+                if (_prevKey != null && _compareKeys(_prevKey, key) > 0) {
+                    throw new IllegalArgumentException("Malformed input, line "
+                            +_source.getLineNumber()+": id '"+UTF8Codec.decodeFromUTF8(key)+"' not properly ordered");
+                }
+                _prevKey = key;
+                if (!_trieDone) {
+                    if (!_cursor.seekForward(key)) {
+                        _trieDone = true;
+                    } else if (_matches(key)) {
+                        ++_matchCount;
+                        callback.matched(key, value, _cursor);
+                        return;
+                    }
+                }
+                ++_missCount;
+                callback.missed(key, value);
+            }
+        });
+    }
+
+    /**
+     * @return Number of input entries that had a matching trie entry
+     */
+    public long getMatchCount() { return _matchCount; }
+
+    /**
+     * @return Number of input entries that had no matching trie entry
+     */
+    public long getMissCount() { return _missCount; }
+
+    /*
+    /**********************************************************
+    /* Internal methods
+    /**********************************************************
+     */
+
+    private static int _compareKeys(byte[] key1, byte[] key2)
+    {
+        for (int i = 0, end = Math.min(key1.length, key2.length); i < end; ++i) {
+            int diff = (key1[i] & 0xFF) - (key2[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return key1.length - key2.length;
+    }
+
+    private boolean _matches(byte[] key)
+    {
+        final int len = key.length;
+        if (_cursor.getKeyLength() != len) {
+            return false;
+        }
+        final byte[] current = _cursor.getKeyBuffer();
+        for (int i = 0; i < len; ++i) {
+            if (current[i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
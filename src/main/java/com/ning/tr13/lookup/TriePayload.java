@@ -0,0 +1,243 @@
+package com.ning.tr13.lookup;
+
+import java.nio.ByteBuffer;
+
+import com.ning.tr13.util.ByteMatcher;
+
+/**
+ * Read-only view over raw trie data (payload), used by traversal code
+ * that needs to work over all storage backends (like {@link TrieCursor}).
+ * Offsets are 64-bit, to allow for backends that can hold more than
+ * 2 gigabytes of data.
+ *<p>
+ * Note that lookup implementations for array and buffer backends do NOT
+ * use this abstraction for basic lookups, since direct access is faster;
+ * but memory-mapped backend (see {@link MappedTriePayload}) does.
+ *
+ * @author tatu
+ */
+public abstract class TriePayload
+{
+    /**
+     * Values shorter than this are copied from {@link ByteBuffer}s one byte
+     * at a time, since bulk copy requires allocating a duplicate
+     */
+    public final static int BULK_COPY_THRESHOLD = 32;
+
+    protected TriePayload() { }
+
+    public static TriePayload forArray(byte[] data) {
+        return new ArrayBacked(data);
+    }
+
+    public static TriePayload forBuffer(ByteBuffer data, long length) {
+        return new BufferBacked(data, length);
+    }
+
+    /*
+    /**********************************************************
+    /* Abstract API
+    /**********************************************************
+     */
+
+    /**
+     * @return Length of the payload, in bytes
+     */
+    public abstract long length();
+
+    public abstract byte byteAt(long offset);
+
+    /**
+     * Method for copying given range of payload into given buffer
+     */
+    public abstract void getBytes(long offset, byte[] buffer, int bufferOffset, int length);
+
+    /**
+     * Method for getting a read-only view of given range of payload;
+     * contents are not copied (except for rare cases where backend can
+     * not expose range as a single buffer).
+     */
+    public abstract ByteBuffer slice(long offset, int length);
+
+    /**
+     * Method for finding given byte within given range of payload, which
+     * contains sorted (unsigned) bytes, like child labels of indexed branches.
+     * Default implementation uses binary search; backends that can access
+     * the range directly use {@link ByteMatcher} instead.
+     *
+     * @return Index of the byte (relative to offset), if found; -1 if not
+     */
+    public int indexOfLabel(long offset, int length, byte b)
+    {
+        final int value = b & 0xFF;
+        int low = 0;
+        int high = length-1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int label = byteAt(offset+mid) & 0xFF;
+            if (label < value) {
+                low = mid+1;
+            } else if (label > value) {
+                high = mid-1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Method for releasing resources (like native memory, or memory
+     * mappings) payload holds, for backends that support explicit release.
+     * Payload (and lookups that use it) must not be accessed after release.
+     * Default implementation does nothing, leaving release to garbage
+     * collection.
+     */
+    public void release() { }
+
+    /*
+    /**********************************************************
+    /* Helper methods for decoding VInts
+    /**********************************************************
+     */
+
+    /**
+     * Method for decoding VInt starting at given offset; works similar to
+     * {@link com.ning.tr13.util.VInt#bytesToUnsigned(int, byte[], int, long[])}.
+     *
+     * @return Offset of the first byte following decoded VInt
+     */
+    public long readUnsigned(int bitsForFirstByte, long offset, long[] resultBuffer)
+    {
+        long value = byteAt(offset++) & ((1 << bitsForFirstByte) - 1);
+        final int marker = (1 << (bitsForFirstByte - 1));
+        if ((value & marker) != 0) { // if we have MSB set, it means 'last byte'
+            resultBuffer[0] = value ^ marker;
+            return offset;
+        }
+        while (true) {
+            int b = byteAt(offset++);
+            value = (value << 7) | (b & 0x7F);
+            if (b < 0) { // last byte
+                resultBuffer[0] = value;
+                return offset;
+            }
+        }
+    }
+
+    /**
+     * Method similar to {@link #readUnsigned}, but just skips VInt.
+     *
+     * @return Offset of the first byte following skipped VInt
+     */
+    public long skipUnsigned(int bitsForFirstByte, long offset)
+    {
+        int first = byteAt(offset++);
+        if ((first & (1 << (bitsForFirstByte - 1))) != 0) {
+            return offset;
+        }
+        while (byteAt(offset++) >= 0) { }
+        return offset;
+    }
+
+    /**
+     * Helper method for constructing a read-only view of given range
+     * of given buffer
+     */
+    public static ByteBuffer slice(ByteBuffer data, int offset, int length)
+    {
+        ByteBuffer bb = data.asReadOnlyBuffer();
+        bb.limit(offset + length);
+        bb.position(offset);
+        return bb.slice();
+    }
+
+    /*
+    /**********************************************************
+    /* Concrete implementations
+    /**********************************************************
+     */
+
+    /**
+     * Payload backed by a single byte array
+     */
+    public final static class ArrayBacked extends TriePayload
+    {
+        protected final byte[] _data;
+
+        public ArrayBacked(byte[] data) {
+            _data = data;
+        }
+
+        @Override
+        public long length() { return _data.length; }
+
+        @Override
+        public byte byteAt(long offset) {
+            return _data[(int) offset];
+        }
+
+        @Override
+        public void getBytes(long offset, byte[] buffer, int bufferOffset, int length) {
+            System.arraycopy(_data, (int) offset, buffer, bufferOffset, length);
+        }
+
+        @Override
+        public ByteBuffer slice(long offset, int length) {
+            return ByteBuffer.wrap(_data, (int) offset, length).slice().asReadOnlyBuffer();
+        }
+
+        @Override
+        public int indexOfLabel(long offset, int length, byte b) {
+            return ByteMatcher.indexOf(_data, (int) offset, length, b);
+        }
+    }
+
+    /**
+     * Payload backed by a single {@link ByteBuffer} (direct or heap-based)
+     */
+    public final static class BufferBacked extends TriePayload
+    {
+        protected final ByteBuffer _data;
+
+        protected final long _length;
+
+        public BufferBacked(ByteBuffer data, long length) {
+            _data = data;
+            _length = length;
+        }
+
+        @Override
+        public long length() { return _length; }
+
+        @Override
+        public byte byteAt(long offset) {
+            return _data.get((int) offset);
+        }
+
+        @Override
+        public void getBytes(long offset, byte[] buffer, int bufferOffset, int length)
+        {
+            int ptr = (int) offset;
+            if (length < BULK_COPY_THRESHOLD) {
+                for (int end = bufferOffset + length; bufferOffset < end; ) {
+                    buffer[bufferOffset++] = _data.get(ptr++);
+                }
+            } else { // no absolute bulk get in JDK 6, need a duplicate
+                ByteBuffer bb = _data.duplicate();
+                bb.position(ptr);
+                bb.get(buffer, bufferOffset, length);
+            }
+        }
+
+        @Override
+        public ByteBuffer slice(long offset, int length) {
+            return slice(_data, (int) offset, length);
+        }
+
+        @Override
+        public int indexOfLabel(long offset, int length, byte b) {
+            return ByteMatcher.indexOf(_data, (int) offset, length, b);
+        }
+    }
+}
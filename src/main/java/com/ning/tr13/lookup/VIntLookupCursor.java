@@ -0,0 +1,33 @@
+package com.ning.tr13.lookup;
+
+/**
+ * Reusable lookup object for VInt-valued tries: contains all traversal
+ * state needed for lookups, so that lookups done through it need not
+ * allocate anything. Instances are NOT thread-safe; the intent is that
+ * each thread constructs (and retains) its own cursor by calling
+ * {@link VIntTrieLookup#newCursor}.
+ * 
+ * @author tatu
+ */
+public abstract class VIntLookupCursor
+{
+    protected VIntLookupCursor() { }
+
+    /**
+     * Method for finding value of entry with given key, if one exists;
+     * if not, returns specified "missing" marker value.
+     */
+    public abstract long lookup(byte[] key, long missing);
+
+    /**
+     * Method similar to {@link #lookup(byte[], long)}, but for keys
+     * contained in a section of given byte array.
+     */
+    public abstract long lookup(byte[] key, int offset, int length, long missing);
+
+    /**
+     * Method similar to {@link #lookup(byte[], long)}, but for String keys;
+     * keys are encoded as UTF-8 during lookup, without allocating anything.
+     */
+    public abstract long lookup(CharSequence key, long missing);
+}
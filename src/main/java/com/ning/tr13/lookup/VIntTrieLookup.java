@@ -1,5 +1,6 @@
 package com.ning.tr13.lookup;
 
+import java.util.List;
 import java.util.NoSuchElementException;
 
 import com.ning.tr13.*;
@@ -18,6 +19,12 @@ public abstract class VIntTrieLookup
     @Override
     public abstract Long findValue(byte[] key);
 
+    @Override
+    public abstract Long findValue(byte[] key, int offset, int length);
+
+    @Override
+    public abstract Long findValue(CharSequence key);
+
     /*
     /********************************************************** 
     /* Type-specific extension for more optimal access
@@ -36,4 +43,181 @@ public abstract class VIntTrieLookup
      * found, returns specified default value
      */
     public abstract long getValue(byte[] key, long defaultValue);
+
+    /**
+     * Accessor similar to {@link #getValue(byte[], long)}, but for keys
+     * contained in a section of given byte array.
+     */
+    public abstract long getValue(byte[] key, int offset, int length, long defaultValue);
+
+    /**
+     * Accessor similar to {@link #getValue(byte[], long)}, but for String keys,
+     * which are encoded as UTF-8 during lookup.
+     */
+    public abstract long getValue(CharSequence key, long defaultValue);
+
+    /**
+     * Factory method for constructing a reusable lookup cursor, which
+     * allows doing lookups without allocating any temporary objects.
+     * Cursors are not thread-safe, so each thread needs to use its own
+     * instance.
+     */
+    public abstract VIntLookupCursor newCursor();
+
+    /**
+     * Method for constructing a lookup instance that shares trie data with
+     * this instance, but uses a {@link RootIndex} for skipping the top
+     * levels of the trie during lookups.
+     *
+     * @param maxIndexBytes Maximum amount of memory to use for the index:
+     *   at least {@link RootIndex#ONE_LEVEL_BYTES} is needed to index the
+     *   first key byte, and {@link RootIndex#TWO_LEVEL_BYTES} for the first
+     *   two; with less, no index is used
+     */
+    public abstract VIntTrieLookup withRootIndex(int maxIndexBytes);
+
+    /**
+     * Method for finding values for a batch of keys. Implementations
+     * may process keys in different order than given (for example, sort
+     * them to reuse traversal state for common key prefixes), but results
+     * are stored in the same order as keys.
+     *<p>
+     * Default implementation simply looks up keys one at a time.
+     * 
+     * @param keys Keys to look up
+     * @param results Array into which values are stored; value at index i
+     *    is the value for key at index i
+     * @param missing Value to store for keys that are not found
+     */
+    public void findValues(byte[][] keys, long[] results, long missing)
+    {
+        for (int i = 0, len = keys.length; i < len; ++i) {
+            results[i] = getValue(keys[i], missing);
+        }
+    }
+
+    /*
+    /**********************************************************
+    /* Ordered lookups
+    /**********************************************************
+     */
+
+    /**
+     * Method for finding the entry with the biggest key that is less than
+     * or equal to given key (using unsigned lexicographic ordering).
+     *
+     * @return Matching entry, if any; null if none
+     */
+    public TrieEntry<Long> floorEntry(byte[] key) {
+        return _entry(key, false, true);
+    }
+
+    /**
+     * Method for finding the entry with the smallest key that is greater
+     * than or equal to given key.
+     *
+     * @return Matching entry, if any; null if none
+     */
+    public TrieEntry<Long> ceilingEntry(byte[] key) {
+        return _entry(key, true, true);
+    }
+
+    /**
+     * Method for finding the entry with the smallest key that is greater
+     * than given key.
+     *
+     * @return Matching entry, if any; null if none
+     */
+    public TrieEntry<Long> higherEntry(byte[] key) {
+        return _entry(key, true, false);
+    }
+
+    /**
+     * Method for finding the entry with the biggest key that is less than
+     * given key.
+     *
+     * @return Matching entry, if any; null if none
+     */
+    public TrieEntry<Long> lowerEntry(byte[] key) {
+        return _entry(key, false, false);
+    }
+
+    protected TrieEntry<Long> _entry(byte[] key, boolean ceiling, boolean inclusive)
+    {
+        TrieCursor c = cursor();
+        boolean found = ceiling ? c.seekCeiling(key, inclusive) : c.seekFloor(key, inclusive);
+        if (!found) {
+            return null;
+        }
+        return new TrieEntry<Long>(c.getKey(), Long.valueOf(c.getLongValue()));
+    }
+
+    /*
+    /**********************************************************
+    /* Counting, positional access
+    /**********************************************************
+     */
+
+    /**
+     * Method for counting entries that have given key prefix (including
+     * entry with key equal to prefix, if any). Requires trie to have been
+     * built with subtree counts (see
+     * {@link com.ning.tr13.build.SimpleTrieBuilder#setSubtreeCounts}).
+     *
+     * @throws IllegalStateException If trie does not have subtree counts
+     */
+    public long countPrefix(byte[] prefix) {
+        return cursor().countPrefix(prefix);
+    }
+
+    /**
+     * Method for finding number of entries with keys less than given key
+     * (whether trie contains the key or not). Requires trie to have been
+     * built with subtree counts.
+     *
+     * @throws IllegalStateException If trie does not have subtree counts
+     */
+    public long rank(byte[] key) {
+        return cursor().rank(key);
+    }
+
+    /**
+     * Method for finding entry at given position in key order (first entry
+     * having index 0). Requires trie to have been built with subtree counts.
+     *
+     * @return Entry at given position; null if index is negative, or not
+     *   less than number of entries
+     *
+     * @throws IllegalStateException If trie does not have subtree counts
+     */
+    public TrieEntry<Long> select(long index)
+    {
+        TrieCursor c = cursor();
+        if (!c.seekIndex(index)) {
+            return null;
+        }
+        return new TrieEntry<Long>(c.getKey(), Long.valueOf(c.getLongValue()));
+    }
+
+    /*
+    /**********************************************************
+    /* Reverse lookups
+    /**********************************************************
+     */
+
+    /**
+     * Method for finding keys of all entries that have given value.
+     * Requires trie to have been built with a reverse index (see
+     * {@link com.ning.tr13.impl.vint.SimpleVIntTrieBuilder#setReverseIndex}),
+     * and read with a reader that supports it.
+     *
+     * @return Keys of entries with given value, in key order; empty list
+     *   if none
+     *
+     * @throws UnsupportedOperationException If trie does not have a reverse
+     *   index
+     */
+    public List<byte[]> findKeys(long value) {
+        throw new UnsupportedOperationException("Trie does not have a reverse index");
+    }
 }
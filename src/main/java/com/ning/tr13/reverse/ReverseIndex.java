@@ -0,0 +1,226 @@
+package com.ning.tr13.reverse;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.ning.tr13.lookup.TriePayload;
+
+/**
+ * Index that maps values of a VInt-valued trie to ordinals (positions
+ * in key order) of entries that have the value; keys themselves can
+ * then be reconstructed using subtree counts of the trie (see
+ * {@link com.ning.tr13.lookup.TrieCursor#seekIndex}).
+ *<p>
+ * Index is built by trie builder, and stored after the trie payload
+ * (see {@link com.ning.tr13.lookup.TrieHeader#FLAG_REVERSE_INDEX}).
+ * Serialized index is accessed as is, without copying it on heap;
+ * it consists of:
+ *<ol>
+ * <li>4-byte number of distinct values (D), followed by 4-byte number
+ *   of entries (N)
+ *  </li>
+ * <li>D 8-byte distinct values, in ascending order</li>
+ * <li>D+1 4-byte indexes into ordinal table: ordinals for i-th value are
+ *   between indexes i (inclusive) and i+1 (exclusive)
+ *  </li>
+ * <li>N 4-byte entry ordinals, ascending for each value</li>
+ *</ol>
+ * All numbers are in big-endian byte order.
+ *
+ * @author tatu
+ */
+public final class ReverseIndex
+{
+    private final static int HEADER_LENGTH = 8;
+
+    private final TriePayload _data;
+
+    private final int _valueCount;
+
+    private final int _entryCount;
+
+    /**
+     * Offset of the table of indexes into ordinal table
+     */
+    private final long _startsOffset;
+
+    /**
+     * Offset of the ordinal table
+     */
+    private final long _ordinalsOffset;
+
+    private ReverseIndex(TriePayload data, int valueCount, int entryCount)
+    {
+        _data = data;
+        _valueCount = valueCount;
+        _entryCount = entryCount;
+        _startsOffset = HEADER_LENGTH + ((long) valueCount << 3);
+        _ordinalsOffset = _startsOffset + (((long) valueCount + 1L) << 2);
+    }
+
+    /**
+     * Factory method for accessing serialized index contained in given
+     * payload.
+     */
+    public static ReverseIndex forPayload(TriePayload data) throws IOException
+    {
+        if (data.length() < HEADER_LENGTH) {
+            throw new IOException("Malformed reverse index: only "+data.length()+" bytes");
+        }
+        int valueCount = _getInt(data, 0);
+        int entryCount = _getInt(data, 4);
+        if (valueCount < 0 || entryCount < valueCount
+                || data.length() != serializedLength(valueCount, entryCount)) {
+            throw new IOException("Malformed reverse index: "+valueCount+" values, "+entryCount
+                    +" entries, "+data.length()+" bytes");
+        }
+        return new ReverseIndex(data, valueCount, entryCount);
+    }
+
+    /**
+     * Method for building serialized index, given values of all entries
+     * of a trie in key order.
+     *
+     * @param values Values of entries, indexed by entry ordinal
+     * @param count Number of entries
+     */
+    public static byte[] build(long[] values, int count)
+    {
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < count; ++i) {
+            if (i == 0 || sorted[i] != sorted[i-1]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        // first, number of entries for each distinct value
+        int[] starts = new int[distinct+1];
+        for (int i = 0; i < count; ++i) {
+            ++starts[Arrays.binarySearch(sorted, 0, distinct, values[i]) + 1];
+        }
+        for (int i = 0; i < distinct; ++i) {
+            starts[i+1] += starts[i];
+        }
+        // then ordinals, which end up being in ascending order for each value
+        int[] fill = Arrays.copyOf(starts, distinct);
+        int[] ordinals = new int[count];
+        for (int i = 0; i < count; ++i) {
+            ordinals[fill[Arrays.binarySearch(sorted, 0, distinct, values[i])]++] = i;
+        }
+        byte[] result = new byte[(int) serializedLength(distinct, count)];
+        _putInt(result, 0, distinct);
+        _putInt(result, 4, count);
+        int ptr = HEADER_LENGTH;
+        for (int i = 0; i < distinct; ++i) {
+            _putInt(result, ptr, (int) (sorted[i] >>> 32));
+            _putInt(result, ptr+4, (int) sorted[i]);
+            ptr += 8;
+        }
+        for (int start : starts) {
+            _putInt(result, ptr, start);
+            ptr += 4;
+        }
+        for (int ordinal : ordinals) {
+            _putInt(result, ptr, ordinal);
+            ptr += 4;
+        }
+        return result;
+    }
+
+    public static long serializedLength(int valueCount, int entryCount) {
+        return HEADER_LENGTH + ((long) valueCount << 3) + (((long) valueCount + 1L) << 2)
+            + ((long) entryCount << 2);
+    }
+
+    /*
+    /**********************************************************
+    /* Public API
+    /**********************************************************
+     */
+
+    /**
+     * @return Number of distinct values in the index
+     */
+    public int getValueCount() { return _valueCount; }
+
+    /**
+     * Method for releasing resources of the underlying data, if backend
+     * supports explicit release (see {@link TriePayload#release}).
+     */
+    public void release() {
+        _data.release();
+    }
+
+    /**
+     * @return Number of entries in the index
+     */
+    public int getEntryCount() { return _entryCount; }
+
+    /**
+     * Method for finding ordinals of entries that have given value.
+     *
+     * @return Ordinals of matching entries, in ascending order; empty
+     *   array if none
+     */
+    public long[] findOrdinals(long value)
+    {
+        int ix = _findValue(value);
+        if (ix < 0) {
+            return new long[0];
+        }
+        final long startsPtr = _startsOffset + (ix << 2);
+        final int start = _getInt(_data, startsPtr);
+        final int end = _getInt(_data, startsPtr + 4);
+        long[] result = new long[end - start];
+        long ptr = _ordinalsOffset + ((long) start << 2);
+        for (int i = 0; i < result.length; ++i, ptr += 4) {
+            result[i] = _getInt(_data, ptr) & 0xFFFFFFFFL;
+        }
+        return result;
+    }
+
+    /*
+    /**********************************************************
+    /* Internal methods
+    /**********************************************************
+     */
+
+    /**
+     * Binary search over distinct values
+     *
+     * @return Index of the value, if found; -1 if not
+     */
+    private int _findValue(long value)
+    {
+        int low = 0;
+        int high = _valueCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long ptr = HEADER_LENGTH + ((long) mid << 3);
+            long v = ((long) _getInt(_data, ptr) << 32) | (_getInt(_data, ptr+4) & 0xFFFFFFFFL);
+            if (v < value) {
+                low = mid+1;
+            } else if (v > value) {
+                high = mid-1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private static void _putInt(byte[] buffer, int ptr, int value)
+    {
+        buffer[ptr] = (byte) (value >> 24);
+        buffer[ptr+1] = (byte) (value >> 16);
+        buffer[ptr+2] = (byte) (value >> 8);
+        buffer[ptr+3] = (byte) value;
+    }
+
+    private static int _getInt(TriePayload data, long ptr)
+    {
+        return (data.byteAt(ptr) << 24) | ((data.byteAt(ptr+1) & 0xFF) << 16)
+            | ((data.byteAt(ptr+2) & 0xFF) << 8) | (data.byteAt(ptr+3) & 0xFF);
+    }
+}
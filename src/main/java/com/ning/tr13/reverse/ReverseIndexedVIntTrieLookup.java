@@ -0,0 +1,138 @@
+package com.ning.tr13.reverse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.ning.tr13.lookup.PrefixMatch;
+import com.ning.tr13.lookup.TrieCursor;
+import com.ning.tr13.lookup.VIntLookupCursor;
+import com.ning.tr13.lookup.VIntTrieLookup;
+
+/**
+ * {@link VIntTrieLookup} that wraps another lookup instance, and uses
+ * a {@link ReverseIndex} for finding keys of entries with given value
+ * (see {@link #findKeys}). Keys are not stored in the index, but
+ * reconstructed from the trie using subtree counts, so underlying trie
+ * must have been built with them.
+ *<p>
+ * All other operations are delegated as is.
+ *
+ * @author tatu
+ */
+public class ReverseIndexedVIntTrieLookup
+    extends VIntTrieLookup
+{
+    protected final VIntTrieLookup _trie;
+
+    protected final ReverseIndex _index;
+
+    public ReverseIndexedVIntTrieLookup(VIntTrieLookup trie, ReverseIndex index)
+    {
+        _trie = trie;
+        _index = index;
+    }
+
+    public VIntTrieLookup getUnderlyingTrie() { return _trie; }
+
+    public ReverseIndex getReverseIndex() { return _index; }
+
+    /*
+    /**********************************************************
+    /* VIntTrieLookup impl
+    /**********************************************************
+     */
+
+    @Override
+    public Long findValue(byte[] key) {
+        return _trie.findValue(key);
+    }
+
+    @Override
+    public Long findValue(byte[] key, int offset, int length) {
+        return _trie.findValue(key, offset, length);
+    }
+
+    @Override
+    public Long findValue(CharSequence key) {
+        return _trie.findValue(key);
+    }
+
+    @Override
+    public long getValue(byte[] key) throws NoSuchElementException {
+        return _trie.getValue(key);
+    }
+
+    @Override
+    public long getValue(byte[] key, long defaultValue) {
+        return _trie.getValue(key, defaultValue);
+    }
+
+    @Override
+    public long getValue(byte[] key, int offset, int length, long defaultValue) {
+        return _trie.getValue(key, offset, length, defaultValue);
+    }
+
+    @Override
+    public long getValue(CharSequence key, long defaultValue) {
+        return _trie.getValue(key, defaultValue);
+    }
+
+    @Override
+    public void findValues(byte[][] keys, long[] results, long missing) {
+        _trie.findValues(keys, results, missing);
+    }
+
+    @Override
+    public PrefixMatch<Long> findLongestPrefix(byte[] key) {
+        return _trie.findLongestPrefix(key);
+    }
+
+    @Override
+    public boolean containsKey(byte[] key) {
+        return _trie.containsKey(key);
+    }
+
+    @Override
+    public TrieCursor cursor(byte[] prefix) {
+        return _trie.cursor(prefix);
+    }
+
+    /**
+     * Keys are reconstructed by positioning a single cursor at ordinals
+     * of matching entries, in ascending order.
+     */
+    @Override
+    public List<byte[]> findKeys(long value)
+    {
+        long[] ordinals = _index.findOrdinals(value);
+        List<byte[]> result = new ArrayList<byte[]>(ordinals.length);
+        if (ordinals.length > 0) {
+            TrieCursor c = _trie.cursor();
+            for (long ordinal : ordinals) {
+                if (!c.seekIndex(ordinal)) { // should never occur with valid data
+                    throw new IllegalStateException("Reverse index refers to entry #"+ordinal
+                            +", not found in trie");
+                }
+                result.add(c.getKey());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public ReverseIndexedVIntTrieLookup withRootIndex(int maxIndexBytes) {
+        return new ReverseIndexedVIntTrieLookup(_trie.withRootIndex(maxIndexBytes), _index);
+    }
+
+    @Override
+    public void release() {
+        _trie.release();
+        _index.release();
+    }
+
+    @Override
+    public VIntLookupCursor newCursor() {
+        return _trie.newCursor();
+    }
+}
@@ -0,0 +1,86 @@
+package com.ning.tr13.tools;
+
+import java.io.*;
+import java.util.*;
+
+import com.ning.tr13.TrieLookups;
+import com.ning.tr13.build.KeyWeights;
+import com.ning.tr13.impl.vint.SimpleVIntTrieBuilder;
+import com.ning.tr13.impl.vint.VIntValueReader;
+import com.ning.tr13.lookup.InstrumentedTrieLookup;
+import com.ning.tr13.lookup.TraversalHistograms;
+import com.ning.tr13.lookup.VIntTrieLookup;
+import com.ning.tr13.util.UTF8Codec;
+
+/**
+ * Tool for evaluating ordering of branch children by access frequency
+ * (see {@link com.ning.tr13.build.SimpleTrieBuilder#setKeyWeights}):
+ * builds a VInt trie from given input file both with default reordering
+ * (biggest children first) and with children ordered by key weights
+ * counted from a query log, replays lookups of a query log against both
+ * and reports how many siblings lookups had to skip.
+ *<p>
+ * By default same log is used for weights and replay; to avoid
+ * over-fitting, a separate log (like one from a later period)
+ * can be given for replay.
+ */
+public class AccessOrderReplay
+{
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: java ... [input-file] [query-log-for-weights] ([query-log-to-replay])");
+            System.exit(1);
+        }
+        File input = new File(args[0]);
+        File weightLog = new File(args[1]);
+        File replayLog = (args.length > 2) ? new File(args[2]) : weightLog;
+
+        KeyWeights weights = KeyWeights.fromQueryLog(weightLog);
+        System.out.println("Read weights for "+weights.size()+" distinct keys from '"+weightLog+"'");
+        List<byte[]> queries = readQueries(replayLog);
+        System.out.println("Replaying "+queries.size()+" lookups from '"+replayLog+"'");
+
+        SimpleVIntTrieBuilder b = new SimpleVIntTrieBuilder(new VIntValueReader(input));
+        b.setReorderEntries(true);
+        TraversalHistograms bySize = replay(b.build().serialize(), queries);
+        b = new SimpleVIntTrieBuilder(new VIntValueReader(input));
+        b.setKeyWeights(weights);
+        TraversalHistograms byWeight = replay(b.build().serialize(), queries);
+
+        System.out.println("Ordered by size:\n"+bySize);
+        System.out.println("Ordered by access weight:\n"+byWeight);
+        double before = bySize.getSiblingsSkipped().getMean();
+        double after = byWeight.getSiblingsSkipped().getMean();
+        System.out.printf("Average siblings skipped: %.2f -> %.2f (%.1f%% reduction)\n",
+                before, after, (before == 0.0) ? 0.0 : 100.0 * (before - after) / before);
+    }
+
+    protected static TraversalHistograms replay(byte[] raw, List<byte[]> queries)
+    {
+        VIntTrieLookup trie = TrieLookups.constructByteArrayVIntTrie(raw);
+        TraversalHistograms stats = new TraversalHistograms();
+        InstrumentedTrieLookup<Long> inst = new InstrumentedTrieLookup<Long>(trie, stats);
+        for (byte[] key : queries) {
+            inst.findValue(key);
+        }
+        return stats;
+    }
+
+    protected static List<byte[]> readQueries(File f) throws IOException
+    {
+        ArrayList<byte[]> queries = new ArrayList<byte[]>();
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), UTF8Codec.UTF8));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) continue;
+                queries.add(UTF8Codec.encodeAsUTF8(line));
+            }
+        } finally {
+            r.close();
+        }
+        return queries;
+    }
+}
@@ -0,0 +1,128 @@
+package com.ning.tr13.tools;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import com.ning.tr13.KeyValueSource;
+import com.ning.tr13.build.SimpleTrieBuilder;
+import com.ning.tr13.impl.vint.*;
+import com.ning.tr13.lookup.VIntTrieLookup;
+import com.ning.tr13.util.UTF8Codec;
+
+/**
+ * Benchmark for comparing random-access lookup speed of tries built
+ * with different node layouts: default (key order), reordered (biggest
+ * children first) and cache-line layout (see
+ * {@link SimpleTrieBuilder#setCacheLineLayout}). Differences are most
+ * visible with tries much bigger than CPU caches, so by default, keys
+ * are generated: number of keys to generate is given as argument
+ * (20 million keys result in tries of about 160 megabytes). Alternatively
+ * a VInt input file can be given, as with {@link VIntSpeedTest}.
+ * Tries are held in direct byte buffers.
+ */
+public class LayoutSpeedTest
+{
+    /**
+     * We'll sample key set, take and use every Nth entry...
+     */
+    public final static int KEY_SAMPLING_RATIO = 29;
+
+    private final static String[] LAYOUTS = { "default", "reordered", "cache-line" };
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length != 1) {
+            System.err.println("Usage: java ... [key-count | input-file]");
+            System.exit(1);
+        }
+        final String arg = args[0];
+        final boolean generate = arg.matches("\\d+");
+        System.out.println("Loading keys...");
+        VIntSpeedTest.KeyEntry[] entries;
+        if (generate) {
+            entries = sampleKeys(new GeneratedSource(Integer.parseInt(arg)), KEY_SAMPLING_RATIO);
+        } else {
+            entries = VIntSpeedTest.loadKeys(new File(arg), KEY_SAMPLING_RATIO);
+        }
+        VIntSpeedTest.shuffleEntries(entries);
+
+        VIntTrieLookup[] tries = new VIntTrieLookup[LAYOUTS.length];
+        for (int i = 0; i < LAYOUTS.length; ++i) {
+            System.out.print("Building trie with "+LAYOUTS[i]+" layout... ");
+            KeyValueSource<Long> src = generate ? new GeneratedSource(Integer.parseInt(arg))
+                : new VIntValueReader(new File(arg));
+            SimpleVIntTrieBuilder b = new SimpleVIntTrieBuilder(src);
+            b.setReorderEntries(i == 1);
+            b.setCacheLineLayout(i == 2);
+            byte[] raw = b.build().serialize();
+            b = null;
+            ByteBuffer bb = ByteBuffer.allocateDirect(raw.length);
+            bb.put(raw);
+            tries[i] = new ByteBufferVIntTrieLookup(bb, raw.length);
+            System.out.println(raw.length+" bytes");
+        }
+
+        VIntSpeedTest test = new VIntSpeedTest(entries);
+        for (int round = 0; true; ++round) {
+            int i = round % LAYOUTS.length;
+            long start = System.nanoTime();
+            long result = test.test(tries[i]);
+            long time = System.nanoTime() - start;
+            System.out.printf("%s layout: %.1f nsecs per lookup (result %s)\n", LAYOUTS[i],
+                    (double) time / entries.length, Long.toHexString(result));
+            Thread.sleep(100L);
+        }
+    }
+
+    protected static VIntSpeedTest.KeyEntry[] sampleKeys(KeyValueSource<Long> src, final int sampleRatio)
+        throws IOException
+    {
+        final ArrayList<VIntSpeedTest.KeyEntry> entries = new ArrayList<VIntSpeedTest.KeyEntry>();
+        src.readAll(new KeyValueSource.ValueCallback<Long>() {
+            private int _count;
+
+            @Override
+            public void handleEntry(byte[] key, Long value) {
+                if ((++_count % sampleRatio) == 0) {
+                    entries.add(new VIntSpeedTest.KeyEntry(key, value));
+                }
+            }
+        });
+        System.out.println("Generated "+(src.getLineNumber()>>10)+"k entries, sampled "+(entries.size()>>10)+"k.");
+        return entries.toArray(new VIntSpeedTest.KeyEntry[entries.size()]);
+    }
+
+    /**
+     * Source that generates given number of keys in ascending order:
+     * keys are zero-padded decimal numbers with random gaps, so that they
+     * share prefixes the way real identifiers often do. Same keys are
+     * generated on each call.
+     */
+    final static class GeneratedSource
+        extends KeyValueSource<Long>
+    {
+        private final int _count;
+
+        private int _lineNr;
+
+        public GeneratedSource(int count) {
+            _count = count;
+        }
+
+        @Override
+        public void readAll(ValueCallback<Long> handler)
+        {
+            Random r = new Random(_count);
+            long id = 0L;
+            _lineNr = 0;
+            while (_lineNr < _count) {
+                id += 1 + r.nextInt(400);
+                ++_lineNr;
+                handler.handleEntry(UTF8Codec.encodeAsUTF8(String.format("%014d", id)), id & 0xFFFFFL);
+            }
+        }
+
+        @Override public int getLineNumber() { return _lineNr; }
+    }
+}
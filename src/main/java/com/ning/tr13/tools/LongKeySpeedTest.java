@@ -0,0 +1,100 @@
+package com.ning.tr13.tools;
+
+import java.util.*;
+
+import com.ning.tr13.impl.vint.*;
+
+/**
+ * Benchmark for comparing lookup speed of {@link LongKeyTrieLookup}
+ * (keys passed as <code>long</code>s) against regular
+ * {@link ByteArrayVIntTrieLookup} over the same trie, with keys encoded
+ * into byte arrays for each lookup. Keys are generated: number of keys
+ * is given as argument; optional second argument is minimum child count
+ * for indexed branches (default 16; 0 to disable).
+ */
+public class LongKeySpeedTest
+{
+    /**
+     * We'll sample key set, take and use every Nth entry...
+     */
+    public final static int KEY_SAMPLING_RATIO = 7;
+
+    private final static int MIN_LOOKUPS_PER_ROUND = 1000000;
+
+    private final static String[] LOOKUPS = { "byte[] keys", "long keys" };
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java ... [key-count] (min-indexed-children)");
+            System.exit(1);
+        }
+        final int count = Integer.parseInt(args[0]);
+        final int minChildren = (args.length > 1) ? Integer.parseInt(args[1]) : 16;
+        // keys are ids with small random gaps, so lower levels are dense
+        Random r = new Random(count);
+        long[] keys = new long[count];
+        long[] values = new long[count];
+        long id = 1L << 40;
+        for (int i = 0; i < count; ++i) {
+            id += 1 + r.nextInt(12);
+            keys[i] = id;
+            values[i] = id & 0xFFFFFL;
+        }
+        System.out.print("Building trie with "+count+" keys... ");
+        SimpleVIntTrieBuilder b = new SimpleVIntTrieBuilder(new LongKeyValueSource(keys, values));
+        b.setIndexedBranchMinChildren(minChildren);
+        byte[] raw = b.build().serialize();
+        b = null;
+        System.out.println(raw.length+" bytes");
+
+        long[] sample = new long[count / KEY_SAMPLING_RATIO];
+        for (int i = 0; i < sample.length; ++i) {
+            sample[i] = keys[i * KEY_SAMPLING_RATIO];
+        }
+        keys = null;
+        values = null;
+        // shuffle, to get random access
+        for (int i = sample.length; --i > 0; ) {
+            int j = r.nextInt(i+1);
+            long tmp = sample[i];
+            sample[i] = sample[j];
+            sample[j] = tmp;
+        }
+        // small key sets need to be looked up repeatedly, for reliable timing
+        final int repeats = Math.max(1, MIN_LOOKUPS_PER_ROUND / sample.length);
+        ByteArrayVIntTrieLookup bytesTrie = new ByteArrayVIntTrieLookup(raw);
+        LongKeyTrieLookup longTrie = new LongKeyTrieLookup(raw);
+
+        for (int round = 0; true; ++round) {
+            int i = round % LOOKUPS.length;
+            long start = System.nanoTime();
+            long result = 0L;
+            for (int j = 0; j < repeats; ++j) {
+                result += (i == 0) ? testBytes(bytesTrie, sample) : testLongs(longTrie, sample);
+            }
+            long time = System.nanoTime() - start;
+            System.out.printf("%s: %.1f nsecs per lookup (result %s)\n", LOOKUPS[i],
+                    (double) time / (repeats * sample.length), Long.toHexString(result));
+            Thread.sleep(100L);
+        }
+    }
+
+    protected static long testBytes(ByteArrayVIntTrieLookup trie, long[] keys)
+    {
+        long total = 0L;
+        for (long key : keys) {
+            total += trie.getValue(LongKeyValueSource.keyBytes(key), -1L);
+        }
+        return total;
+    }
+
+    protected static long testLongs(LongKeyTrieLookup trie, long[] keys)
+    {
+        long total = 0L;
+        for (long key : keys) {
+            total += trie.getValue(key, -1L);
+        }
+        return total;
+    }
+}
@@ -18,6 +18,12 @@ public abstract class TrieDumper
 {
     private final long[] tmpLongValueBuffer = new long[1];
 
+    /**
+     * Whether branches of the trie being dumped start with number of
+     * entries in their subtree (which is just skipped)
+     */
+    protected boolean subtreeCounts;
+
     private final static byte[] LF = new byte[] { '\n' };
     
     protected final char valueSeparator;
@@ -33,6 +39,7 @@ public abstract class TrieDumper
         InputUtil.readFully(in, buffer);
         // First: let's verify signature, header
         TrieHeader header = TrieHeader.read(buffer, 0);
+        subtreeCounts = header.hasFlag(TrieHeader.FLAG_SUBTREE_COUNTS);
         long len = header.getPayloadLength();
         if (len > Integer.MAX_VALUE) {
             throw new IOException("Too big input file (over 2 gigs)");
@@ -95,8 +102,14 @@ public abstract class TrieDumper
         if (blockLen < 0L) { // sanity check
             throw new IOException("Corrupt trie structure: branch had negative block length at index "+origOffset);
         }
+        if (blockLen == 0L) { // indexed branch
+            return readAndDumpIndexed(out, block, offset, keyBuffer, keyLen);
+        }
         final long end = offset + blockLen;
         origOffset = offset;
+        if (subtreeCounts) {
+            offset = VInt.skipUnsigned(8, block, offset);
+        }
         do {
             byte nextByte = block[offset++];
             keyBuffer = _appendKey(keyBuffer, nextByte, keyLen);
@@ -111,6 +124,44 @@ public abstract class TrieDumper
         return offset;
     }
 
+    /**
+     * Helper method for dumping contents of an indexed branch; children are
+     * dumped in order of the child byte table (that is, in ascending byte order).
+     */
+    protected int readAndDumpIndexed(OutputStream out,
+            byte[] block, int offset, byte[] keyBuffer, int keyLen) throws IOException
+    {
+        final int origOffset = offset;
+        offset = VInt.bytesToUnsigned(8, block, offset, tmpLongValueBuffer);
+        long indexedLen = tmpLongValueBuffer[0];
+        if (indexedLen < 2L || (offset + indexedLen) > block.length) {
+            throw new IOException("Corrupt trie structure: indexed branch length "+indexedLen
+                    +" (at offset "+origOffset+") invalid");
+        }
+        final int end = offset + (int) indexedLen;
+        if (subtreeCounts) {
+            offset = VInt.skipUnsigned(8, block, offset);
+        }
+        final int count = (block[offset] & 0xFF) + 1;
+        final int width = block[offset+1];
+        final int labels = offset+2;
+        final int children = labels + count + (count * width);
+        for (int i = 0; i < count; ++i) {
+            int offsetPtr = labels + count + (i * width);
+            int childOffset = 0;
+            for (int j = 0; j < width; ++j) {
+                childOffset = (childOffset << 8) | (block[offsetPtr++] & 0xFF);
+            }
+            if ((children + childOffset) >= end) {
+                throw new IOException("Corrupt trie structure: indexed branch (at offset "+origOffset
+                        +") has child offset "+childOffset+" past its end");
+            }
+            keyBuffer = _appendKey(keyBuffer, block[labels+i], keyLen);
+            readAndDump(out, block, children + childOffset, keyBuffer, keyLen+1);
+        }
+        return end;
+    }
+
     private void _writeValue(OutputStream out, byte[] keyBuffer, int keyLen, long value,
             byte[] extraKey, int extraKeyOffset, int extraKeyLen) throws IOException
     {
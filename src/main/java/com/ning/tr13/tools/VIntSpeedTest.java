@@ -7,6 +7,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import com.ning.tr13.*;
 import com.ning.tr13.impl.vint.*;
+import com.ning.tr13.lookup.VIntTrieLookup;
 
 public class VIntSpeedTest
 {
@@ -14,6 +15,12 @@ public class VIntSpeedTest
      * We'll sample key set, take and use every Nth entry...
      */
     public final static int KEY_SAMPLING_RATIO = 39;
+
+    /**
+     * Number of keys to look up using a single call, when testing
+     * batch lookups
+     */
+    public final static int BATCH_SIZE = 200;
     
     private final KeyEntry[] entries;
     
@@ -37,6 +44,56 @@ public class VIntSpeedTest
         return total;
     }
     
+    /**
+     * Alternative test that only checks existence of keys, using
+     * {@link TrieLookup#containsKey}, to compare against cost of
+     * full value lookups.
+     */
+    public long testContains(TrieLookup<Long> lookup)
+    {
+        long total = 0L;
+        for (int i = 0, len = entries.length; i < len; ++i) {
+            if (!lookup.containsKey(entries[i].rawKey)) {
+                throw new IllegalStateException("Problem with "+lookup+", entry #"+i+" not found");
+            }
+            ++total;
+        }
+        return total;
+    }
+
+    /**
+     * Alternative test that looks up keys in batches of given size, using
+     * {@link VIntTrieLookup#findValues}.
+     */
+    public long testBatch(VIntTrieLookup lookup, int batchSize)
+    {
+        long total = 0L;
+        final byte[][] keys = new byte[batchSize][];
+        final long[] values = new long[batchSize];
+        for (int i = 0, len = entries.length; i < len; i += batchSize) {
+            int count = Math.min(batchSize, len - i);
+            byte[][] batch = keys;
+            long[] results = values;
+            if (count < batchSize) { // last batch may be partial
+                batch = new byte[count][];
+                results = new long[count];
+            }
+            for (int j = 0; j < count; ++j) {
+                batch[j] = entries[i+j].rawKey;
+            }
+            lookup.findValues(batch, results, -1L);
+            for (int j = 0; j < count; ++j) {
+                long value = results[j];
+                if (value != entries[i+j].value) {
+                    throw new IllegalStateException("Problem with "+lookup+", entry #"+(i+j)+", value "
+                            +value+"; expected "+entries[i+j].value);
+                }
+                total += value;
+            }
+        }
+        return total;
+    }
+    
     protected static KeyEntry[] loadKeys(File f, final int sampleRatio)
         throws IOException
     {
@@ -92,32 +149,38 @@ public class VIntSpeedTest
         b.setReorderEntries(REORDER);
         byte[] rawTrie = b.build().serialize();
         b = null; // just ensure we can GC interemediate stuff
-        TrieLookup<Long> arrayBased = new ByteArrayVIntTrieLookup(rawTrie);
+        VIntTrieLookup arrayBased = new ByteArrayVIntTrieLookup(rawTrie);
         ByteBuffer buffer = ByteBuffer.allocateDirect((int) rawTrie.length);
         System.out.println("ByteBuffer: is-direct? "+buffer.isDirect());
         buffer.put(rawTrie);
 
-        TrieLookup<Long> bufferBased = new ByteBufferVIntTrieLookup(buffer, rawTrie.length);
+        VIntTrieLookup bufferBased = new ByteBufferVIntTrieLookup(buffer, rawTrie.length);
         VIntSpeedTest test = new VIntSpeedTest(entries);
         for (int i = 0; true; ++i) {
             long start = System.currentTimeMillis();
-            TrieLookup<Long> trie;
-            switch (i % 2) {
-            case 1:
-                trie = bufferBased;
-                break;
-            default:
-                trie = arrayBased;
+            VIntTrieLookup trie = ((i % 2) == 0) ? arrayBased : bufferBased;
+            // and alternate between single-key, batch and existence-only lookups
+            int mode = (i % 6) >> 1;
+            long result;
+            String desc;
+            if (mode == 0) {
+                result = test.test(trie);
+                desc = " (single keys)";
+            } else if (mode == 1) {
+                result = test.testBatch(trie, BATCH_SIZE);
+                desc = " (batches of "+BATCH_SIZE+")";
+            } else {
+                result = test.testContains(trie);
+                desc = " (containsKey)";
             }
-            long result = test.test(trie);
             long time = System.currentTimeMillis() - start;
-            System.out.println("Took "+time+" msecs for "+trie.getClass()+" (result "
-                    +Long.toHexString(result)+")");
+            System.out.println("Took "+time+" msecs for "+trie.getClass()
+                    +desc+" (result "+Long.toHexString(result)+")");
             Thread.sleep(100L);
         }
     }
 
-    private final static class KeyEntry {
+    final static class KeyEntry {
         public final byte[] rawKey;
         public final long value;
         
@@ -0,0 +1,126 @@
+package com.ning.tr13.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Helper class for finding a byte in sorted byte sequences (like child
+ * labels of indexed branches), 8 bytes at a time. Sequence is split
+ * into 8-byte words; binary search over last bytes of words finds the
+ * only word that can contain the byte, and that word is then compared
+ * against the byte using "SIMD within a register" (SWAR) arithmetics,
+ * without branching per byte. So finding a byte among 256 takes 5 probes
+ * and one word comparison, instead of 8 probes.
+ */
+public class ByteMatcher
+{
+    private final static long LOW_7_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    private final static long LOW_BITS = 0x0101010101010101L;
+
+    private ByteMatcher() { }
+
+    /**
+     * Method for finding index of given byte within sorted sequence
+     * of unsigned bytes.
+     *
+     * @return Index of the byte (relative to offset), if found; -1 if not
+     */
+    public static int indexOf(byte[] buffer, int offset, int length, byte b)
+    {
+        final int value = b & 0xFF;
+        if (length < 8) {
+            for (int i = 0; i < length; ++i) {
+                int label = buffer[offset+i] & 0xFF;
+                if (label >= value) {
+                    return (label == value) ? i : -1;
+                }
+            }
+            return -1;
+        }
+        // find the first word whose last byte is not less than the byte
+        int low = 0;
+        int high = length >> 3;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if ((buffer[offset + (mid << 3) + 7] & 0xFF) < value) {
+                low = mid+1;
+            } else {
+                high = mid;
+            }
+        }
+        // if none, check the last (partial) word, overlapping previous one
+        int start = Math.min(low << 3, length-8);
+        return _indexIn(_getLong(buffer, offset+start), value, start);
+    }
+
+    /**
+     * Method for finding index of given byte within sorted sequence
+     * of unsigned bytes in given buffer (absolute offset, position not
+     * changed).
+     *
+     * @return Index of the byte (relative to offset), if found; -1 if not
+     */
+    public static int indexOf(ByteBuffer buffer, int offset, int length, byte b)
+    {
+        final int value = b & 0xFF;
+        if (length < 8) {
+            for (int i = 0; i < length; ++i) {
+                int label = buffer.get(offset+i) & 0xFF;
+                if (label >= value) {
+                    return (label == value) ? i : -1;
+                }
+            }
+            return -1;
+        }
+        int low = 0;
+        int high = length >> 3;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if ((buffer.get(offset + (mid << 3) + 7) & 0xFF) < value) {
+                low = mid+1;
+            } else {
+                high = mid;
+            }
+        }
+        int start = Math.min(low << 3, length-8);
+        long word = buffer.getLong(offset+start);
+        if (buffer.order() != ByteOrder.BIG_ENDIAN) {
+            word = Long.reverseBytes(word);
+        }
+        return _indexIn(word, value, start);
+    }
+
+    /*
+    /**********************************************************
+    /* Internal methods
+    /**********************************************************
+     */
+
+    /**
+     * @return Index of the byte within sequence, if given word (that starts
+     *   at given index of sequence) contains it; -1 if not
+     */
+    private static int _indexIn(long word, int value, int start)
+    {
+        // high bit gets set for exactly those bytes that are zero after xor
+        long x = word ^ (LOW_BITS * value);
+        long found = ~(((x & LOW_7_BITS) + LOW_7_BITS) | x | LOW_7_BITS);
+        if (found == 0L) {
+            return -1;
+        }
+        return start + (Long.numberOfLeadingZeros(found) >> 3);
+    }
+
+    private static long _getLong(byte[] buffer, int offset)
+    {
+        return ((long) buffer[offset] << 56)
+            | ((buffer[offset+1] & 0xFFL) << 48)
+            | ((buffer[offset+2] & 0xFFL) << 40)
+            | ((buffer[offset+3] & 0xFFL) << 32)
+            | ((buffer[offset+4] & 0xFFL) << 24)
+            | ((buffer[offset+5] & 0xFFL) << 16)
+            | ((buffer[offset+6] & 0xFFL) << 8)
+            | (buffer[offset+7] & 0xFFL);
+    }
+}
@@ -0,0 +1,164 @@
+package com.ning.tr13.util;
+
+/**
+ * Helper class for accessing UTF-8 encoded representation of a
+ * {@link CharSequence} one byte at a time, encoding characters as
+ * they are needed: used for lookups with String keys, to avoid having
+ * to encode the whole key into a byte array first.
+ * Instances are reusable (see {@link #reset}), but not thread-safe.
+ */
+public final class UTF8KeyReader
+{
+    private final static int SURR1_FIRST = 0xD800;
+    private final static int SURR1_LAST = 0xDBFF;
+    private final static int SURR2_FIRST = 0xDC00;
+    private final static int SURR2_LAST = 0xDFFF;
+
+    private CharSequence _chars;
+
+    /**
+     * Index of the next character to encode
+     */
+    private int _charPtr;
+
+    private int _charEnd;
+
+    /**
+     * UTF-8 bytes of the character being accessed, right-aligned
+     */
+    private int _current;
+
+    /**
+     * Number of UTF-8 bytes in {@link #_current}
+     */
+    private int _currentLength;
+
+    /**
+     * Number of bytes of {@link #_current} already consumed
+     */
+    private int _currentPtr;
+
+    public UTF8KeyReader() { }
+
+    public UTF8KeyReader reset(CharSequence chars)
+    {
+        _chars = chars;
+        _charPtr = 0;
+        _charEnd = chars.length();
+        _currentLength = 0;
+        _currentPtr = 0;
+        return this;
+    }
+
+    /*
+    /**********************************************************
+    /* Public API
+    /**********************************************************
+     */
+
+    public boolean atEnd() {
+        return (_currentPtr == _currentLength) && (_charPtr == _charEnd);
+    }
+
+    /**
+     * Method for accessing the next byte, without consuming it. Caller must
+     * ensure that there is one (see {@link #atEnd}).
+     */
+    public byte peek()
+    {
+        if (_currentPtr == _currentLength) {
+            _encodeNext();
+        }
+        return (byte) (_current >>> ((_currentLength - 1 - _currentPtr) << 3));
+    }
+
+    /**
+     * Method for consuming the next byte. Caller must ensure that there
+     * is one (see {@link #atEnd}).
+     */
+    public void skip()
+    {
+        if (_currentPtr == _currentLength) {
+            _encodeNext();
+        }
+        ++_currentPtr;
+    }
+
+    /**
+     * Method for consuming the next byte, if it equals given byte.
+     * Caller must ensure that there is one (see {@link #atEnd}).
+     */
+    public boolean matchNext(byte b)
+    {
+        if (peek() == b) {
+            ++_currentPtr;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Method for calculating number of bytes remaining; since this requires
+     * scanning through the rest of characters, it should only be called
+     * when needed (like when matching the suffix of a leaf).
+     */
+    public int remaining()
+    {
+        int count = _currentLength - _currentPtr;
+        for (int i = _charPtr; i < _charEnd; ++i) {
+            char c = _chars.charAt(i);
+            if (c < 0x80) {
+                ++count;
+            } else if (c < 0x800) {
+                count += 2;
+            } else if (c >= SURR1_FIRST && c <= SURR1_LAST) { // surrogate pair
+                count += 4;
+                ++i;
+            } else {
+                count += 3;
+            }
+        }
+        return count;
+    }
+
+    /*
+    /**********************************************************
+    /* Internal methods
+    /**********************************************************
+     */
+
+    private void _encodeNext()
+    {
+        int c = _chars.charAt(_charPtr++);
+        _currentPtr = 0;
+        if (c < 0x80) {
+            _current = c;
+            _currentLength = 1;
+        } else if (c < 0x800) {
+            _current = ((0xC0 | (c >> 6)) << 8) | (0x80 | (c & 0x3F));
+            _currentLength = 2;
+        } else if (c < SURR1_FIRST || c > SURR2_LAST) {
+            _current = ((0xE0 | (c >> 12)) << 16)
+                | ((0x80 | ((c >> 6) & 0x3F)) << 8)
+                | (0x80 | (c & 0x3F));
+            _currentLength = 3;
+        } else { // surrogate pair
+            if (c > SURR1_LAST) {
+                throw new IllegalArgumentException("Unmatched second part of surrogate pair (0x"+Integer.toHexString(c)+")");
+            }
+            if (_charPtr >= _charEnd) {
+                throw new IllegalArgumentException("Unmatched first part of surrogate pair (0x"+Integer.toHexString(c)+")");
+            }
+            int d = _chars.charAt(_charPtr++);
+            if (d < SURR2_FIRST || d > SURR2_LAST) {
+                throw new IllegalArgumentException("Broken surrogate pair: first char 0x"+Integer.toHexString(c)+", second 0x"+Integer.toHexString(d)+"; illegal combination");
+            }
+            c = 0x10000 + ((c - SURR1_FIRST) << 10) + (d - SURR2_FIRST);
+            _current = ((0xF0 | (c >> 18)) << 24)
+                | ((0x80 | ((c >> 12) & 0x3F)) << 16)
+                | ((0x80 | ((c >> 6) & 0x3F)) << 8)
+                | (0x80 | (c & 0x3F));
+            _currentLength = 4;
+        }
+    }
+}
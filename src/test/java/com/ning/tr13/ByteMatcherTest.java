@@ -0,0 +1,83 @@
+package com.ning.tr13;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+
+import com.ning.tr13.lookup.MappedTriePayload;
+import com.ning.tr13.lookup.TriePayload;
+import com.ning.tr13.util.ByteMatcher;
+
+public class ByteMatcherTest
+    extends junit.framework.TestCase
+{
+    public void testAllLengths() throws Exception
+    {
+        Random r = new Random(17);
+        for (int length = 0; length <= 256; ++length) {
+            // random subset of given size, with some padding around it
+            TreeSet<Integer> set = new TreeSet<Integer>();
+            while (set.size() < length) {
+                set.add(r.nextInt(256));
+            }
+            byte[] data = new byte[length+6];
+            Arrays.fill(data, (byte) 0x55);
+            int i = 3;
+            for (Integer b : set) {
+                data[i++] = (byte) b.intValue();
+            }
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data);
+            ByteBuffer little = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            for (int b = 0; b < 256; ++b) {
+                int exp = set.contains(b) ? set.headSet(b).size() : -1;
+                assertEquals(exp, ByteMatcher.indexOf(data, 3, length, (byte) b));
+                assertEquals(exp, ByteMatcher.indexOf(direct, 3, length, (byte) b));
+                assertEquals(exp, ByteMatcher.indexOf(little, 3, length, (byte) b));
+            }
+        }
+    }
+
+    /**
+     * Test for label search of payloads, including mapped ones where
+     * labels cross segment boundaries
+     */
+    public void testPayloads() throws Exception
+    {
+        Random r = new Random(3);
+        TreeSet<Integer> set = new TreeSet<Integer>();
+        while (set.size() < 40) {
+            set.add(r.nextInt(256));
+        }
+        final int length = set.size();
+        byte[] data = new byte[length+10];
+        Arrays.fill(data, (byte) 0x55);
+        int i = 5;
+        for (Integer b : set) {
+            data[i++] = (byte) b.intValue();
+        }
+        File f = File.createTempFile("tr13", ".labels");
+        try {
+            FileOutputStream out = new FileOutputStream(f);
+            out.write(data);
+            out.close();
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            TriePayload[] payloads = new TriePayload[] {
+                    TriePayload.forArray(data),
+                    TriePayload.forBuffer(ByteBuffer.wrap(data), data.length),
+                    MappedTriePayload.map(raf.getChannel(), 0L, data.length, 4),
+                    MappedTriePayload.map(raf.getChannel(), 0L, data.length, 9)
+            };
+            raf.close();
+            for (TriePayload payload : payloads) {
+                for (int b = 0; b < 256; ++b) {
+                    int exp = set.contains(b) ? set.headSet(b).size() : -1;
+                    assertEquals(exp, payload.indexOfLabel(5L, length, (byte) b));
+                }
+            }
+        } finally {
+            f.delete();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.ning.tr13;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Test for verifying that all packages of the library are listed in
+ * <code>Export-Package</code> of bundle plugin configuration in
+ * <code>pom.xml</code>: bundle jar only includes packages listed there,
+ * so classes of packages missing from the list would be silently left
+ * out of the jar.
+ */
+public class PackagingTest
+    extends junit.framework.TestCase
+{
+    public void testAllPackagesExported() throws Exception
+    {
+        File pom = new File("pom.xml");
+        assertTrue("No pom.xml at '"+pom.getAbsolutePath()+"' (test must be run from project directory)",
+                pom.isFile());
+        File classDir = new File("target/classes");
+        assertTrue("No compiled classes at '"+classDir.getAbsolutePath()
+                +"' (test must be run from project directory, after compilation)",
+                classDir.isDirectory());
+        Set<String> exported = _exportedPackages(pom);
+        Set<String> packages = new TreeSet<String>();
+        _findPackages(classDir, "", packages);
+        assertTrue(packages.contains("com.ning.tr13"));
+        for (String pkg : packages) {
+            assertTrue("Package '"+pkg+"' not listed in Export-Package of pom.xml", exported.contains(pkg));
+        }
+    }
+
+    private Set<String> _exportedPackages(File pom) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(pom), "UTF-8"));
+        String line;
+        while ((line = r.readLine()) != null) {
+            sb.append(line).append('\n');
+        }
+        r.close();
+        String pomContents = sb.toString();
+        int start = pomContents.indexOf("<Export-Package>");
+        int end = pomContents.indexOf("</Export-Package>");
+        assertTrue("No Export-Package in pom.xml", start >= 0 && end > start);
+        Set<String> result = new HashSet<String>();
+        for (String pkg : pomContents.substring(start + "<Export-Package>".length(), end).split(",")) {
+            result.add(pkg.trim());
+        }
+        return result;
+    }
+
+    /**
+     * Helper method for finding packages that have classes, under given
+     * class directory (META-INF not included)
+     */
+    private void _findPackages(File dir, String pkg, Set<String> packages)
+    {
+        for (File f : dir.listFiles()) {
+            if (f.isDirectory()) {
+                if (!"META-INF".equals(f.getName())) {
+                    _findPackages(f, pkg.isEmpty() ? f.getName() : (pkg + "." + f.getName()), packages);
+                }
+            } else if (f.getName().endsWith(".class") && !pkg.isEmpty()) {
+                packages.add(pkg);
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.ning.tr13.read;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import com.ning.tr13.impl.bytes.ByteArrayBytesTrieLookup;
+import com.ning.tr13.impl.bytes.ByteBufferBytesTrieLookup;
+import com.ning.tr13.impl.bytes.SimpleBytesTrieBuilder;
+import com.ning.tr13.impl.vint.ByteArrayVIntTrieLookup;
+import com.ning.tr13.impl.vint.ByteBufferVIntTrieLookup;
+import com.ning.tr13.impl.vint.SimpleVIntTrieBuilder;
+import com.ning.tr13.lookup.BytesTrieLookup;
+import com.ning.tr13.lookup.VIntTrieLookup;
+
+/**
+ * Tests for verifying that batch lookups produce same results as
+ * single-key lookups.
+ */
+public class BatchLookupTest
+    extends junit.framework.TestCase
+{
+    public void testVIntBatches() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        for (int minChildren : new int[] { 0, 8 }) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+                .setIndexedBranchMinChildren(minChildren)
+                .buildAndWrite(out, false);
+            byte[] raw = out.toByteArray();
+            _testVInt(entries, new ByteArrayVIntTrieLookup(raw));
+            _testVInt(entries, new ByteBufferVIntTrieLookup(ByteBuffer.wrap(raw), raw.length));
+        }
+    }
+
+    public void testBytesBatches() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        for (int minChildren : new int[] { 0, 8 }) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new SimpleBytesTrieBuilder(new IndexedBranchTest.BytesReader(entries))
+                .setIndexedBranchMinChildren(minChildren)
+                .buildAndWrite(out, false);
+            byte[] raw = out.toByteArray();
+            _testBytes(entries, new ByteArrayBytesTrieLookup(raw));
+            _testBytes(entries, new ByteBufferBytesTrieLookup(ByteBuffer.wrap(raw), raw.length));
+        }
+    }
+
+    /*
+    /**********************************************************
+    /* Helper methods
+    /**********************************************************
+     */
+
+    private void _testVInt(TreeMap<byte[],Long> entries, VIntTrieLookup trie)
+    {
+        for (byte[][] batch : _batches(entries)) {
+            long[] results = new long[batch.length];
+            trie.findValues(batch, results, -1L);
+            for (int i = 0; i < batch.length; ++i) {
+                assertEquals("Key #"+i+" of "+batch.length, trie.getValue(batch[i], -1L), results[i]);
+            }
+        }
+    }
+
+    private void _testBytes(TreeMap<byte[],Long> entries, BytesTrieLookup trie)
+    {
+        for (byte[][] batch : _batches(entries)) {
+            byte[][] results = new byte[batch.length][];
+            trie.findValues(batch, results);
+            for (int i = 0; i < batch.length; ++i) {
+                assertTrue("Key #"+i+" of "+batch.length,
+                        Arrays.equals(trie.findValue(batch[i]), results[i]));
+            }
+        }
+    }
+
+    private List<byte[][]> _batches(TreeMap<byte[],Long> entries)
+    {
+        List<byte[]> keys = new ArrayList<byte[]>(entries.keySet());
+        Random r = new Random(keys.size());
+        List<byte[][]> result = new ArrayList<byte[][]>();
+        // empty batch should be fine too
+        result.add(new byte[0][]);
+        // then sorted batch of all keys
+        result.add(keys.toArray(new byte[keys.size()][]));
+        // and then bunch of random ones, with missing keys and duplicates
+        for (int size : new int[] { 1, 2, 7, 50, 500 }) {
+            for (int round = 0; round < 10; ++round) {
+                byte[][] batch = new byte[size][];
+                for (int i = 0; i < size; ++i) {
+                    byte[] key = keys.get(r.nextInt(keys.size()));
+                    switch (r.nextInt(6)) {
+                    case 0: // prefix of a key; may or may not exist
+                        key = Arrays.copyOf(key, r.nextInt(key.length+1));
+                        break;
+                    case 1: // longer key, unlikely to exist
+                        key = Arrays.copyOf(key, key.length + 1 + r.nextInt(3));
+                        break;
+                    case 2: // duplicate
+                        if (i > 0) {
+                            key = batch[r.nextInt(i)];
+                        }
+                        break;
+                    }
+                    batch[i] = key;
+                }
+                result.add(batch);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,207 @@
+package com.ning.tr13.read;
+
+import java.io.*;
+import java.util.*;
+
+import com.ning.tr13.TrieLookups;
+import com.ning.tr13.bloom.BloomFilter;
+import com.ning.tr13.bloom.BloomFilteredBytesTrieLookup;
+import com.ning.tr13.bloom.BloomFilteredVIntTrieLookup;
+import com.ning.tr13.impl.bytes.SimpleBytesTrieBuilder;
+import com.ning.tr13.impl.vint.SimpleVIntTrieBuilder;
+import com.ning.tr13.lookup.BytesLookupCursor;
+import com.ning.tr13.lookup.BytesTrieLookup;
+import com.ning.tr13.lookup.TrieHeader;
+import com.ning.tr13.lookup.VIntLookupCursor;
+import com.ning.tr13.lookup.VIntTrieLookup;
+
+/**
+ * Tests for Bloom filters written with tries, and lookups that use them.
+ */
+public class BloomFilterTest
+    extends junit.framework.TestCase
+{
+    public void testFilterRates() throws Exception
+    {
+        final int COUNT = 20000;
+        BloomFilter filter = BloomFilter.forKeyCount(COUNT, 10);
+        for (int i = 0; i < COUNT; ++i) {
+            filter.add(("key"+i).getBytes("UTF-8"));
+        }
+        for (int i = 0; i < COUNT; ++i) {
+            byte[] key = ("key"+i).getBytes("UTF-8");
+            assertTrue(filter.mightContain(key, 0, key.length));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < COUNT; ++i) {
+            byte[] key = ("other"+i).getBytes("UTF-8");
+            if (filter.mightContain(key, 0, key.length)) {
+                ++falsePositives;
+            }
+        }
+        // should be about 1%; allow some slack for blocking
+        assertTrue("Too many false positives: "+falsePositives, falsePositives < (COUNT * 3 / 100));
+
+        // and should survive round trip
+        BloomFilter copy = BloomFilter.fromBytes(filter.toBytes());
+        assertEquals(filter.getHashCount(), copy.getHashCount());
+        assertEquals(filter.getByteSize(), copy.getByteSize());
+        for (int i = 0; i < COUNT; ++i) {
+            byte[] key = ("key"+i).getBytes("UTF-8");
+            assertTrue(copy.mightContain(key, 0, key.length));
+        }
+    }
+
+    public void testInvalidFilter() throws Exception
+    {
+        try {
+            BloomFilter.fromBytes(new byte[] { 3, 0, 0, 0, 0, 0, 0, 1, 1, 2, 3 });
+            fail("Expected exception");
+        } catch (IOException e) {
+            verifyException(e, "Malformed Bloom filter");
+        }
+    }
+
+    public void testVIntLookups() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        List<byte[]> missing = IndexedBranchTest._missingKeys(entries);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+            .setBloomFilterBitsPerKey(10)
+            .buildAndWrite(out, true);
+        byte[] data = out.toByteArray();
+        TrieHeader header = TrieHeader.read(data, 0);
+        assertTrue(header.hasFlag(TrieHeader.FLAG_BLOOM_FILTER));
+        assertTrue(data.length > TrieHeader.HEADER_LENGTH + header.getPayloadLength());
+
+        File f = _writeFile(data);
+        try {
+            _testVInt(entries, missing, TrieLookups.readByteArrayVIntTrie(new ByteArrayInputStream(data)));
+            _testVInt(entries, missing, TrieLookups.readByteBufferVIntTrie(new ByteArrayInputStream(data)));
+            _testVInt(entries, missing, TrieLookups.mapVIntTrie(f));
+            _testVInt(entries, missing, TrieLookups.mapVIntTrie(f).withRootIndex(1024));
+        } finally {
+            f.delete();
+        }
+    }
+
+    public void testBytesLookups() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        List<byte[]> missing = IndexedBranchTest._missingKeys(entries);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleBytesTrieBuilder(new IndexedBranchTest.BytesReader(entries))
+            .setIndexedBranchMinChildren(8)
+            .setBloomFilterBitsPerKey(12)
+            .buildAndWrite(out, true);
+        byte[] data = out.toByteArray();
+        File f = _writeFile(data);
+        try {
+            _testBytes(entries, missing, TrieLookups.readByteArrayBytesTrie(new ByteArrayInputStream(data)));
+            _testBytes(entries, missing, TrieLookups.readByteBufferBytesTrie(new ByteArrayInputStream(data)));
+            _testBytes(entries, missing, TrieLookups.mapBytesTrie(f));
+        } finally {
+            f.delete();
+        }
+    }
+
+    public void testNoFilter() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+            .buildAndWrite(out, true);
+        byte[] data = out.toByteArray();
+        assertFalse(TrieHeader.read(data, 0).hasFlag(TrieHeader.FLAG_BLOOM_FILTER));
+        VIntTrieLookup trie = TrieLookups.readByteArrayVIntTrie(new ByteArrayInputStream(data));
+        assertFalse(trie instanceof BloomFilteredVIntTrieLookup);
+        Map.Entry<byte[],Long> first = entries.firstEntry();
+        assertEquals(first.getValue(), trie.findValue(first.getKey()));
+    }
+
+    /*
+    /**********************************************************
+    /* Helper methods
+    /**********************************************************
+     */
+
+    private void _testVInt(TreeMap<byte[],Long> entries, List<byte[]> missing,
+            VIntTrieLookup trie)
+    {
+        assertTrue(trie instanceof BloomFilteredVIntTrieLookup);
+        VIntLookupCursor cursor = trie.newCursor();
+        byte[][] keys = new byte[entries.size() + missing.size()][];
+        int ix = 0;
+        for (Map.Entry<byte[],Long> entry : entries.entrySet()) {
+            byte[] key = entry.getKey();
+            keys[ix++] = key;
+            assertEquals(entry.getValue(), trie.findValue(key));
+            assertEquals(entry.getValue().longValue(), trie.getValue(key));
+            assertEquals(entry.getValue().longValue(), cursor.lookup(key, -1L));
+            assertTrue(trie.containsKey(key));
+        }
+        for (byte[] key : missing) {
+            keys[ix++] = key;
+            assertNull(trie.findValue(key));
+            assertEquals(-1L, trie.getValue(key, -1L));
+            assertEquals(-1L, cursor.lookup(key, -1L));
+            assertFalse(trie.containsKey(key));
+            try {
+                trie.getValue(key);
+                fail("Expected exception");
+            } catch (NoSuchElementException e) { }
+        }
+        long[] results = new long[keys.length];
+        trie.findValues(keys, results, -1L);
+        ix = 0;
+        for (Long value : entries.values()) {
+            assertEquals(value.longValue(), results[ix++]);
+        }
+        while (ix < keys.length) {
+            assertEquals(-1L, results[ix++]);
+        }
+    }
+
+    private void _testBytes(TreeMap<byte[],Long> entries, List<byte[]> missing,
+            BytesTrieLookup trie)
+    {
+        assertTrue(trie instanceof BloomFilteredBytesTrieLookup);
+        BytesLookupCursor cursor = trie.newCursor();
+        for (Map.Entry<byte[],Long> entry : entries.entrySet()) {
+            byte[] exp = String.valueOf(entry.getValue()).getBytes();
+            assertTrue(Arrays.equals(exp, trie.findValue(entry.getKey())));
+            assertEquals(exp.length, cursor.lookup(entry.getKey()));
+            byte[] buffer = new byte[exp.length];
+            assertEquals(exp.length, cursor.copyValue(buffer, 0));
+            assertTrue(Arrays.equals(exp, buffer));
+        }
+        for (byte[] key : missing) {
+            assertNull(trie.findValue(key));
+            assertNull(trie.findValueAsBuffer(key));
+            assertEquals(-1, cursor.lookup(key));
+            assertEquals(-1, cursor.valueLength());
+            try {
+                cursor.valueAsBuffer();
+                fail("Expected exception");
+            } catch (IllegalStateException e) { }
+        }
+    }
+
+    private File _writeFile(byte[] data) throws IOException
+    {
+        File f = File.createTempFile("tr13", ".trie");
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+        return f;
+    }
+
+    private void verifyException(Exception e, String match)
+    {
+        String msg = e.getMessage();
+        if (msg == null || msg.indexOf(match) < 0) {
+            fail("Expected exception with message containing '"+match+"', got: "+msg);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.ning.tr13.read;
+
+import java.io.*;
+import java.util.*;
+
+import com.ning.tr13.TrieLookups;
+import com.ning.tr13.cache.CachingBytesTrieLookup;
+import com.ning.tr13.cache.CachingVIntTrieLookup;
+import com.ning.tr13.impl.bytes.SimpleBytesTrieBuilder;
+import com.ning.tr13.impl.vint.SimpleVIntTrieBuilder;
+import com.ning.tr13.lookup.BytesLookupCursor;
+import com.ning.tr13.lookup.BytesTrieLookup;
+import com.ning.tr13.lookup.VIntLookupCursor;
+import com.ning.tr13.lookup.VIntTrieLookup;
+import com.ning.tr13.util.UTF8Codec;
+
+/**
+ * Tests for verifying that caching lookup wrappers return same results
+ * as underlying tries, and that caches stay within their bounds.
+ */
+public class CachingLookupTest
+    extends junit.framework.TestCase
+{
+    public void testVIntCaching() throws Exception
+    {
+        TreeMap<String,Long> entries = LookupCursorTest._entries();
+        VIntTrieLookup trie = _vintTrie(entries);
+        CachingVIntTrieLookup cached = TrieLookups.cachingVIntTrie(trie, 200);
+        byte[][] keys = _skewedKeys(entries, 20000);
+        VIntLookupCursor cursor = cached.newCursor();
+        for (byte[] key : keys) {
+            long exp = trie.getValue(key);
+            assertEquals(exp, cached.getValue(key));
+            assertEquals(Long.valueOf(exp), cached.findValue(key));
+            assertEquals(exp, cursor.lookup(key, -1L));
+            assertEquals(exp, cached.getValue(UTF8Codec.decodeFromUTF8(key), -1L));
+        }
+        assertTrue(cached.getCachedEntryCount() <= 200);
+        // most lookups are for hot keys, so should mostly hit
+        assertTrue(cached.getHitCount() > 3 * cached.getMissCount());
+        assertEquals(4L * keys.length, cached.getHitCount() + cached.getMissCount());
+
+        // misses not cached by default
+        byte[] missing = UTF8Codec.encodeAsUTF8("nosuchkey");
+        long misses = cached.getMissCount();
+        assertNull(cached.findValue(missing));
+        assertEquals(-3L, cached.getValue(missing, -3L));
+        assertEquals(misses + 2, cached.getMissCount());
+        try {
+            cached.getValue(missing);
+            fail("Should not find missing key");
+        } catch (NoSuchElementException e) { }
+
+        cached.clearCache();
+        assertEquals(0, cached.getCachedEntryCount());
+        assertEquals(0L, cached.getCachedByteCount());
+    }
+
+    public void testVIntNegativeCaching() throws Exception
+    {
+        TreeMap<String,Long> entries = LookupCursorTest._entries();
+        CachingVIntTrieLookup cached = TrieLookups.cachingVIntTrie(_vintTrie(entries),
+                1000, Long.MAX_VALUE, true);
+        byte[] missing = UTF8Codec.encodeAsUTF8("xnosuchkey");
+        assertEquals(-1L, cached.getValue(missing, -1L));
+        assertEquals(1L, cached.getMissCount());
+        assertNull(cached.findValue(missing));
+        assertEquals(-1L, cached.newCursor().lookup(missing, -1L));
+        assertEquals(1L, cached.getMissCount());
+        assertEquals(2L, cached.getHitCount());
+        // key slices are cached the same way as full keys
+        byte[] buffer = UTF8Codec.encodeAsUTF8("..xnosuchkey.");
+        assertEquals(-1L, cached.getValue(buffer, 2, missing.length, -1L));
+        assertEquals(3L, cached.getHitCount());
+    }
+
+    public void testByteSizeLimit() throws Exception
+    {
+        TreeMap<String,Long> entries = LookupCursorTest._entries();
+        final long maxBytes = 2000L;
+        CachingVIntTrieLookup cached = TrieLookups.cachingVIntTrie(_vintTrie(entries),
+                10000, maxBytes, false);
+        for (byte[] key : _skewedKeys(entries, 5000)) {
+            assertNotNull(cached.findValue(key));
+            assertTrue(cached.getCachedByteCount() <= maxBytes);
+        }
+        assertTrue(cached.getCachedEntryCount() > 0);
+    }
+
+    public void testBytesCaching() throws Exception
+    {
+        TreeMap<String,Long> entries = LookupCursorTest._entries();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleBytesTrieBuilder(new LookupCursorTest.BytesMapReader(entries)).buildAndWrite(out, false);
+        BytesTrieLookup trie = TrieLookups.constructByteArrayBytesTrie(out.toByteArray());
+        CachingBytesTrieLookup cached = TrieLookups.cachingBytesTrie(trie, 300, Long.MAX_VALUE, true);
+        BytesLookupCursor cursor = cached.newCursor();
+        byte[] buffer = new byte[100];
+        for (byte[] key : _skewedKeys(entries, 10000)) {
+            byte[] exp = trie.findValue(key);
+            assertTrue(Arrays.equals(exp, cached.findValue(key)));
+            assertEquals(exp.length, cursor.lookup(key));
+            assertEquals(exp.length, cursor.copyValue(buffer, 0));
+            assertTrue(Arrays.equals(exp, Arrays.copyOf(buffer, exp.length)));
+            assertEquals(exp.length, cursor.valueAsBuffer().remaining());
+            assertEquals(exp.length, cached.findValueInto(key, buffer, 1));
+        }
+        assertTrue(cached.getCachedEntryCount() <= 300);
+        assertTrue(cached.getHitCount() > cached.getMissCount());
+
+        byte[] missing = UTF8Codec.encodeAsUTF8("nosuchkey");
+        assertNull(cached.findValue(missing));
+        assertNull(cached.findValueAsBuffer(missing));
+        assertEquals(-1, cursor.lookup(missing));
+        try {
+            cursor.valueOffset();
+            fail("Should not have value after failed lookup");
+        } catch (IllegalStateException e) { }
+    }
+
+    public void testConcurrentAccess() throws Exception
+    {
+        final TreeMap<String,Long> entries = LookupCursorTest._entries();
+        final CachingVIntTrieLookup cached = TrieLookups.cachingVIntTrie(_vintTrie(entries),
+                128, Long.MAX_VALUE, true);
+        final List<Throwable> problems = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; ++i) {
+            final int seed = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Random r = new Random(seed);
+                        String[] keys = entries.keySet().toArray(new String[entries.size()]);
+                        for (int round = 0; round < 20000; ++round) {
+                            String key = keys[r.nextInt(keys.length)];
+                            long exp = entries.get(key).longValue();
+                            assertEquals(exp, cached.getValue(UTF8Codec.encodeAsUTF8(key), -1L));
+                        }
+                    } catch (Throwable t) {
+                        problems.add(t);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(Collections.emptyList(), problems);
+        assertTrue(cached.getCachedEntryCount() <= 128);
+    }
+
+    /*
+    /**********************************************************
+    /* Helper methods
+    /**********************************************************
+     */
+
+    private VIntTrieLookup _vintTrie(TreeMap<String,Long> entries) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new LookupCursorTest.VIntMapReader(entries)).buildAndWrite(out, false);
+        return TrieLookups.constructByteArrayVIntTrie(out.toByteArray());
+    }
+
+    /**
+     * Keys to look up, such that 80% of lookups are for the first 5% of keys
+     */
+    private byte[][] _skewedKeys(TreeMap<String,Long> entries, int count)
+    {
+        String[] all = entries.keySet().toArray(new String[entries.size()]);
+        int hot = all.length / 20;
+        Random r = new Random(count);
+        byte[][] keys = new byte[count][];
+        for (int i = 0; i < count; ++i) {
+            String key = (r.nextInt(5) == 0) ? all[r.nextInt(all.length)] : all[r.nextInt(hot)];
+            keys[i] = UTF8Codec.encodeAsUTF8(key);
+        }
+        return keys;
+    }
+}
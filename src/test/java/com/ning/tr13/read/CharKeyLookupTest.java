@@ -0,0 +1,232 @@
+package com.ning.tr13.read;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import com.ning.tr13.TrieLookup;
+import com.ning.tr13.TrieLookups;
+import com.ning.tr13.impl.bytes.ByteArrayBytesTrieLookup;
+import com.ning.tr13.impl.bytes.ByteBufferBytesTrieLookup;
+import com.ning.tr13.impl.bytes.SimpleBytesTrieBuilder;
+import com.ning.tr13.impl.vint.ByteArrayVIntTrieLookup;
+import com.ning.tr13.impl.vint.ByteBufferVIntTrieLookup;
+import com.ning.tr13.impl.vint.SimpleVIntTrieBuilder;
+import com.ning.tr13.lookup.BytesLookupCursor;
+import com.ning.tr13.lookup.BytesTrieLookup;
+import com.ning.tr13.lookup.VIntLookupCursor;
+import com.ning.tr13.lookup.VIntTrieLookup;
+import com.ning.tr13.util.UTF8Codec;
+
+/**
+ * Tests for verifying that lookups with String keys, as well as
+ * keys in sections of byte arrays, work as expected.
+ */
+public class CharKeyLookupTest
+    extends junit.framework.TestCase
+{
+    public void testVIntLookups() throws Exception
+    {
+        TreeMap<String,Long> entries = _entries();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new LookupCursorTest.VIntMapReader(entries))
+            .setIndexedBranchMinChildren(8)
+            .buildAndWrite(out, true);
+        byte[] full = out.toByteArray();
+        byte[] raw = Arrays.copyOfRange(full, 16, full.length);
+        File f = _writeFile(full);
+        try {
+            for (VIntTrieLookup trie : new VIntTrieLookup[] {
+                    new ByteArrayVIntTrieLookup(raw),
+                    new ByteBufferVIntTrieLookup(ByteBuffer.wrap(raw), raw.length),
+                    TrieLookups.mapVIntTrie(f)
+            }) {
+                _testCommon(entries, trie);
+                VIntLookupCursor cursor = trie.newCursor();
+                for (Map.Entry<String,Long> entry : entries.entrySet()) {
+                    String key = entry.getKey();
+                    long exp = entry.getValue().longValue();
+                    assertEquals(exp, trie.getValue(key, -1L));
+                    assertEquals(exp, cursor.lookup(key, -1L));
+                    assertEquals(exp, cursor.lookup(new StringBuilder(key), -1L));
+                    byte[] buffer = UTF8Codec.encodeAsUTF8("xy"+key+"z");
+                    assertEquals(exp, trie.getValue(buffer, 2, buffer.length-3, -1L));
+                    assertEquals(exp, cursor.lookup(buffer, 2, buffer.length-3, -1L));
+                }
+                for (String key : _missingKeys(entries)) {
+                    assertEquals(-1L, trie.getValue(key, -1L));
+                    assertEquals(-1L, cursor.lookup(key, -1L));
+                }
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    public void testBytesLookups() throws Exception
+    {
+        TreeMap<String,Long> entries = _entries();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleBytesTrieBuilder(new LookupCursorTest.BytesMapReader(entries)).buildAndWrite(out, true);
+        byte[] full = out.toByteArray();
+        byte[] raw = Arrays.copyOfRange(full, 16, full.length);
+        File f = _writeFile(full);
+        try {
+            for (BytesTrieLookup trie : new BytesTrieLookup[] {
+                    new ByteArrayBytesTrieLookup(raw),
+                    new ByteBufferBytesTrieLookup(ByteBuffer.wrap(raw), raw.length),
+                    TrieLookups.mapBytesTrie(f)
+            }) {
+                _testCommon(entries, trie);
+                BytesLookupCursor cursor = trie.newCursor();
+                for (Map.Entry<String,Long> entry : entries.entrySet()) {
+                    String key = entry.getKey();
+                    int expLength = String.valueOf(entry.getValue()).length();
+                    assertEquals(expLength, cursor.lookup(key));
+                    byte[] buffer = UTF8Codec.encodeAsUTF8("xy"+key+"z");
+                    assertEquals(expLength, cursor.lookup(buffer, 2, buffer.length-3));
+                }
+                for (String key : _missingKeys(entries)) {
+                    assertEquals(-1, cursor.lookup(key));
+                }
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    public void testInvalidSurrogates() throws Exception
+    {
+        TreeMap<String,Long> entries = _entries();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new LookupCursorTest.VIntMapReader(entries)).buildAndWrite(out, false);
+        VIntTrieLookup trie = new ByteArrayVIntTrieLookup(out.toByteArray());
+        // same as with encoding, broken surrogate pairs are not accepted
+        try {
+            trie.findValue("k\uD800");
+            fail("Should not accept unmatched surrogate");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("surrogate"));
+        }
+    }
+
+    public void testNoAllocations() throws Exception
+    {
+        java.lang.management.ThreadMXBean bean0 = ManagementFactory.getThreadMXBean();
+        if (!(bean0 instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) bean0;
+        if (!bean.isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        bean.setThreadAllocatedMemoryEnabled(true);
+        TreeMap<String,Long> entries = _entries();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new LookupCursorTest.VIntMapReader(entries)).buildAndWrite(out, false);
+        VIntLookupCursor cursor = new ByteArrayVIntTrieLookup(out.toByteArray()).newCursor();
+        String[] keys = entries.keySet().toArray(new String[entries.size()]);
+        final int rounds = 200;
+        long total = _run(cursor, keys, rounds);
+        long thread = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(thread);
+        total += _run(cursor, keys, rounds);
+        long allocated = bean.getThreadAllocatedBytes(thread) - before;
+        long lookups = (long) rounds * keys.length;
+        assertTrue("Expected no allocations, got "+allocated+" bytes for "+lookups+" lookups ("+total+")",
+                (allocated / lookups) == 0L);
+    }
+
+    /*
+    /**********************************************************
+    /* Helper methods
+    /**********************************************************
+     */
+
+    private void _testCommon(TreeMap<String,Long> entries, TrieLookup<?> trie) throws IOException
+    {
+        for (String key : entries.keySet()) {
+            byte[] bytes = UTF8Codec.encodeAsUTF8(key);
+            Object exp = trie.findValue(bytes);
+            assertNotNull(exp);
+            _assertEquals(exp, trie.findValue(key));
+            _assertEquals(exp, trie.findValue(new StringBuilder(key)));
+            byte[] buffer = new byte[bytes.length + 7];
+            System.arraycopy(bytes, 0, buffer, 3, bytes.length);
+            _assertEquals(exp, trie.findValue(buffer, 3, bytes.length));
+            // and just to make sure, shorter section must not match (unless it's a key)
+            if (!entries.containsKey(key.substring(0, key.length()-1))) {
+                assertNull(trie.findValue(buffer, 3, bytes.length-1));
+            }
+        }
+        for (String key : _missingKeys(entries)) {
+            assertNull(trie.findValue(key));
+        }
+    }
+
+    private void _assertEquals(Object exp, Object actual)
+    {
+        if (exp instanceof byte[]) {
+            assertTrue(Arrays.equals((byte[]) exp, (byte[]) actual));
+        } else {
+            assertEquals(exp, actual);
+        }
+    }
+
+    private long _run(VIntLookupCursor cursor, String[] keys, int rounds)
+    {
+        long total = 0L;
+        for (int round = 0; round < rounds; ++round) {
+            for (int i = 0, len = keys.length; i < len; ++i) {
+                total += cursor.lookup(keys[i], 0L);
+            }
+        }
+        return total;
+    }
+
+    private File _writeFile(byte[] data) throws IOException
+    {
+        File f = File.createTempFile("tr13", ".trie");
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+        return f;
+    }
+
+    /**
+     * Keys with 1, 2, 3 and 4 byte UTF-8 characters
+     */
+    private TreeMap<String,Long> _entries()
+    {
+        TreeMap<String,Long> entries = new TreeMap<String,Long>();
+        String[] parts = new String[] { "a", "b", "é", "ö", "€", "中", "😀", "😁" };
+        Random r = new Random(3);
+        long value = 0L;
+        for (int i = 0; i < 1000; ++i) {
+            StringBuilder sb = new StringBuilder("k");
+            for (int j = 0, len = r.nextInt(6); j < len; ++j) {
+                sb.append(parts[r.nextInt(parts.length)]);
+            }
+            if (!entries.containsKey(sb.toString())) {
+                entries.put(sb.toString(), value++);
+            }
+        }
+        return entries;
+    }
+
+    private List<String> _missingKeys(TreeMap<String,Long> entries)
+    {
+        List<String> result = new ArrayList<String>();
+        result.add("");
+        result.add("x");
+        for (String key : entries.keySet()) {
+            for (String suffix : new String[] { "a", "é", "€", "😂", "中z" }) {
+                if (!entries.containsKey(key + suffix)) {
+                    result.add(key + suffix);
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,83 @@
+package com.ning.tr13.read;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import com.ning.tr13.TrieLookup;
+import com.ning.tr13.impl.bytes.ByteArrayBytesTrieLookup;
+import com.ning.tr13.impl.bytes.ByteBufferBytesTrieLookup;
+import com.ning.tr13.impl.bytes.SimpleBytesTrieBuilder;
+import com.ning.tr13.impl.vint.ByteArrayVIntTrieLookup;
+import com.ning.tr13.impl.vint.ByteBufferVIntTrieLookup;
+import com.ning.tr13.impl.vint.SimpleVIntTrieBuilder;
+
+/**
+ * Tests for existence-only lookups using {@link TrieLookup#containsKey}.
+ */
+public class ContainsKeyTest
+    extends junit.framework.TestCase
+{
+    public void testVIntLookups() throws Exception
+    {
+        for (TreeMap<byte[],Long> entries : _entrySets()) {
+            for (int minChildren : new int[] { 0, 8 }) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+                    .setIndexedBranchMinChildren(minChildren)
+                    .buildAndWrite(out, false);
+                byte[] raw = out.toByteArray();
+                _testContains(entries, new ByteArrayVIntTrieLookup(raw));
+                _testContains(entries, new ByteBufferVIntTrieLookup(ByteBuffer.wrap(raw), raw.length));
+            }
+        }
+    }
+
+    public void testBytesLookups() throws Exception
+    {
+        for (TreeMap<byte[],Long> entries : _entrySets()) {
+            for (int minChildren : new int[] { 0, 8 }) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                new SimpleBytesTrieBuilder(new IndexedBranchTest.BytesReader(entries))
+                    .setIndexedBranchMinChildren(minChildren)
+                    .buildAndWrite(out, false);
+                byte[] raw = out.toByteArray();
+                _testContains(entries, new ByteArrayBytesTrieLookup(raw));
+                _testContains(entries, new ByteBufferBytesTrieLookup(ByteBuffer.wrap(raw), raw.length));
+            }
+        }
+    }
+
+    /*
+    /**********************************************************
+    /* Helper methods
+    /**********************************************************
+     */
+
+    private List<TreeMap<byte[],Long>> _entrySets() throws IOException
+    {
+        TreeMap<byte[],Long> small = new TreeMap<byte[],Long>(new IndexedBranchTest.ByteComparator());
+        for (Map.Entry<String,Number> entry : VIntTrieLookupTest.TEST_ENTRIES.entrySet()) {
+            small.put(entry.getKey().getBytes("UTF-8"), entry.getValue().longValue());
+        }
+        return Arrays.asList(small, IndexedBranchTest.wideEntries());
+    }
+
+    private void _testContains(TreeMap<byte[],Long> entries, TrieLookup<?> trie) throws IOException
+    {
+        for (byte[] key : entries.keySet()) {
+            assertTrue(trie.containsKey(key));
+        }
+        // prefixes, extensions and empty key are not contained, unless they are keys
+        List<byte[]> missing = IndexedBranchTest._missingKeys(entries);
+        missing.add("fo".getBytes("UTF-8"));
+        missing.add("foob".getBytes("UTF-8"));
+        missing.add("xuz".getBytes("UTF-8"));
+        missing.add(new byte[0]);
+        for (byte[] key : missing) {
+            if (!entries.containsKey(key)) {
+                assertFalse(trie.containsKey(key));
+            }
+        }
+    }
+}
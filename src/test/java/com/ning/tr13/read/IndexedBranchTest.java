@@ -0,0 +1,317 @@
+package com.ning.tr13.read;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import com.ning.tr13.KeyValueSource;
+import com.ning.tr13.TrieLookups;
+import com.ning.tr13.build.SimpleTrieBuilder;
+import com.ning.tr13.impl.bytes.ByteArrayBytesTrieLookup;
+import com.ning.tr13.impl.bytes.ByteBufferBytesTrieLookup;
+import com.ning.tr13.impl.bytes.SimpleBytesTrieBuilder;
+import com.ning.tr13.impl.vint.ByteArrayVIntTrieLookup;
+import com.ning.tr13.impl.vint.ByteBufferVIntTrieLookup;
+import com.ning.tr13.impl.vint.SimpleVIntTrieBuilder;
+import com.ning.tr13.lookup.BytesTrieLookup;
+import com.ning.tr13.lookup.TrieCursor;
+import com.ning.tr13.lookup.TrieHeader;
+import com.ning.tr13.lookup.VIntTrieLookup;
+import com.ning.tr13.tools.VIntTrieDumper;
+
+/**
+ * Tests for verifying that tries with branches that use indexed encoding
+ * are written and read correctly.
+ */
+public class IndexedBranchTest
+    extends junit.framework.TestCase
+{
+    public void testVIntLookups() throws Exception
+    {
+        TreeMap<byte[],Long> entries = wideEntries();
+        for (boolean reorder : new boolean[] { false, true }) {
+            byte[] raw = _buildVInt(entries, 16, reorder, false);
+            _testVInt(entries, new ByteArrayVIntTrieLookup(raw));
+            _testVInt(entries, new ByteBufferVIntTrieLookup(ByteBuffer.wrap(raw), raw.length));
+        }
+        // plus, should be bigger than trie without indices; but not massively so
+        int plainLen = _buildVInt(entries, 0, false, false).length;
+        int indexedLen = _buildVInt(entries, 16, false, false).length;
+        assertTrue(indexedLen > plainLen);
+        assertTrue(indexedLen < 2 * plainLen);
+    }
+
+    public void testBytesLookups() throws Exception
+    {
+        TreeMap<byte[],Long> entries = wideEntries();
+        for (boolean reorder : new boolean[] { false, true }) {
+            byte[] raw = _buildBytes(entries, 16, reorder, false);
+            _testBytes(entries, new ByteArrayBytesTrieLookup(raw));
+            _testBytes(entries, new ByteBufferBytesTrieLookup(ByteBuffer.wrap(raw), raw.length));
+        }
+    }
+
+    public void testHeaders() throws Exception
+    {
+        TreeMap<byte[],Long> entries = wideEntries();
+        // first: indexed tries need to indicate so in header
+        byte[] raw = _buildVInt(entries, 2, true, true);
+        TrieHeader header = TrieHeader.read(raw, 0);
+        assertEquals(TrieHeader.VERSION_1_1, header.getVersion());
+        assertTrue(header.hasFlag(TrieHeader.FLAG_INDEXED_BRANCHES));
+        assertEquals(TrieHeader.ValueType.VINT, header.getValueType());
+        assertEquals(raw.length - TrieHeader.HEADER_LENGTH, header.getPayloadLength());
+        _testVInt(entries, TrieLookups.readByteArrayVIntTrie(new ByteArrayInputStream(raw)));
+        _testVInt(entries, TrieLookups.readByteBufferVIntTrie(new ByteArrayInputStream(raw)));
+
+        raw = _buildBytes(entries, 2, false, true);
+        header = TrieHeader.read(raw, 0);
+        assertEquals(TrieHeader.ValueType.BYTE_ARRAY, header.getValueType());
+        _testBytes(entries, TrieLookups.readByteArrayBytesTrie(new ByteArrayInputStream(raw)));
+        _testBytes(entries, TrieLookups.readByteBufferBytesTrie(new ByteArrayInputStream(raw)));
+
+        // but old format still used (and readable) without indices
+        raw = _buildVInt(entries, 0, false, true);
+        header = TrieHeader.read(raw, 0);
+        assertEquals(TrieHeader.VERSION_1_0, header.getVersion());
+        assertEquals(0, header.getFlags());
+        _testVInt(entries, TrieLookups.readByteArrayVIntTrie(new ByteArrayInputStream(raw)));
+
+        // and unknown feature flags must be rejected
+        raw[TrieHeader.FLAGS_OFFSET] = (byte) 0x80;
+        raw[TrieHeader.VERSION_OFFSET] = (byte) (0x80 + TrieHeader.VERSION_1_1);
+        try {
+            TrieHeader.read(raw, 0);
+            fail("Should not accept unknown flags");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Unsupported"));
+        }
+    }
+
+    public void testCacheLineLayout() throws Exception
+    {
+        TreeMap<byte[],Long> entries = wideEntries();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new VIntReader(entries))
+            .setCacheLineLayout(true)
+            .setSubtreeCounts(true)
+            .buildAndWrite(out, true);
+        byte[] raw = out.toByteArray();
+        // layout implies indexed branches
+        TrieHeader header = TrieHeader.read(raw, 0);
+        assertTrue(header.hasFlag(TrieHeader.FLAG_INDEXED_BRANCHES));
+        VIntTrieLookup trie = TrieLookups.readByteArrayVIntTrie(new ByteArrayInputStream(raw));
+        _testVInt(entries, trie);
+        _testVInt(entries, TrieLookups.readByteBufferVIntTrie(new ByteArrayInputStream(raw)));
+        // iteration and positional access must not be affected by placement of children
+        TrieCursor c = trie.cursor();
+        long index = 0L;
+        for (Map.Entry<byte[],Long> entry : entries.entrySet()) {
+            assertTrue(c.next());
+            assertEquals(Arrays.toString(entry.getKey()), Arrays.toString(c.getKey()));
+            assertEquals(entry.getValue().longValue(), c.getLongValue());
+            if ((index % 13) == 0) {
+                assertEquals(index, trie.rank(entry.getKey()));
+                assertEquals(Arrays.toString(entry.getKey()), Arrays.toString(trie.select(index).getKey()));
+            }
+            ++index;
+        }
+        assertFalse(c.next());
+
+        // explicitly set minimum child count still used
+        out = new ByteArrayOutputStream();
+        new SimpleBytesTrieBuilder(new BytesReader(entries))
+            .setCacheLineLayout(true)
+            .setIndexedBranchMinChildren(64)
+            .buildAndWrite(out, true);
+        raw = out.toByteArray();
+        _testBytes(entries, TrieLookups.readByteArrayBytesTrie(new ByteArrayInputStream(raw)));
+        assertTrue(raw.length < _buildBytes(entries, 4, false, true).length);
+    }
+
+    public void testDump() throws Exception
+    {
+        TreeMap<byte[],Long> entries = wideEntries();
+        byte[] raw = _buildVInt(entries, 16, false, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new VIntTrieDumper('|') { }.dump(new ByteArrayInputStream(raw), out);
+        // all keys use bytes that are not linefeeds or separators, so:
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<byte[],Long> entry : entries.entrySet()) {
+            sb.append(new String(entry.getKey(), "ISO-8859-1")).append('|').append(entry.getValue()).append('\n');
+        }
+        assertEquals(sb.toString(), new String(out.toByteArray(), "ISO-8859-1"));
+    }
+
+    /*
+    /**********************************************************
+    /* Helper methods
+    /**********************************************************
+     */
+
+    /**
+     * Test data set with wide root and second-level branches, some of which
+     * also have values.
+     */
+    static TreeMap<byte[],Long> wideEntries()
+    {
+        TreeMap<byte[],Long> entries = new TreeMap<byte[],Long>(new ByteComparator());
+        long value = 0L;
+        Random r = new Random(123);
+        for (int b1 = 0x30; b1 <= 0xFF; ++b1) {
+            if (b1 == '|') {
+                continue;
+            }
+            if ((b1 % 3) == 0) {
+                entries.put(new byte[] { (byte) b1 }, value++);
+            }
+            // every now and then, single-child branches; otherwise wide ones
+            int step = ((b1 % 7) == 0) ? 200 : 1 + r.nextInt(4);
+            for (int b2 = 0x30 + r.nextInt(3); b2 <= 0xFF; b2 += step) {
+                if (b2 == '|') {
+                    continue;
+                }
+                if ((b2 % 5) == 0) {
+                    entries.put(new byte[] { (byte) b1, (byte) b2, 'x', 'y', (byte) b2 }, value++ * 1000);
+                } else {
+                    entries.put(new byte[] { (byte) b1, (byte) b2 }, value++);
+                }
+            }
+        }
+        return entries;
+    }
+
+    private byte[] _buildVInt(TreeMap<byte[],Long> entries, int minChildren, boolean reorder,
+            boolean header)
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SimpleTrieBuilder<Long> b = new SimpleVIntTrieBuilder(new VIntReader(entries))
+            .setReorderEntries(reorder)
+            .setIndexedBranchMinChildren(minChildren);
+        b.buildAndWrite(out, header);
+        return out.toByteArray();
+    }
+
+    private byte[] _buildBytes(TreeMap<byte[],Long> entries, int minChildren, boolean reorder,
+            boolean header)
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SimpleTrieBuilder<byte[]> b = new SimpleBytesTrieBuilder(new BytesReader(entries))
+            .setReorderEntries(reorder)
+            .setIndexedBranchMinChildren(minChildren);
+        b.buildAndWrite(out, header);
+        return out.toByteArray();
+    }
+
+    private void _testVInt(TreeMap<byte[],Long> entries, VIntTrieLookup trie)
+    {
+        for (Map.Entry<byte[],Long> entry : entries.entrySet()) {
+            assertEquals(entry.getValue(), trie.findValue(entry.getKey()));
+        }
+        for (byte[] key : _missingKeys(entries)) {
+            assertNull(trie.findValue(key));
+            assertEquals(-1L, trie.getValue(key, -1L));
+        }
+    }
+
+    private void _testBytes(TreeMap<byte[],Long> entries, BytesTrieLookup trie)
+    {
+        for (Map.Entry<byte[],Long> entry : entries.entrySet()) {
+            byte[] exp = String.valueOf(entry.getValue()).getBytes();
+            assertTrue(Arrays.equals(exp, trie.findValue(entry.getKey())));
+        }
+        for (byte[] key : _missingKeys(entries)) {
+            assertNull(trie.findValue(key));
+        }
+    }
+
+    static List<byte[]> _missingKeys(TreeMap<byte[],Long> entries)
+    {
+        List<byte[]> result = new ArrayList<byte[]>();
+        result.add(new byte[0]);
+        result.add(new byte[] { 0x20 });
+        result.add(new byte[] { 0x31 }); // branch without value
+        result.add(new byte[] { 0x30, (byte) 0xFF, 0x33 });
+        for (byte[] key : entries.keySet()) {
+            byte[] longer = Arrays.copyOf(key, key.length+1);
+            if (!entries.containsKey(longer)) {
+                result.add(longer);
+            }
+            byte[] other = key.clone();
+            other[other.length-1] ^= 0x01;
+            if (!entries.containsKey(other)) {
+                result.add(other);
+            }
+        }
+        return result;
+    }
+
+    /*
+    /**********************************************************
+    /* Helper classes
+    /**********************************************************
+     */
+
+    static class ByteComparator implements Comparator<byte[]>
+    {
+        @Override
+        public int compare(byte[] b1, byte[] b2)
+        {
+            for (int i = 0, end = Math.min(b1.length, b2.length); i < end; ++i) {
+                int diff = (b1[i] & 0xFF) - (b2[i] & 0xFF);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return b1.length - b2.length;
+        }
+    }
+
+    static class VIntReader
+        extends KeyValueSource<Long>
+    {
+        final Map<byte[],Long> _entries;
+
+        protected int _lineNr;
+
+        public VIntReader(Map<byte[],Long> entries) {
+            _entries = entries;
+        }
+
+        @Override
+        public void readAll(ValueCallback<Long> handler) throws IOException
+        {
+            for (Map.Entry<byte[],Long> en : _entries.entrySet()) {
+                ++_lineNr;
+                handler.handleEntry(en.getKey(), en.getValue());
+            }
+        }
+
+        @Override public int getLineNumber() { return _lineNr; }
+    }
+
+    static class BytesReader
+        extends KeyValueSource<byte[]>
+    {
+        final Map<byte[],Long> _entries;
+
+        protected int _lineNr;
+
+        public BytesReader(Map<byte[],Long> entries) {
+            _entries = entries;
+        }
+
+        @Override
+        public void readAll(ValueCallback<byte[]> handler) throws IOException
+        {
+            for (Map.Entry<byte[],Long> en : _entries.entrySet()) {
+                ++_lineNr;
+                handler.handleEntry(en.getKey(), String.valueOf(en.getValue()).getBytes());
+            }
+        }
+
+        @Override public int getLineNumber() { return _lineNr; }
+    }
+}
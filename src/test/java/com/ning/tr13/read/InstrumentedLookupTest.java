@@ -0,0 +1,157 @@
+package com.ning.tr13.read;
+
+import java.io.*;
+import java.util.*;
+
+import com.ning.tr13.TrieLookups;
+import com.ning.tr13.build.KeyWeights;
+import com.ning.tr13.impl.bytes.SimpleBytesTrieBuilder;
+import com.ning.tr13.impl.vint.SimpleVIntTrieBuilder;
+import com.ning.tr13.lookup.BytesTrieLookup;
+import com.ning.tr13.lookup.InstrumentedTrieLookup;
+import com.ning.tr13.lookup.TraversalHistograms;
+import com.ning.tr13.lookup.VIntTrieLookup;
+
+/**
+ * Tests for tracing lookups with {@link InstrumentedTrieLookup}, and
+ * for ordering branches by key weights that it is used to evaluate.
+ */
+public class InstrumentedLookupTest
+    extends junit.framework.TestCase
+{
+    public void testVIntTraces() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        List<byte[]> missing = IndexedBranchTest._missingKeys(entries);
+        long[] skipped = new long[2];
+        int[] minChildren = new int[] { 0, 8 };
+        for (int i = 0; i < minChildren.length; ++i) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+                .setIndexedBranchMinChildren(minChildren[i])
+                .buildAndWrite(out, true);
+            VIntTrieLookup trie = TrieLookups.readByteArrayVIntTrie(new ByteArrayInputStream(out.toByteArray()));
+            TraversalHistograms stats = new TraversalHistograms();
+            InstrumentedTrieLookup<Long> inst = new InstrumentedTrieLookup<Long>(trie, stats);
+            int lookups = 0;
+            for (byte[] key : entries.keySet()) {
+                if ((++lookups % 3) == 0) {
+                    assertEquals(entries.get(key), inst.findValue(key));
+                    InstrumentedTrieLookup.Trace trace = inst.trace(key, 0, key.length);
+                    assertTrue(trace.isFound());
+                    // at least root and the leaf, unless key is empty
+                    assertTrue(trace.getNodesVisited() >= Math.min(2, key.length+1));
+                    assertTrue(trace.getVIntBytes() <= trace.getBytesTouched());
+                    assertTrue(trace.getCacheLines() <= trace.getBytesTouched());
+                }
+            }
+            lookups /= 3;
+            for (byte[] key : missing) {
+                assertNull(inst.findValue(key));
+                assertFalse(inst.trace(key, 0, key.length).isFound());
+                ++lookups;
+            }
+            assertEquals(lookups, stats.getLookupCount());
+            assertEquals(entries.size() / 3, stats.getFoundCount());
+            assertTrue(stats.getNodesVisited().getMean() > 1.0);
+            assertTrue(stats.getCacheLines().getMax() > 0L);
+            skipped[i] = stats.getSiblingsSkipped().getTotal();
+
+            // no tracing without listener
+            inst.setListener(null);
+            assertEquals(entries.firstEntry().getValue(), inst.findValue(entries.firstKey()));
+            assertEquals(lookups, stats.getLookupCount());
+        }
+        // indexed branches need not skip as many siblings
+        assertTrue(skipped[0] > 0L);
+        assertTrue(skipped[1] < skipped[0]);
+    }
+
+    public void testBytesTraces() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleBytesTrieBuilder(new IndexedBranchTest.BytesReader(entries))
+            .buildAndWrite(out, true);
+        BytesTrieLookup trie = TrieLookups.readByteArrayBytesTrie(new ByteArrayInputStream(out.toByteArray()));
+        TraversalHistograms stats = new TraversalHistograms();
+        InstrumentedTrieLookup<byte[]> inst = new InstrumentedTrieLookup<byte[]>(trie, stats);
+        for (byte[] key : IndexedBranchTest._missingKeys(entries)) {
+            assertNull(inst.findValue(key));
+        }
+        assertEquals(0L, stats.getFoundCount());
+        for (byte[] key : entries.keySet()) {
+            byte[] value = inst.findValue(key);
+            assertNotNull(value);
+            // value bytes are touched as well
+            assertTrue(inst.trace(key, 0, key.length).getBytesTouched() > value.length);
+        }
+        assertEquals(entries.size(), stats.getFoundCount());
+        TraversalHistograms.Histogram h = stats.getBytesTouched();
+        assertTrue(h.getPercentile(50.0) <= h.getPercentile(99.0));
+        assertTrue(h.getPercentile(99.0) <= h.getMax());
+        assertTrue(stats.toString().contains("cache lines"));
+    }
+
+    public void testKeyWeightOrdering() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        // skewed access: few hot keys, some lukewarm ones, rest never accessed
+        List<byte[]> queries = new ArrayList<byte[]>();
+        Random r = new Random(9);
+        for (byte[] key : entries.keySet()) {
+            int count = (r.nextInt(20) == 0) ? 20 : ((r.nextInt(4) == 0) ? 1 : 0);
+            for (int i = 0; i < count; ++i) {
+                queries.add(key);
+            }
+        }
+        KeyWeights weights = new KeyWeights();
+        for (byte[] key : queries) {
+            weights.add(key, 1L);
+        }
+
+        TraversalHistograms bySize = _replay(entries, null, queries);
+        TraversalHistograms byWeight = _replay(entries, weights, queries);
+        assertEquals(queries.size(), byWeight.getFoundCount());
+        assertTrue(byWeight.getSiblingsSkipped().getMean() < bySize.getSiblingsSkipped().getMean() / 2);
+        // node count does not depend on ordering
+        assertEquals(bySize.getNodesVisited().getTotal(), byWeight.getNodesVisited().getTotal());
+    }
+
+    public void testQueryLogWeights() throws Exception
+    {
+        String log = "# comment\nabc\n\nfoo\n  abc  \nabc\n";
+        KeyWeights weights = KeyWeights.fromQueryLog(new ByteArrayInputStream(log.getBytes("UTF-8")));
+        assertEquals(2, weights.size());
+        assertEquals(3L, weights.weightOf("abc".getBytes("UTF-8")));
+        assertEquals(1L, weights.weightOf("foo".getBytes("UTF-8")));
+        assertEquals(0L, weights.weightOf("bar".getBytes("UTF-8")));
+    }
+
+    /*
+    /**********************************************************
+    /* Helper methods
+    /**********************************************************
+     */
+
+    private TraversalHistograms _replay(TreeMap<byte[],Long> entries, KeyWeights weights,
+            List<byte[]> queries)
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+            .setReorderEntries(true)
+            .setKeyWeights(weights)
+            .buildAndWrite(out, false);
+        VIntTrieLookup trie = TrieLookups.constructByteArrayVIntTrie(out.toByteArray());
+        for (Map.Entry<byte[],Long> entry : entries.entrySet()) {
+            assertEquals(entry.getValue(), trie.findValue(entry.getKey()));
+        }
+        TraversalHistograms stats = new TraversalHistograms();
+        InstrumentedTrieLookup<Long> inst = new InstrumentedTrieLookup<Long>(trie, stats);
+        for (byte[] key : queries) {
+            assertEquals(entries.get(key), inst.findValue(key));
+        }
+        return stats;
+    }
+}
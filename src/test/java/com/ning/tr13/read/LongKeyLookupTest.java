@@ -0,0 +1,122 @@
+package com.ning.tr13.read;
+
+import java.io.*;
+import java.util.*;
+
+import com.ning.tr13.TrieLookups;
+import com.ning.tr13.impl.vint.LongKeyTrieLookup;
+import com.ning.tr13.impl.vint.LongKeyValueSource;
+import com.ning.tr13.impl.vint.SimpleVIntTrieBuilder;
+
+/**
+ * Tests for {@link LongKeyTrieLookup}, lookups using <code>long</code> keys.
+ */
+public class LongKeyLookupTest
+    extends junit.framework.TestCase
+{
+    public void testLookups() throws Exception
+    {
+        long[] keys = _keys();
+        long[] values = new long[keys.length];
+        Random r = new Random(3);
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = (i % 5 == 0) ? r.nextLong() >>> 1 : r.nextInt(1000);
+        }
+        HashSet<Long> keySet = new HashSet<Long>();
+        for (long key : keys) {
+            keySet.add(key);
+        }
+        List<Long> missing = new ArrayList<Long>();
+        for (long key : keys) {
+            for (long k : new long[] { key-1, key+1, key ^ 0x100L, key ^ (1L << 40) }) {
+                if (!keySet.contains(k)) {
+                    missing.add(k);
+                }
+            }
+        }
+
+        for (int minChildren : new int[] { 0, 4 }) {
+            for (boolean counts : new boolean[] { false, true }) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                new SimpleVIntTrieBuilder(new LongKeyValueSource(keys, values))
+                    .setIndexedBranchMinChildren(minChildren)
+                    .setSubtreeCounts(counts)
+                    .setReorderEntries(true)
+                    .buildAndWrite(out, true);
+                LongKeyTrieLookup trie = TrieLookups.readLongKeyTrie(new ByteArrayInputStream(out.toByteArray()));
+                for (int i = 0; i < keys.length; ++i) {
+                    assertEquals(Long.valueOf(values[i]), trie.findValue(keys[i]));
+                    assertEquals(values[i], trie.getValue(keys[i], -1L));
+                    assertTrue(trie.containsKey(keys[i]));
+                    // generic lookups work as well
+                    assertEquals(Long.valueOf(values[i]), trie.findValue(LongKeyValueSource.keyBytes(keys[i])));
+                }
+                for (Long key : missing) {
+                    assertNull(trie.findValue(key.longValue()));
+                    assertFalse(trie.containsKey(key.longValue()));
+                    assertEquals(-1L, trie.getValue(key.longValue(), -1L));
+                }
+                long[] batch = new long[] { keys[0], missing.get(0), keys[keys.length-1] };
+                long[] results = new long[batch.length];
+                trie.findValues(batch, results, -1L);
+                assertEquals(values[0], results[0]);
+                assertEquals(-1L, results[1]);
+                assertEquals(values[keys.length-1], results[2]);
+                try {
+                    trie.getValue(missing.get(0).longValue());
+                    fail("Should not find a value");
+                } catch (NoSuchElementException e) { }
+            }
+        }
+    }
+
+    public void testSingleKey() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new LongKeyValueSource(new long[] { 12345L }, new long[] { 7L }))
+            .buildAndWrite(out, false);
+        LongKeyTrieLookup trie = new LongKeyTrieLookup(out.toByteArray());
+        assertEquals(7L, trie.getValue(12345L));
+        assertNull(trie.findValue(12344L));
+        assertNull(trie.findValue(12345L | (1L << 63)));
+    }
+
+    public void testUnorderedKeys() throws Exception
+    {
+        // negative keys must come after positive ones
+        LongKeyValueSource src = new LongKeyValueSource(new long[] { -1L, 1L }, new long[] { 1L, 2L });
+        try {
+            new SimpleVIntTrieBuilder(src).build();
+            fail("Should not accept unordered keys");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("not properly ordered"));
+        }
+    }
+
+    /**
+     * Helper method for generating keys both sparse and dense, sorted
+     * as unsigned values.
+     */
+    private long[] _keys()
+    {
+        Random r = new Random(11);
+        TreeSet<Long> flipped = new TreeSet<Long>();
+        for (int i = 0; i < 3000; ++i) {
+            flipped.add(r.nextLong());
+        }
+        long id = 1000000L;
+        for (int i = 0; i < 3000; ++i) {
+            id += 1 + r.nextInt(5);
+            flipped.add(id ^ Long.MIN_VALUE);
+            flipped.add((-id) ^ Long.MIN_VALUE);
+        }
+        flipped.add(0L ^ Long.MIN_VALUE);
+        flipped.add(-1L ^ Long.MIN_VALUE);
+        long[] keys = new long[flipped.size()];
+        int i = 0;
+        for (Long key : flipped) {
+            keys[i++] = key.longValue() ^ Long.MIN_VALUE;
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,136 @@
+package com.ning.tr13.read;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import com.ning.tr13.TrieLookup;
+import com.ning.tr13.impl.bytes.ByteArrayBytesTrieLookup;
+import com.ning.tr13.impl.bytes.ByteBufferBytesTrieLookup;
+import com.ning.tr13.impl.bytes.SimpleBytesTrieBuilder;
+import com.ning.tr13.impl.vint.ByteArrayVIntTrieLookup;
+import com.ning.tr13.impl.vint.ByteBufferVIntTrieLookup;
+import com.ning.tr13.impl.vint.SimpleVIntTrieBuilder;
+import com.ning.tr13.lookup.PrefixMatch;
+
+/**
+ * Tests for verifying that longest-prefix-match lookups work as expected.
+ */
+public class LongestPrefixTest
+    extends junit.framework.TestCase
+{
+    public void testRoutes() throws Exception
+    {
+        TreeMap<byte[],Long> entries = new TreeMap<byte[],Long>(new IndexedBranchTest.ByteComparator());
+        String[] routes = new String[] { "/", "/api", "/api/v1/", "/api/v1/users", "/static/" };
+        for (int i = 0; i < routes.length; ++i) {
+            entries.put(routes[i].getBytes("UTF-8"), (long) i);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries)).buildAndWrite(out, false);
+        ByteArrayVIntTrieLookup trie = new ByteArrayVIntTrieLookup(out.toByteArray());
+
+        _verifyRoute(trie, "/api/v1/users/123", 3L, 13);
+        _verifyRoute(trie, "/api/v1/user", 2L, 8);
+        _verifyRoute(trie, "/api/v2", 1L, 4);
+        _verifyRoute(trie, "/static/css/x.css", 4L, 8);
+        _verifyRoute(trie, "/stat", 0L, 1);
+        _verifyRoute(trie, "/", 0L, 1);
+        assertNull(trie.findLongestPrefix("api".getBytes("UTF-8")));
+        assertNull(trie.findLongestPrefix(new byte[0]));
+    }
+
+    public void testVIntLookups() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        for (int minChildren : new int[] { 0, 8 }) {
+            for (boolean reorder : new boolean[] { false, true }) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+                    .setReorderEntries(reorder)
+                    .setIndexedBranchMinChildren(minChildren)
+                    .buildAndWrite(out, false);
+                byte[] raw = out.toByteArray();
+                _testAll(entries, new ByteArrayVIntTrieLookup(raw), false);
+                _testAll(entries, new ByteBufferVIntTrieLookup(ByteBuffer.wrap(raw), raw.length), false);
+            }
+        }
+    }
+
+    public void testBytesLookups() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        for (int minChildren : new int[] { 0, 8 }) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new SimpleBytesTrieBuilder(new IndexedBranchTest.BytesReader(entries))
+                .setIndexedBranchMinChildren(minChildren)
+                .buildAndWrite(out, false);
+            byte[] raw = out.toByteArray();
+            _testAll(entries, new ByteArrayBytesTrieLookup(raw), true);
+            _testAll(entries, new ByteBufferBytesTrieLookup(ByteBuffer.wrap(raw), raw.length), true);
+        }
+    }
+
+    /*
+    /**********************************************************
+    /* Helper methods
+    /**********************************************************
+     */
+
+    private void _verifyRoute(ByteArrayVIntTrieLookup trie, String path, long expValue, int expLength)
+        throws IOException
+    {
+        PrefixMatch<Long> match = trie.findLongestPrefix(path.getBytes("UTF-8"));
+        assertNotNull(match);
+        assertEquals(expValue, match.getValue().longValue());
+        assertEquals(expLength, match.getMatchLength());
+    }
+
+    private void _testAll(TreeMap<byte[],Long> entries, TrieLookup<?> trie, boolean bytesValued)
+    {
+        for (byte[] key : _keys(entries)) {
+            PrefixMatch<?> match = trie.findLongestPrefix(key);
+            // brute force: try all prefixes from longest to shortest
+            int expLength = -1;
+            for (int i = key.length; i >= 0; --i) {
+                if (entries.containsKey(Arrays.copyOf(key, i))) {
+                    expLength = i;
+                    break;
+                }
+            }
+            if (expLength < 0) {
+                assertNull(match);
+                continue;
+            }
+            assertNotNull(match);
+            assertEquals(expLength, match.getMatchLength());
+            Long exp = entries.get(Arrays.copyOf(key, expLength));
+            if (bytesValued) {
+                assertTrue(Arrays.equals(String.valueOf(exp).getBytes(), (byte[]) match.getValue()));
+            } else {
+                assertEquals(exp, match.getValue());
+            }
+        }
+    }
+
+    private List<byte[]> _keys(TreeMap<byte[],Long> entries)
+    {
+        List<byte[]> result = new ArrayList<byte[]>();
+        result.add(new byte[0]);
+        result.add(new byte[] { 0x20 });
+        for (byte[] key : entries.keySet()) {
+            result.add(key);
+            for (int i = 1; i < key.length; ++i) {
+                result.add(Arrays.copyOf(key, i));
+            }
+            result.add(Arrays.copyOf(key, key.length+1));
+            byte[] longer = Arrays.copyOf(key, key.length+3);
+            longer[key.length] = 'x';
+            result.add(longer);
+            byte[] other = key.clone();
+            other[other.length-1] ^= 0x01;
+            result.add(other);
+        }
+        return result;
+    }
+}
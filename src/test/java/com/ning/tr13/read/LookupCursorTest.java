@@ -0,0 +1,272 @@
+package com.ning.tr13.read;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import com.ning.tr13.KeyValueSource;
+import com.ning.tr13.impl.bytes.ByteArrayBytesTrieLookup;
+import com.ning.tr13.impl.bytes.ByteBufferBytesTrieLookup;
+import com.ning.tr13.impl.bytes.SimpleBytesTrieBuilder;
+import com.ning.tr13.impl.vint.ByteArrayVIntTrieLookup;
+import com.ning.tr13.impl.vint.ByteBufferVIntTrieLookup;
+import com.ning.tr13.impl.vint.SimpleVIntTrieBuilder;
+import com.ning.tr13.lookup.BytesLookupCursor;
+import com.ning.tr13.lookup.BytesTrieLookup;
+import com.ning.tr13.lookup.VIntLookupCursor;
+import com.ning.tr13.lookup.VIntTrieLookup;
+import com.ning.tr13.util.UTF8Codec;
+
+/**
+ * Tests for verifying that reusable lookup cursors work, and that they
+ * do not allocate anything during lookups.
+ */
+public class LookupCursorTest
+    extends junit.framework.TestCase
+{
+    private final static int ENTRY_COUNT = 3000;
+
+    private final static int ROUNDS = 200;
+
+    private final static int WARMUP_RUNS = 3;
+
+    /**
+     * Limit for number of bytes that measured lookups may allocate in total:
+     * lookups themselves should not allocate anything, but some slack is
+     * needed for things like refilling thread-local allocation buffers
+     */
+    private final static long MAX_ALLOCATED = 1024L;
+
+    public void testVIntCursors() throws Exception
+    {
+        TreeMap<String,Long> entries = _entries();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new VIntMapReader(entries)).buildAndWrite(out, false);
+        byte[] raw = out.toByteArray();
+        _testVInt(entries, new ByteArrayVIntTrieLookup(raw));
+        _testVInt(entries, new ByteBufferVIntTrieLookup(ByteBuffer.wrap(raw), raw.length));
+    }
+
+    public void testBytesCursors() throws Exception
+    {
+        TreeMap<String,Long> entries = _entries();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleBytesTrieBuilder(new BytesMapReader(entries)).buildAndWrite(out, false);
+        byte[] raw = out.toByteArray();
+        _testBytes(entries, new ByteArrayBytesTrieLookup(raw));
+        _testBytes(entries, new ByteBufferBytesTrieLookup(ByteBuffer.wrap(raw), raw.length));
+    }
+
+    public void testVIntCursorAllocations() throws Exception
+    {
+        com.sun.management.ThreadMXBean bean = _threadBean();
+        if (bean == null) { // can only verify on JVMs that expose allocation counts
+            return;
+        }
+        TreeMap<String,Long> entries = _entries();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new VIntMapReader(entries)).buildAndWrite(out, false);
+        byte[] raw = out.toByteArray();
+        byte[][] keys = _keys(entries);
+        for (VIntTrieLookup trie : new VIntTrieLookup[] {
+                new ByteArrayVIntTrieLookup(raw),
+                new ByteBufferVIntTrieLookup(ByteBuffer.wrap(raw), raw.length)
+        }) {
+            VIntLookupCursor cursor = trie.newCursor();
+            // first warm up, then measure
+            long total = 0L;
+            for (int i = 0; i < WARMUP_RUNS; ++i) {
+                total += _runVInt(cursor, keys);
+            }
+            long thread = Thread.currentThread().getId();
+            long before = bean.getThreadAllocatedBytes(thread);
+            total += _runVInt(cursor, keys);
+            long allocated = bean.getThreadAllocatedBytes(thread) - before;
+            long lookups = (long) ROUNDS * keys.length;
+            assertTrue("Expected less than "+MAX_ALLOCATED+" bytes allocated in total, got "+allocated
+                    +" bytes for "+lookups+" lookups ("+total+")",
+                    allocated < MAX_ALLOCATED);
+        }
+    }
+
+    public void testBytesCursorAllocations() throws Exception
+    {
+        com.sun.management.ThreadMXBean bean = _threadBean();
+        if (bean == null) {
+            return;
+        }
+        TreeMap<String,Long> entries = _entries();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleBytesTrieBuilder(new BytesMapReader(entries)).buildAndWrite(out, false);
+        byte[] raw = out.toByteArray();
+        byte[][] keys = _keys(entries);
+        byte[] valueBuffer = new byte[100];
+        for (BytesTrieLookup trie : new BytesTrieLookup[] {
+                new ByteArrayBytesTrieLookup(raw),
+                new ByteBufferBytesTrieLookup(ByteBuffer.wrap(raw), raw.length)
+        }) {
+            BytesLookupCursor cursor = trie.newCursor();
+            long total = 0L;
+            for (int i = 0; i < WARMUP_RUNS; ++i) {
+                total += _runBytes(cursor, keys, valueBuffer);
+            }
+            long thread = Thread.currentThread().getId();
+            long before = bean.getThreadAllocatedBytes(thread);
+            total += _runBytes(cursor, keys, valueBuffer);
+            long allocated = bean.getThreadAllocatedBytes(thread) - before;
+            long lookups = (long) ROUNDS * keys.length;
+            assertTrue("Expected less than "+MAX_ALLOCATED+" bytes allocated in total, got "+allocated
+                    +" bytes for "+lookups+" lookups ("+total+")",
+                    allocated < MAX_ALLOCATED);
+        }
+    }
+
+    /*
+    /**********************************************************
+    /* Helper methods
+    /**********************************************************
+     */
+
+    private void _testVInt(TreeMap<String,Long> entries, VIntTrieLookup trie) throws Exception
+    {
+        VIntLookupCursor cursor = trie.newCursor();
+        for (Map.Entry<String,Long> entry : entries.entrySet()) {
+            assertEquals(entry.getValue().longValue(),
+                    cursor.lookup(UTF8Codec.encodeAsUTF8(entry.getKey()), -1L));
+        }
+        assertEquals(-1L, cursor.lookup(UTF8Codec.encodeAsUTF8("key"), -1L));
+        assertEquals(-1L, cursor.lookup(UTF8Codec.encodeAsUTF8("key00001x"), -1L));
+        assertEquals(-1L, cursor.lookup(new byte[0], -1L));
+        assertEquals(-1L, cursor.lookup(UTF8Codec.encodeAsUTF8("zzz"), -1L));
+    }
+
+    private void _testBytes(TreeMap<String,Long> entries, BytesTrieLookup trie) throws Exception
+    {
+        BytesLookupCursor cursor = trie.newCursor();
+        byte[] buffer = new byte[100];
+        for (Map.Entry<String,Long> entry : entries.entrySet()) {
+            byte[] exp = UTF8Codec.encodeAsUTF8(String.valueOf(entry.getValue()));
+            int len = cursor.lookup(UTF8Codec.encodeAsUTF8(entry.getKey()));
+            assertEquals(exp.length, len);
+            assertEquals(exp.length, cursor.valueLength());
+            assertEquals(1 + len, cursor.copyValue(buffer, 1));
+            assertEquals(new String(exp, "UTF-8"), new String(buffer, 1, len, "UTF-8"));
+        }
+        assertEquals(-1, cursor.lookup(UTF8Codec.encodeAsUTF8("key")));
+        assertEquals(-1, cursor.valueLength());
+        assertEquals(-1, cursor.lookup(UTF8Codec.encodeAsUTF8("key00001x")));
+        assertEquals(-1, cursor.lookup(new byte[0]));
+    }
+
+    private long _runVInt(VIntLookupCursor cursor, byte[][] keys)
+    {
+        long total = 0L;
+        for (int round = 0; round < ROUNDS; ++round) {
+            for (int i = 0, len = keys.length; i < len; ++i) {
+                total += cursor.lookup(keys[i], 0L);
+            }
+        }
+        return total;
+    }
+
+    private long _runBytes(BytesLookupCursor cursor, byte[][] keys, byte[] valueBuffer)
+    {
+        long total = 0L;
+        for (int round = 0; round < ROUNDS; ++round) {
+            for (int i = 0, len = keys.length; i < len; ++i) {
+                if (cursor.lookup(keys[i]) >= 0) {
+                    total += cursor.copyValue(valueBuffer, 0);
+                }
+            }
+        }
+        return total;
+    }
+
+    private com.sun.management.ThreadMXBean _threadBean()
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if (!sunBean.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        sunBean.setThreadAllocatedMemoryEnabled(true);
+        return sunBean;
+    }
+
+    static TreeMap<String,Long> _entries()
+    {
+        TreeMap<String,Long> entries = new TreeMap<String,Long>();
+        Random r = new Random(ENTRY_COUNT);
+        for (int i = 0; i < ENTRY_COUNT; ++i) {
+            entries.put(String.format("key%05d", r.nextInt(100000)), (long) r.nextInt(1 << (i % 31)));
+        }
+        return entries;
+    }
+
+    private static byte[][] _keys(TreeMap<String,Long> entries)
+    {
+        byte[][] keys = new byte[entries.size()][];
+        int i = 0;
+        for (String key : entries.keySet()) {
+            keys[i++] = UTF8Codec.encodeAsUTF8(key);
+        }
+        return keys;
+    }
+
+    /*
+    /**********************************************************
+    /* Helper classes
+    /**********************************************************
+     */
+
+    static class VIntMapReader
+        extends KeyValueSource<Long>
+    {
+        final Map<String,Long> _entries;
+
+        protected int _lineNr;
+
+        public VIntMapReader(Map<String,Long> entries) {
+            _entries = entries;
+        }
+
+        @Override
+        public void readAll(ValueCallback<Long> handler) throws IOException
+        {
+            for (Map.Entry<String,Long> en : _entries.entrySet()) {
+                ++_lineNr;
+                handler.handleEntry(UTF8Codec.encodeAsUTF8(en.getKey()), en.getValue());
+            }
+        }
+
+        @Override public int getLineNumber() { return _lineNr; }
+    }
+
+    static class BytesMapReader
+        extends KeyValueSource<byte[]>
+    {
+        final Map<String,Long> _entries;
+
+        protected int _lineNr;
+
+        public BytesMapReader(Map<String,Long> entries) {
+            _entries = entries;
+        }
+
+        @Override
+        public void readAll(ValueCallback<byte[]> handler) throws IOException
+        {
+            for (Map.Entry<String,Long> en : _entries.entrySet()) {
+                ++_lineNr;
+                handler.handleEntry(UTF8Codec.encodeAsUTF8(en.getKey()),
+                        UTF8Codec.encodeAsUTF8(String.valueOf(en.getValue())));
+            }
+        }
+
+        @Override public int getLineNumber() { return _lineNr; }
+    }
+}
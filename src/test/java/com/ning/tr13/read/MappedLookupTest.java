@@ -0,0 +1,168 @@
+package com.ning.tr13.read;
+
+import java.io.*;
+import java.util.*;
+
+import com.ning.tr13.TrieLookups;
+import com.ning.tr13.impl.bytes.SimpleBytesTrieBuilder;
+import com.ning.tr13.impl.vint.SimpleVIntTrieBuilder;
+import com.ning.tr13.lookup.BytesLookupCursor;
+import com.ning.tr13.lookup.BytesTrieLookup;
+import com.ning.tr13.lookup.MappedTriePayload;
+import com.ning.tr13.lookup.PrefixMatch;
+import com.ning.tr13.lookup.TrieCursor;
+import com.ning.tr13.lookup.VIntLookupCursor;
+import com.ning.tr13.lookup.VIntTrieLookup;
+
+/**
+ * Tests for verifying that lookups from memory-mapped files work.
+ */
+public class MappedLookupTest
+    extends junit.framework.TestCase
+{
+    public void testVIntLookups() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        for (int minChildren : new int[] { 0, 8 }) {
+            File f = File.createTempFile("tr13", ".trie");
+            try {
+                FileOutputStream out = new FileOutputStream(f);
+                new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+                    .setIndexedBranchMinChildren(minChildren)
+                    .buildAndWrite(out, true);
+                out.close();
+                // use tiny segments to verify that crossing segment boundaries works
+                for (int segmentBits : new int[] { 4, 9, MappedTriePayload.DEFAULT_SEGMENT_BITS }) {
+                    _testVInt(entries, TrieLookups.mapVIntTrie(f, segmentBits));
+                }
+            } finally {
+                f.delete();
+            }
+        }
+    }
+
+    public void testBytesLookups() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        for (int minChildren : new int[] { 0, 8 }) {
+            File f = File.createTempFile("tr13", ".trie");
+            try {
+                FileOutputStream out = new FileOutputStream(f);
+                new SimpleBytesTrieBuilder(new IndexedBranchTest.BytesReader(entries))
+                    .setIndexedBranchMinChildren(minChildren)
+                    .buildAndWrite(out, true);
+                out.close();
+                for (int segmentBits : new int[] { 4, 9, MappedTriePayload.DEFAULT_SEGMENT_BITS }) {
+                    _testBytes(entries, TrieLookups.mapBytesTrie(f, segmentBits));
+                }
+            } finally {
+                f.delete();
+            }
+        }
+    }
+
+    public void testRelease() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        File f = File.createTempFile("tr13", ".trie");
+        try {
+            FileOutputStream out = new FileOutputStream(f);
+            new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+                .setReverseIndex(true)
+                .setBloomFilterBitsPerKey(8)
+                .buildAndWrite(out, true);
+            out.close();
+            VIntTrieLookup trie = TrieLookups.mapVIntTrie(f);
+            _testVInt(entries, trie);
+            assertTrue(trie.cursor().getPayload() instanceof MappedTriePayload);
+            // release goes through wrappers (Bloom filter, reverse index) to all mappings
+            trie.release();
+            // and new mappings are not affected
+            _testVInt(entries, TrieLookups.mapVIntTrie(f));
+        } finally {
+            f.delete();
+        }
+    }
+
+    /**
+     * Test to verify that offsets beyond 2 gigabytes work, using a sparse
+     * file (so no actual disk space is needed)
+     */
+    public void testHugePayload() throws Exception
+    {
+        File f = File.createTempFile("tr13", ".huge");
+        try {
+            final long size = (3L << 30) + 5;
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            raf.setLength(size);
+            raf.seek(size - 3);
+            raf.write(new byte[] { 1, 2, 3 });
+            raf.seek((2L << 30) - 1);
+            raf.write(new byte[] { 4, 5 });
+            MappedTriePayload payload = MappedTriePayload.map(raf.getChannel(), 0L, size);
+            raf.close();
+            assertEquals(4, payload.getSegmentCount());
+            assertEquals(size, payload.length());
+            assertEquals(3, payload.byteAt(size - 1));
+            byte[] buffer = new byte[4];
+            payload.getBytes((2L << 30) - 2, buffer, 0, 4);
+            assertTrue(Arrays.equals(new byte[] { 0, 4, 5, 0 }, buffer));
+        } finally {
+            f.delete();
+        }
+    }
+
+    /*
+    /**********************************************************
+    /* Helper methods
+    /**********************************************************
+     */
+
+    private void _testVInt(TreeMap<byte[],Long> entries, VIntTrieLookup trie)
+    {
+        VIntLookupCursor lookups = trie.newCursor();
+        for (Map.Entry<byte[],Long> entry : entries.entrySet()) {
+            byte[] key = entry.getKey();
+            assertEquals(entry.getValue(), trie.findValue(key));
+            assertEquals(entry.getValue().longValue(), lookups.lookup(key, -1L));
+            PrefixMatch<Long> match = trie.findLongestPrefix(Arrays.copyOf(key, key.length+1));
+            assertEquals(key.length, match.getMatchLength());
+            assertEquals(entry.getValue(), match.getValue());
+        }
+        assertNull(trie.findValue(new byte[] { 0x20 }));
+        assertEquals(-1L, trie.getValue(new byte[] { 0x31 }, -1L));
+        TrieCursor cursor = trie.cursor();
+        for (Map.Entry<byte[],Long> entry : entries.entrySet()) {
+            assertTrue(cursor.next());
+            assertTrue(Arrays.equals(entry.getKey(), cursor.getKey()));
+            assertEquals(entry.getValue().longValue(), cursor.getLongValue());
+        }
+        assertFalse(cursor.next());
+    }
+
+    private void _testBytes(TreeMap<byte[],Long> entries, BytesTrieLookup trie)
+    {
+        BytesLookupCursor lookups = trie.newCursor();
+        byte[] buffer = new byte[20];
+        for (Map.Entry<byte[],Long> entry : entries.entrySet()) {
+            byte[] key = entry.getKey();
+            byte[] exp = String.valueOf(entry.getValue()).getBytes();
+            assertTrue(Arrays.equals(exp, trie.findValue(key)));
+            assertEquals(exp.length, lookups.lookup(key));
+            lookups.copyValue(buffer, 0);
+            assertTrue(Arrays.equals(exp, Arrays.copyOf(buffer, exp.length)));
+            PrefixMatch<byte[]> match = trie.findLongestPrefix(Arrays.copyOf(key, key.length+1));
+            assertEquals(key.length, match.getMatchLength());
+            assertTrue(Arrays.equals(exp, match.getValue()));
+        }
+        assertNull(trie.findValue(new byte[] { 0x20 }));
+        assertEquals(-1, lookups.lookup(new byte[] { 0x31 }));
+        TrieCursor cursor = trie.cursor();
+        for (Map.Entry<byte[],Long> entry : entries.entrySet()) {
+            assertTrue(cursor.next());
+            assertTrue(Arrays.equals(entry.getKey(), cursor.getKey()));
+            assertTrue(Arrays.equals(String.valueOf(entry.getValue()).getBytes(), cursor.getBytesValue()));
+        }
+        assertFalse(cursor.next());
+    }
+}
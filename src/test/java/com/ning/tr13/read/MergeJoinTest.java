@@ -0,0 +1,219 @@
+package com.ning.tr13.read;
+
+import java.io.*;
+import java.util.*;
+
+import com.ning.tr13.KeyValueSource;
+import com.ning.tr13.TrieLookups;
+import com.ning.tr13.impl.bytes.SimpleBytesTrieBuilder;
+import com.ning.tr13.impl.vint.SimpleVIntTrieBuilder;
+import com.ning.tr13.lookup.BytesTrieLookup;
+import com.ning.tr13.lookup.TrieCursor;
+import com.ning.tr13.lookup.TrieMergeJoin;
+import com.ning.tr13.lookup.VIntTrieLookup;
+
+/**
+ * Tests for joining sorted key streams against tries, verified
+ * against single-key lookups.
+ */
+public class MergeJoinTest
+    extends junit.framework.TestCase
+{
+    public void testVIntJoin() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        List<byte[]> input = _input(entries);
+        for (int minChildren : new int[] { 0, 8 }) {
+            for (boolean reorder : new boolean[] { false, true }) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+                    .setReorderEntries(reorder)
+                    .setIndexedBranchMinChildren(minChildren)
+                    .buildAndWrite(out, true);
+                final VIntTrieLookup trie = TrieLookups.readByteArrayVIntTrie(new ByteArrayInputStream(out.toByteArray()));
+                final List<Integer> seen = new ArrayList<Integer>();
+                TrieMergeJoin<Integer> join = TrieMergeJoin.join(new ListSource(input), trie,
+                        new TrieMergeJoin.JoinCallback<Integer>() {
+                    @Override
+                    public void matched(byte[] key, Integer value, TrieCursor trieEntry) {
+                        assertEquals(trie.findValue(key), Long.valueOf(trieEntry.getLongValue()));
+                        seen.add(value);
+                    }
+
+                    @Override
+                    public void missed(byte[] key, Integer value) {
+                        assertNull(Arrays.toString(key), trie.findValue(key));
+                        seen.add(value);
+                    }
+                });
+                // all entries reported, in input order
+                assertEquals(input.size(), seen.size());
+                for (int i = 0; i < seen.size(); ++i) {
+                    assertEquals(i, seen.get(i).intValue());
+                }
+                int expMatches = 0;
+                for (byte[] key : input) {
+                    if (entries.containsKey(key)) {
+                        ++expMatches;
+                    }
+                }
+                assertEquals(expMatches, join.getMatchCount());
+                assertEquals(input.size() - expMatches, join.getMissCount());
+            }
+        }
+    }
+
+    public void testBytesJoin() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        List<byte[]> input = _input(entries);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleBytesTrieBuilder(new IndexedBranchTest.BytesReader(entries))
+            .setReorderEntries(true)
+            .buildAndWrite(out, true);
+        final BytesTrieLookup trie = TrieLookups.readByteArrayBytesTrie(new ByteArrayInputStream(out.toByteArray()));
+        final int[] counts = new int[2];
+        TrieMergeJoin.join(new ListSource(input), trie, new TrieMergeJoin.JoinCallback<Integer>() {
+            @Override
+            public void matched(byte[] key, Integer value, TrieCursor trieEntry) {
+                assertTrue(Arrays.equals(trie.findValue(key), trieEntry.getBytesValue()));
+                ++counts[0];
+            }
+
+            @Override
+            public void missed(byte[] key, Integer value) {
+                assertNull(trie.findValue(key));
+                ++counts[1];
+            }
+        });
+        assertEquals(input.size(), counts[0] + counts[1]);
+        assertTrue(counts[0] > 0);
+        assertTrue(counts[1] > 0);
+    }
+
+    public void testSeekForward() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+            .setReorderEntries(true)
+            .setIndexedBranchMinChildren(8)
+            .buildAndWrite(out, true);
+        VIntTrieLookup trie = TrieLookups.readByteArrayVIntTrie(new ByteArrayInputStream(out.toByteArray()));
+        TrieCursor forward = trie.cursor();
+        TrieCursor ceiling = trie.cursor();
+        for (byte[] key : _input(entries)) {
+            boolean found = ceiling.seekCeiling(key, true);
+            assertEquals(found, forward.seekForward(key));
+            if (found) {
+                assertEquals(Arrays.toString(ceiling.getKey()), Arrays.toString(forward.getKey()));
+                assertEquals(ceiling.getLongValue(), forward.getLongValue());
+            }
+        }
+        // iteration can continue after seeking
+        forward = trie.cursor();
+        byte[] key = entries.ceilingKey(new byte[] { 0x40, 0x40 });
+        assertTrue(forward.seekForward(key));
+        for (byte[] exp : entries.tailMap(key, true).keySet()) {
+            assertEquals(Arrays.toString(exp), Arrays.toString(forward.getKey()));
+            forward.next();
+        }
+        assertFalse(forward.seekForward(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF }));
+    }
+
+    public void testUnorderedInput() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        List<byte[]> input = new ArrayList<byte[]>();
+        input.add(new byte[] { 0x40 });
+        input.add(new byte[] { 0x35 });
+        try {
+            TrieMergeJoin.join(new ListSource(input),
+                    TrieLookups.constructByteArrayVIntTrie(_raw(entries)),
+                    new TrieMergeJoin.JoinCallback<Integer>() {
+                        @Override
+                        public void matched(byte[] key, Integer value, TrieCursor trieEntry) { }
+
+                        @Override
+                        public void missed(byte[] key, Integer value) { }
+            });
+            fail("Should not accept unordered input");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("not properly ordered"));
+        }
+    }
+
+    /*
+    /**********************************************************
+    /* Helper methods
+    /**********************************************************
+     */
+
+    private byte[] _raw(TreeMap<byte[],Long> entries) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries)).buildAndWrite(out, false);
+        return out.toByteArray();
+    }
+
+    /**
+     * Sorted join input: sample of existing keys, missing keys (including
+     * prefixes and extensions of existing ones), some duplicated, and keys
+     * past the last entry
+     */
+    private List<byte[]> _input(TreeMap<byte[],Long> entries)
+    {
+        List<byte[]> keys = new ArrayList<byte[]>();
+        int i = 0;
+        for (byte[] key : entries.keySet()) {
+            if ((++i % 3) != 0) {
+                keys.add(key);
+                if ((i % 10) == 0) {
+                    keys.add(key);
+                }
+            }
+        }
+        i = 0;
+        for (byte[] key : IndexedBranchTest._missingKeys(entries)) {
+            if ((++i % 4) == 0) {
+                keys.add(key);
+            }
+        }
+        keys.add(new byte[0]);
+        keys.add(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF });
+        keys.add(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01 });
+        Collections.sort(keys, new IndexedBranchTest.ByteComparator());
+        return keys;
+    }
+
+    /*
+    /**********************************************************
+    /* Helper classes
+    /**********************************************************
+     */
+
+    /**
+     * Source that passes given keys, with their index as value
+     */
+    static class ListSource
+        extends KeyValueSource<Integer>
+    {
+        final List<byte[]> _keys;
+
+        protected int _lineNr;
+
+        public ListSource(List<byte[]> keys) {
+            _keys = keys;
+        }
+
+        @Override
+        public void readAll(ValueCallback<Integer> handler) throws IOException
+        {
+            for (byte[] key : _keys) {
+                handler.handleEntry(key, _lineNr++);
+            }
+        }
+
+        @Override public int getLineNumber() { return _lineNr; }
+    }
+}
@@ -0,0 +1,159 @@
+package com.ning.tr13.read;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import com.ning.tr13.impl.bytes.ByteArrayBytesTrieLookup;
+import com.ning.tr13.impl.bytes.SimpleBytesTrieBuilder;
+import com.ning.tr13.impl.vint.ByteArrayVIntTrieLookup;
+import com.ning.tr13.impl.vint.ByteBufferVIntTrieLookup;
+import com.ning.tr13.impl.vint.SimpleVIntTrieBuilder;
+import com.ning.tr13.lookup.BytesTrieLookup;
+import com.ning.tr13.lookup.TrieCursor;
+import com.ning.tr13.lookup.TrieEntry;
+import com.ning.tr13.lookup.VIntTrieLookup;
+
+/**
+ * Tests for floor/ceiling/higher/lower lookups, verified against
+ * results of same operations on a {@link TreeMap}.
+ */
+public class OrderedLookupTest
+    extends junit.framework.TestCase
+{
+    public void testVIntLookups() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        List<byte[]> keys = _queryKeys(entries);
+        for (int minChildren : new int[] { 0, 8 }) {
+            // reordered branches need to work as well
+            for (boolean reorder : new boolean[] { false, true }) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+                    .setReorderEntries(reorder)
+                    .setIndexedBranchMinChildren(minChildren)
+                    .buildAndWrite(out, false);
+                byte[] raw = out.toByteArray();
+                _testVInt(entries, keys, new ByteArrayVIntTrieLookup(raw));
+                _testVInt(entries, keys, new ByteBufferVIntTrieLookup(ByteBuffer.wrap(raw), raw.length));
+            }
+        }
+    }
+
+    public void testBytesLookups() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        List<byte[]> keys = _queryKeys(entries);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleBytesTrieBuilder(new IndexedBranchTest.BytesReader(entries))
+            .setReorderEntries(true)
+            .buildAndWrite(out, false);
+        BytesTrieLookup trie = new ByteArrayBytesTrieLookup(out.toByteArray());
+        for (byte[] key : keys) {
+            _verifyBytes(entries.floorEntry(key), trie.floorEntry(key));
+            _verifyBytes(entries.ceilingEntry(key), trie.ceilingEntry(key));
+            _verifyBytes(entries.higherEntry(key), trie.higherEntry(key));
+            _verifyBytes(entries.lowerEntry(key), trie.lowerEntry(key));
+        }
+    }
+
+    public void testIterationAfterSeek() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+            .setReorderEntries(true)
+            .buildAndWrite(out, false);
+        VIntTrieLookup trie = new ByteArrayVIntTrieLookup(out.toByteArray());
+        TrieCursor cursor = trie.cursor();
+        byte[] from = new byte[] { 0x50, 0x40 };
+        assertTrue(cursor.seekCeiling(from, true));
+        Iterator<Map.Entry<byte[],Long>> it = entries.tailMap(from, true).entrySet().iterator();
+        int count = 0;
+        do {
+            Map.Entry<byte[],Long> exp = it.next();
+            assertTrue(Arrays.equals(exp.getKey(), cursor.getKey()));
+            assertEquals(exp.getValue().longValue(), cursor.getLongValue());
+            ++count;
+        } while (cursor.next());
+        assertFalse(it.hasNext());
+        assertTrue(count > 100);
+
+        // and past the end
+        assertFalse(cursor.seekCeiling(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF }, true));
+        assertFalse(cursor.seekFloor(new byte[] { 0x10 }, true));
+        assertFalse(cursor.next());
+    }
+
+    /*
+    /**********************************************************
+    /* Helper methods
+    /**********************************************************
+     */
+
+    private void _testVInt(TreeMap<byte[],Long> entries, List<byte[]> keys, VIntTrieLookup trie)
+    {
+        for (byte[] key : keys) {
+            _verifyVInt(entries.floorEntry(key), trie.floorEntry(key));
+            _verifyVInt(entries.ceilingEntry(key), trie.ceilingEntry(key));
+            _verifyVInt(entries.higherEntry(key), trie.higherEntry(key));
+            _verifyVInt(entries.lowerEntry(key), trie.lowerEntry(key));
+        }
+    }
+
+    private void _verifyVInt(Map.Entry<byte[],Long> exp, TrieEntry<Long> actual)
+    {
+        if (exp == null) {
+            assertNull(actual);
+            return;
+        }
+        assertNotNull("Missing entry for key "+Arrays.toString(exp.getKey()), actual);
+        assertEquals(Arrays.toString(exp.getKey()), Arrays.toString(actual.getKey()));
+        assertEquals(exp.getValue(), actual.getValue());
+    }
+
+    private void _verifyBytes(Map.Entry<byte[],Long> exp, TrieEntry<byte[]> actual)
+    {
+        if (exp == null) {
+            assertNull(actual);
+            return;
+        }
+        assertNotNull("Missing entry for key "+Arrays.toString(exp.getKey()), actual);
+        assertEquals(Arrays.toString(exp.getKey()), Arrays.toString(actual.getKey()));
+        assertEquals(String.valueOf(exp.getValue()), new String(actual.getValue()));
+    }
+
+    /**
+     * Keys to look up: sample of existing and missing keys, as well as keys
+     * before and after all entries.
+     */
+    private List<byte[]> _queryKeys(TreeMap<byte[],Long> entries)
+    {
+        List<byte[]> result = new ArrayList<byte[]>();
+        int i = 0;
+        for (byte[] key : entries.keySet()) {
+            if ((++i % 23) == 0) {
+                result.add(key);
+            }
+        }
+        i = 0;
+        for (byte[] key : IndexedBranchTest._missingKeys(entries)) {
+            if ((++i % 23) == 0) {
+                result.add(key);
+            }
+            // also shorter keys (prefixes)
+            if (key.length > 2 && (i % 37) == 0) {
+                result.add(Arrays.copyOf(key, key.length-2));
+            }
+        }
+        result.add(new byte[0]);
+        result.add(new byte[] { 0x00 });
+        result.add(new byte[] { 0x30 });
+        result.add(new byte[] { 0x30, 0x00 });
+        result.add(new byte[] { (byte) 0xFF });
+        result.add(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF });
+        result.add(new byte[] { 0x33, 0x31, 'x' });
+        result.add(new byte[] { 0x33, 0x32, 'x', 'y', 'z' });
+        return result;
+    }
+}
@@ -0,0 +1,138 @@
+package com.ning.tr13.read;
+
+import java.io.*;
+import java.util.*;
+
+import com.ning.tr13.TrieLookups;
+import com.ning.tr13.impl.ordinal.OrdinalTrieLookup;
+import com.ning.tr13.impl.ordinal.SimpleOrdinalTrieBuilder;
+import com.ning.tr13.impl.vint.SimpleVIntTrieBuilder;
+import com.ning.tr13.lookup.TrieCursor;
+import com.ning.tr13.lookup.TriePayload;
+import com.ning.tr13.util.UTF8Codec;
+
+/**
+ * Tests for key-only tries that map keys to their ordinals and back.
+ */
+public class OrdinalTrieTest
+    extends junit.framework.TestCase
+{
+    public void testOrdinals() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        List<byte[]> keys = new ArrayList<byte[]>(entries.keySet());
+        List<byte[]> missing = IndexedBranchTest._missingKeys(entries);
+        for (int minChildren : new int[] { 0, 8 }) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new SimpleOrdinalTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+                .setReorderEntries(true)
+                .setIndexedBranchMinChildren(minChildren)
+                .buildAndWrite(out, true);
+            byte[] full = out.toByteArray();
+            _testOrdinals(keys, missing, TrieLookups.readOrdinalTrie(new ByteArrayInputStream(full)));
+            _testOrdinals(keys, missing, new OrdinalTrieLookup(
+                    TriePayload.forArray(Arrays.copyOfRange(full, 16, full.length))));
+            File f = _writeFile(full);
+            try {
+                _testOrdinals(keys, missing, TrieLookups.mapOrdinalTrie(f));
+            } finally {
+                f.delete();
+            }
+        }
+    }
+
+    public void testWithBloomFilter() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleOrdinalTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+            .setBloomFilterBitsPerKey(10)
+            .buildAndWrite(out, true);
+        OrdinalTrieLookup trie = TrieLookups.readOrdinalTrie(new ByteArrayInputStream(out.toByteArray()));
+        _testOrdinals(new ArrayList<byte[]>(entries.keySet()), IndexedBranchTest._missingKeys(entries), trie);
+    }
+
+    public void testStringKeys() throws Exception
+    {
+        TreeMap<byte[],Long> entries = new TreeMap<byte[],Long>(new IndexedBranchTest.ByteComparator());
+        String[] ids = new String[] { "abc", "abcd", "b", "ba", "bb", "cé", "一" };
+        for (String id : ids) {
+            entries.put(UTF8Codec.encodeAsUTF8(id), 1L);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleOrdinalTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+            .buildAndWrite(out, true);
+        OrdinalTrieLookup trie = TrieLookups.readOrdinalTrie(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(ids.length, trie.size());
+        for (int i = 0; i < ids.length; ++i) {
+            assertEquals(i, trie.ordinal(ids[i]));
+            assertEquals(ids[i], trie.keyAsStringAt(i));
+        }
+        assertEquals(-1L, trie.ordinal("ab"));
+        assertEquals(-1L, trie.ordinal("abcde"));
+        assertNull(trie.keyAsStringAt(ids.length));
+
+        // iteration is in ordinal order, too
+        TrieCursor c = trie.cursor();
+        for (String id : ids) {
+            assertTrue(c.next());
+            assertEquals(id, UTF8Codec.decodeFromUTF8(c.getKey()));
+        }
+        assertFalse(c.next());
+    }
+
+    public void testInvalidTries() throws Exception
+    {
+        try {
+            new SimpleOrdinalTrieBuilder(new IndexedBranchTest.VIntReader(IndexedBranchTest.wideEntries()))
+                .setSubtreeCounts(false);
+            fail("Should not allow disabling subtree counts");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("subtree counts"));
+        }
+        // tries with values can not be read as ordinal tries, even if they have counts
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(IndexedBranchTest.wideEntries()))
+            .setSubtreeCounts(true)
+            .buildAndWrite(out, true);
+        try {
+            TrieLookups.readOrdinalTrie(new ByteArrayInputStream(out.toByteArray()));
+            fail("Should not read VInt trie as ordinal trie");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Not an ordinal trie"));
+        }
+    }
+
+    /*
+    /**********************************************************
+    /* Helper methods
+    /**********************************************************
+     */
+
+    private void _testOrdinals(List<byte[]> keys, List<byte[]> missing, OrdinalTrieLookup trie)
+    {
+        assertEquals(keys.size(), trie.size());
+        // sample of keys is enough, to keep test fast
+        for (int i = 0, len = keys.size(); i < len; i += 3) {
+            byte[] key = keys.get(i);
+            assertEquals(i, trie.ordinal(key));
+            assertTrue(Arrays.equals(key, trie.keyAt(i)));
+        }
+        for (int i = 0, len = missing.size(); i < len; i += 5) {
+            byte[] key = missing.get(i);
+            assertEquals(-1L, trie.ordinal(key));
+            assertFalse(trie.containsKey(key));
+        }
+        assertNull(trie.keyAt(-1L));
+        assertNull(trie.keyAt(keys.size()));
+    }
+
+    private File _writeFile(byte[] data) throws IOException
+    {
+        File f = File.createTempFile("tr13", ".trie");
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+        return f;
+    }
+}
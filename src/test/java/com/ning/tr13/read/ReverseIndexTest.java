@@ -0,0 +1,171 @@
+package com.ning.tr13.read;
+
+import java.io.*;
+import java.util.*;
+
+import com.ning.tr13.TrieLookups;
+import com.ning.tr13.bloom.BloomFilteredVIntTrieLookup;
+import com.ning.tr13.impl.vint.SimpleVIntTrieBuilder;
+import com.ning.tr13.lookup.RootIndex;
+import com.ning.tr13.lookup.TriePayload;
+import com.ning.tr13.lookup.VIntTrieLookup;
+import com.ning.tr13.reverse.ReverseIndex;
+
+/**
+ * Tests for reverse (value to keys) lookups of VInt tries built
+ * with reverse index.
+ */
+public class ReverseIndexTest
+    extends junit.framework.TestCase
+{
+    public void testFindKeys() throws Exception
+    {
+        TreeMap<byte[],Long> entries = _entries();
+        Map<Long,List<byte[]>> expected = _keysByValue(entries);
+        for (int minChildren : new int[] { 0, 8 }) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+                .setReverseIndex(true)
+                .setReorderEntries(true)
+                .setIndexedBranchMinChildren(minChildren)
+                .buildAndWrite(out, true);
+            byte[] full = out.toByteArray();
+            _testFindKeys(entries, expected, TrieLookups.readByteArrayVIntTrie(new ByteArrayInputStream(full)));
+            VIntTrieLookup trie = TrieLookups.readByteBufferVIntTrie(new ByteArrayInputStream(full));
+            _testFindKeys(entries, expected, trie);
+            _testFindKeys(entries, expected, trie.withRootIndex(RootIndex.TWO_LEVEL_BYTES));
+            _testFindKeys(entries, expected, TrieLookups.cachingVIntTrie(trie, 100));
+            File f = _writeFile(full);
+            try {
+                _testFindKeys(entries, expected, TrieLookups.mapVIntTrie(f));
+            } finally {
+                f.delete();
+            }
+        }
+    }
+
+    public void testWithBloomFilter() throws Exception
+    {
+        TreeMap<byte[],Long> entries = _entries();
+        Map<Long,List<byte[]>> expected = _keysByValue(entries);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+            .setReverseIndex(true)
+            .setBloomFilterBitsPerKey(10)
+            .buildAndWrite(out, true);
+        byte[] full = out.toByteArray();
+        VIntTrieLookup trie = TrieLookups.readByteArrayVIntTrie(new ByteArrayInputStream(full));
+        assertTrue(trie instanceof BloomFilteredVIntTrieLookup);
+        _testFindKeys(entries, expected, trie);
+        File f = _writeFile(full);
+        try {
+            _testFindKeys(entries, expected, TrieLookups.mapVIntTrie(f));
+        } finally {
+            f.delete();
+        }
+    }
+
+    public void testWithoutIndex() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(_entries()))
+            .setSubtreeCounts(true)
+            .buildAndWrite(out, true);
+        VIntTrieLookup trie = TrieLookups.readByteArrayVIntTrie(new ByteArrayInputStream(out.toByteArray()));
+        try {
+            trie.findKeys(1L);
+            fail("Should not be able to find keys without reverse index");
+        } catch (UnsupportedOperationException e) {
+            assertTrue(e.getMessage().contains("reverse index"));
+        }
+    }
+
+    public void testMalformedIndex() throws Exception
+    {
+        byte[] data = ReverseIndex.build(new long[] { 3L, 1L, 3L }, 3);
+        ReverseIndex index = ReverseIndex.forPayload(TriePayload.forArray(data));
+        assertEquals(2, index.getValueCount());
+        assertEquals(3, index.getEntryCount());
+        assertEquals("[0, 2]", Arrays.toString(index.findOrdinals(3L)));
+        assertEquals("[1]", Arrays.toString(index.findOrdinals(1L)));
+        assertEquals(0, index.findOrdinals(2L).length);
+        try {
+            ReverseIndex.forPayload(TriePayload.forArray(Arrays.copyOf(data, data.length-1)));
+            fail("Should not accept truncated index");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Malformed reverse index"));
+        }
+    }
+
+    /*
+    /**********************************************************
+    /* Helper methods
+    /**********************************************************
+     */
+
+    private void _testFindKeys(TreeMap<byte[],Long> entries, Map<Long,List<byte[]>> expected,
+            VIntTrieLookup trie)
+    {
+        // sample of values is enough, to keep test fast
+        for (Map.Entry<Long,List<byte[]>> entry : expected.entrySet()) {
+            if ((entry.getKey() % 4) != 0) {
+                continue;
+            }
+            List<byte[]> keys = trie.findKeys(entry.getKey());
+            assertEquals(entry.getValue().size(), keys.size());
+            for (int i = 0; i < keys.size(); ++i) {
+                assertEquals(Arrays.toString(entry.getValue().get(i)), Arrays.toString(keys.get(i)));
+            }
+        }
+        assertEquals(0, trie.findKeys(-1L).size());
+        assertEquals(0, trie.findKeys(Long.MAX_VALUE).size());
+        // regular lookups must work as well
+        int i = 0;
+        for (Map.Entry<byte[],Long> entry : entries.entrySet()) {
+            if ((++i % 7) == 0) {
+                assertEquals(entry.getValue(), trie.findValue(entry.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Test entries, with many values shared by multiple keys, and some
+     * values being big
+     */
+    private TreeMap<byte[],Long> _entries()
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        long i = 0L;
+        for (Map.Entry<byte[],Long> entry : entries.entrySet()) {
+            long value = (++i % 37);
+            if ((i % 5) == 0) {
+                value += 0x7FFFFFFF00L;
+            }
+            entry.setValue(value);
+        }
+        return entries;
+    }
+
+    private Map<Long,List<byte[]>> _keysByValue(TreeMap<byte[],Long> entries)
+    {
+        Map<Long,List<byte[]>> result = new HashMap<Long,List<byte[]>>();
+        for (Map.Entry<byte[],Long> entry : entries.entrySet()) {
+            List<byte[]> keys = result.get(entry.getValue());
+            if (keys == null) {
+                keys = new ArrayList<byte[]>();
+                result.put(entry.getValue(), keys);
+            }
+            keys.add(entry.getKey());
+        }
+        return result;
+    }
+
+    private File _writeFile(byte[] data) throws IOException
+    {
+        File f = File.createTempFile("tr13", ".trie");
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+        return f;
+    }
+}
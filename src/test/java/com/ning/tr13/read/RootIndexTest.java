@@ -0,0 +1,169 @@
+package com.ning.tr13.read;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import com.ning.tr13.TrieLookups;
+import com.ning.tr13.impl.bytes.ByteArrayBytesTrieLookup;
+import com.ning.tr13.impl.bytes.ByteBufferBytesTrieLookup;
+import com.ning.tr13.impl.bytes.SimpleBytesTrieBuilder;
+import com.ning.tr13.impl.vint.ByteArrayVIntTrieLookup;
+import com.ning.tr13.impl.vint.ByteBufferVIntTrieLookup;
+import com.ning.tr13.impl.vint.SimpleVIntTrieBuilder;
+import com.ning.tr13.lookup.BytesLookupCursor;
+import com.ning.tr13.lookup.BytesTrieLookup;
+import com.ning.tr13.lookup.RootIndex;
+import com.ning.tr13.lookup.TriePayload;
+import com.ning.tr13.lookup.VIntLookupCursor;
+import com.ning.tr13.lookup.VIntTrieLookup;
+
+/**
+ * Tests for verifying that lookups using a root index (jump table)
+ * produce same results as regular lookups.
+ */
+public class RootIndexTest
+    extends junit.framework.TestCase
+{
+    private final static int[] INDEX_SIZES = new int[] {
+        RootIndex.ONE_LEVEL_BYTES, RootIndex.TWO_LEVEL_BYTES
+    };
+
+    public void testIndexSizes() throws Exception
+    {
+        byte[] raw = _buildVInt(IndexedBranchTest.wideEntries(), 0, false);
+        TriePayload payload = TriePayload.forArray(raw);
+        assertNull(RootIndex.build(payload, false, RootIndex.ONE_LEVEL_BYTES - 1));
+        RootIndex index = RootIndex.build(payload, false, RootIndex.ONE_LEVEL_BYTES);
+        assertEquals(1, index.levels());
+        assertEquals(RootIndex.ONE_LEVEL_BYTES, index.memoryUsage());
+        index = RootIndex.build(payload, false, RootIndex.TWO_LEVEL_BYTES + 100);
+        assertEquals(2, index.levels());
+        assertEquals(RootIndex.TWO_LEVEL_BYTES, index.memoryUsage());
+
+        // single-entry trie has no branches to index
+        TreeMap<byte[],Long> single = new TreeMap<byte[],Long>(new IndexedBranchTest.ByteComparator());
+        single.put(new byte[] { 1, 2, 3 }, 3L);
+        raw = _buildVInt(single, 0, false);
+        assertNull(RootIndex.build(TriePayload.forArray(raw), false, RootIndex.TWO_LEVEL_BYTES));
+        VIntTrieLookup trie = new ByteArrayVIntTrieLookup(raw).withRootIndex(RootIndex.TWO_LEVEL_BYTES);
+        assertEquals(Long.valueOf(3L), trie.findValue(new byte[] { 1, 2, 3 }));
+    }
+
+    public void testVIntLookups() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        List<byte[]> missing = IndexedBranchTest._missingKeys(entries);
+        // both with plain and indexed branches
+        for (int minChildren : new int[] { 0, 8 }) {
+            byte[] full = _buildVIntWithHeader(entries, minChildren, minChildren == 0);
+            byte[] raw = Arrays.copyOfRange(full, 16, full.length);
+            File f = _writeFile(full);
+            try {
+                for (int size : INDEX_SIZES) {
+                    _testVInt(entries, missing, new ByteArrayVIntTrieLookup(raw).withRootIndex(size));
+                    _testVInt(entries, missing, TrieLookups.withRootIndex(
+                            new ByteBufferVIntTrieLookup(ByteBuffer.wrap(raw), raw.length), size));
+                    _testVInt(entries, missing, TrieLookups.mapVIntTrie(f).withRootIndex(size));
+                }
+            } finally {
+                f.delete();
+            }
+        }
+    }
+
+    public void testBytesLookups() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        List<byte[]> missing = IndexedBranchTest._missingKeys(entries);
+        for (int minChildren : new int[] { 0, 8 }) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new SimpleBytesTrieBuilder(new IndexedBranchTest.BytesReader(entries))
+                .setIndexedBranchMinChildren(minChildren)
+                .buildAndWrite(out, true);
+            byte[] full = out.toByteArray();
+            byte[] raw = Arrays.copyOfRange(full, 16, full.length);
+            File f = _writeFile(full);
+            try {
+                for (int size : INDEX_SIZES) {
+                    _testBytes(entries, missing, new ByteArrayBytesTrieLookup(raw).withRootIndex(size));
+                    _testBytes(entries, missing, TrieLookups.withRootIndex(
+                            new ByteBufferBytesTrieLookup(ByteBuffer.wrap(raw), raw.length), size));
+                    _testBytes(entries, missing, TrieLookups.mapBytesTrie(f).withRootIndex(size));
+                }
+            } finally {
+                f.delete();
+            }
+        }
+    }
+
+    /*
+    /**********************************************************
+    /* Helper methods
+    /**********************************************************
+     */
+
+    private void _testVInt(TreeMap<byte[],Long> entries, List<byte[]> missing,
+            VIntTrieLookup trie)
+    {
+        VIntLookupCursor cursor = trie.newCursor();
+        for (Map.Entry<byte[],Long> entry : entries.entrySet()) {
+            byte[] key = entry.getKey();
+            assertEquals(entry.getValue(), trie.findValue(key));
+            assertEquals(entry.getValue().longValue(), cursor.lookup(key, -1L));
+            assertTrue(trie.containsKey(key));
+            byte[] buffer = new byte[key.length + 2];
+            System.arraycopy(key, 0, buffer, 1, key.length);
+            assertEquals(entry.getValue().longValue(), trie.getValue(buffer, 1, key.length, -1L));
+        }
+        for (byte[] key : missing) {
+            assertNull(trie.findValue(key));
+            assertEquals(-1L, cursor.lookup(key, -1L));
+            assertFalse(trie.containsKey(key));
+        }
+    }
+
+    private void _testBytes(TreeMap<byte[],Long> entries, List<byte[]> missing,
+            BytesTrieLookup trie)
+    {
+        BytesLookupCursor cursor = trie.newCursor();
+        for (Map.Entry<byte[],Long> entry : entries.entrySet()) {
+            byte[] exp = String.valueOf(entry.getValue()).getBytes();
+            assertTrue(Arrays.equals(exp, trie.findValue(entry.getKey())));
+            assertEquals(exp.length, cursor.lookup(entry.getKey()));
+            assertTrue(trie.containsKey(entry.getKey()));
+        }
+        for (byte[] key : missing) {
+            assertNull(trie.findValue(key));
+            assertEquals(-1, cursor.lookup(key));
+            assertFalse(trie.containsKey(key));
+        }
+    }
+
+    private byte[] _buildVInt(TreeMap<byte[],Long> entries, int minChildren, boolean reorder)
+        throws IOException
+    {
+        byte[] full = _buildVIntWithHeader(entries, minChildren, reorder);
+        return Arrays.copyOfRange(full, 16, full.length);
+    }
+
+    private byte[] _buildVIntWithHeader(TreeMap<byte[],Long> entries, int minChildren, boolean reorder)
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+            .setReorderEntries(reorder)
+            .setIndexedBranchMinChildren(minChildren)
+            .buildAndWrite(out, true);
+        return out.toByteArray();
+    }
+
+    private File _writeFile(byte[] data) throws IOException
+    {
+        File f = File.createTempFile("tr13", ".trie");
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+        return f;
+    }
+}
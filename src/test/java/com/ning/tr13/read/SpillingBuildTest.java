@@ -0,0 +1,122 @@
+package com.ning.tr13.read;
+
+import java.io.*;
+import java.util.*;
+
+import com.ning.tr13.TrieLookups;
+import com.ning.tr13.build.SimpleTrieBuilder;
+import com.ning.tr13.build.TrieNode;
+import com.ning.tr13.impl.bytes.SimpleBytesTrieBuilder;
+import com.ning.tr13.impl.vint.SimpleVIntTrieBuilder;
+import com.ning.tr13.lookup.VIntTrieLookup;
+
+/**
+ * Tests for building tries with big branches spilled to a temporary
+ * file: results must be identical to ones built in memory.
+ */
+public class SpillingBuildTest
+    extends junit.framework.TestCase
+{
+    public void testVIntTries() throws Exception
+    {
+        TreeMap<byte[],Long> entries = _entries();
+        File dir = _spillDir();
+        for (int config = 0; config < 4; ++config) {
+            byte[] exp = _write(_vintBuilder(entries, config), null);
+            byte[] act = _write(_vintBuilder(entries, config), dir);
+            assertTrue("Config #"+config+" differs", Arrays.equals(exp, act));
+            // and spill file is deleted once trie is written
+            assertEquals(0, dir.list().length);
+        }
+        VIntTrieLookup trie = TrieLookups.readByteArrayVIntTrie(new ByteArrayInputStream(
+                _write(_vintBuilder(entries, 1), dir)));
+        for (Map.Entry<byte[],Long> entry : entries.entrySet()) {
+            assertEquals(entry.getValue(), trie.findValue(entry.getKey()));
+        }
+        dir.delete();
+    }
+
+    public void testBytesTries() throws Exception
+    {
+        TreeMap<byte[],Long> entries = _entries();
+        File dir = _spillDir();
+        SimpleTrieBuilder<byte[]> b = new SimpleBytesTrieBuilder(new IndexedBranchTest.BytesReader(entries))
+            .setIndexedBranchMinChildren(8);
+        byte[] exp = _write(b, null);
+        assertTrue(Arrays.equals(exp, _write(b, dir)));
+        dir.delete();
+    }
+
+    public void testSpillFile() throws Exception
+    {
+        TreeMap<byte[],Long> entries = _entries();
+        File dir = _spillDir();
+        SimpleTrieBuilder<Long> b = _vintBuilder(entries, 0).setSpillDirectory(dir);
+        TrieNode<Long> root = b.build();
+        // root is big enough to be spilled, and replaces all other spilled branches
+        File[] files = dir.listFiles();
+        assertEquals(1, files.length);
+        assertEquals(root.length(), files[0].length());
+        byte[] raw = root.serialize();
+        assertEquals(root.length(), raw.length);
+        b.deleteSpillFile();
+        assertEquals(0, dir.list().length);
+        assertTrue(Arrays.equals(_vintBuilder(entries, 0).build().serialize(), raw));
+        dir.delete();
+    }
+
+    /*
+    /**********************************************************
+    /* Helper methods
+    /**********************************************************
+     */
+
+    private TreeMap<byte[],Long> _entries()
+    {
+        TreeMap<byte[],Long> entries = new TreeMap<byte[],Long>(new IndexedBranchTest.ByteComparator());
+        Random r = new Random(5);
+        long id = 0L;
+        for (int i = 0; i < 200000; ++i) {
+            id += 1 + r.nextInt(30);
+            String key = String.format("%011d", id);
+            // some keys are prefixes of others, for branches with values
+            if ((i % 7) == 0) {
+                entries.put(key.substring(0, 8).getBytes(), id);
+            }
+            entries.put(key.getBytes(), (long) r.nextInt(100000));
+        }
+        return entries;
+    }
+
+    private SimpleTrieBuilder<Long> _vintBuilder(TreeMap<byte[],Long> entries, int config)
+    {
+        SimpleTrieBuilder<Long> b = new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries));
+        switch (config) {
+        case 1:
+            b.setReorderEntries(true);
+            break;
+        case 2:
+            b.setIndexedBranchMinChildren(4).setSubtreeCounts(true);
+            break;
+        case 3:
+            b.setCacheLineLayout(true);
+            break;
+        }
+        return b;
+    }
+
+    private byte[] _write(SimpleTrieBuilder<?> b, File spillDir) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        b.setSpillDirectory(spillDir).buildAndWrite(out, true);
+        return out.toByteArray();
+    }
+
+    private File _spillDir() throws IOException
+    {
+        File dir = File.createTempFile("tr13", ".dir");
+        dir.delete();
+        assertTrue(dir.mkdir());
+        return dir;
+    }
+}
@@ -0,0 +1,214 @@
+package com.ning.tr13.read;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import com.ning.tr13.TrieLookups;
+import com.ning.tr13.impl.bytes.SimpleBytesTrieBuilder;
+import com.ning.tr13.impl.vint.ByteArrayVIntTrieLookup;
+import com.ning.tr13.impl.vint.ByteBufferVIntTrieLookup;
+import com.ning.tr13.impl.vint.SimpleVIntTrieBuilder;
+import com.ning.tr13.lookup.BytesTrieLookup;
+import com.ning.tr13.lookup.RootIndex;
+import com.ning.tr13.lookup.TrieCursor;
+import com.ning.tr13.lookup.TrieEntry;
+import com.ning.tr13.lookup.VIntTrieLookup;
+
+/**
+ * Tests for prefix counting, rank and select operations of tries
+ * built with subtree counts, verified against a sorted key list.
+ */
+public class SubtreeCountTest
+    extends junit.framework.TestCase
+{
+    private final static IndexedBranchTest.ByteComparator COMPARATOR = new IndexedBranchTest.ByteComparator();
+
+    public void testVIntCounts() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        List<byte[]> keys = new ArrayList<byte[]>(entries.keySet());
+        List<byte[]> queries = _queryKeys(entries);
+        for (int minChildren : new int[] { 0, 8 }) {
+            for (boolean reorder : new boolean[] { false, true }) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+                    .setReorderEntries(reorder)
+                    .setIndexedBranchMinChildren(minChildren)
+                    .setSubtreeCounts(true)
+                    .buildAndWrite(out, true);
+                byte[] full = out.toByteArray();
+                byte[] raw = Arrays.copyOfRange(full, 16, full.length);
+                VIntTrieLookup trie = new ByteArrayVIntTrieLookup(raw, null, true);
+                _testVInt(entries, keys, queries, trie);
+                _testVInt(entries, keys, queries, trie.withRootIndex(RootIndex.TWO_LEVEL_BYTES));
+                _testVInt(entries, keys, queries, TrieLookups.readByteBufferVIntTrie(new ByteArrayInputStream(full)));
+                File f = _writeFile(full);
+                try {
+                    _testVInt(entries, keys, queries, TrieLookups.mapVIntTrie(f));
+                } finally {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    public void testBytesCounts() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        List<byte[]> keys = new ArrayList<byte[]>(entries.keySet());
+        for (int minChildren : new int[] { 0, 8 }) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new SimpleBytesTrieBuilder(new IndexedBranchTest.BytesReader(entries))
+                .setReorderEntries(true)
+                .setIndexedBranchMinChildren(minChildren)
+                .setSubtreeCounts(true)
+                .buildAndWrite(out, true);
+            BytesTrieLookup trie = TrieLookups.readByteArrayBytesTrie(new ByteArrayInputStream(out.toByteArray()));
+            for (Map.Entry<byte[],Long> entry : entries.entrySet()) {
+                byte[] exp = String.valueOf(entry.getValue()).getBytes();
+                assertTrue(Arrays.equals(exp, trie.findValue(entry.getKey())));
+            }
+            for (byte[] key : _queryKeys(entries)) {
+                assertEquals(_countPrefix(keys, key), trie.countPrefix(key));
+                assertEquals(_rank(keys, key), trie.rank(key));
+            }
+            for (int i = 0; i < keys.size(); i += 17) {
+                TrieEntry<byte[]> entry = trie.select(i);
+                assertNotNull(entry);
+                assertEquals(Arrays.toString(keys.get(i)), Arrays.toString(entry.getKey()));
+                assertEquals(String.valueOf(entries.get(keys.get(i))), new String(entry.getValue()));
+            }
+            assertNull(trie.select(keys.size()));
+        }
+    }
+
+    public void testIterationAfterSelect() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        List<byte[]> keys = new ArrayList<byte[]>(entries.keySet());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+            .setReorderEntries(true)
+            .setSubtreeCounts(true)
+            .buildAndWrite(out, false);
+        byte[] raw = out.toByteArray();
+        VIntTrieLookup trie = new ByteBufferVIntTrieLookup(ByteBuffer.wrap(raw), raw.length, null, true);
+        TrieCursor cursor = trie.cursor();
+        final int start = keys.size() / 3;
+        assertTrue(cursor.seekIndex(start));
+        int i = start;
+        do {
+            assertEquals(Arrays.toString(keys.get(i)), Arrays.toString(cursor.getKey()));
+            assertEquals(entries.get(keys.get(i)).longValue(), cursor.getLongValue());
+            ++i;
+        } while (cursor.next());
+        assertEquals(keys.size(), i);
+
+        assertFalse(cursor.seekIndex(-1L));
+        assertFalse(cursor.seekIndex(keys.size()));
+        assertFalse(cursor.next());
+    }
+
+    public void testWithoutCounts() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+            .buildAndWrite(out, false);
+        VIntTrieLookup trie = new ByteArrayVIntTrieLookup(out.toByteArray());
+        try {
+            trie.countPrefix(new byte[] { 0x31 });
+            fail("Should not be able to count entries without subtree counts");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("subtree counts"));
+        }
+        // but single entries (leaves) can be counted even so
+        assertEquals(1L, trie.countPrefix(entries.ceilingKey(new byte[] { 0x31, 0x00 })));
+        assertEquals(0L, trie.countPrefix(new byte[] { 0x20 }));
+    }
+
+    /*
+    /**********************************************************
+    /* Helper methods
+    /**********************************************************
+     */
+
+    private void _testVInt(TreeMap<byte[],Long> entries, List<byte[]> keys, List<byte[]> queries,
+            VIntTrieLookup trie)
+    {
+        // regular lookups must not be affected by counts
+        for (Map.Entry<byte[],Long> entry : entries.entrySet()) {
+            assertEquals(entry.getValue(), trie.findValue(entry.getKey()));
+        }
+        for (byte[] key : queries) {
+            assertEquals(entries.get(key), trie.findValue(key));
+            assertEquals(_countPrefix(keys, key), trie.countPrefix(key));
+            assertEquals(_rank(keys, key), trie.rank(key));
+        }
+        assertEquals((long) keys.size(), trie.countPrefix(new byte[0]));
+        for (int i = 0; i < keys.size(); i += 7) {
+            TrieEntry<Long> entry = trie.select(i);
+            assertNotNull(entry);
+            assertEquals(Arrays.toString(keys.get(i)), Arrays.toString(entry.getKey()));
+            assertEquals(entries.get(keys.get(i)), entry.getValue());
+        }
+        assertNotNull(trie.select(keys.size()-1));
+        assertNull(trie.select(keys.size()));
+        assertNull(trie.select(-1L));
+    }
+
+    private long _rank(List<byte[]> keys, byte[] key)
+    {
+        int ix = Collections.binarySearch(keys, key, COMPARATOR);
+        return (ix < 0) ? -(ix+1) : ix;
+    }
+
+    private long _countPrefix(List<byte[]> keys, byte[] prefix)
+    {
+        long count = 0L;
+        for (int i = (int) _rank(keys, prefix); i < keys.size(); ++i) {
+            byte[] key = keys.get(i);
+            if (key.length < prefix.length
+                    || !Arrays.equals(prefix, Arrays.copyOf(key, prefix.length))) {
+                break;
+            }
+            ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Keys to query: sample of existing and missing keys, and their prefixes
+     */
+    private List<byte[]> _queryKeys(TreeMap<byte[],Long> entries)
+    {
+        List<byte[]> result = new ArrayList<byte[]>();
+        int i = 0;
+        for (byte[] key : entries.keySet()) {
+            if ((++i % 11) == 0) {
+                result.add(key);
+                result.add(Arrays.copyOf(key, 1));
+            }
+        }
+        i = 0;
+        for (byte[] key : IndexedBranchTest._missingKeys(entries)) {
+            if ((++i % 13) == 0) {
+                result.add(key);
+            }
+        }
+        result.add(new byte[0]);
+        result.add(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF });
+        result.add(new byte[] { 0x33, 0x32, 'x' });
+        return result;
+    }
+
+    private File _writeFile(byte[] data) throws IOException
+    {
+        File f = File.createTempFile("tr13", ".trie");
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+        return f;
+    }
+}
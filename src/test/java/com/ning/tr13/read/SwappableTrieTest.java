@@ -0,0 +1,286 @@
+package com.ning.tr13.read;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.ning.tr13.TrieLookup;
+import com.ning.tr13.TrieLookups;
+import com.ning.tr13.impl.vint.SimpleVIntTrieBuilder;
+import com.ning.tr13.lookup.PrefixMatch;
+import com.ning.tr13.lookup.SwappableTrieLookup;
+import com.ning.tr13.lookup.TrieCursor;
+import com.ning.tr13.lookup.TrieDirectoryWatcher;
+import com.ning.tr13.util.UTF8Codec;
+
+/**
+ * Tests for swapping tries under lookups, and loading them from
+ * a watched directory.
+ */
+public class SwappableTrieTest
+    extends junit.framework.TestCase
+{
+    private final static byte[] KEY = UTF8Codec.encodeAsUTF8("key");
+
+    public void testSwapAndRelease() throws Exception
+    {
+        final List<TrieLookup<Long>> released = new ArrayList<TrieLookup<Long>>();
+        TrieLookup<Long> first = _trie(1L);
+        SwappableTrieLookup<Long> trie = new SwappableTrieLookup<Long>(first,
+                new SwappableTrieLookup.ReleaseListener<Long>() {
+                    @Override
+                    public void released(TrieLookup<Long> t) {
+                        released.add(t);
+                    }
+        });
+        assertEquals(1L, trie.getVersion());
+        assertEquals(Long.valueOf(1L), trie.findValue(KEY));
+        assertEquals(Long.valueOf(1L), trie.findValue("key"));
+        assertNull(trie.findValue("foo"));
+
+        // with no lookups in progress, old trie is released right away
+        TrieLookup<Long> second = _trie(2L);
+        assertEquals(2L, trie.swap(second));
+        assertEquals(Long.valueOf(2L), trie.findValue(KEY));
+        assertEquals(1, released.size());
+        assertSame(first, released.get(0));
+        assertEquals(0, trie.getPendingReleaseCount());
+
+        // but not while leased
+        SwappableTrieLookup.Lease<Long> lease = trie.acquire();
+        trie.swap(_trie(3L));
+        assertEquals(Long.valueOf(3L), trie.findValue(KEY));
+        assertEquals(1, released.size());
+        assertEquals(1, trie.getPendingReleaseCount());
+        assertEquals(Long.valueOf(2L), lease.getLookup().findValue(KEY));
+        lease.release();
+        assertEquals(2, released.size());
+        assertSame(second, released.get(1));
+        assertEquals(0, trie.getPendingReleaseCount());
+        try {
+            lease.release();
+            fail("Should not allow releasing lease twice");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("released too many times"));
+        }
+    }
+
+    public void testTrieRelease() throws Exception
+    {
+        ReleaseCounting first = new ReleaseCounting(_trie(1L));
+        ReleaseCounting second = new ReleaseCounting(_trie(2L));
+        // replaced tries are released even without a listener
+        SwappableTrieLookup<Long> trie = new SwappableTrieLookup<Long>(first);
+        SwappableTrieLookup.Lease<Long> lease = trie.acquire();
+        trie.swap(second);
+        assertEquals(0, first.releases);
+        lease.release();
+        assertEquals(1, first.releases);
+
+        // and current one once holder is released and lookups have completed
+        lease = trie.acquire();
+        trie.release();
+        assertEquals(0, second.releases);
+        assertEquals(1, trie.getPendingReleaseCount());
+        assertEquals(Long.valueOf(2L), lease.getLookup().findValue(KEY));
+        lease.release();
+        assertEquals(1, second.releases);
+        assertEquals(0, trie.getPendingReleaseCount());
+        // releasing again does nothing
+        trie.release();
+        assertEquals(1, second.releases);
+        try {
+            trie.findValue(KEY);
+            fail("Should not allow lookups after release");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("holder has been released"));
+        }
+        try {
+            trie.swap(_trie(3L));
+            fail("Should not allow swaps after release");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("holder has been released"));
+        }
+    }
+
+    public void testConcurrentSwaps() throws Exception
+    {
+        final AtomicInteger releases = new AtomicInteger();
+        final SwappableTrieLookup<Long> trie = new SwappableTrieLookup<Long>(_trie(0L),
+                new SwappableTrieLookup.ReleaseListener<Long>() {
+                    @Override
+                    public void released(TrieLookup<Long> t) {
+                        releases.incrementAndGet();
+                    }
+        });
+        final AtomicReference<Throwable> problem = new AtomicReference<Throwable>();
+        final long[] values = new long[4];
+        Thread[] readers = new Thread[values.length];
+        for (int i = 0; i < readers.length; ++i) {
+            final int ix = i;
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        long prev = 0L;
+                        for (int j = 0; j < 20000; ++j) {
+                            long value = trie.findValue(KEY).longValue();
+                            // versions only go up
+                            if (value < prev) {
+                                throw new IllegalStateException("Value went from "+prev+" to "+value);
+                            }
+                            prev = value;
+                        }
+                        values[ix] = prev;
+                    } catch (Throwable t) {
+                        problem.set(t);
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        final int swaps = 50;
+        for (int i = 1; i <= swaps; ++i) {
+            trie.swap(_trie(i));
+        }
+        for (Thread t : readers) {
+            t.join();
+        }
+        assertNull(problem.get());
+        assertEquals(swaps, releases.get());
+        assertEquals(0, trie.getPendingReleaseCount());
+        assertEquals(Long.valueOf(swaps), trie.findValue(KEY));
+    }
+
+    public void testDirectoryWatcher() throws Exception
+    {
+        File dir = File.createTempFile("tr13", ".dir");
+        dir.delete();
+        dir.mkdir();
+        try {
+            SwappableTrieLookup<Long> trie = new SwappableTrieLookup<Long>(_trie(0L));
+            TrieDirectoryWatcher<Long> watcher = TrieDirectoryWatcher.forSuffix(dir, ".tr13",
+                    new TrieDirectoryWatcher.Loader<Long>() {
+                        @Override
+                        public TrieLookup<Long> load(File f) throws IOException {
+                            return TrieLookups.mapVIntTrie(f);
+                        }
+            }, trie);
+            assertFalse(watcher.checkNow());
+            assertNull(watcher.getLoadedFile());
+
+            File f1 = _writeTrie(dir, "a.tr13", 1L, 10000L);
+            _writeTrie(dir, "b.tmp", 9L, 30000L); // not matching suffix
+            assertTrue(watcher.checkNow());
+            assertEquals(f1, watcher.getLoadedFile());
+            assertEquals(Long.valueOf(1L), trie.findValue(KEY));
+            // no reloading unless file changes
+            assertFalse(watcher.checkNow());
+
+            // truncated files are not loaded
+            File f2 = _writeTrie(dir, "b.tr13", 2L, 20000L);
+            byte[] data = _read(f2);
+            _write(f2, Arrays.copyOf(data, data.length-1), 20000L);
+            assertFalse(watcher.checkNow());
+            assertNull(watcher.getLastError());
+            assertEquals(Long.valueOf(1L), trie.findValue(KEY));
+            _write(f2, data, 21000L);
+            assertTrue(watcher.checkNow());
+            assertEquals(f2, watcher.getLoadedFile());
+            assertEquals(Long.valueOf(2L), trie.findValue(KEY));
+
+            // and neither are invalid ones
+            File f3 = new File(dir, "c.tr13");
+            _write(f3, new byte[100], 30000L);
+            assertFalse(watcher.checkNow());
+            assertNotNull(watcher.getLastError());
+            assertEquals(f2, watcher.getLoadedFile());
+            assertEquals(Long.valueOf(2L), trie.findValue(KEY));
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /*
+    /**********************************************************
+    /* Helper methods
+    /**********************************************************
+     */
+
+    /**
+     * Wrapper for keeping track of calls to {@link TrieLookup#release}
+     */
+    private static class ReleaseCounting extends TrieLookup<Long>
+    {
+        private final TrieLookup<Long> _trie;
+
+        public int releases;
+
+        public ReleaseCounting(TrieLookup<Long> trie) {
+            _trie = trie;
+        }
+
+        @Override
+        public Long findValue(byte[] key) { return _trie.findValue(key); }
+
+        @Override
+        public Long findValue(byte[] key, int offset, int length) {
+            return _trie.findValue(key, offset, length);
+        }
+
+        @Override
+        public Long findValue(CharSequence key) { return _trie.findValue(key); }
+
+        @Override
+        public PrefixMatch<Long> findLongestPrefix(byte[] key) { return _trie.findLongestPrefix(key); }
+
+        @Override
+        public TrieCursor cursor(byte[] prefix) { return _trie.cursor(prefix); }
+
+        @Override
+        public void release() { ++releases; }
+    }
+
+    private TrieLookup<Long> _trie(long value) throws IOException
+    {
+        return TrieLookups.readByteArrayVIntTrie(new ByteArrayInputStream(_build(value)));
+    }
+
+    private byte[] _build(long value) throws IOException
+    {
+        TreeMap<byte[],Long> entries = new TreeMap<byte[],Long>(new IndexedBranchTest.ByteComparator());
+        entries.put(KEY, value);
+        entries.put(UTF8Codec.encodeAsUTF8("other"), value+1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries)).buildAndWrite(out, true);
+        return out.toByteArray();
+    }
+
+    private File _writeTrie(File dir, String name, long value, long modified) throws IOException
+    {
+        File f = new File(dir, name);
+        _write(f, _build(value), modified);
+        return f;
+    }
+
+    private void _write(File f, byte[] data, long modified) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+        f.setLastModified(modified);
+    }
+
+    private byte[] _read(File f) throws IOException
+    {
+        byte[] data = new byte[(int) f.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        in.readFully(data);
+        in.close();
+        return data;
+    }
+}
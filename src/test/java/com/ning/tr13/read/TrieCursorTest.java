@@ -0,0 +1,151 @@
+package com.ning.tr13.read;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import com.ning.tr13.TrieLookup;
+import com.ning.tr13.impl.bytes.ByteArrayBytesTrieLookup;
+import com.ning.tr13.impl.bytes.ByteBufferBytesTrieLookup;
+import com.ning.tr13.impl.bytes.SimpleBytesTrieBuilder;
+import com.ning.tr13.impl.vint.ByteArrayVIntTrieLookup;
+import com.ning.tr13.impl.vint.ByteBufferVIntTrieLookup;
+import com.ning.tr13.impl.vint.SimpleVIntTrieBuilder;
+import com.ning.tr13.lookup.TrieCursor;
+
+/**
+ * Tests for verifying that {@link TrieCursor} iterates over entries
+ * in expected order.
+ */
+public class TrieCursorTest
+    extends junit.framework.TestCase
+{
+    public void testVIntIteration() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        for (int minChildren : new int[] { 0, 8 }) {
+            for (boolean reorder : new boolean[] { false, true }) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries))
+                    .setReorderEntries(reorder)
+                    .setIndexedBranchMinChildren(minChildren)
+                    .buildAndWrite(out, false);
+                byte[] raw = out.toByteArray();
+                _testAll(entries, new ByteArrayVIntTrieLookup(raw), false);
+                _testAll(entries, new ByteBufferVIntTrieLookup(ByteBuffer.wrap(raw), raw.length), false);
+            }
+        }
+    }
+
+    public void testBytesIteration() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        for (int minChildren : new int[] { 0, 8 }) {
+            for (boolean reorder : new boolean[] { false, true }) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                new SimpleBytesTrieBuilder(new IndexedBranchTest.BytesReader(entries))
+                    .setReorderEntries(reorder)
+                    .setIndexedBranchMinChildren(minChildren)
+                    .buildAndWrite(out, false);
+                byte[] raw = out.toByteArray();
+                _testAll(entries, new ByteArrayBytesTrieLookup(raw), true);
+                _testAll(entries, new ByteBufferBytesTrieLookup(ByteBuffer.wrap(raw), raw.length), true);
+            }
+        }
+    }
+
+    public void testCursorReuse() throws Exception
+    {
+        TreeMap<byte[],Long> entries = IndexedBranchTest.wideEntries();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleVIntTrieBuilder(new IndexedBranchTest.VIntReader(entries)).buildAndWrite(out, false);
+        TrieCursor cursor = new ByteArrayVIntTrieLookup(out.toByteArray()).cursor();
+        int count = 0;
+        while (cursor.next()) {
+            ++count;
+        }
+        assertEquals(entries.size(), count);
+        assertFalse(cursor.next());
+        // can reuse for other prefixes
+        byte[] prefix = new byte[] { 0x33 };
+        _verify(entries.subMap(prefix, true, _prefixEnd(prefix), false), cursor.reset(prefix), false);
+        _verify(entries, cursor.reset(new byte[0]), false);
+        // but can not access value as byte[]
+        cursor.reset(prefix).next();
+        try {
+            cursor.getValueLength();
+            fail("Should not allow accessing VInt value as byte[]");
+        } catch (IllegalStateException e) { }
+    }
+
+    /*
+    /**********************************************************
+    /* Helper methods
+    /**********************************************************
+     */
+
+    private void _testAll(TreeMap<byte[],Long> entries, TrieLookup<?> trie, boolean bytesValued)
+    {
+        _verify(entries, trie.cursor(), bytesValued);
+        for (byte[] prefix : _prefixes(entries)) {
+            SortedMap<byte[],Long> exp = entries.subMap(prefix, true, _prefixEnd(prefix), false);
+            _verify(exp, trie.cursor(prefix), bytesValued);
+        }
+    }
+
+    private void _verify(SortedMap<byte[],Long> exp, TrieCursor cursor, boolean bytesValued)
+    {
+        for (Map.Entry<byte[],Long> entry : exp.entrySet()) {
+            assertTrue(cursor.next());
+            byte[] key = entry.getKey();
+            assertEquals(key.length, cursor.getKeyLength());
+            assertTrue(Arrays.equals(key, cursor.getKey()));
+            if (bytesValued) {
+                byte[] value = String.valueOf(entry.getValue()).getBytes();
+                assertEquals(value.length, cursor.getValueLength());
+                assertTrue(Arrays.equals(value, cursor.getBytesValue()));
+            } else {
+                assertEquals(entry.getValue().longValue(), cursor.getLongValue());
+            }
+        }
+        assertFalse(cursor.next());
+    }
+
+    private List<byte[]> _prefixes(TreeMap<byte[],Long> entries)
+    {
+        List<byte[]> result = new ArrayList<byte[]>();
+        // non-existing ones, first
+        result.add(new byte[] { 0x20 });
+        result.add(new byte[] { 0x30, (byte) 0xFF, 0x33 });
+        // then prefixes of (some of) keys, including full keys, and longer keys
+        int i = 0;
+        for (byte[] key : entries.keySet()) {
+            if ((++i % 5) != 0) {
+                continue;
+            }
+            for (int len = 1; len <= key.length; ++len) {
+                result.add(Arrays.copyOf(key, len));
+            }
+            result.add(Arrays.copyOf(key, key.length+1));
+        }
+        return result;
+    }
+
+    /**
+     * @return Smallest key that is bigger than all keys with given prefix
+     */
+    private byte[] _prefixEnd(byte[] prefix)
+    {
+        byte[] end = prefix.clone();
+        for (int i = end.length; --i >= 0; ) {
+            if (end[i] != (byte) 0xFF) {
+                ++end[i];
+                return Arrays.copyOf(end, i+1);
+            }
+        }
+        // all 0xFF bytes; no upper bound, but long key will do for tests
+        end = Arrays.copyOf(prefix, prefix.length + 16);
+        Arrays.fill(end, (byte) 0xFF);
+        return end;
+    }
+}
@@ -0,0 +1,146 @@
+package com.ning.tr13.read;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.*;
+
+import com.ning.tr13.KeyValueSource;
+import com.ning.tr13.TrieLookups;
+import com.ning.tr13.impl.bytes.ByteArrayBytesTrieLookup;
+import com.ning.tr13.impl.bytes.ByteBufferBytesTrieLookup;
+import com.ning.tr13.impl.bytes.SimpleBytesTrieBuilder;
+import com.ning.tr13.lookup.BytesLookupCursor;
+import com.ning.tr13.lookup.BytesTrieLookup;
+import com.ning.tr13.lookup.TrieCursor;
+
+/**
+ * Tests for verifying that values of byte[]-valued tries can be accessed
+ * without copying.
+ */
+public class ValueViewTest
+    extends junit.framework.TestCase
+{
+    public void testValueViews() throws Exception
+    {
+        TreeMap<byte[],byte[]> entries = _entries();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SimpleBytesTrieBuilder(new Reader(entries)).buildAndWrite(out, true);
+        byte[] full = out.toByteArray();
+        byte[] raw = Arrays.copyOfRange(full, 16, full.length);
+
+        _test(entries, new ByteArrayBytesTrieLookup(raw));
+        _test(entries, new ByteBufferBytesTrieLookup(ByteBuffer.wrap(raw), raw.length));
+        ByteBuffer direct = ByteBuffer.allocateDirect(raw.length);
+        direct.put(raw);
+        _test(entries, new ByteBufferBytesTrieLookup(direct, raw.length));
+
+        File f = File.createTempFile("tr13", ".trie");
+        try {
+            FileOutputStream fout = new FileOutputStream(f);
+            fout.write(full);
+            fout.close();
+            // small segments, so that some values cross segment boundaries
+            _test(entries, TrieLookups.mapBytesTrie(f, 10));
+            _test(entries, TrieLookups.mapBytesTrie(f));
+        } finally {
+            f.delete();
+        }
+    }
+
+    /*
+    /**********************************************************
+    /* Helper methods
+    /**********************************************************
+     */
+
+    private void _test(TreeMap<byte[],byte[]> entries, BytesTrieLookup trie)
+    {
+        BytesLookupCursor lookups = trie.newCursor();
+        byte[] buffer = new byte[10000];
+        for (Map.Entry<byte[],byte[]> entry : entries.entrySet()) {
+            byte[] exp = entry.getValue();
+            ByteBuffer bb = trie.findValueAsBuffer(entry.getKey());
+            assertEquals(exp.length, bb.remaining());
+            assertTrue(bb.isReadOnly());
+            assertTrue(Arrays.equals(exp, _toBytes(bb)));
+
+            assertEquals(exp.length, trie.findValueInto(entry.getKey(), buffer, 3));
+            assertTrue(Arrays.equals(exp, Arrays.copyOfRange(buffer, 3, 3 + exp.length)));
+
+            assertEquals(exp.length, lookups.lookup(entry.getKey()));
+            assertTrue(Arrays.equals(exp, _toBytes(lookups.valueAsBuffer())));
+            byte[] viaOffset = new byte[exp.length];
+            trie.getPayload().getBytes(lookups.valueOffset(), viaOffset, 0, exp.length);
+            assertTrue(Arrays.equals(exp, viaOffset));
+        }
+        byte[] missing = new byte[] { 'x' };
+        assertNull(trie.findValueAsBuffer(missing));
+        assertEquals(-1, trie.findValueInto(missing, buffer, 0));
+        assertEquals(-1, lookups.lookup(missing));
+        try {
+            lookups.valueAsBuffer();
+            fail("Should not have value after failed lookup");
+        } catch (IllegalStateException e) { }
+
+        // views must not allow modifications
+        ByteBuffer bb = trie.findValueAsBuffer(entries.firstKey());
+        try {
+            bb.put(0, (byte) 1);
+            fail("Should not allow modifications");
+        } catch (ReadOnlyBufferException e) { }
+
+        TrieCursor cursor = trie.cursor();
+        for (Map.Entry<byte[],byte[]> entry : entries.entrySet()) {
+            assertTrue(cursor.next());
+            assertTrue(Arrays.equals(entry.getValue(), _toBytes(cursor.getValueAsBuffer())));
+        }
+        assertFalse(cursor.next());
+    }
+
+    private byte[] _toBytes(ByteBuffer bb)
+    {
+        byte[] result = new byte[bb.remaining()];
+        bb.get(result);
+        return result;
+    }
+
+    /**
+     * Test data with values of varying size, up to several kilobytes
+     */
+    private TreeMap<byte[],byte[]> _entries()
+    {
+        TreeMap<byte[],byte[]> entries = new TreeMap<byte[],byte[]>(new IndexedBranchTest.ByteComparator());
+        Random r = new Random(7);
+        for (int i = 0; i < 300; ++i) {
+            byte[] key = ("key"+r.nextInt(10000)).getBytes();
+            byte[] value = new byte[(i % 3 == 0) ? r.nextInt(8000) : r.nextInt(40)];
+            r.nextBytes(value);
+            entries.put(key, value);
+        }
+        return entries;
+    }
+
+    static class Reader
+        extends KeyValueSource<byte[]>
+    {
+        final Map<byte[],byte[]> _entries;
+
+        protected int _lineNr;
+
+        public Reader(Map<byte[],byte[]> entries) {
+            _entries = entries;
+        }
+
+        @Override
+        public void readAll(ValueCallback<byte[]> handler) throws IOException
+        {
+            for (Map.Entry<byte[],byte[]> en : _entries.entrySet()) {
+                ++_lineNr;
+                handler.handleEntry(en.getKey(), en.getValue());
+            }
+        }
+
+        @Override public int getLineNumber() { return _lineNr; }
+    }
+}